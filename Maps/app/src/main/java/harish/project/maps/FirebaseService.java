@@ -5,11 +5,14 @@ import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
 import com.github.mikephil.charting.data.Entry;
-import harish.project.maps.models.TrafficJunction;
+import harish.project.maps.services.TrafficRollup;
 import java.util.ArrayList;
 import java.util.List;
 
 public class FirebaseService {
+  private static final String ROLLUP_PATH = "traffic_rollups";
+  private static final long DEFAULT_WINDOW_MS = 86_400_000L;
+  private static final int MIN_CHART_POINTS = 12;
   private static FirebaseService instance;
   private final FirebaseDatabase database;
 
@@ -31,20 +34,26 @@ public class FirebaseService {
   }
 
   public void getTrafficData(TrafficDataListener listener) {
-    database.getReference("traffic_history")
+    getTrafficData(DEFAULT_WINDOW_MS, listener);
+  }
+
+  // Reads the coarsest rollup tier that still gives a readable chart for the window
+  public void getTrafficData(long windowMillis, TrafficDataListener listener) {
+    TrafficRollup.Tier tier = TrafficRollup.Tier.forWindow(windowMillis, MIN_CHART_POINTS);
+    long from = tier.bucketStart(System.currentTimeMillis() - windowMillis);
+    database.getReference(ROLLUP_PATH).child(tier.getPath())
+        .orderByKey()
+        .startAt(String.valueOf(from))
         .addValueEventListener(new ValueEventListener() {
           @Override
           public void onDataChange(DataSnapshot snapshot) {
             List<Entry> entries = new ArrayList<>();
             int count = 0;
 
-            for (DataSnapshot junctionSnapshot : snapshot.getChildren()) {
-              for (DataSnapshot timeSnapshot : junctionSnapshot.getChildren()) {
-                TrafficJunction junction = timeSnapshot.getValue(TrafficJunction.class);
-                if (junction != null) {
-                  entries.add(new Entry(count++, junction.getVehicleDensity()));
-                }
-              }
+            // One point per bucket: mean density across all junctions
+            for (TrafficRollup.Aggregate bucket
+                : TrafficRollup.readSeries(snapshot.getValue(), from).values()) {
+              entries.add(new Entry(count++, (float) bucket.getMean()));
             }
 
             listener.onDataLoaded(entries);
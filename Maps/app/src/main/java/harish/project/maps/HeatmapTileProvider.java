@@ -0,0 +1,87 @@
+package harish.project.maps;
+
+import android.graphics.Bitmap;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import harish.project.maps.services.HeatmapRasterizer;
+import harish.project.maps.services.HeatmapTileCache;
+import harish.project.maps.services.JunctionStateStore;
+import harish.project.maps.services.TrafficService;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves congestion heatmap tiles. Cached tiles are returned straight away; others are
+ * rasterized and PNG-encoded on a small pool sized to the device, so the work the map does
+ * depends on the tiles on screen rather than on the number of junctions.
+ */
+public class HeatmapTileProvider implements TileProvider {
+  private final JunctionStateStore store;
+  private final HeatmapTileCache cache;
+  private final ExecutorService pool;
+  private final ThreadLocal<HeatmapRasterizer> rasterizers;
+  private final ThreadLocal<int[]> pixels = ThreadLocal.withInitial(() ->
+      new int[HeatmapRasterizer.TILE_SIZE * HeatmapRasterizer.TILE_SIZE]);
+
+  public HeatmapTileProvider(JunctionStateStore store, HeatmapTileCache cache,
+      TrafficService trafficService) {
+    this.store = store;
+    this.cache = cache;
+    this.rasterizers = ThreadLocal.withInitial(() -> new HeatmapRasterizer(trafficService));
+    AtomicInteger threads = new AtomicInteger();
+    int size = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    this.pool = Executors.newFixedThreadPool(size, runnable -> {
+      Thread thread = new Thread(runnable, "heatmap-tile-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  // Called by the map on its own tile threads
+  @Override
+  public Tile getTile(int x, int y, int zoom) {
+    byte[] tile = cache.get(zoom, x, y);
+    if (tile == null) {
+      long token = cache.beginRender(zoom, x, y);
+      Future<byte[]> rendered = pool.submit(() -> render(x, y, zoom));
+      try {
+        tile = rendered.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // Fall through with no tile; the map asks again later
+      }
+      cache.finishRender(zoom, x, y, token, tile);
+      if (tile == null) {
+        return NO_TILE;
+      }
+    }
+    return tile == HeatmapTileCache.EMPTY ? NO_TILE
+        : new Tile(HeatmapRasterizer.TILE_SIZE, HeatmapRasterizer.TILE_SIZE, tile);
+  }
+
+  public HeatmapTileCache getCache() {
+    return cache;
+  }
+
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  private byte[] render(int x, int y, int zoom) {
+    int[] argb = pixels.get();
+    if (!rasterizers.get().render(store, zoom, x, y, argb)) {
+      return HeatmapTileCache.EMPTY;
+    }
+    Bitmap bitmap = Bitmap.createBitmap(argb, HeatmapRasterizer.TILE_SIZE,
+        HeatmapRasterizer.TILE_SIZE, Bitmap.Config.ARGB_8888);
+    ByteArrayOutputStream png = new ByteArrayOutputStream(16 * 1024);
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+    bitmap.recycle();
+    return png.toByteArray();
+  }
+}
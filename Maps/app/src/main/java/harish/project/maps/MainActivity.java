@@ -4,7 +4,12 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.speech.tts.TextToSpeech;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -19,21 +24,41 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.*;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
 import com.google.maps.DirectionsApi;
 import com.google.maps.GeoApiContext;
 import com.google.maps.model.DirectionsResult;
 import com.google.maps.model.TravelMode;
 import harish.project.maps.models.TrafficJunction;
+import harish.project.maps.services.ClusterDiff;
+import harish.project.maps.services.CoalescingDispatcher;
+import harish.project.maps.services.CongestionClassifier;
 import harish.project.maps.services.FirebaseService;
+import harish.project.maps.services.FirebaseTrafficDataSource;
 import harish.project.maps.services.GeminiService;
+import harish.project.maps.services.IncrementalRoutePlanner;
+import harish.project.maps.services.FirebasePartitionFeed;
+import harish.project.maps.services.JunctionStateStore;
+import harish.project.maps.services.LocalPartitionFeed;
+import harish.project.maps.services.MappedSnapshot;
+import harish.project.maps.services.PartitionedTrafficDataSource;
+import harish.project.maps.services.ReplayTrafficDataSource;
+import harish.project.maps.services.RoadGraph;
+import harish.project.maps.services.RoadGraphCodec;
+import harish.project.maps.services.Route;
+import harish.project.maps.services.RouteCache;
+import harish.project.maps.services.RouteCorridor;
+import harish.project.maps.services.SnapshotTrafficDataSource;
+import harish.project.maps.services.SyntheticTrafficDataSource;
+import harish.project.maps.services.TrafficDataSource;
+import harish.project.maps.services.TrafficEdgeWeights;
 import harish.project.maps.services.TrafficService;
+import harish.project.maps.services.TravelTimeProfile;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity implements OnMapReadyCallback,
         FirebaseService.TrafficDataListener, TextToSpeech.OnInitListener {
@@ -42,7 +67,14 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     private FirebaseService firebaseService;
     private GeminiService geminiService;
     private TextToSpeech textToSpeech;
-    private Map<String, Circle> trafficMarkers;
+    // Diffs junction state off the main thread and recycles circles
+    private MarkerRenderer markerRenderer;
+    // Congestion raster shown instead of clusters when zoomed out
+    private HeatmapTileProvider heatmapProvider;
+    private TileOverlay heatmapOverlay;
+    private int heatmapVersion;
+    private boolean heatmapRefreshPending;
+    private static final long HEATMAP_REFRESH_MS = 1000;
     private Marker sourceMarker;
     private Marker destinationMarker;
     private EditText sourceInput;
@@ -51,21 +83,72 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     private GeoApiContext geoApiContext;
     private ExecutorService executorService;
     private static final int LOCATION_PERMISSION_REQUEST_CODE = 1;
+    // Developer hook: start with --es traffic_source synthetic|replay to run without the backend
+    public static final String EXTRA_TRAFFIC_SOURCE = "traffic_source";
+    public static final String EXTRA_REPLAY_FILE = "traffic_replay_file";
+    public static final String EXTRA_REPLAY_SPEED = "traffic_replay_speed";
+    public static final String EXTRA_SYNTHETIC_JUNCTIONS = "traffic_synthetic_junctions";
+    // heatmap (default) or circles, which draws cluster circles when zoomed out instead
+    public static final String EXTRA_TRAFFIC_LAYER = "traffic_layer";
+    // Subscribe only to the geohash cells around the viewport; with the Firebase source this
+    // needs a producer writing traffic_cells/<geohash5>/<junctionId>
+    public static final String EXTRA_TRAFFIC_PARTITIONED = "traffic_partitioned";
+    private PartitionedTrafficDataSource partitionedSource;
+    // Local source feeding the stand-in partition feed, if any
+    private TrafficDataSource partitionUpstream;
+    private ExecutorService partitionFeedExecutor;
+    private static final long ANALYSIS_MIN_INTERVAL_MS = 60_000; // Gemini round trips are expensive
+    private long lastAnalysisMillis;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private TrafficService trafficService;
     private Polyline routePolyline;
+    // Prepared once per route so corridor queries don't re-walk the polyline
+    private RouteCorridor routeCorridor;
+    // Sorted store indices of the junctions on the route, for level-change alerts
+    private volatile int[] routeJunctions = new int[0];
+    private final AtomicBoolean routeSummaryPending = new AtomicBoolean();
+    private int renderedCongestionVersion = -1;
+    private boolean clustersShown;
+    private static final double ROUTE_CORRIDOR_M = 150;
+    // Road network for local routing, see RoadGraphCodec; without it routes are straight lines
+    private static final String ROAD_GRAPH_FILE = "road_graph.bin";
+    // Only used on executorService; keeps the active route repaired as junction densities change
+    private IncrementalRoutePlanner activeRoute;
+    private final AtomicBoolean routeRepairPending = new AtomicBoolean();
+    // Repeated trips skip the search until traffic along them changes
+    private RouteCache routeCache;
+    // Typical traffic by time of week, for the ETA of a trip starting now
+    private volatile TravelTimeProfile travelTimeProfile;
+    private static final int NEAREST_JUNCTIONS = 3;
+    private static final String TAG = "MainActivity";
+    // Last known junctions and road graph, mapped at startup so the map paints before the
+    // backend answers; rewritten whenever the activity stops
+    private static final String SNAPSHOT_FILE = "startup_snapshot.bin";
+    private MappedSnapshot startupSnapshot;
+    private volatile RoadGraph roadGraph;
+    private long createdAtMillis;
+    private boolean firstPaintLogged;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAtMillis = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_main);
 
         // Initialize services
-        firebaseService = new FirebaseService();
+        // Coalesced traffic updates are flushed at most once per display frame
+        CoalescingDispatcher.FlushScheduler frameScheduler = flush -> mainHandler.post(() ->
+                Choreographer.getInstance().postFrameCallback(frameTimeNanos -> flush.run()));
+        firebaseService = new FirebaseService(createTrafficDataSource(), frameScheduler);
+        firebaseService.setHistoryWriter(FirebaseService.createHistoryWriter(
+                new File(getFilesDir(), "traffic_history")));
+        // Live updates feed the rollup tiers the analytics screen charts
+        firebaseService.startRollups();
         geminiService = new GeminiService();
-        trafficMarkers = new HashMap<>();
         textToSpeech = new TextToSpeech(this, this);
         executorService = Executors.newSingleThreadExecutor();
         trafficService = new TrafficService();
+        loadRoadGraph();
 
         // Initialize GeoApiContext for Directions API
         geoApiContext = new GeoApiContext.Builder()
@@ -117,6 +200,47 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
             }
         });
 
+        JunctionStateStore store = firebaseService.getStateStore();
+        boolean heatmap = !"circles".equals(getIntent().getStringExtra(EXTRA_TRAFFIC_LAYER));
+        ClusterDiff.Styler clusterStyler = heatmap ? null : (meanDensity, emergencies) ->
+                emergencies > 0 ? Color.RED
+                        : trafficService.getTrafficColor((int) Math.round(meanDensity));
+        clustersShown = !heatmap;
+        CongestionClassifier congestion = firebaseService.getCongestionClassifier();
+        markerRenderer = new MarkerRenderer(mMap, store, (junctions, index) ->
+                junctions.isEmergencyVehiclePresent(index) ? Color.RED
+                        : congestion.getColor(index),
+                firebaseService.getClusterPyramid(), clusterStyler);
+        congestion.setListener((index, previousLevel, level) -> {
+            if (Arrays.binarySearch(routeJunctions, index) >= 0
+                    && routeSummaryPending.compareAndSet(false, true)) {
+                mainHandler.post(() -> {
+                    routeSummaryPending.set(false);
+                    if (routeCorridor != null) {
+                        summarizeRouteTraffic(routeCorridor);
+                    }
+                });
+            }
+        });
+        if (heatmap) {
+            heatmapProvider = new HeatmapTileProvider(store,
+                    firebaseService.getHeatmapTileCache(), trafficService);
+            heatmapOverlay = mMap.addTileOverlay(new TileOverlayOptions()
+                    .tileProvider(heatmapProvider)
+                    .fadeIn(false));
+        }
+        // Only junctions on screen get circles, or clusters when zoomed out; re-diff once the
+        // camera settles
+        mMap.setOnCameraIdleListener(() -> {
+            LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+            markerRenderer.setViewport(bounds, mMap.getCameraPosition().zoom);
+            if (partitionedSource != null) {
+                partitionedSource.setViewport(bounds.southwest.latitude,
+                        bounds.southwest.longitude, bounds.northeast.latitude,
+                        bounds.northeast.longitude);
+            }
+        });
+
         // Start listening to traffic updates
         startTrafficUpdates();
     }
@@ -124,25 +248,65 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     @Override
     public void onTrafficDataUpdated(List<TrafficJunction> junctions) {
         runOnUiThread(() -> {
-            updateTrafficMarkers(junctions);
-            analyzeAndPredictTraffic(junctions);
+            if (!firstPaintLogged) {
+                firstPaintLogged = true;
+                Runtime runtime = Runtime.getRuntime();
+                Log.i(TAG, String.format(Locale.US, "First traffic paint %d ms after start (%s), heap %d KB",
+                        SystemClock.elapsedRealtime() - createdAtMillis,
+                        startupSnapshot != null ? "snapshot" : "cold",
+                        (runtime.totalMemory() - runtime.freeMemory()) / 1024));
+            }
+            // Only circles whose visual state changed are touched, and densities that stayed
+            // inside their hysteresis band change nothing visible at all
+            int version = firebaseService.getCongestionClassifier().version();
+            if (clustersShown || version != renderedCongestionVersion) {
+                renderedCongestionVersion = version;
+                markerRenderer.requestRender();
+            }
+            refreshHeatmap();
+            analyzeAndPredictTraffic();
         });
     }
 
     @Override
-    public void onEmergencyVehicleDetected(TrafficJunction junction) {
+    public void onTrafficJunctionRemoved(String junctionId) {
         runOnUiThread(() -> {
-            // Update map marker for emergency vehicle
-            Circle circle = trafficMarkers.get(junction.getJunctionId());
-            if (circle != null) {
-                circle.setFillColor(Color.RED);
+            markerRenderer.requestRender();
+            refreshHeatmap();
+        });
+    }
+
+    // The overlay re-fetches every visible tile, but only invalidated ones are re-rendered
+    private void refreshHeatmap() {
+        if (heatmapOverlay == null || heatmapRefreshPending) {
+            return;
+        }
+        heatmapRefreshPending = true;
+        mainHandler.postDelayed(() -> {
+            heatmapRefreshPending = false;
+            int version = firebaseService.getHeatmapTileCache().version();
+            if (version != heatmapVersion && heatmapOverlay != null) {
+                heatmapVersion = version;
+                heatmapOverlay.clearTileCache();
             }
+        }, HEATMAP_REFRESH_MS);
+    }
+
+    @Override
+    public void onEmergencyVehicleDetected(TrafficJunction junction) {
+        int index = firebaseService.getStateStore().indexOf(junction.getJunctionId());
+        runOnUiThread(() -> {
+            // The renderer's styler paints emergency junctions red
+            markerRenderer.requestRender();
 
             // Generate and speak emergency alert
             geminiService.generateVoiceAlert(junction, new GeminiService.GeminiCallback() {
                 @Override
                 public void onSuccess(String alert) {
-                    runOnUiThread(() -> textToSpeech.speak(alert, TextToSpeech.QUEUE_FLUSH, null, null));
+                    runOnUiThread(() -> {
+                        textToSpeech.speak(alert, TextToSpeech.QUEUE_FLUSH, null, null);
+                        firebaseService.getEmergencyTracker().recordAlert(index);
+                    });
                 }
 
                 @Override
@@ -154,31 +318,21 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
         });
     }
 
-    private void updateTrafficMarkers(List<TrafficJunction> junctions) {
-        for (TrafficJunction junction : junctions) {
-            Circle circle = trafficMarkers.get(junction.getJunctionId());
-            LatLng position = new LatLng(junction.getLatitude(), junction.getLongitude());
-
-            if (circle == null) {
-                // Create new marker
-                CircleOptions circleOptions = new CircleOptions()
-                        .center(position)
-                        .radius(100) // meters
-                        .strokeWidth(2)
-                        .strokeColor(Color.BLACK);
-                circle = mMap.addCircle(circleOptions);
-                trafficMarkers.put(junction.getJunctionId(), circle);
-            }
+    @Override
+    public void onEmergencyVehicleCleared(TrafficJunction junction) {
+        runOnUiThread(() -> markerRenderer.requestRender());
+    }
 
-            // Update circle color based on traffic density using TrafficService
-            int color = trafficService.getTrafficColor(junction.getVehicleDensity());
-            circle.setFillColor(color);
+    private void analyzeAndPredictTraffic() {
+        long now = System.currentTimeMillis();
+        if (now - lastAnalysisMillis < ANALYSIS_MIN_INTERVAL_MS) {
+            return;
         }
-    }
+        lastAnalysisMillis = now;
+        JunctionStateStore store = firebaseService.getStateStore();
 
-    private void analyzeAndPredictTraffic(List<TrafficJunction> junctions) {
         // Analyze traffic pattern
-        geminiService.analyzeTrafficPattern(junctions, new GeminiService.GeminiCallback() {
+        geminiService.analyzeTrafficPattern(store, new GeminiService.GeminiCallback() {
             @Override
             public void onSuccess(String analysis) {
                 runOnUiThread(() -> {
@@ -195,7 +349,7 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
         });
 
         // Predict future traffic
-        geminiService.predictFutureTraffic(junctions, new GeminiService.GeminiCallback() {
+        geminiService.predictFutureTraffic(store, new GeminiService.GeminiCallback() {
             @Override
             public void onSuccess(String prediction) {
                 runOnUiThread(() -> {
@@ -255,6 +409,7 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
                 .title("Source")
                 .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN)));
         sourceInput.setText(String.format("%f, %f", position.latitude, position.longitude));
+        showNearestJunctions(position);
     }
 
     private void addDestinationMarker(LatLng position) {
@@ -268,74 +423,234 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
         destinationInput.setText(String.format("%f, %f", position.latitude, position.longitude));
     }
 
+    private void loadRoadGraph() {
+        File file = new File(getFilesDir(), ROAD_GRAPH_FILE);
+        executorService.execute(() -> {
+            MappedSnapshot snapshot = startupSnapshot;
+            // A road graph file newer than the snapshot replaces the graph it holds
+            boolean fromSnapshot = snapshot != null && snapshot.hasRoadGraph()
+                    && (!file.exists() || file.lastModified() <= new File(getFilesDir(), SNAPSHOT_FILE).lastModified());
+            if (!fromSnapshot && !file.exists()) {
+                return;
+            }
+            try {
+                RoadGraph graph = fromSnapshot ? snapshot.toRoadGraph() : RoadGraphCodec.read(file);
+                roadGraph = graph;
+                JunctionStateStore store = firebaseService.getStateStore();
+                TrafficEdgeWeights weights = new TrafficEdgeWeights(graph);
+                IncrementalRoutePlanner planner = new IncrementalRoutePlanner(graph, weights);
+                planner.setListener(route -> {
+                    if (route != null) {
+                        List<LatLng> points = route.getPoints();
+                        runOnUiThread(() -> {
+                            drawRoute(points, false, false);
+                            Toast.makeText(MainActivity.this, String.format(Locale.US,
+                                    "Traffic changed, rerouted: about %d min",
+                                    Math.round(route.getTravelSeconds() / 60)), Toast.LENGTH_SHORT).show();
+                        });
+                    }
+                });
+                // Density updates queue the nodes they touch; one repair runs per batch
+                weights.setListener(node -> {
+                    planner.edgesIntoChanged(node);
+                    if (routeRepairPending.compareAndSet(false, true)) {
+                        executorService.execute(() -> {
+                            routeRepairPending.set(false);
+                            planner.repair();
+                        });
+                    }
+                });
+                firebaseService.addStoreObserver(weights);
+                activeRoute = planner;
+                routeCache = new RouteCache(store);
+                firebaseService.addStoreObserver(routeCache);
+                TravelTimeProfile profile = new TravelTimeProfile(graph);
+                firebaseService.attachTravelTimeProfile(profile);
+                travelTimeProfile = profile;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Could not load the road graph", e);
+            }
+        });
+    }
+
     private void findRoute() {
         if (sourceMarker == null || destinationMarker == null) {
             Toast.makeText(this, "Please select both source and destination", Toast.LENGTH_SHORT).show();
             return;
         }
 
+        // Get source and destination coordinates
+        LatLng source = sourceMarker.getPosition();
+        LatLng destination = destinationMarker.getPosition();
+
+        // Update input fields with coordinates
+        sourceInput.setText(String.format("%f, %f", source.latitude, source.longitude));
+        destinationInput.setText(String.format("%f, %f", destination.latitude, destination.longitude));
+
+        // Routed locally over the road graph with live traffic weights; no network round trip
+        executorService.execute(() -> {
+            Route route = null;
+            if (activeRoute != null) {
+                route = routeCache.route(source.latitude, source.longitude,
+                        destination.latitude, destination.longitude, System.currentTimeMillis(),
+                        activeRoute::plan);
+                if (route != null && route != activeRoute.getRoute()) {
+                    // Served from the cache; follow this trip for reroutes, searching only once
+                    // traffic on the graph actually changes
+                    activeRoute.adopt(route);
+                }
+            }
+            Route planned = route;
+            // Live densities only describe the start of a long trip; history prices the rest
+            TravelTimeProfile profile = travelTimeProfile;
+            double typicalSeconds = planned != null && profile != null && profile.version() > 0
+                    ? profile.estimateSeconds(planned, System.currentTimeMillis()) : -1;
+            List<LatLng> points;
+            if (route != null) {
+                points = new ArrayList<>();
+                points.add(source);
+                points.addAll(route.getPoints());
+                points.add(destination);
+            } else {
+                points = Arrays.asList(source, destination);
+            }
+            runOnUiThread(() -> {
+                drawRoute(points, planned == null, true);
+                if (planned != null) {
+                    String summary = String.format(Locale.US, "%.1f km, about %d min",
+                            planned.getLengthMeters() / 1000, Math.round(planned.getTravelSeconds() / 60));
+                    if (typicalSeconds >= 0) {
+                        summary += String.format(Locale.US, " (usually %d min at this time)",
+                                Math.round(typicalSeconds / 60));
+                    }
+                    Toast.makeText(MainActivity.this, summary, Toast.LENGTH_SHORT).show();
+                }
+            });
+        });
+    }
+
+    private void drawRoute(List<LatLng> points, boolean geodesic, boolean fitCamera) {
         // Clear existing route if any
         if (routePolyline != null) {
             routePolyline.remove();
         }
 
-        // Get source and destination coordinates
-        LatLng source = sourceMarker.getPosition();
-        LatLng destination = destinationMarker.getPosition();
-
         // Create route options
         PolylineOptions polylineOptions = new PolylineOptions()
-                .add(source)
-                .add(destination)
+                .addAll(points)
                 .width(10)
                 .color(Color.BLUE)
-                .geodesic(true);
+                .geodesic(geodesic);
 
         // Add the route to the map
         routePolyline = mMap.addPolyline(polylineOptions);
 
-        // Move camera to show the entire route
-        LatLngBounds.Builder builder = new LatLngBounds.Builder();
-        builder.include(source);
-        builder.include(destination);
-        LatLngBounds bounds = builder.build();
-        mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 100));
+        // Move camera to show the entire route; reroutes leave the camera where the user put it
+        if (fitCamera) {
+            LatLngBounds.Builder builder = new LatLngBounds.Builder();
+            for (LatLng point : points) {
+                builder.include(point);
+            }
+            LatLngBounds bounds = builder.build();
+            mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 100));
+        }
 
-        // Update input fields with coordinates
-        sourceInput.setText(String.format("%f, %f", source.latitude, source.longitude));
-        destinationInput.setText(String.format("%f, %f", destination.latitude, destination.longitude));
+        routeCorridor = new RouteCorridor(points);
+        summarizeRouteTraffic(routeCorridor);
+    }
+
+    // Reports congestion on the junctions the route passes, in the order it passes them
+    private void summarizeRouteTraffic(RouteCorridor corridor) {
+        JunctionStateStore store = firebaseService.getStateStore();
+        executorService.execute(() -> {
+            CongestionClassifier congestion = firebaseService.getCongestionClassifier();
+            List<TrafficJunction> along = trafficService.findJunctionsAlongRoute(store, corridor,
+                    ROUTE_CORRIDOR_M);
+            int[] indices = new int[along.size()];
+            TrafficJunction firstHeavy = null;
+            for (int i = 0; i < along.size(); i++) {
+                TrafficJunction junction = along.get(i);
+                indices[i] = store.indexOf(junction.getJunctionId());
+                if (firstHeavy == null
+                        && congestion.getLevel(indices[i]) == CongestionClassifier.HEAVY) {
+                    firstHeavy = junction;
+                }
+            }
+            Arrays.sort(indices);
+            routeJunctions = indices;
+            String summary = along.size() + " junctions on route"
+                    + (firstHeavy != null ? ", heavy traffic at " + firstHeavy.getJunctionId() : "");
+            runOnUiThread(() -> Toast.makeText(MainActivity.this, summary, Toast.LENGTH_LONG).show());
+        });
+    }
+
+    private void showNearestJunctions(LatLng position) {
+        JunctionStateStore store = firebaseService.getStateStore();
+        executorService.execute(() -> {
+            List<TrafficJunction> nearest = trafficService.findNearestJunctions(store, position,
+                    NEAREST_JUNCTIONS);
+            if (nearest.isEmpty()) {
+                return;
+            }
+            CongestionClassifier congestion = firebaseService.getCongestionClassifier();
+            StringBuilder text = new StringBuilder("Nearby: ");
+            for (TrafficJunction junction : nearest) {
+                text.append(junction.getJunctionId()).append(" (")
+                        .append(congestion.getStatus(store.indexOf(junction.getJunctionId())))
+                        .append(") ");
+            }
+            runOnUiThread(() -> Toast.makeText(MainActivity.this, text.toString().trim(),
+                    Toast.LENGTH_SHORT).show());
+        });
+    }
+
+    private TrafficDataSource createTrafficDataSource() {
+        String source = getIntent().getStringExtra(EXTRA_TRAFFIC_SOURCE);
+        TrafficDataSource local = null;
+        if ("synthetic".equals(source)) {
+            int junctions = getIntent().getIntExtra(EXTRA_SYNTHETIC_JUNCTIONS, 5000);
+            local = new SyntheticTrafficDataSource(junctions, junctions / 2.0);
+        } else if ("replay".equals(source)) {
+            String path = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+            if (path != null) {
+                local = new ReplayTrafficDataSource(new File(path),
+                        getIntent().getDoubleExtra(EXTRA_REPLAY_SPEED, 1.0), true);
+            }
+        }
+        if (!getIntent().getBooleanExtra(EXTRA_TRAFFIC_PARTITIONED, false)) {
+            if (local != null) {
+                return local;
+            }
+            startupSnapshot = openSnapshot();
+            if (startupSnapshot == null) {
+                return new FirebaseTrafficDataSource("traffic_data", FirebaseService.IngestionMode.INCREMENTAL);
+            }
+            // Paint the snapshot, then fetch only the junctions that changed since it was taken;
+            // a resumed feed starts from an empty store and fetches everything
+            return new SnapshotTrafficDataSource(startupSnapshot,
+                    new FirebaseTrafficDataSource("traffic_data", FirebaseService.IngestionMode.INCREMENTAL,
+                            startupSnapshot.getResyncFrom()),
+                    new FirebaseTrafficDataSource("traffic_data", FirebaseService.IngestionMode.INCREMENTAL));
+        }
+        PartitionedTrafficDataSource.PartitionFeed feed;
+        if (local != null) {
+            // Local sources publish into an in-memory stand-in for the partitioned tree
+            partitionFeedExecutor = Executors.newSingleThreadExecutor();
+            LocalPartitionFeed localFeed = new LocalPartitionFeed(partitionFeedExecutor);
+            local.start(localFeed.publisher());
+            partitionUpstream = local;
+            feed = localFeed;
+        } else {
+            feed = new FirebasePartitionFeed("traffic_cells", "traffic_data");
+        }
+        partitionedSource = new PartitionedTrafficDataSource(feed);
+        return partitionedSource;
     }
 
     private void startTrafficUpdates() {
         try {
-            FirebaseDatabase.getInstance().getReference("traffic_data")
-                    .addValueEventListener(new ValueEventListener() {
-                        @Override
-                        public void onDataChange(@NonNull DataSnapshot snapshot) {
-                            try {
-                                List<TrafficJunction> junctions = new ArrayList<>();
-                                for (DataSnapshot junctionSnapshot : snapshot.getChildren()) {
-                                    TrafficJunction junction = junctionSnapshot.getValue(TrafficJunction.class);
-                                    if (junction != null) {
-                                        junctions.add(junction);
-                                    }
-                                }
-                                if (!junctions.isEmpty()) {
-                                    updateTrafficMarkers(junctions);
-                                    analyzeAndPredictTraffic(junctions);
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        @Override
-                        public void onCancelled(@NonNull DatabaseError error) {
-                            runOnUiThread(() -> Toast.makeText(MainActivity.this,
-                                    "Error loading traffic data: " + error.getMessage(),
-                                    Toast.LENGTH_SHORT).show());
-                        }
-                    });
+            // Child-level ingestion: only changed junctions are decoded and delivered
+            firebaseService.addTrafficDataListener(this);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -343,13 +658,12 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
 
     private void stopTrafficUpdates() {
         try {
+            firebaseService.removeTrafficDataListener(this);
+
             // Clear all traffic markers
-            for (Circle circle : trafficMarkers.values()) {
-                if (circle != null) {
-                    circle.remove();
-                }
+            if (markerRenderer != null) {
+                markerRenderer.clear();
             }
-            trafficMarkers.clear();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -366,9 +680,46 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
     @Override
     protected void onPause() {
         super.onPause();
+        // Stopping the feed clears the store, so the snapshot is taken first
+        saveSnapshot();
         stopTrafficUpdates();
     }
 
+    private void saveSnapshot() {
+        // Only the live Firebase tree is worth keeping; local sources regenerate themselves
+        if (getIntent().getStringExtra(EXTRA_TRAFFIC_SOURCE) != null
+                || getIntent().getBooleanExtra(EXTRA_TRAFFIC_PARTITIONED, false)) {
+            return;
+        }
+        // An empty store, e.g. before the first sync, must not replace a useful snapshot
+        MappedSnapshot.Capture junctions = firebaseService.captureSnapshot();
+        if (junctions == null) {
+            return;
+        }
+        File file = new File(getFilesDir(), SNAPSHOT_FILE);
+        executorService.execute(() -> {
+            try {
+                MappedSnapshot.write(file, MappedSnapshot.encode(junctions, roadGraph));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save startup snapshot", e);
+            }
+        });
+    }
+
+    private MappedSnapshot openSnapshot() {
+        File file = new File(getFilesDir(), SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return MappedSnapshot.open(file);
+        } catch (IOException | IllegalArgumentException e) {
+            // Unreadable or from another version; the next pause writes a fresh one
+            Log.w(TAG, "Ignoring startup snapshot", e);
+            return null;
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -377,10 +728,24 @@ public class MainActivity extends AppCompatActivity implements OnMapReadyCallbac
             textToSpeech.shutdown();
         }
         firebaseService.removeTrafficDataListener(this);
+        // Anything not acknowledged by then is replayed on the next start
+        firebaseService.getHistoryWriter().flush();
         executorService.shutdown();
         if (geoApiContext != null) {
             geoApiContext.shutdown();
         }
         stopTrafficUpdates();
+        // Its jobs run on an executor shared across activity instances
+        firebaseService.shutdown();
+        if (markerRenderer != null) {
+            markerRenderer.shutdown();
+        }
+        if (heatmapProvider != null) {
+            heatmapProvider.shutdown();
+        }
+        if (partitionUpstream != null) {
+            partitionUpstream.stop();
+            partitionFeedExecutor.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+package harish.project.maps;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.Circle;
+import com.google.android.gms.maps.model.CircleOptions;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import harish.project.maps.services.ClusterDiff;
+import harish.project.maps.services.ClusterPyramid;
+import harish.project.maps.services.JunctionStateStore;
+import harish.project.maps.services.LatencyHistogram;
+import harish.project.maps.services.MarkerDiff;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Draws junction circles by applying {@link MarkerDiff} plans. Diffing runs on a background
+ * thread; the UI thread only touches circles whose position or colour changed. Removed circles
+ * are hidden and reused for the next junction that scrolls into view.
+ *
+ * <p>With a {@link ClusterPyramid}, zoomed-out views draw one circle per cluster instead of one
+ * per junction; both kinds share the circle pool. Without a cluster styler they draw nothing,
+ * leaving the zoomed-out view to another layer such as the heatmap.
+ */
+public class MarkerRenderer {
+  private static final String TAG = "MarkerRenderer";
+  private static final double CIRCLE_RADIUS_M = 100;
+  private static final int MAX_POOLED = 256;
+
+  private final GoogleMap map;
+  private final JunctionStateStore store;
+  private final MarkerDiff diff;
+  private final ClusterPyramid pyramid;
+  private final ClusterDiff clusterDiff;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService planner = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "marker-diff");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final SparseArray<Circle> circles = new SparseArray<>();
+  private final SparseArray<Circle> clusterCircles = new SparseArray<>();
+  private final ArrayDeque<Circle> pool = new ArrayDeque<>();
+  private final LatencyHistogram applyLatency = new LatencyHistogram();
+
+  // Main thread only
+  private boolean planInFlight;
+  private boolean renderPending;
+  // Bumped by clear() so a plan computed before it is not applied after it
+  private int generation;
+
+  public MarkerRenderer(GoogleMap map, JunctionStateStore store, MarkerDiff.Styler styler) {
+    this(map, store, styler, null, null);
+  }
+
+  public MarkerRenderer(GoogleMap map, JunctionStateStore store, MarkerDiff.Styler styler,
+      ClusterPyramid pyramid, ClusterDiff.Styler clusterStyler) {
+    this.map = map;
+    this.store = store;
+    this.diff = new MarkerDiff(styler);
+    this.pyramid = pyramid;
+    this.clusterDiff = pyramid != null && clusterStyler != null
+        ? new ClusterDiff(pyramid, clusterStyler) : null;
+  }
+
+  // Call on the main thread; bursts of requests collapse into one plan
+  public void requestRender() {
+    if (planInFlight) {
+      renderPending = true;
+      return;
+    }
+    planInFlight = true;
+    int planGeneration = generation;
+    planner.execute(() -> {
+      try {
+        MarkerDiff.Plan plan = diff.plan(store);
+        MarkerDiff.Plan clusterPlan = clusterDiff != null ? clusterDiff.plan() : null;
+        mainHandler.post(() -> apply(plan, clusterPlan, planGeneration));
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Marker plan failed", e);
+        // Replan from scratch next time rather than trust a half-built diff
+        diff.invalidate();
+        if (clusterDiff != null) {
+          clusterDiff.invalidate();
+        }
+        mainHandler.post(this::finishPlan);
+      }
+    });
+  }
+
+  public void setViewport(LatLngBounds bounds) {
+    planner.execute(() -> diff.setViewport(bounds.southwest.latitude, bounds.southwest.longitude,
+        bounds.northeast.latitude, bounds.northeast.longitude));
+    requestRender();
+  }
+
+  // Below the pyramid's individual zoom, clusters replace the junction circles
+  public void setViewport(LatLngBounds bounds, float zoom) {
+    if (pyramid == null) {
+      setViewport(bounds);
+      return;
+    }
+    planner.execute(() -> {
+      int level = pyramid.levelForZoom(zoom);
+      diff.setEnabled(level < 0);
+      if (clusterDiff != null) {
+        clusterDiff.setView(level, bounds.southwest.latitude, bounds.southwest.longitude,
+            bounds.northeast.latitude, bounds.northeast.longitude);
+      }
+    });
+    setViewport(bounds);
+  }
+
+  // Restyles every circle on the next render, e.g. after an emergency cleared
+  public void invalidate() {
+    planner.execute(() -> {
+      diff.invalidate();
+      if (clusterDiff != null) {
+        clusterDiff.invalidate();
+      }
+    });
+    requestRender();
+  }
+
+  public Circle getCircle(int index) {
+    return circles.get(index);
+  }
+
+  // UI-thread time spent applying each plan
+  public LatencyHistogram getApplyLatency() {
+    return applyLatency;
+  }
+
+  public void clear() {
+    generation++;
+    planner.execute(() -> {
+      diff.reset();
+      if (clusterDiff != null) {
+        clusterDiff.reset();
+      }
+    });
+    for (int i = 0; i < circles.size(); i++) {
+      circles.valueAt(i).remove();
+    }
+    circles.clear();
+    for (int i = 0; i < clusterCircles.size(); i++) {
+      clusterCircles.valueAt(i).remove();
+    }
+    clusterCircles.clear();
+    for (Circle circle : pool) {
+      circle.remove();
+    }
+    pool.clear();
+  }
+
+  public void shutdown() {
+    clear();
+    planner.shutdown();
+  }
+
+  private void apply(MarkerDiff.Plan plan, MarkerDiff.Plan clusterPlan, int planGeneration) {
+    long start = System.nanoTime();
+    int ops = 0;
+    if (planGeneration == generation) {
+      // Cluster removals may free circles that the junction additions then reuse
+      if (clusterPlan != null) {
+        ops += apply(clusterPlan, clusterCircles);
+      }
+      ops += apply(plan, circles);
+    }
+    if (ops > 0) {
+      applyLatency.recordNanos(System.nanoTime() - start);
+    }
+    finishPlan();
+  }
+
+  private void finishPlan() {
+    planInFlight = false;
+    if (renderPending) {
+      renderPending = false;
+      requestRender();
+    }
+  }
+
+  private int apply(MarkerDiff.Plan plan, SparseArray<Circle> target) {
+    for (int op = 0; op < plan.size(); op++) {
+      int index = plan.getIndex(op);
+      switch (plan.getKind(op)) {
+        case MarkerDiff.ADD:
+          LatLng center = new LatLng(plan.getLatitude(op), plan.getLongitude(op));
+          double radius = plan.getRadius(op) > 0 ? plan.getRadius(op) : CIRCLE_RADIUS_M;
+          Circle circle = pool.poll();
+          if (circle == null) {
+            circle = map.addCircle(new CircleOptions()
+                .center(center)
+                .radius(radius)
+                .strokeWidth(2)
+                .strokeColor(Color.BLACK)
+                .fillColor(plan.getColor(op)));
+          } else {
+            circle.setCenter(center);
+            circle.setRadius(radius);
+            circle.setFillColor(plan.getColor(op));
+            circle.setVisible(true);
+          }
+          target.put(index, circle);
+          break;
+        case MarkerDiff.MOVE:
+          target.get(index).setCenter(new LatLng(plan.getLatitude(op), plan.getLongitude(op)));
+          break;
+        case MarkerDiff.RECOLOR:
+          target.get(index).setFillColor(plan.getColor(op));
+          break;
+        case MarkerDiff.REMOVE:
+          Circle removed = target.get(index);
+          target.remove(index);
+          if (pool.size() < MAX_POOLED) {
+            removed.setVisible(false);
+            pool.push(removed);
+          } else {
+            removed.remove();
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return plan.size();
+  }
+}
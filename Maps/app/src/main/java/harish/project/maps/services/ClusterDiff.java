@@ -0,0 +1,183 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The {@link MarkerDiff} counterpart for {@link ClusterPyramid} clusters. Each rendered
+ * cluster gets a small id that stays stable while it is on screen; plans refer to clusters by
+ * that id so the renderer can keep them in the same kind of table as junction circles.
+ *
+ * <p>Not thread-safe, with the same plan reuse rules as {@link MarkerDiff}.
+ */
+public class ClusterDiff {
+  // Keeps neighbouring cluster circles from overlapping
+  private static final double RADIUS_FRACTION = 0.35;
+
+  public interface Styler {
+    int colorOf(double meanDensity, int emergencies);
+  }
+
+  private static final class Rendered {
+    int id;
+    int color;
+    double latitude;
+    double longitude;
+    boolean seen;
+  }
+
+  private final ClusterPyramid pyramid;
+  private final Styler styler;
+  private final MarkerDiff.Plan plan = new MarkerDiff.Plan();
+  private final Map<Long, Rendered> rendered = new HashMap<>();
+  private final IntList freeIds = new IntList();
+  private int nextId;
+
+  // Clusters found by the current plan
+  private long[] visibleKeys = new long[64];
+  private int[] visibleColors = new int[64];
+  private double[] visibleLat = new double[64];
+  private double[] visibleLon = new double[64];
+  private int visibleCount;
+
+  private int level = -1;
+  private int renderedLevel = -1;
+  private int lastVersion = -1;
+  private double minLat = -90;
+  private double minLon = -180;
+  private double maxLat = 90;
+  private double maxLon = 180;
+
+  public ClusterDiff(ClusterPyramid pyramid, Styler styler) {
+    this.pyramid = pyramid;
+    this.styler = styler;
+  }
+
+  // Level -1 hides every cluster, e.g. once the map is zoomed in far enough for junctions
+  public void setView(int level, double minLat, double minLon, double maxLat, double maxLon) {
+    this.level = level;
+    this.minLat = minLat;
+    this.minLon = minLon;
+    this.maxLat = maxLat;
+    this.maxLon = maxLon;
+    lastVersion = -1;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getRenderedCount() {
+    return rendered.size();
+  }
+
+  public void invalidate() {
+    lastVersion = -1;
+  }
+
+  /** Returns the operations needed since the last plan; empty when nothing changed. */
+  public MarkerDiff.Plan plan() {
+    plan.clear();
+    int version = pyramid.version();
+    if (version == lastVersion) {
+      return plan;
+    }
+    lastVersion = version;
+
+    visibleCount = 0;
+    if (level >= 0) {
+      pyramid.query(level, minLat, minLon, maxLat, maxLon, this::collect);
+    }
+    if (level != renderedLevel) {
+      // Cell keys of different levels are unrelated
+      removeAll();
+      renderedLevel = level;
+    }
+
+    for (int i = 0; i < visibleCount; i++) {
+      Rendered cluster = rendered.get(visibleKeys[i]);
+      if (cluster != null) {
+        cluster.seen = true;
+      }
+    }
+    // Removals first so their circles can be reused by this plan's additions
+    Iterator<Rendered> iterator = rendered.values().iterator();
+    while (iterator.hasNext()) {
+      Rendered cluster = iterator.next();
+      if (!cluster.seen) {
+        plan.add(MarkerDiff.REMOVE, cluster.id, 0, 0, 0);
+        freeIds.add(cluster.id);
+        iterator.remove();
+      }
+      cluster.seen = false;
+    }
+
+    double radius = level >= 0
+        ? pyramid.getCellDegrees(level) * GeoMath.METERS_PER_DEGREE * RADIUS_FRACTION : 0;
+    for (int i = 0; i < visibleCount; i++) {
+      double lat = visibleLat[i];
+      double lon = visibleLon[i];
+      int color = visibleColors[i];
+      Rendered cluster = rendered.get(visibleKeys[i]);
+      if (cluster == null) {
+        cluster = new Rendered();
+        cluster.id = freeIds.isEmpty() ? nextId++ : takeFreeId();
+        rendered.put(visibleKeys[i], cluster);
+        plan.add(MarkerDiff.ADD, cluster.id, color, lat, lon, radius);
+      } else {
+        if (cluster.latitude != lat || cluster.longitude != lon) {
+          plan.add(MarkerDiff.MOVE, cluster.id, color, lat, lon, radius);
+        }
+        if (cluster.color != color) {
+          plan.add(MarkerDiff.RECOLOR, cluster.id, color, lat, lon, radius);
+        }
+      }
+      cluster.color = color;
+      cluster.latitude = lat;
+      cluster.longitude = lon;
+    }
+    return plan;
+  }
+
+  // Forgets everything rendered; the caller clears the map itself
+  public void reset() {
+    rendered.clear();
+    freeIds.clear();
+    nextId = 0;
+    renderedLevel = -1;
+    lastVersion = -1;
+  }
+
+  private void collect(long key, int count, double latitude, double longitude,
+      double meanDensity, int emergencies) {
+    if (visibleCount == visibleKeys.length) {
+      int grown = visibleCount * 2;
+      visibleKeys = Arrays.copyOf(visibleKeys, grown);
+      visibleColors = Arrays.copyOf(visibleColors, grown);
+      visibleLat = Arrays.copyOf(visibleLat, grown);
+      visibleLon = Arrays.copyOf(visibleLon, grown);
+    }
+    visibleKeys[visibleCount] = key;
+    visibleColors[visibleCount] = styler.colorOf(meanDensity, emergencies);
+    visibleLat[visibleCount] = latitude;
+    visibleLon[visibleCount] = longitude;
+    visibleCount++;
+  }
+
+  private int takeFreeId() {
+    int last = freeIds.size() - 1;
+    int id = freeIds.get(last);
+    freeIds.truncate(last);
+    return id;
+  }
+
+  private void removeAll() {
+    for (Rendered cluster : rendered.values()) {
+      plan.add(MarkerDiff.REMOVE, cluster.id, 0, 0, 0);
+      freeIds.add(cluster.id);
+    }
+    rendered.clear();
+  }
+}
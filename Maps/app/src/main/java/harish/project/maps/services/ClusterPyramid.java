@@ -0,0 +1,241 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Grid pyramid of junction clusters for zoomed-out maps. Level 0 uses cells of
+ * {@code baseCellDegrees}; every level above doubles the cell size. Each cell keeps the
+ * count, density sum, coordinate sums and emergency count of its junctions, so a density
+ * change costs one in-place adjustment per level instead of a rebuild.
+ *
+ * <p>Attach with {@link JunctionStateStore#addObserver}; updates then arrive on the store's
+ * writer thread while renderers query from their own threads.
+ */
+public class ClusterPyramid implements JunctionStateStore.Observer {
+  public static final double DEFAULT_BASE_CELL_DEGREES = 0.0025;
+  public static final int DEFAULT_LEVELS = 12;
+  // At or above this zoom individual junctions are drawn instead of clusters
+  public static final float DEFAULT_INDIVIDUAL_ZOOM = 15f;
+  // Aim for clusters roughly this far apart on screen
+  private static final int TARGET_CELL_PIXELS = 64;
+  private static final int TILE_PIXELS = 256;
+
+  public interface Visitor {
+    void visit(long cell, int count, double latitude, double longitude, double meanDensity,
+        int emergencies);
+  }
+
+  private static final class Cell {
+    int count;
+    long densitySum;
+    double latitudeSum;
+    double longitudeSum;
+    int emergencies;
+  }
+
+  private final double baseCellDegrees;
+  private final float individualZoom;
+  private final double[] cellDegrees;
+  private final Map<Long, Cell>[] levels;
+
+  // What each junction currently contributes, so it can be taken back out
+  private boolean[] present = new boolean[0];
+  private double[] latitudes = new double[0];
+  private double[] longitudes = new double[0];
+  private int[] densities = new int[0];
+  private boolean[] emergencies = new boolean[0];
+  private int version;
+
+  public ClusterPyramid() {
+    this(DEFAULT_BASE_CELL_DEGREES, DEFAULT_LEVELS, DEFAULT_INDIVIDUAL_ZOOM);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public ClusterPyramid(double baseCellDegrees, int levelCount, float individualZoom) {
+    this.baseCellDegrees = baseCellDegrees;
+    this.individualZoom = individualZoom;
+    cellDegrees = new double[levelCount];
+    levels = new Map[levelCount];
+    for (int level = 0; level < levelCount; level++) {
+      cellDegrees[level] = baseCellDegrees * (1 << level);
+      levels[level] = new HashMap<>();
+    }
+  }
+
+  @Override
+  public synchronized void onJunctionUpdated(JunctionStateStore store, int index) {
+    ensureCapacity(index + 1);
+    double lat = store.getLatitude(index);
+    double lon = store.getLongitude(index);
+    int density = store.getVehicleDensity(index);
+    boolean emergency = store.isEmergencyVehiclePresent(index);
+    boolean wasPresent = present[index];
+    if (wasPresent && latitudes[index] == lat && longitudes[index] == lon
+        && densities[index] == density && emergencies[index] == emergency) {
+      return;
+    }
+    for (int level = 0; level < levels.length; level++) {
+      long cell = cellKey(level, lat, lon);
+      if (wasPresent && cellKey(level, latitudes[index], longitudes[index]) == cell) {
+        // Common case: only density or the emergency flag moved
+        Cell aggregate = levels[level].get(cell);
+        aggregate.densitySum += density - densities[index];
+        aggregate.latitudeSum += lat - latitudes[index];
+        aggregate.longitudeSum += lon - longitudes[index];
+        aggregate.emergencies += (emergency ? 1 : 0) - (emergencies[index] ? 1 : 0);
+        continue;
+      }
+      if (wasPresent) {
+        subtract(level, index);
+      }
+      Cell aggregate = levels[level].get(cell);
+      if (aggregate == null) {
+        aggregate = new Cell();
+        levels[level].put(cell, aggregate);
+      }
+      aggregate.count++;
+      aggregate.densitySum += density;
+      aggregate.latitudeSum += lat;
+      aggregate.longitudeSum += lon;
+      aggregate.emergencies += emergency ? 1 : 0;
+    }
+    present[index] = true;
+    latitudes[index] = lat;
+    longitudes[index] = lon;
+    densities[index] = density;
+    emergencies[index] = emergency;
+    version++;
+  }
+
+  @Override
+  public synchronized void onJunctionRemoved(JunctionStateStore store, int index) {
+    if (index >= present.length || !present[index]) {
+      return;
+    }
+    for (int level = 0; level < levels.length; level++) {
+      subtract(level, index);
+    }
+    present[index] = false;
+    version++;
+  }
+
+  @Override
+  public synchronized void onCleared(JunctionStateStore store) {
+    for (Map<Long, Cell> level : levels) {
+      level.clear();
+    }
+    Arrays.fill(present, false);
+    version++;
+  }
+
+  /**
+   * Level whose clusters sit about {@value #TARGET_CELL_PIXELS} px apart at the given map zoom,
+   * or -1 when the zoom is close enough to draw junctions individually.
+   */
+  public int levelForZoom(float zoom) {
+    if (zoom >= individualZoom) {
+      return -1;
+    }
+    double degreesPerPixel = 360.0 / (TILE_PIXELS * Math.pow(2, zoom));
+    double wanted = TARGET_CELL_PIXELS * degreesPerPixel / baseCellDegrees;
+    int level = wanted <= 1 ? 0 : (int) Math.ceil(Math.log(wanted) / Math.log(2));
+    return Math.min(level, levels.length - 1);
+  }
+
+  public int getLevelCount() {
+    return levels.length;
+  }
+
+  public double getCellDegrees(int level) {
+    return cellDegrees[level];
+  }
+
+  public synchronized int getClusterCount(int level) {
+    return levels[level].size();
+  }
+
+  // Changes whenever any cluster changes
+  public synchronized int version() {
+    return version;
+  }
+
+  /**
+   * Visits every cluster at the level whose cell overlaps the box. Returns the number
+   * visited. Coordinates passed to the visitor are the mean position of its junctions.
+   */
+  public synchronized int query(int level, double minLat, double minLon, double maxLat,
+      double maxLon, Visitor visitor) {
+    Map<Long, Cell> cells = levels[level];
+    double size = cellDegrees[level];
+    long minY = (long) Math.floor(minLat / size);
+    long maxY = (long) Math.floor(maxLat / size);
+    long minX = (long) Math.floor(minLon / size);
+    long maxX = (long) Math.floor(maxLon / size);
+    int visited = 0;
+    if ((maxY - minY + 1) * (maxX - minX + 1) <= cells.size()) {
+      for (long y = minY; y <= maxY; y++) {
+        for (long x = minX; x <= maxX; x++) {
+          long key = cellKey(y, x);
+          Cell cell = cells.get(key);
+          if (cell != null) {
+            visit(key, cell, visitor);
+            visited++;
+          }
+        }
+      }
+      return visited;
+    }
+    // Fewer clusters than cells in the box: walking the clusters is cheaper
+    for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+      long key = entry.getKey();
+      long y = key >> 32;
+      long x = (int) key;
+      if (y >= minY && y <= maxY && x >= minX && x <= maxX) {
+        visit(key, entry.getValue(), visitor);
+        visited++;
+      }
+    }
+    return visited;
+  }
+
+  private static void visit(long key, Cell cell, Visitor visitor) {
+    visitor.visit(key, cell.count, cell.latitudeSum / cell.count,
+        cell.longitudeSum / cell.count, (double) cell.densitySum / cell.count, cell.emergencies);
+  }
+
+  private void subtract(int level, int index) {
+    long key = cellKey(level, latitudes[index], longitudes[index]);
+    Cell cell = levels[level].get(key);
+    if (--cell.count == 0) {
+      levels[level].remove(key);
+      return;
+    }
+    cell.densitySum -= densities[index];
+    cell.latitudeSum -= latitudes[index];
+    cell.longitudeSum -= longitudes[index];
+    cell.emergencies -= emergencies[index] ? 1 : 0;
+  }
+
+  private long cellKey(int level, double lat, double lon) {
+    double size = cellDegrees[level];
+    return cellKey((long) Math.floor(lat / size), (long) Math.floor(lon / size));
+  }
+
+  private static long cellKey(long y, long x) {
+    return (y << 32) | (x & 0xFFFFFFFFL);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= present.length) {
+      return;
+    }
+    int grown = Math.max(capacity, present.length * 2);
+    present = Arrays.copyOf(present, grown);
+    latitudes = Arrays.copyOf(latitudes, grown);
+    longitudes = Arrays.copyOf(longitudes, grown);
+    densities = Arrays.copyOf(densities, grown);
+    emergencies = Arrays.copyOf(emergencies, grown);
+  }
+}
@@ -0,0 +1,195 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges bursts of junction updates per junction (latest wins) and hands them to the sink at
+ * most once per flush tick. At most one flush is scheduled or running at a time, so a slow
+ * consumer makes updates coalesce instead of queueing. When more than {@code maxPending}
+ * distinct junctions are waiting, the pending batch is dropped and the next flush delivers a
+ * full resync from the state supplier instead.
+ */
+public class CoalescingDispatcher {
+  private final Sink sink;
+  private final FlushScheduler scheduler;
+  private final StateSupplier fullState;
+  private final int maxPending;
+
+  private final Object lock = new Object();
+  private Map<String, TrafficJunction> pending = new LinkedHashMap<>();
+  private Set<String> pendingRemovals = new LinkedHashSet<>();
+  private boolean resyncPending;
+  private boolean flushScheduled;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+
+  public interface Sink {
+    void onJunctionsChanged(List<TrafficJunction> changed);
+
+    void onJunctionRemoved(String junctionId);
+  }
+
+  public interface FlushScheduler {
+    // Run the flush once, at the next tick of whatever cadence this scheduler represents
+    void schedule(Runnable flush);
+  }
+
+  public interface StateSupplier {
+    List<TrafficJunction> currentJunctions();
+  }
+
+  public CoalescingDispatcher(Sink sink, FlushScheduler scheduler, StateSupplier fullState,
+      int maxPending) {
+    this.sink = sink;
+    this.scheduler = scheduler;
+    this.fullState = fullState;
+    this.maxPending = maxPending;
+  }
+
+  // Flushes on a fixed cadence, e.g. every 250 ms
+  public static FlushScheduler fixedDelay(ScheduledExecutorService executor, long delayMillis) {
+    return flush -> executor.schedule(flush, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Flushes straight away on the calling thread, i.e. no coalescing window
+  public static FlushScheduler immediate() {
+    return Runnable::run;
+  }
+
+  public void submit(List<TrafficJunction> changed) {
+    boolean schedule;
+    synchronized (lock) {
+      for (TrafficJunction junction : changed) {
+        submitted.incrementAndGet();
+        String junctionId = junction.getJunctionId();
+        pendingRemovals.remove(junctionId);
+        if (resyncPending) {
+          dropped.incrementAndGet();
+        } else if (pending.put(junctionId, junction) != null) {
+          coalesced.incrementAndGet();
+        } else if (pending.size() > maxPending) {
+          dropToResync();
+        }
+      }
+      schedule = markScheduled();
+    }
+    if (schedule) {
+      scheduler.schedule(this::flush);
+    }
+  }
+
+  public void submitRemoval(String junctionId) {
+    boolean schedule;
+    synchronized (lock) {
+      submitted.incrementAndGet();
+      if (pending.remove(junctionId) != null) {
+        coalesced.incrementAndGet();
+      }
+      pendingRemovals.add(junctionId);
+      schedule = markScheduled();
+    }
+    if (schedule) {
+      scheduler.schedule(this::flush);
+    }
+  }
+
+  public void clear() {
+    synchronized (lock) {
+      pending.clear();
+      pendingRemovals.clear();
+      resyncPending = false;
+    }
+  }
+
+  public long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public long getFlushCount() {
+    return flushes.get();
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  public int getPendingCount() {
+    synchronized (lock) {
+      return pending.size() + pendingRemovals.size();
+    }
+  }
+
+  void flush() {
+    Map<String, TrafficJunction> batch;
+    Set<String> removals;
+    boolean resync;
+    synchronized (lock) {
+      batch = pending;
+      removals = pendingRemovals;
+      resync = resyncPending;
+      pending = new LinkedHashMap<>();
+      pendingRemovals = new LinkedHashSet<>();
+      resyncPending = false;
+    }
+
+    try {
+      for (String junctionId : removals) {
+        sink.onJunctionRemoved(junctionId);
+      }
+      List<TrafficJunction> changed = resync
+          ? fullState.currentJunctions()
+          : new ArrayList<>(batch.values());
+      if (!changed.isEmpty()) {
+        delivered.addAndGet(changed.size());
+        sink.onJunctionsChanged(changed);
+      }
+      flushes.incrementAndGet();
+    } finally {
+      boolean schedule;
+      synchronized (lock) {
+        flushScheduled = false;
+        // Updates that arrived while the sink was busy go out on the next tick
+        schedule = (!pending.isEmpty() || !pendingRemovals.isEmpty() || resyncPending)
+            && markScheduled();
+      }
+      if (schedule) {
+        scheduler.schedule(this::flush);
+      }
+    }
+  }
+
+  private void dropToResync() {
+    dropped.addAndGet(pending.size());
+    pending.clear();
+    resyncPending = true;
+  }
+
+  private boolean markScheduled() {
+    if (flushScheduled) {
+      return false;
+    }
+    flushScheduled = true;
+    return true;
+  }
+}
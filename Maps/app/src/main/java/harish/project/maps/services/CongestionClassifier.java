@@ -0,0 +1,248 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Per-junction congestion level and colour with hysteresis. A junction only moves up a level
+ * once its density clears the threshold by {@code hysteresis}, and only moves down once it
+ * falls the same margin below it, so densities hovering around 30 or 60 stop flipping colour
+ * on every update. Densities can first be smoothed with an EWMA.
+ *
+ * <p>In ramp mode colours come from a precomputed green-orange-red lookup table, quantized to
+ * {@link #RAMP_STEPS} steps with hysteresis between steps as well.
+ *
+ * <p>Attach with {@link JunctionStateStore#addObserver}. {@link #version()} only changes when
+ * something a marker shows changed, and the {@link Listener} only hears about level changes, so
+ * renderers and alerts can skip updates that would look the same. Reads from other threads may
+ * see a junction half-way through an update, as with the store itself.
+ */
+public class CongestionClassifier implements JunctionStateStore.Observer {
+  public static final int LIGHT = 0;
+  public static final int MODERATE = 1;
+  public static final int HEAVY = 2;
+  public static final int DEFAULT_HYSTERESIS = 5;
+  public static final int RAMP_STEPS = 16;
+  private static final String[] STATUS = {"Light Traffic", "Moderate Traffic", "Heavy Traffic"};
+  private static final int RAMP_ALPHA = 0x80;
+
+  public interface Listener {
+    // Called on the store's writer thread
+    void onLevelChanged(int index, int previousLevel, int level);
+  }
+
+  private final int[] levelThresholds;
+  private final int[] stepThresholds = new int[RAMP_STEPS - 1];
+  private final int hysteresis;
+  // Ramp steps are narrow, so they get at most half a step of hysteresis
+  private final int stepHysteresis;
+  private final double smoothing;
+  private final boolean ramp;
+  private final int[] levelColors = new int[3];
+  private final int[] rampColors = new int[RAMP_STEPS];
+  private volatile Listener listener;
+
+  private boolean[] known = new boolean[0];
+  private double[] smoothed = new double[0];
+  private byte[] levels = new byte[0];
+  private byte[] steps = new byte[0];
+  private double[] latitudes = new double[0];
+  private double[] longitudes = new double[0];
+
+  private volatile int version;
+  private long updates;
+  private long suppressed;
+
+  public CongestionClassifier() {
+    this(TrafficService.MODERATE_TRAFFIC_THRESHOLD, TrafficService.HEAVY_TRAFFIC_THRESHOLD,
+        DEFAULT_HYSTERESIS, 1.0, false);
+  }
+
+  /**
+   * @param smoothing EWMA weight of a new sample, in (0, 1]; 1 disables smoothing
+   * @param ramp colour along a continuous ramp instead of one colour per level
+   */
+  public CongestionClassifier(int moderateThreshold, int heavyThreshold, int hysteresis,
+      double smoothing, boolean ramp) {
+    if (smoothing <= 0 || smoothing > 1) {
+      throw new IllegalArgumentException("smoothing must be in (0, 1]: " + smoothing);
+    }
+    this.levelThresholds = new int[] {moderateThreshold, heavyThreshold};
+    this.hysteresis = hysteresis;
+    this.stepHysteresis = Math.min(hysteresis, 100 / RAMP_STEPS / 2);
+    this.smoothing = smoothing;
+    this.ramp = ramp;
+    TrafficService traffic = new TrafficService();
+    levelColors[LIGHT] = traffic.getTrafficColor(0);
+    levelColors[MODERATE] = traffic.getTrafficColor(TrafficService.MODERATE_TRAFFIC_THRESHOLD);
+    levelColors[HEAVY] = traffic.getTrafficColor(TrafficService.HEAVY_TRAFFIC_THRESHOLD);
+    for (int step = 0; step < RAMP_STEPS; step++) {
+      if (step > 0) {
+        stepThresholds[step - 1] = step * 100 / RAMP_STEPS;
+      }
+      rampColors[step] = rampColor((step + 0.5) * 100 / RAMP_STEPS);
+    }
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void onJunctionUpdated(JunctionStateStore store, int index) {
+    ensureCapacity(index + 1);
+    int density = store.getVehicleDensity(index);
+    double lat = store.getLatitude(index);
+    double lon = store.getLongitude(index);
+    updates++;
+    if (!known[index]) {
+      known[index] = true;
+      smoothed[index] = density;
+      levels[index] = (byte) classify(levelThresholds, density, -1, 0);
+      steps[index] = (byte) classify(stepThresholds, density, -1, 0);
+      latitudes[index] = lat;
+      longitudes[index] = lon;
+      version++;
+      return;
+    }
+
+    double value = smoothed[index] + smoothing * (density - smoothed[index]);
+    smoothed[index] = value;
+    int previousLevel = levels[index];
+    int level = classify(levelThresholds, value, previousLevel, hysteresis);
+    int step = classify(stepThresholds, value, steps[index], stepHysteresis);
+    if (level == previousLevel && classify(levelThresholds, value, -1, 0) != level) {
+      suppressed++;
+    }
+    boolean moved = latitudes[index] != lat || longitudes[index] != lon;
+    boolean recolored = ramp ? step != steps[index] : level != previousLevel;
+    levels[index] = (byte) level;
+    steps[index] = (byte) step;
+    latitudes[index] = lat;
+    longitudes[index] = lon;
+    if (moved || recolored || level != previousLevel) {
+      version++;
+    }
+    Listener current = listener;
+    if (level != previousLevel && current != null) {
+      current.onLevelChanged(index, previousLevel, level);
+    }
+  }
+
+  @Override
+  public void onJunctionRemoved(JunctionStateStore store, int index) {
+    if (index < known.length && known[index]) {
+      known[index] = false;
+      version++;
+    }
+  }
+
+  @Override
+  public void onCleared(JunctionStateStore store) {
+    Arrays.fill(known, false);
+    version++;
+  }
+
+  public int getLevel(int index) {
+    byte[] current = levels;
+    return index < current.length ? current[index] : LIGHT;
+  }
+
+  public String getStatus(int index) {
+    return STATUS[getLevel(index)];
+  }
+
+  public static String statusOf(int level) {
+    return STATUS[level];
+  }
+
+  public int getColor(int index) {
+    if (ramp) {
+      byte[] current = steps;
+      return rampColors[index < current.length ? current[index] : 0];
+    }
+    return levelColors[getLevel(index)];
+  }
+
+  public double getSmoothedDensity(int index) {
+    double[] current = smoothed;
+    return index < current.length ? current[index] : 0;
+  }
+
+  // Changes only when a junction's level, colour or position changed
+  public int version() {
+    return version;
+  }
+
+  public long getUpdateCount() {
+    return updates;
+  }
+
+  // Updates where plain thresholds would have flipped the level but hysteresis held it
+  public long getSuppressedCount() {
+    return suppressed;
+  }
+
+  /**
+   * Bucket of value among ascending thresholds. Moving away from current needs the value to
+   * clear a threshold by the margin; a current of -1 means no previous bucket.
+   */
+  static int classify(int[] thresholds, double value, int current, int margin) {
+    if (current < 0) {
+      int bucket = 0;
+      while (bucket < thresholds.length && value >= thresholds[bucket]) {
+        bucket++;
+      }
+      return bucket;
+    }
+    int up = current;
+    while (up < thresholds.length && value >= thresholds[up] + margin) {
+      up++;
+    }
+    if (up != current) {
+      return up;
+    }
+    int down = current;
+    while (down > 0 && value < thresholds[down - 1] - margin) {
+      down--;
+    }
+    return down;
+  }
+
+  // Green to orange over the light band, orange to red over the moderate band
+  private int rampColor(double density) {
+    int moderate = levelThresholds[0];
+    int heavy = levelThresholds[1];
+    int green = 0x00FF00;
+    int orange = 0xFFA500;
+    int red = 0xFF0000;
+    int rgb;
+    if (density < moderate) {
+      rgb = mix(green, orange, density / moderate);
+    } else if (density < heavy) {
+      rgb = mix(orange, red, (density - moderate) / (heavy - moderate));
+    } else {
+      rgb = red;
+    }
+    return (RAMP_ALPHA << 24) | rgb;
+  }
+
+  private static int mix(int from, int to, double t) {
+    int r = (int) Math.round(((from >> 16) & 0xFF) * (1 - t) + ((to >> 16) & 0xFF) * t);
+    int g = (int) Math.round(((from >> 8) & 0xFF) * (1 - t) + ((to >> 8) & 0xFF) * t);
+    int b = (int) Math.round((from & 0xFF) * (1 - t) + (to & 0xFF) * t);
+    return (r << 16) | (g << 8) | b;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= known.length) {
+      return;
+    }
+    int grown = Math.max(capacity, known.length * 2);
+    smoothed = Arrays.copyOf(smoothed, grown);
+    levels = Arrays.copyOf(levels, grown);
+    steps = Arrays.copyOf(steps, grown);
+    latitudes = Arrays.copyOf(latitudes, grown);
+    longitudes = Arrays.copyOf(longitudes, grown);
+    known = Arrays.copyOf(known, grown);
+  }
+}
@@ -0,0 +1,9 @@
+package harish.project.maps.services;
+
+/**
+ * Travel time of a {@link RoadGraph} edge in seconds. Implementations must never go below the
+ * edge's free-flow time, which A* relies on for its distance bound.
+ */
+public interface EdgeWeights {
+  double travelSeconds(int edge);
+}
@@ -0,0 +1,96 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Per-junction emergency state machine keyed by {@link JunctionStateStore} index. Every
+ * observation of a junction is fed in, but the callback only fires on transitions:
+ * raised when an emergency vehicle first appears and cleared when it is gone. Repeated
+ * observations of the same emergency move it to ONGOING silently.
+ *
+ * <p>{@link #observe} must be called from the ingestion thread; {@link #recordAlert} may be
+ * called from any thread.
+ */
+public class EmergencyTracker {
+  public static final byte NONE = 0;
+  public static final byte RAISED = 1;
+  public static final byte ONGOING = 2;
+  public static final byte CLEARED = 3;
+
+  private final TransitionListener listener;
+  private final LatencyHistogram raiseToAlert = new LatencyHistogram();
+  private byte[] states = new byte[1024];
+  private long[] raisedAtNanos = new long[1024];
+  private int activeCount;
+
+  public interface TransitionListener {
+    void onEmergencyRaised(int index);
+
+    void onEmergencyCleared(int index);
+  }
+
+  public EmergencyTracker(TransitionListener listener) {
+    this.listener = listener;
+  }
+
+  public void observe(int index, boolean emergencyPresent) {
+    ensureCapacity(index);
+    byte state = states[index];
+    boolean active = state == RAISED || state == ONGOING;
+    if (emergencyPresent) {
+      if (active) {
+        states[index] = ONGOING;
+      } else {
+        states[index] = RAISED;
+        raisedAtNanos[index] = System.nanoTime();
+        activeCount++;
+        listener.onEmergencyRaised(index);
+      }
+    } else if (active) {
+      states[index] = CLEARED;
+      raisedAtNanos[index] = 0;
+      activeCount--;
+      listener.onEmergencyCleared(index);
+    } else if (state == CLEARED) {
+      states[index] = NONE;
+    }
+  }
+
+  // Call once the user-facing alert (voice, banner) for a raised emergency has gone out
+  public void recordAlert(int index) {
+    if (index < 0 || index >= raisedAtNanos.length) {
+      return;
+    }
+    long raisedAt = raisedAtNanos[index];
+    if (raisedAt != 0) {
+      raiseToAlert.recordNanos(System.nanoTime() - raisedAt);
+    }
+  }
+
+  public byte getState(int index) {
+    return index >= 0 && index < states.length ? states[index] : NONE;
+  }
+
+  public int getActiveCount() {
+    return activeCount;
+  }
+
+  public LatencyHistogram getRaiseToAlertLatency() {
+    return raiseToAlert;
+  }
+
+  // Forget all state without firing transitions, e.g. when the feed is restarted
+  public void reset() {
+    Arrays.fill(states, NONE);
+    Arrays.fill(raisedAtNanos, 0);
+    activeCount = 0;
+  }
+
+  private void ensureCapacity(int index) {
+    if (index >= states.length) {
+      int capacity = Math.max(index + 1, states.length * 2);
+      states = Arrays.copyOf(states, capacity);
+      raisedAtNanos = Arrays.copyOf(raisedAtNanos, capacity);
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package harish.project.maps.services;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import java.util.Map;
+
+// Sends a history batch as a single multi-path updateChildren call under the history root
+public class FirebaseHistoryTarget implements HistoryWriter.BatchTarget {
+  private final DatabaseReference root;
+
+  public FirebaseHistoryTarget(String path) {
+    root = FirebaseDatabase.getInstance().getReference(path);
+  }
+
+  @Override
+  public void write(Map<String, Object> updates, Callback callback) {
+    root.updateChildren(updates).addOnCompleteListener(task -> {
+      if (task.isSuccessful()) {
+        callback.onComplete(null);
+      } else {
+        Exception e = task.getException();
+        callback.onComplete(e != null ? e.getMessage() : "History flush failed");
+      }
+    });
+  }
+}
@@ -0,0 +1,81 @@
+package harish.project.maps.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.database.*;
+import java.util.Map;
+
+/**
+ * Partition feed over a tree laid out as {@code <cellsPath>/<geohash>/<junctionId>}, with the
+ * flat {@code <allPath>/<junctionId>} tree serving {@link PartitionedTrafficDataSource#ALL}.
+ * Producers must write each junction under the geohash of the precision the
+ * {@link PartitionedTrafficDataSource} uses, and move it when it changes cell.
+ */
+public class FirebasePartitionFeed implements PartitionedTrafficDataSource.PartitionFeed {
+  private final DatabaseReference cells;
+  private final DatabaseReference all;
+
+  public FirebasePartitionFeed(String cellsPath, String allPath) {
+    FirebaseDatabase database = FirebaseDatabase.getInstance();
+    this.cells = database.getReference(cellsPath);
+    this.all = database.getReference(allPath);
+  }
+
+  @Override
+  public PartitionedTrafficDataSource.Subscription subscribe(String partition,
+      PartitionedTrafficDataSource.PartitionSink sink) {
+    DatabaseReference reference = PartitionedTrafficDataSource.ALL.equals(partition)
+        ? all : cells.child(partition);
+    ChildEventListener listener = reference.addChildEventListener(new ChildEventListener() {
+      @Override
+      public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+        deliver(sink, snapshot);
+      }
+
+      @Override
+      public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+        deliver(sink, snapshot);
+      }
+
+      @Override
+      public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+        sink.onJunctionRemoved(snapshot.getKey());
+      }
+
+      @Override
+      public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+        // Ordering is irrelevant for junction state
+      }
+
+      @Override
+      public void onCancelled(@NonNull DatabaseError error) {
+        sink.onError(error.getMessage());
+      }
+    });
+    // Value events fire after the child events for the same data, so this marks the initial load
+    ValueEventListener loaded = new ValueEventListener() {
+      @Override
+      public void onDataChange(@NonNull DataSnapshot snapshot) {
+        sink.onLoaded();
+      }
+
+      @Override
+      public void onCancelled(@NonNull DatabaseError error) {
+        // Reported by the child listener
+      }
+    };
+    reference.addListenerForSingleValueEvent(loaded);
+    return () -> {
+      reference.removeEventListener(listener);
+      reference.removeEventListener(loaded);
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void deliver(TrafficDataSource.Sink sink, DataSnapshot snapshot) {
+    Object raw = snapshot.getValue();
+    if (raw instanceof Map) {
+      sink.onJunctionFieldsUpserted(snapshot.getKey(), (Map<String, Object>) raw);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package harish.project.maps.services;
+
+import androidx.annotation.NonNull;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Persists {@link TrafficRollup} buckets and applies a {@link RetentionPolicy} to raw history
+ * and rollup tiers. Both writes and deletions go out as multi-path updates.
+ *
+ * <p>All apps read the same feed, so one writer at a time holds a lease at
+ * {@code <rollupPath>/_writer}, taken and renewed in a transaction; only the holder aggregates,
+ * flushes and prunes.
+ */
+public class FirebaseRollupStore {
+  static final String LEASE = "_writer";
+  static final String LEASE_HOLDER = "holder";
+  static final String LEASE_EXPIRES = "expires";
+
+  public interface LeaseCallback {
+    void onLeaseResult(boolean held);
+  }
+
+  private final DatabaseReference history;
+  private final DatabaseReference rollups;
+  private final HistoryWriter.BatchTarget target;
+  // Buckets whose last write failed; newer values for the same path simply replace them
+  private final Map<String, Object> retry = new HashMap<>();
+
+  public FirebaseRollupStore(String historyPath, String rollupPath) {
+    FirebaseDatabase database = FirebaseDatabase.getInstance();
+    history = database.getReference(historyPath);
+    rollups = database.getReference(rollupPath);
+    target = new FirebaseHistoryTarget(rollupPath);
+  }
+
+  public void flush(TrafficRollup rollup) {
+    Map<String, Object> updates;
+    synchronized (retry) {
+      updates = new HashMap<>(retry);
+      retry.clear();
+    }
+    rollup.drainDirty(updates);
+    if (updates.isEmpty()) {
+      return;
+    }
+    target.write(updates, error -> {
+      if (error != null) {
+        synchronized (retry) {
+          for (Map.Entry<String, Object> update : updates.entrySet()) {
+            retry.putIfAbsent(update.getKey(), update.getValue());
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Takes the writer lease until nowMillis + leaseMillis if it is free, expired or already
+   * held by writerId. The callback says whether writerId holds it.
+   */
+  public void renewLease(String writerId, long nowMillis, long leaseMillis,
+      LeaseCallback callback) {
+    rollups.child(LEASE).runTransaction(new Transaction.Handler() {
+      @NonNull
+      @Override
+      public Transaction.Result doTransaction(@NonNull MutableData current) {
+        Object holder = current.child(LEASE_HOLDER).getValue();
+        Object expires = current.child(LEASE_EXPIRES).getValue();
+        if (holder != null && !writerId.equals(holder) && expires instanceof Number
+            && ((Number) expires).longValue() > nowMillis) {
+          return Transaction.abort();
+        }
+        Map<String, Object> lease = new HashMap<>();
+        lease.put(LEASE_HOLDER, writerId);
+        lease.put(LEASE_EXPIRES, nowMillis + leaseMillis);
+        current.setValue(lease);
+        return Transaction.success(current);
+      }
+
+      @Override
+      public void onComplete(DatabaseError error, boolean committed, DataSnapshot current) {
+        callback.onLeaseResult(error == null && committed);
+      }
+    });
+  }
+
+  public void prune(List<String> junctionIds, RetentionPolicy policy, long nowMillis) {
+    long rawCutoff = policy.getRawCutoff(nowMillis);
+    if (rawCutoff != Long.MIN_VALUE) {
+      // Raw history is keyed junction first, so each junction is trimmed separately
+      for (String junctionId : junctionIds) {
+        deleteUpTo(history.child(junctionId), rawCutoff);
+      }
+    }
+    for (TrafficRollup.Tier tier : TrafficRollup.Tier.values()) {
+      long cutoff = policy.getCutoff(tier, nowMillis);
+      if (cutoff != Long.MIN_VALUE) {
+        deleteUpTo(rollups.child(tier.getPath()), cutoff);
+      }
+    }
+  }
+
+  /**
+   * Reads the hour rollups from fromMillis up to untilMillis, where live updates take over,
+   * into the profile. Only that key range is downloaded, and the buckets are decoded on the
+   * executor rather than on the main thread Firebase calls back on.
+   */
+  public void loadHistory(TravelTimeProfile profile, long fromMillis, long untilMillis,
+      Executor executor) {
+    TrafficRollup.Tier hour = TrafficRollup.Tier.HOUR;
+    rollups.child(hour.getPath()).orderByKey()
+        .startAt(String.valueOf(hour.bucketStart(fromMillis)))
+        .endAt(String.valueOf(hour.bucketStart(untilMillis) - 1))
+        .addListenerForSingleValueEvent(new ValueEventListener() {
+          @Override
+          public void onDataChange(DataSnapshot snapshot) {
+            executor.execute(() -> {
+              for (DataSnapshot bucket : snapshot.getChildren()) {
+                try {
+                  profile.addHourBucket(Long.parseLong(bucket.getKey()), bucket.getValue(),
+                      untilMillis);
+                } catch (NumberFormatException e) {
+                  // Not a bucket
+                }
+              }
+            });
+          }
+
+          @Override
+          public void onCancelled(DatabaseError error) {
+            // The profile still learns from live updates
+          }
+        });
+  }
+
+  // Deletes children keyed by a millisecond timestamp older than cutoff
+  private static void deleteUpTo(DatabaseReference parent, long cutoff) {
+    parent.orderByKey().endAt(String.valueOf(cutoff - 1))
+        .addListenerForSingleValueEvent(new ValueEventListener() {
+          @Override
+          public void onDataChange(DataSnapshot snapshot) {
+            Map<String, Object> deletes = new HashMap<>();
+            for (DataSnapshot child : snapshot.getChildren()) {
+              deletes.put(child.getKey(), null);
+            }
+            if (!deletes.isEmpty()) {
+              parent.updateChildren(deletes);
+            }
+          }
+
+          @Override
+          public void onCancelled(DatabaseError error) {
+            // Retried on the next pruning pass
+          }
+        });
+  }
+}
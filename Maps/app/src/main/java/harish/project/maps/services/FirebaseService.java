@@ -1,93 +1,424 @@
 package harish.project.maps.services;
 
-import androidx.annotation.NonNull;
-import com.google.firebase.database.*;
 import harish.project.maps.models.TrafficJunction;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class FirebaseService {
-  private final DatabaseReference database;
-  private final List<TrafficDataListener> listeners;
+  private static final String DEFAULT_PATH = "traffic_junctions";
+  private static final long DEFAULT_FLUSH_INTERVAL_MS = 250;
+  private static final int DEFAULT_MAX_PENDING = 5000;
+  private static final int DEFAULT_LISTENER_CAPACITY = 16;
+  static final String HISTORY_PATH = "traffic_history";
+  static final int DEFAULT_HISTORY_BATCH_SIZE = 500;
+  static final long DEFAULT_HISTORY_FLUSH_MS = 5000;
+  static final String ROLLUP_PATH = "traffic_rollups";
+  static final long ROLLUP_FLUSH_MS = 30_000;
+  // Outlives two missed renewals, so a brief disconnect does not hand the lease over
+  static final long ROLLUP_LEASE_MS = 3 * ROLLUP_FLUSH_MS;
+  static final long RETENTION_INTERVAL_MS = 3_600_000;
+  static final long PROFILE_REBUILD_MS = 60_000;
+  // Four of each weekday shape a profile well enough; live updates keep it current after that
+  static final long PROFILE_HISTORY_MS = 28 * 86_400_000L;
+  private static ScheduledExecutorService flushExecutor;
+
+  private final TrafficDataSource source;
+  private final ListenerRegistry listeners;
+  private final JunctionIngestor ingestor;
+  private final CoalescingDispatcher dispatcher;
+  private final EmergencyTracker emergencyTracker;
+  private HistoryWriter historyWriter;
+  private final TrafficRollup rollup = new TrafficRollup();
+  private final ClusterPyramid clusterPyramid = new ClusterPyramid();
+  private final CongestionClassifier congestionClassifier = new CongestionClassifier();
+  private final HeatmapTileCache heatmapTiles = new HeatmapTileCache(
+      HeatmapTileCache.DEFAULT_MAX_TILES, HeatmapRasterizer.DEFAULT_KERNEL_RADIUS_PX);
+  private RetentionPolicy retentionPolicy = RetentionPolicy.defaults();
+  private FirebaseRollupStore rollupStore;
+  // When this app's rollup writer lease runs out, as far as it knows
+  private long rollupLeaseUntil;
+  // Recurring jobs on the shared executor; it outlives this service, so shutdown cancels them
+  private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
+  // Attached through addStoreObserver, guarded by the writers' lock
+  private final List<JunctionStateStore.Observer> attached = new ArrayList<>();
+  private volatile boolean shutDown;
 
   public interface TrafficDataListener {
+    // Receives only the junctions that changed since the previous call
     void onTrafficDataUpdated(List<TrafficJunction> junctions);
 
+    void onTrafficJunctionRemoved(String junctionId);
+
+    // Fired once when an emergency vehicle appears at a junction, not on every update
     void onEmergencyVehicleDetected(TrafficJunction junction);
+
+    void onEmergencyVehicleCleared(TrafficJunction junction);
+  }
+
+  public enum IngestionMode {
+    // Re-read the whole tree on every change (legacy behaviour)
+    SNAPSHOT,
+    // Apply child added/changed/removed events to the live junction map
+    INCREMENTAL
   }
 
   public FirebaseService() {
-    database = FirebaseDatabase.getInstance().getReference("traffic_junctions");
-    listeners = new ArrayList<>();
+    this(DEFAULT_PATH, IngestionMode.INCREMENTAL);
+  }
+
+  public FirebaseService(String path, IngestionMode mode) {
+    this(path, mode, CoalescingDispatcher.fixedDelay(getFlushExecutor(), DEFAULT_FLUSH_INTERVAL_MS));
+  }
+
+  public FirebaseService(String path, IngestionMode mode,
+      CoalescingDispatcher.FlushScheduler flushScheduler) {
+    this(new FirebaseTrafficDataSource(path, mode), flushScheduler);
+    // The live feed is what fills traffic_rollups for the analytics charts
+    startRollups();
+  }
+
+  // Any source works here, e.g. a replayed recording or a synthetic city for load tests
+  public FirebaseService(TrafficDataSource source,
+      CoalescingDispatcher.FlushScheduler flushScheduler) {
+    this.source = source;
+    listeners = new ListenerRegistry();
+    dispatcher = new CoalescingDispatcher(new CoalescingDispatcher.Sink() {
+      @Override
+      public void onJunctionsChanged(List<TrafficJunction> changed) {
+        notifyDataUpdate(changed);
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        notifyJunctionRemoved(junctionId);
+      }
+    }, flushScheduler, this::getJunctions, DEFAULT_MAX_PENDING);
+    ingestor = new JunctionIngestor(new JunctionIngestor.Sink() {
+      @Override
+      public void onJunctionsChanged(List<TrafficJunction> changed) {
+        // Emergency transitions bypass the coalescing window
+        JunctionStateStore store = ingestor.getStore();
+        for (TrafficJunction junction : changed) {
+          emergencyTracker.observe(store.indexOf(junction.getJunctionId()),
+              junction.isEmergencyVehiclePresent());
+        }
+        dispatcher.submit(changed);
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        emergencyTracker.observe(ingestor.getStore().indexOf(junctionId), false);
+        dispatcher.submitRemoval(junctionId);
+      }
+    });
+    // Radius and viewport queries go through the grid instead of scanning every junction
+    ingestor.getStore().setSpatialIndex(new GeoGridIndex());
+    ingestor.getStore().addObserver(congestionClassifier);
+    ingestor.getStore().addObserver(clusterPyramid);
+    ingestor.getStore().addObserver(heatmapTiles);
+    // Idle until this app wins the rollup writer lease
+    rollup.setActiveFrom(Long.MAX_VALUE);
+    ingestor.getStore().addObserver(rollup);
+    emergencyTracker = new EmergencyTracker(new EmergencyTracker.TransitionListener() {
+      @Override
+      public void onEmergencyRaised(int index) {
+        notifyEmergencyVehicle(ingestor.getStore().toJunction(index));
+      }
+
+      @Override
+      public void onEmergencyCleared(int index) {
+        listeners.publishEmergencyCleared(ingestor.getStore().toJunction(index));
+      }
+    });
   }
 
-  public void addTrafficDataListener(TrafficDataListener listener) {
-    listeners.add(listener);
+  private static synchronized ScheduledExecutorService getFlushExecutor() {
+    if (flushExecutor == null) {
+      flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "traffic-dispatch");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return flushExecutor;
+  }
+
+  public ListenerRegistry.Subscription addTrafficDataListener(TrafficDataListener listener) {
+    return addTrafficDataListener(listener, ListenerRegistry.OverflowPolicy.CONFLATE,
+        DEFAULT_LISTENER_CAPACITY);
+  }
+
+  // Each listener is delivered on its own thread through a queue bounded by capacity
+  public synchronized ListenerRegistry.Subscription addTrafficDataListener(
+      TrafficDataListener listener, ListenerRegistry.OverflowPolicy policy, int capacity) {
+    ListenerRegistry.Subscription existing = listeners.find(listener);
+    if (existing != null) {
+      return existing;
+    }
+    ListenerRegistry.Subscription subscription = listeners.register(listener, policy, capacity);
     if (listeners.size() == 1) {
       startListening();
+    } else if (ingestor.size() > 0) {
+      // Late subscribers get the current state once
+      subscription.enqueueUpdate(getJunctions());
     }
+    return subscription;
   }
 
-  public void removeTrafficDataListener(TrafficDataListener listener) {
-    listeners.remove(listener);
+  public synchronized void removeTrafficDataListener(TrafficDataListener listener) {
+    if (!listeners.unregister(listener)) {
+      return;
+    }
     if (listeners.isEmpty()) {
       stopListening();
     }
   }
 
+  public EmergencyTracker getEmergencyTracker() {
+    return emergencyTracker;
+  }
+
+  public ListenerRegistry getListenerRegistry() {
+    return listeners;
+  }
+
+  public CoalescingDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  public JunctionStateStore getStateStore() {
+    return ingestor.getStore();
+  }
+
+  public ClusterPyramid getClusterPyramid() {
+    return clusterPyramid;
+  }
+
+  public CongestionClassifier getCongestionClassifier() {
+    return congestionClassifier;
+  }
+
+  public HeatmapTileCache getHeatmapTileCache() {
+    return heatmapTiles;
+  }
+
+  // Takes the writers' lock, so a walk of the store never overlaps an update or a reset
+  public List<TrafficJunction> getJunctions() {
+    synchronized (ingestor) {
+      return ingestor.getJunctions();
+    }
+  }
+
+  // Copied under the writers' lock, before a stop clears the store; null when it is empty.
+  // Encoding snaps junctions to the road graph, so it belongs on a background thread
+  public MappedSnapshot.Capture captureSnapshot() {
+    synchronized (ingestor) {
+      JunctionStateStore store = ingestor.getStore();
+      return store.count() == 0 ? null : MappedSnapshot.capture(store);
+    }
+  }
+
+  // Attaches under the writers' lock, so replaying the current junctions never overlaps an update
+  public void addStoreObserver(JunctionStateStore.Observer observer) {
+    synchronized (ingestor) {
+      if (shutDown) {
+        return;
+      }
+      ingestor.getStore().addObserver(observer);
+      attached.add(observer);
+    }
+  }
+
+  public TrafficJunction getJunction(String junctionId) {
+    synchronized (ingestor) {
+      return ingestor.getJunction(junctionId);
+    }
+  }
+
   private void startListening() {
-    database.addValueEventListener(new ValueEventListener() {
+    source.start(new TrafficDataSource.Sink() {
       @Override
-      public void onDataChange(@NonNull DataSnapshot snapshot) {
-        List<TrafficJunction> junctions = new ArrayList<>();
-        for (DataSnapshot junctionSnapshot : snapshot.getChildren()) {
-          TrafficJunction junction = junctionSnapshot.getValue(TrafficJunction.class);
-          if (junction != null) {
-            junctions.add(junction);
-            if (junction.isEmergencyVehiclePresent()) {
-              notifyEmergencyVehicle(junction);
-            }
-          }
+      public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+        synchronized (ingestor) {
+          ingestor.upsert(junctionId, junction);
         }
-        notifyDataUpdate(junctions);
       }
 
       @Override
-      public void onCancelled(@NonNull DatabaseError error) {
-        // Handle error
+      public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+        synchronized (ingestor) {
+          ingestor.upsertFields(junctionId, fields);
+        }
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        synchronized (ingestor) {
+          ingestor.remove(junctionId);
+        }
       }
-    });
-  }
 
-  private void stopListening() {
-    database.removeEventListener(new ValueEventListener() {
       @Override
-      public void onDataChange(@NonNull DataSnapshot snapshot) {
+      public void onSnapshot(Map<String, TrafficJunction> junctions) {
+        synchronized (ingestor) {
+          ingestor.replaceAll(junctions);
+        }
       }
 
       @Override
-      public void onCancelled(@NonNull DatabaseError error) {
+      public void onError(String error) {
+        // Handle error
       }
     });
   }
 
-  private void notifyDataUpdate(List<TrafficJunction> junctions) {
-    for (TrafficDataListener listener : listeners) {
-      listener.onTrafficDataUpdated(junctions);
+  private void stopListening() {
+    source.stop();
+    // Sources stop asynchronously; the lock keeps a late event from racing the reset
+    synchronized (ingestor) {
+      ingestor.clear();
+      dispatcher.clear();
+      emergencyTracker.reset();
     }
   }
 
+  private void notifyDataUpdate(List<TrafficJunction> junctions) {
+    listeners.publishUpdate(junctions);
+  }
+
+  private void notifyJunctionRemoved(String junctionId) {
+    listeners.publishRemoval(junctionId);
+  }
+
   private void notifyEmergencyVehicle(TrafficJunction junction) {
-    for (TrafficDataListener listener : listeners) {
-      listener.onEmergencyVehicleDetected(junction);
-    }
+    listeners.publishEmergency(junction);
   }
 
+  // Samples go through the write-ahead queue and reach traffic_history in batches. Rollups
+  // come from the live store, so logging a sample does not aggregate it a second time
   public void logTrafficHistory(TrafficJunction junction) {
-    DatabaseReference historyRef = FirebaseDatabase.getInstance()
-        .getReference("traffic_history")
-        .child(junction.getJunctionId())
-        .child(String.valueOf(junction.getTimestamp()));
-    historyRef.setValue(junction);
+    getHistoryWriter().append(junction);
+  }
+
+  // Aggregates ingested updates while this app holds the writer lease, see startRollups
+  public TrafficRollup getRollup() {
+    return rollup;
+  }
+
+  public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+    this.retentionPolicy = retentionPolicy;
+  }
+
+  /**
+   * Competes for the rollup writer lease. While this app holds it, the live rollup aggregates,
+   * flushes to traffic_rollups and applies the retention policy; otherwise another app does.
+   */
+  public synchronized void startRollups() {
+    if (shutDown || rollupStore != null) {
+      return;
+    }
+    rollupStore = new FirebaseRollupStore(HISTORY_PATH, ROLLUP_PATH);
+    ScheduledExecutorService executor = getFlushExecutor();
+    scheduled.add(executor.scheduleWithFixedDelay(() -> {
+      long now = System.currentTimeMillis();
+      rollupStore.renewLease(rollup.getWriterId(), now, ROLLUP_LEASE_MS,
+          held -> onRollupLease(held, now));
+      rollupStore.flush(rollup);
+    }, 0, ROLLUP_FLUSH_MS, TimeUnit.MILLISECONDS));
+    scheduled.add(executor.scheduleWithFixedDelay(() -> {
+      RetentionPolicy policy;
+      synchronized (this) {
+        if (System.currentTimeMillis() >= rollupLeaseUntil) {
+          return;
+        }
+        policy = retentionPolicy;
+      }
+      rollupStore.prune(rollup.getJunctionIds(), policy, System.currentTimeMillis());
+    }, RETENTION_INTERVAL_MS, RETENTION_INTERVAL_MS, TimeUnit.MILLISECONDS));
+  }
+
+  // Samples from before a fresh lease were another writer's, or nobody's
+  private synchronized void onRollupLease(boolean held, long requestedAt) {
+    if (held) {
+      if (rollupLeaseUntil <= requestedAt) {
+        rollup.setActiveFrom(requestedAt);
+      }
+      rollupLeaseUntil = requestedAt + ROLLUP_LEASE_MS;
+    } else {
+      rollupLeaseUntil = 0;
+      rollup.setActiveFrom(Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Trains the profile on the hour rollups of the last {@link #PROFILE_HISTORY_MS}, or less if
+   * the retention policy keeps less, and on every live update from now on, folding new samples
+   * in every {@link #PROFILE_REBUILD_MS} on the flush executor.
+   */
+  public void attachTravelTimeProfile(TravelTimeProfile profile) {
+    addStoreObserver(profile);
+    startRollups();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      if (shutDown) {
+        return;
+      }
+      long from = Math.max(now - PROFILE_HISTORY_MS,
+          retentionPolicy.getCutoff(TrafficRollup.Tier.HOUR, now));
+      rollupStore.loadHistory(profile, from, now, getFlushExecutor());
+      scheduled.add(getFlushExecutor().scheduleWithFixedDelay(profile::rebuild,
+          0, PROFILE_REBUILD_MS, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  /**
+   * Cancels this service's recurring jobs, detaches the observers attached through
+   * {@link #addStoreObserver} and stops the history writer. The shared executor keeps running
+   * for whichever service replaces this one, e.g. after an activity is recreated.
+   */
+  public void shutdown() {
+    shutDown = true;
+    synchronized (this) {
+      for (ScheduledFuture<?> future : scheduled) {
+        future.cancel(false);
+      }
+      scheduled.clear();
+      if (historyWriter != null) {
+        historyWriter.stop();
+      }
+    }
+    synchronized (ingestor) {
+      for (JunctionStateStore.Observer observer : attached) {
+        ingestor.getStore().removeObserver(observer);
+      }
+      attached.clear();
+    }
+  }
+
+  public synchronized void setHistoryWriter(HistoryWriter historyWriter) {
+    this.historyWriter = historyWriter;
+  }
+
+  public synchronized HistoryWriter getHistoryWriter() {
+    if (historyWriter == null) {
+      // Without a directory from the app, spool to the temp dir
+      historyWriter = createHistoryWriter(
+          new File(System.getProperty("java.io.tmpdir"), HISTORY_PATH));
+    }
+    return historyWriter;
+  }
+
+  // Spools into directory and replays whatever a previous process left unflushed
+  public static HistoryWriter createHistoryWriter(File directory) {
+    HistoryWriter writer = new HistoryWriter(directory, new FirebaseHistoryTarget(HISTORY_PATH),
+        DEFAULT_HISTORY_BATCH_SIZE, DEFAULT_HISTORY_FLUSH_MS, getFlushExecutor());
+    writer.start();
+    return writer;
   }
-}
\ No newline at end of file
+}
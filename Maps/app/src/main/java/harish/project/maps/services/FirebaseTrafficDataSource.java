@@ -0,0 +1,105 @@
+package harish.project.maps.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.firebase.database.*;
+import harish.project.maps.models.TrafficJunction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FirebaseTrafficDataSource implements TrafficDataSource {
+  private final DatabaseReference database;
+  private final FirebaseService.IngestionMode mode;
+  private final long changedSince;
+  private Query childQuery;
+  private ChildEventListener childListener;
+  private ValueEventListener valueListener;
+
+  public FirebaseTrafficDataSource(String path, FirebaseService.IngestionMode mode) {
+    this(path, mode, 0);
+  }
+
+  /**
+   * Incremental mode only fetches junctions updated at or after changedSince, e.g. on top of a
+   * {@link MappedSnapshot}. Junctions deleted in the meantime are not reported.
+   */
+  public FirebaseTrafficDataSource(String path, FirebaseService.IngestionMode mode,
+      long changedSince) {
+    this.database = FirebaseDatabase.getInstance().getReference(path);
+    this.mode = mode;
+    this.changedSince = changedSince;
+  }
+
+  @Override
+  public void start(Sink sink) {
+    if (mode == FirebaseService.IngestionMode.INCREMENTAL) {
+      childQuery = changedSince > 0
+          ? database.orderByChild(TrafficJunctionDecoder.TIMESTAMP).startAt(changedSince)
+          : database;
+      childListener = childQuery.addChildEventListener(new ChildEventListener() {
+        @Override
+        public void onChildAdded(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+          deliver(sink, snapshot);
+        }
+
+        @Override
+        public void onChildChanged(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+          deliver(sink, snapshot);
+        }
+
+        @Override
+        public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+          sink.onJunctionRemoved(snapshot.getKey());
+        }
+
+        @Override
+        public void onChildMoved(@NonNull DataSnapshot snapshot, @Nullable String previousChildName) {
+          // Ordering is irrelevant for junction state
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+          sink.onError(error.getMessage());
+        }
+      });
+    } else {
+      valueListener = database.addValueEventListener(new ValueEventListener() {
+        @Override
+        public void onDataChange(@NonNull DataSnapshot snapshot) {
+          Map<String, TrafficJunction> junctions = new LinkedHashMap<>();
+          for (DataSnapshot junctionSnapshot : snapshot.getChildren()) {
+            junctions.put(junctionSnapshot.getKey(),
+                TrafficJunctionDecoder.decode(junctionSnapshot.getKey(), junctionSnapshot.getValue()));
+          }
+          sink.onSnapshot(junctions);
+        }
+
+        @Override
+        public void onCancelled(@NonNull DatabaseError error) {
+          sink.onError(error.getMessage());
+        }
+      });
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void deliver(Sink sink, DataSnapshot snapshot) {
+    // Raw maps skip the reflective getValue(TrafficJunction.class) bean mapping
+    Object raw = snapshot.getValue();
+    if (raw instanceof Map) {
+      sink.onJunctionFieldsUpserted(snapshot.getKey(), (Map<String, Object>) raw);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (childListener != null) {
+      childQuery.removeEventListener(childListener);
+      childListener = null;
+    }
+    if (valueListener != null) {
+      database.removeEventListener(valueListener);
+      valueListener = null;
+    }
+  }
+}
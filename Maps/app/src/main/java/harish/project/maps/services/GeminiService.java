@@ -10,7 +10,6 @@ import kotlin.coroutines.Continuation;
 import kotlin.coroutines.CoroutineContext;
 import kotlin.coroutines.EmptyCoroutineContext;
 import org.jetbrains.annotations.NotNull;
-import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 
@@ -30,32 +29,37 @@ public class GeminiService {
     model = new GenerativeModel("gemini-pro", API_KEY);
   }
 
-  public void analyzeTrafficPattern(List<TrafficJunction> junctions, GeminiCallback callback) {
-    StringBuilder prompt = new StringBuilder();
+  public void analyzeTrafficPattern(JunctionStateStore store, GeminiCallback callback) {
+    StringBuilder prompt = new StringBuilder(64 + store.count() * 64);
     prompt.append("Analyze the following traffic data and suggest the best route:\n");
 
-    for (TrafficJunction junction : junctions) {
-      prompt.append(String.format(
-          "Junction %s: Density=%d, GreenLight=%ds, Emergency=%b\n",
-          junction.getJunctionId(),
-          junction.getVehicleDensity(),
-          junction.getGreenLightDuration(),
-          junction.isEmergencyVehiclePresent()));
+    // Appending primitives straight from the store avoids String.format and boxing per junction
+    for (int index = 0; index < store.size(); index++) {
+      if (!store.isPresent(index)) {
+        continue;
+      }
+      prompt.append("Junction ").append(store.getJunctionId(index))
+          .append(": Density=").append(store.getVehicleDensity(index))
+          .append(", GreenLight=").append(store.getGreenLightDuration(index))
+          .append("s, Emergency=").append(store.isEmergencyVehiclePresent(index))
+          .append('\n');
     }
 
     generateContent(prompt.toString(), callback);
   }
 
-  public void predictFutureTraffic(List<TrafficJunction> historicalData, GeminiCallback callback) {
-    StringBuilder prompt = new StringBuilder();
+  public void predictFutureTraffic(JunctionStateStore store, GeminiCallback callback) {
+    StringBuilder prompt = new StringBuilder(96 + store.count() * 48);
     prompt.append("Based on the following historical traffic data, predict traffic conditions for the next hour:\n");
 
-    for (TrafficJunction data : historicalData) {
-      prompt.append(String.format(
-          "Time: %d, Junction %s: Density=%d\n",
-          data.getTimestamp(),
-          data.getJunctionId(),
-          data.getVehicleDensity()));
+    for (int index = 0; index < store.size(); index++) {
+      if (!store.isPresent(index)) {
+        continue;
+      }
+      prompt.append("Time: ").append(store.getTimestamp(index))
+          .append(", Junction ").append(store.getJunctionId(index))
+          .append(": Density=").append(store.getVehicleDensity(index))
+          .append('\n');
     }
 
     generateContent(prompt.toString(), callback);
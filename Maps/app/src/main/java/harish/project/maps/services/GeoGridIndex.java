@@ -0,0 +1,254 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uniform lat/lon grid. Each cell holds the indices of the junctions inside it, so a query
+ * only touches the cells overlapping its box. Moves and removals are O(1): every junction
+ * remembers its cell and its slot within that cell.
+ */
+public class GeoGridIndex implements SpatialIndex {
+  // About 220 m of latitude, a few cells per typical 100-500 m query
+  public static final double DEFAULT_CELL_DEGREES = 0.002;
+  private static final long ABSENT = Long.MIN_VALUE;
+
+  private final double cellDegrees;
+  private final Map<Long, IntList> cells = new HashMap<>();
+  private double[] latitudes = new double[0];
+  private double[] longitudes = new double[0];
+  private double[] cosLatitudes = new double[0];
+  private long[] cellOf = new long[0];
+  private int[] slotOf = new int[0];
+  private int size;
+  // Occupied cell extent; only ever grows, which keeps nearest-neighbour bounds conservative
+  private int minCellLat = Integer.MAX_VALUE;
+  private int maxCellLat = Integer.MIN_VALUE;
+  private int minCellLon = Integer.MAX_VALUE;
+  private int maxCellLon = Integer.MIN_VALUE;
+
+  public GeoGridIndex() {
+    this(DEFAULT_CELL_DEGREES);
+  }
+
+  public GeoGridIndex(double cellDegrees) {
+    this.cellDegrees = cellDegrees;
+  }
+
+  @Override
+  public synchronized void update(int index, double latitude, double longitude) {
+    ensureCapacity(index + 1);
+    int y = cellLat(latitude);
+    int x = cellLon(longitude);
+    long cell = cellKey(y, x);
+    latitudes[index] = latitude;
+    longitudes[index] = longitude;
+    cosLatitudes[index] = GeoMath.cosLatitude(latitude);
+    if (cellOf[index] == cell) {
+      return;
+    }
+    if (cellOf[index] == ABSENT) {
+      size++;
+    } else {
+      detach(index);
+    }
+    IntList members = cells.get(cell);
+    if (members == null) {
+      members = new IntList(4);
+      cells.put(cell, members);
+    }
+    cellOf[index] = cell;
+    slotOf[index] = members.size();
+    members.add(index);
+    minCellLat = Math.min(minCellLat, y);
+    maxCellLat = Math.max(maxCellLat, y);
+    minCellLon = Math.min(minCellLon, x);
+    maxCellLon = Math.max(maxCellLon, x);
+  }
+
+  @Override
+  public synchronized void remove(int index) {
+    if (index < 0 || index >= cellOf.length || cellOf[index] == ABSENT) {
+      return;
+    }
+    detach(index);
+    cellOf[index] = ABSENT;
+    size--;
+  }
+
+  @Override
+  public synchronized void clear() {
+    cells.clear();
+    Arrays.fill(cellOf, ABSENT);
+    size = 0;
+    minCellLat = Integer.MAX_VALUE;
+    maxCellLat = Integer.MIN_VALUE;
+    minCellLon = Integer.MAX_VALUE;
+    maxCellLon = Integer.MIN_VALUE;
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized int getCellCount() {
+    return cells.size();
+  }
+
+  @Override
+  public synchronized int queryBox(double minLat, double minLon, double maxLat, double maxLon,
+      IntList out) {
+    int start = out.size();
+    int fromLat = cellLat(minLat);
+    int toLat = cellLat(maxLat);
+    int fromLon = cellLon(minLon);
+    int toLon = cellLon(maxLon);
+    long span = (long) (toLat - fromLat + 1) * (toLon - fromLon + 1);
+    if (span > cells.size()) {
+      // Box is larger than the occupied grid, walking the occupied cells is cheaper
+      for (IntList members : cells.values()) {
+        collect(members, minLat, minLon, maxLat, maxLon, out);
+      }
+    } else {
+      for (int y = fromLat; y <= toLat; y++) {
+        for (int x = fromLon; x <= toLon; x++) {
+          IntList members = cells.get(cellKey(y, x));
+          if (members != null) {
+            collect(members, minLat, minLon, maxLat, maxLon, out);
+          }
+        }
+      }
+    }
+    return out.size() - start;
+  }
+
+  @Override
+  public synchronized int queryRadius(double latitude, double longitude, double radiusMeters,
+      IntList out) {
+    int start = out.size();
+    GeoMath.Proximity proximity = new GeoMath.Proximity(latitude, longitude, radiusMeters);
+    queryBox(proximity.getMinLat(), proximity.getMinLon(), proximity.getMaxLat(),
+        proximity.getMaxLon(), out);
+    // Compact the box candidates down to the ones inside the circle
+    int kept = start;
+    for (int i = start; i < out.size(); i++) {
+      int index = out.get(i);
+      if (proximity.contains(latitudes[index], longitudes[index], cosLatitudes[index])) {
+        out.set(kept++, index);
+      }
+    }
+    out.truncate(kept);
+    return kept - start;
+  }
+
+  @Override
+  public synchronized int queryNearest(double latitude, double longitude, int k, IntList out) {
+    NearestCollector nearest = new NearestCollector(Math.min(k, size));
+    if (size == 0 || k <= 0) {
+      return 0;
+    }
+    int cy = cellLat(latitude);
+    int cx = cellLon(longitude);
+    double extent = Math.max(Math.abs(latitude), Math.max(Math.abs((double) minCellLat),
+        Math.abs((double) maxCellLat + 1)) * cellDegrees);
+    // Metres per cell along the worse axis anywhere in the extent, shaved for great-circle
+    // paths being slightly shorter than parallels
+    double cellMeters = cellDegrees * GeoMath.METERS_PER_DEGREE
+        * GeoMath.cosLatitude(Math.min(89.9, extent)) * 0.99;
+    for (int r = 0; ; r++) {
+      // Everything in ring r or beyond is at least r - 1 whole cells away
+      if (nearest.isFull() && nearest.worst() <= (r - 1) * cellMeters) {
+        break;
+      }
+      if ((long) (2 * r + 1) * (2 * r + 1) > 4L * cells.size()) {
+        // The rings have outgrown the occupied grid, finish with the remaining cells
+        for (Map.Entry<Long, IntList> cell : cells.entrySet()) {
+          long key = cell.getKey();
+          int y = (int) (key >> 32);
+          int x = (int) key;
+          if (Math.max(Math.abs(y - cy), Math.abs(x - cx)) >= r) {
+            offerAll(cell.getValue(), latitude, longitude, nearest);
+          }
+        }
+        break;
+      }
+      for (int y = cy - r; y <= cy + r; y++) {
+        // Only the ring's border: full rows at the top and bottom, two cells elsewhere
+        int step = (y == cy - r || y == cy + r) ? 1 : Math.max(1, 2 * r);
+        for (int x = cx - r; x <= cx + r; x += step) {
+          IntList members = cells.get(cellKey(y, x));
+          if (members != null) {
+            offerAll(members, latitude, longitude, nearest);
+          }
+        }
+      }
+      if (cy - r <= minCellLat && cy + r >= maxCellLat && cx - r <= minCellLon
+          && cx + r >= maxCellLon) {
+        break;
+      }
+    }
+    int start = out.size();
+    nearest.drainSorted(out);
+    return out.size() - start;
+  }
+
+  private void offerAll(IntList members, double latitude, double longitude,
+      NearestCollector nearest) {
+    for (int i = 0; i < members.size(); i++) {
+      int index = members.get(i);
+      nearest.offer(index,
+          GeoMath.haversineMeters(latitude, longitude, latitudes[index], longitudes[index]));
+    }
+  }
+
+  private void collect(IntList members, double minLat, double minLon, double maxLat,
+      double maxLon, IntList out) {
+    for (int i = 0; i < members.size(); i++) {
+      int index = members.get(i);
+      double lat = latitudes[index];
+      double lon = longitudes[index];
+      if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+        out.add(index);
+      }
+    }
+  }
+
+  private void detach(int index) {
+    IntList members = cells.get(cellOf[index]);
+    int moved = members.removeSwap(slotOf[index]);
+    if (moved >= 0) {
+      slotOf[moved] = slotOf[index];
+    }
+    if (members.isEmpty()) {
+      cells.remove(cellOf[index]);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= cellOf.length) {
+      return;
+    }
+    int grown = Math.max(capacity, cellOf.length * 2);
+    int old = cellOf.length;
+    latitudes = Arrays.copyOf(latitudes, grown);
+    longitudes = Arrays.copyOf(longitudes, grown);
+    cosLatitudes = Arrays.copyOf(cosLatitudes, grown);
+    cellOf = Arrays.copyOf(cellOf, grown);
+    slotOf = Arrays.copyOf(slotOf, grown);
+    Arrays.fill(cellOf, old, grown, ABSENT);
+  }
+
+  private int cellLat(double latitude) {
+    return (int) Math.floor(latitude / cellDegrees);
+  }
+
+  private int cellLon(double longitude) {
+    return (int) Math.floor(longitude / cellDegrees);
+  }
+
+  private static long cellKey(int y, int x) {
+    return ((long) y << 32) | (x & 0xFFFFFFFFL);
+  }
+}
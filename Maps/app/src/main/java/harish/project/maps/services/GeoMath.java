@@ -0,0 +1,131 @@
+package harish.project.maps.services;
+
+/**
+ * Distance helpers shared by the spatial queries.
+ */
+public final class GeoMath {
+  public static final double EARTH_RADIUS_M = 6371e3;
+  // Length of one degree of latitude on the sphere used by haversine
+  public static final double METERS_PER_DEGREE = EARTH_RADIUS_M * Math.PI / 180;
+
+  // Equirectangular error stays below ~1.3e-4 relative within these limits; the band is wider
+  private static final double MAX_FAST_RADIUS_M = 50_000;
+  private static final double MAX_FAST_LATITUDE = 80;
+  private static final double APPROXIMATION_BAND = 1e-3;
+
+  private GeoMath() {
+  }
+
+  public static double haversineMeters(double lat1, double lon1, double lat2, double lon2) {
+    double φ1 = Math.toRadians(lat1);
+    double φ2 = Math.toRadians(lat2);
+    double Δφ = Math.toRadians(lat2 - lat1);
+    double Δλ = Math.toRadians(lon2 - lon1);
+
+    double a = Math.sin(Δφ / 2) * Math.sin(Δφ / 2)
+        + Math.cos(φ1) * Math.cos(φ2) * Math.sin(Δλ / 2) * Math.sin(Δλ / 2);
+    return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+  }
+
+  public static double latitudeDelta(double meters) {
+    return meters / METERS_PER_DEGREE;
+  }
+
+  // Longitude span covering the distance at the given latitude; the whole globe near the poles
+  public static double longitudeDelta(double meters, double latitude) {
+    double cos = Math.cos(Math.toRadians(Math.min(89.9, Math.abs(latitude) + latitudeDelta(meters))));
+    return Math.min(180, meters / (METERS_PER_DEGREE * cos));
+  }
+
+  public static double cosLatitude(double latitude) {
+    return Math.cos(Math.toRadians(latitude));
+  }
+
+  /**
+   * "Within radius of a point" test that avoids trigonometry for most candidates: a
+   * degree-space box rejects far points, an equirectangular distance using each point's
+   * cached cos(lat) settles the rest, and haversine runs only for points within 0.1% of the
+   * radius. Answers always match haversine.
+   */
+  public static final class Proximity {
+    private final double latitude;
+    private final double longitude;
+    private final double radiusMeters;
+    private final double cosLat;
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+    // Thresholds on the squared equirectangular distance, in squared degrees
+    private final double acceptBelow;
+    private final double rejectAbove;
+    private final boolean fast;
+
+    public Proximity(double latitude, double longitude, double radiusMeters) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.radiusMeters = radiusMeters;
+      cosLat = cosLatitude(latitude);
+      double dLat = latitudeDelta(radiusMeters);
+      double dLon = longitudeDelta(radiusMeters, latitude);
+      minLat = latitude - dLat;
+      maxLat = latitude + dLat;
+      minLon = longitude - dLon;
+      maxLon = longitude + dLon;
+      double radiusDegrees = radiusMeters / METERS_PER_DEGREE;
+      acceptBelow = sq(radiusDegrees * (1 - APPROXIMATION_BAND));
+      rejectAbove = sq(radiusDegrees * (1 + APPROXIMATION_BAND));
+      // Past the antimeridian the box would wrongly reject, so those queries stay exact
+      fast = radiusMeters <= MAX_FAST_RADIUS_M
+          && Math.abs(latitude) + dLat <= MAX_FAST_LATITUDE
+          && minLon >= -180 && maxLon <= 180;
+    }
+
+    public double getMinLat() {
+      return minLat;
+    }
+
+    public double getMaxLat() {
+      return maxLat;
+    }
+
+    public double getMinLon() {
+      return minLon;
+    }
+
+    public double getMaxLon() {
+      return maxLon;
+    }
+
+    public boolean contains(double lat, double lon) {
+      if (fast && (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon)) {
+        return false;
+      }
+      return contains(lat, lon, fast ? cosLatitude(lat) : 0);
+    }
+
+    // cosLat must be cosLatitude(lat), typically cached next to the point
+    public boolean contains(double lat, double lon, double cosLat) {
+      if (!fast) {
+        return haversineMeters(latitude, longitude, lat, lon) <= radiusMeters;
+      }
+      if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+        return false;
+      }
+      double dy = lat - latitude;
+      double dx = (lon - longitude) * (cosLat + this.cosLat) * 0.5;
+      double d2 = dx * dx + dy * dy;
+      if (d2 <= acceptBelow) {
+        return true;
+      }
+      if (d2 > rejectAbove) {
+        return false;
+      }
+      return haversineMeters(latitude, longitude, lat, lon) <= radiusMeters;
+    }
+
+    private static double sq(double value) {
+      return value * value;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package harish.project.maps.services;
+
+import java.util.Collection;
+
+/** Geohash encoding and box covering, used to partition junctions by area. */
+public final class Geohash {
+  private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private Geohash() {
+  }
+
+  public static String encode(double latitude, double longitude, int precision) {
+    double minLat = -90;
+    double maxLat = 90;
+    double minLon = -180;
+    double maxLon = 180;
+    char[] hash = new char[precision];
+    boolean lonBit = true;
+    for (int c = 0; c < precision; c++) {
+      int value = 0;
+      for (int bit = 0; bit < 5; bit++) {
+        value <<= 1;
+        if (lonBit) {
+          double mid = (minLon + maxLon) / 2;
+          if (longitude >= mid) {
+            value |= 1;
+            minLon = mid;
+          } else {
+            maxLon = mid;
+          }
+        } else {
+          double mid = (minLat + maxLat) / 2;
+          if (latitude >= mid) {
+            value |= 1;
+            minLat = mid;
+          } else {
+            maxLat = mid;
+          }
+        }
+        lonBit = !lonBit;
+      }
+      hash[c] = BASE32[value];
+    }
+    return new String(hash);
+  }
+
+  public static double cellWidth(int precision) {
+    return 360.0 / (1L << ((5 * precision + 1) / 2));
+  }
+
+  public static double cellHeight(int precision) {
+    return 180.0 / (1L << (5 * precision / 2));
+  }
+
+  // Number of cells of the given precision that cover the box
+  public static long coverCount(double minLat, double minLon, double maxLat, double maxLon,
+      int precision) {
+    long rows = (long) Math.floor((clampLat(maxLat) + 90) / cellHeight(precision))
+        - (long) Math.floor((clampLat(minLat) + 90) / cellHeight(precision)) + 1;
+    long columns = (long) Math.floor((clampLon(maxLon) + 180) / cellWidth(precision))
+        - (long) Math.floor((clampLon(minLon) + 180) / cellWidth(precision)) + 1;
+    return rows * columns;
+  }
+
+  /** Adds the hash of every cell of the given precision that overlaps the box to out. */
+  public static void cover(double minLat, double minLon, double maxLat, double maxLon,
+      int precision, Collection<String> out) {
+    double height = cellHeight(precision);
+    double width = cellWidth(precision);
+    long fromRow = (long) Math.floor((clampLat(minLat) + 90) / height);
+    long toRow = (long) Math.floor((clampLat(maxLat) + 90) / height);
+    long fromColumn = (long) Math.floor((clampLon(minLon) + 180) / width);
+    long toColumn = (long) Math.floor((clampLon(maxLon) + 180) / width);
+    for (long row = fromRow; row <= toRow; row++) {
+      for (long column = fromColumn; column <= toColumn; column++) {
+        // Encode the cell centre so rounding at the edges cannot pick a neighbour
+        out.add(encode(-90 + (row + 0.5) * height, -180 + (column + 0.5) * width, precision));
+      }
+    }
+  }
+
+  private static double clampLat(double latitude) {
+    return Math.max(-90, Math.min(90 - 1e-9, latitude));
+  }
+
+  private static double clampLon(double longitude) {
+    return Math.max(-180, Math.min(180 - 1e-9, longitude));
+  }
+}
@@ -0,0 +1,153 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Draws 256 px web-mercator heatmap tiles of junction density. Every junction spreads a smooth
+ * kernel of {@code kernelRadiusPx}; a pixel takes the kernel-weighted mean density of the
+ * junctions covering it, coloured with the {@link TrafficService} thresholds, and grows more
+ * opaque as more junctions overlap it.
+ *
+ * <p>Not thread-safe: it keeps per-tile scratch buffers, so use one instance per thread.
+ */
+public class HeatmapRasterizer {
+  public static final int TILE_SIZE = 256;
+  public static final int DEFAULT_KERNEL_RADIUS_PX = 24;
+  private static final int MAX_ALPHA = 0xC0;
+  // Web mercator stops here; beyond it y runs off to infinity
+  private static final double MAX_LATITUDE = 85.05112878;
+
+  private final int kernelRadius;
+  // Opaque colour per density 0-100
+  private final int[] palette = new int[101];
+  // Kernel weight by squared pixel distance
+  private final float[] kernel;
+  private final float[] weights = new float[TILE_SIZE * TILE_SIZE];
+  private final float[] weightedDensity = new float[TILE_SIZE * TILE_SIZE];
+  private final IntList candidates = new IntList();
+
+  public HeatmapRasterizer(TrafficService trafficService) {
+    this(trafficService, DEFAULT_KERNEL_RADIUS_PX);
+  }
+
+  public HeatmapRasterizer(TrafficService trafficService, int kernelRadiusPx) {
+    this.kernelRadius = kernelRadiusPx;
+    for (int density = 0; density <= 100; density++) {
+      palette[density] = trafficService.getTrafficColor(density) & 0xFFFFFF;
+    }
+    int radiusSquared = kernelRadiusPx * kernelRadiusPx;
+    kernel = new float[radiusSquared + 1];
+    for (int d2 = 0; d2 <= radiusSquared; d2++) {
+      float falloff = 1f - (float) d2 / radiusSquared;
+      kernel[d2] = falloff * falloff;
+    }
+  }
+
+  public int getKernelRadius() {
+    return kernelRadius;
+  }
+
+  /**
+   * Renders tile (x, y) at the zoom into out as ARGB. Returns false, leaving out untouched,
+   * when no junction reaches the tile.
+   */
+  public boolean render(JunctionStateStore store, int zoom, int x, int y, int[] out) {
+    double originX = (double) x * TILE_SIZE;
+    double originY = (double) y * TILE_SIZE;
+    double worldSize = worldSize(zoom);
+    double minLat = latitudeAt(Math.min(worldSize, originY + TILE_SIZE + kernelRadius), zoom);
+    double maxLat = latitudeAt(Math.max(0, originY - kernelRadius), zoom);
+    double minLon = longitudeAt(originX - kernelRadius, zoom);
+    double maxLon = longitudeAt(originX + TILE_SIZE + kernelRadius, zoom);
+
+    candidates.clear();
+    SpatialIndex spatialIndex = store.getSpatialIndex();
+    if (spatialIndex != null) {
+      spatialIndex.queryBox(minLat, minLon, maxLat, maxLon, candidates);
+    } else {
+      for (int index = 0; index < store.size(); index++) {
+        double lat = store.getLatitude(index);
+        double lon = store.getLongitude(index);
+        if (store.isPresent(index) && lat >= minLat && lat <= maxLat && lon >= minLon
+            && lon <= maxLon) {
+          candidates.add(index);
+        }
+      }
+    }
+    if (candidates.isEmpty()) {
+      return false;
+    }
+
+    Arrays.fill(weights, 0f);
+    Arrays.fill(weightedDensity, 0f);
+    int radiusSquared = kernelRadius * kernelRadius;
+    boolean touched = false;
+    for (int i = 0; i < candidates.size(); i++) {
+      int index = candidates.get(i);
+      if (!store.isPresent(index)) {
+        continue;
+      }
+      int px = (int) Math.round(worldX(store.getLongitude(index), zoom) - originX);
+      int py = (int) Math.round(worldY(store.getLatitude(index), zoom) - originY);
+      float density = Math.max(0, Math.min(100, store.getVehicleDensity(index)));
+      int fromY = Math.max(0, py - kernelRadius);
+      int toY = Math.min(TILE_SIZE - 1, py + kernelRadius);
+      int fromX = Math.max(0, px - kernelRadius);
+      int toX = Math.min(TILE_SIZE - 1, px + kernelRadius);
+      for (int row = fromY; row <= toY; row++) {
+        int dy = row - py;
+        int offset = row * TILE_SIZE;
+        for (int column = fromX; column <= toX; column++) {
+          int dx = column - px;
+          int d2 = dx * dx + dy * dy;
+          if (d2 <= radiusSquared) {
+            float weight = kernel[d2];
+            weights[offset + column] += weight;
+            weightedDensity[offset + column] += weight * density;
+            touched = true;
+          }
+        }
+      }
+    }
+    if (!touched) {
+      return false;
+    }
+
+    for (int p = 0; p < weights.length; p++) {
+      float weight = weights[p];
+      if (weight == 0f) {
+        out[p] = 0;
+        continue;
+      }
+      int density = Math.round(weightedDensity[p] / weight);
+      int alpha = (int) (Math.min(1f, weight) * MAX_ALPHA);
+      out[p] = (alpha << 24) | palette[density];
+    }
+    return true;
+  }
+
+  public static double worldSize(int zoom) {
+    return (double) TILE_SIZE * (1L << zoom);
+  }
+
+  // Web-mercator pixel coordinates at the zoom
+  public static double worldX(double longitude, int zoom) {
+    return (longitude + 180) / 360 * worldSize(zoom);
+  }
+
+  public static double worldY(double latitude, int zoom) {
+    double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+    double sin = Math.sin(Math.toRadians(clamped));
+    double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    return y * worldSize(zoom);
+  }
+
+  public static double longitudeAt(double worldX, int zoom) {
+    return worldX / worldSize(zoom) * 360 - 180;
+  }
+
+  public static double latitudeAt(double worldY, int zoom) {
+    double n = Math.PI * (1 - 2 * worldY / worldSize(zoom));
+    return Math.toDegrees(Math.atan(Math.sinh(n)));
+  }
+}
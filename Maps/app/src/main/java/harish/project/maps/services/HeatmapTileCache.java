@@ -0,0 +1,216 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of encoded heatmap tiles. Attached to a {@link JunctionStateStore} as an
+ * observer, it evicts only the tiles within a kernel radius of a junction that moved or changed
+ * density, at the zoom levels it actually holds, so panning back over a quiet area is free.
+ *
+ * <p>A tile rendered while one of its junctions changed is not cached: callers bracket the
+ * render with {@link #beginRender} and {@link #finishRender}, passing back the token the first
+ * returned so concurrent renders of one tile are judged separately.
+ */
+public class HeatmapTileCache implements JunctionStateStore.Observer {
+  public static final int DEFAULT_MAX_TILES = 256;
+  private static final int MAX_ZOOM = 22;
+  // Tiles without any junction; callers map this to an empty tile
+  public static final byte[] EMPTY = new byte[0];
+
+  private final int marginPx;
+  private final LinkedHashMap<Long, byte[]> tiles;
+  private final int[] cachedPerZoom = new int[MAX_ZOOM + 1];
+  private final int[] renderingPerZoom = new int[MAX_ZOOM + 1];
+  // Renders in flight per tile
+  private final Map<Long, Integer> rendering = new HashMap<>();
+  // Per tile, the newest render token that began before the tile last changed
+  private final Map<Long, Long> staleThrough = new HashMap<>();
+  private long lastToken;
+
+  // Last position and density seen per junction, to find the tiles it used to cover
+  private boolean[] present = new boolean[0];
+  private double[] latitudes = new double[0];
+  private double[] longitudes = new double[0];
+  private int[] densities = new int[0];
+
+  private long hits;
+  private long misses;
+  private long invalidations;
+  private volatile int version;
+
+  public HeatmapTileCache(int maxTiles, int kernelRadiusPx) {
+    this.marginPx = kernelRadiusPx + 1;
+    this.tiles = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+        if (size() <= maxTiles) {
+          return false;
+        }
+        cachedPerZoom[zoomOf(eldest.getKey())]--;
+        return true;
+      }
+    };
+  }
+
+  public synchronized byte[] get(int zoom, int x, int y) {
+    byte[] tile = tiles.get(key(zoom, x, y));
+    if (tile != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return tile;
+  }
+
+  // Returns the token to hand to finishRender
+  public synchronized long beginRender(int zoom, int x, int y) {
+    rendering.merge(key(zoom, x, y), 1, Integer::sum);
+    renderingPerZoom[zoom]++;
+    return ++lastToken;
+  }
+
+  /**
+   * Caches a finished tile, or with a null tile only ends the render. Returns false if a
+   * junction under the tile changed during the render; the tile is then not cached.
+   */
+  public synchronized boolean finishRender(int zoom, int x, int y, long token, byte[] tile) {
+    long key = key(zoom, x, y);
+    Long stale = staleThrough.get(key);
+    if (rendering.merge(key, -1, Integer::sum) == 0) {
+      rendering.remove(key);
+      staleThrough.remove(key);
+    }
+    renderingPerZoom[zoom]--;
+    if ((stale != null && token <= stale) || tile == null) {
+      return false;
+    }
+    if (tiles.put(key, tile) == null) {
+      cachedPerZoom[zoom]++;
+    }
+    return true;
+  }
+
+  public synchronized int size() {
+    return tiles.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  // Cached tiles dropped because a junction under them changed
+  public synchronized long getInvalidationCount() {
+    return invalidations;
+  }
+
+  // Changes whenever a cached tile was invalidated, so the map knows to re-fetch
+  public int version() {
+    return version;
+  }
+
+  public synchronized void clear() {
+    tiles.clear();
+    Arrays.fill(cachedPerZoom, 0);
+    for (Long key : rendering.keySet()) {
+      staleThrough.put(key, lastToken);
+    }
+    version++;
+  }
+
+  @Override
+  public synchronized void onJunctionUpdated(JunctionStateStore store, int index) {
+    ensureCapacity(index + 1);
+    double lat = store.getLatitude(index);
+    double lon = store.getLongitude(index);
+    int density = store.getVehicleDensity(index);
+    if (present[index]) {
+      if (latitudes[index] == lat && longitudes[index] == lon && densities[index] == density) {
+        return;
+      }
+      invalidateAround(latitudes[index], longitudes[index]);
+    }
+    invalidateAround(lat, lon);
+    present[index] = true;
+    latitudes[index] = lat;
+    longitudes[index] = lon;
+    densities[index] = density;
+  }
+
+  @Override
+  public synchronized void onJunctionRemoved(JunctionStateStore store, int index) {
+    if (index < present.length && present[index]) {
+      invalidateAround(latitudes[index], longitudes[index]);
+      present[index] = false;
+    }
+  }
+
+  @Override
+  public synchronized void onCleared(JunctionStateStore store) {
+    Arrays.fill(present, false);
+    clear();
+  }
+
+  private void invalidateAround(double lat, double lon) {
+    boolean changed = false;
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+      if (cachedPerZoom[zoom] == 0 && renderingPerZoom[zoom] == 0) {
+        continue;
+      }
+      double worldX = HeatmapRasterizer.worldX(lon, zoom);
+      double worldY = HeatmapRasterizer.worldY(lat, zoom);
+      int tiles = 1 << zoom;
+      int fromX = tileOf(worldX - marginPx, tiles);
+      int toX = tileOf(worldX + marginPx, tiles);
+      int fromY = tileOf(worldY - marginPx, tiles);
+      int toY = tileOf(worldY + marginPx, tiles);
+      for (int y = fromY; y <= toY; y++) {
+        for (int x = fromX; x <= toX; x++) {
+          long key = key(zoom, x, y);
+          if (this.tiles.remove(key) != null) {
+            cachedPerZoom[zoom]--;
+            invalidations++;
+            changed = true;
+          }
+          if (rendering.containsKey(key)) {
+            staleThrough.put(key, lastToken);
+            changed = true;
+          }
+        }
+      }
+    }
+    if (changed) {
+      version++;
+    }
+  }
+
+  private static int tileOf(double worldCoordinate, int tiles) {
+    int tile = (int) Math.floor(worldCoordinate / HeatmapRasterizer.TILE_SIZE);
+    return Math.max(0, Math.min(tiles - 1, tile));
+  }
+
+  static long key(int zoom, int x, int y) {
+    return ((long) zoom << 58) | ((long) x << 29) | y;
+  }
+
+  private static int zoomOf(long key) {
+    return (int) (key >>> 58);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= present.length) {
+      return;
+    }
+    int grown = Math.max(capacity, present.length * 2);
+    present = Arrays.copyOf(present, grown);
+    latitudes = Arrays.copyOf(latitudes, grown);
+    longitudes = Arrays.copyOf(longitudes, grown);
+    densities = Arrays.copyOf(densities, grown);
+  }
+}
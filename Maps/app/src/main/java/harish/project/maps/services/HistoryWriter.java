@@ -0,0 +1,382 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead history logger. Samples are appended to an on-disk segment first and flushed
+ * to {@code traffic_history/<id>/<timestamp>} as one multi-path update once a segment holds
+ * {@code maxBatchSize} samples or {@code maxDelayMillis} have passed. A segment is deleted
+ * only after the backend acknowledged it, so samples survive a process death and segments
+ * left behind are replayed by {@link #start()}.
+ *
+ * <p>Each record is framed as {@code length:int crc32:int payload}; a torn record at the tail
+ * of a segment is discarded on replay. A sample that cannot be written to disk, even after
+ * sealing the segment and retrying on a fresh one, is sent to the backend on its own; only if
+ * that fails too is it counted as dropped. All disk and network work runs on the executor.
+ * After {@link #stop()} samples are still spooled, but only the next start flushes them.
+ */
+public class HistoryWriter {
+  private static final String SEGMENT_PREFIX = "history-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final long RETRY_DELAY_MS = 5000;
+
+  private final File directory;
+  private final BatchTarget target;
+  private final int maxBatchSize;
+  private final long maxDelayMillis;
+  private final ScheduledExecutorService executor;
+
+  // Only touched on the executor thread
+  private final ArrayDeque<File> sealedSegments = new ArrayDeque<>();
+  private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(128);
+  private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+  private final CRC32 crc = new CRC32();
+  private DataOutputStream segmentOut;
+  private File currentSegment;
+  private int currentCount;
+  private long nextSequence;
+  private boolean flushInFlight;
+  private boolean stopped;
+  private ScheduledFuture<?> timer;
+  private ScheduledFuture<?> retry;
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong flushedSamples = new AtomicLong();
+  private final AtomicLong failedFlushes = new AtomicLong();
+  private final AtomicLong spoolFailures = new AtomicLong();
+  private final AtomicLong droppedSamples = new AtomicLong();
+  private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+  public interface BatchTarget {
+    // Writes all paths atomically and reports back with null on success or an error message
+    void write(Map<String, Object> updates, Callback callback);
+
+    interface Callback {
+      void onComplete(String error);
+    }
+  }
+
+  public HistoryWriter(File directory, BatchTarget target, int maxBatchSize,
+      long maxDelayMillis, ScheduledExecutorService executor) {
+    this.directory = directory;
+    this.target = target;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayMillis = maxDelayMillis;
+    this.executor = executor;
+  }
+
+  // Picks up segments left over from a previous process and schedules them for flushing
+  public void start() {
+    executor.execute(() -> {
+      if (!directory.exists() && !directory.mkdirs()) {
+        return;
+      }
+      File[] leftovers = directory.listFiles((dir, name) ->
+          name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+      if (leftovers == null) {
+        return;
+      }
+      Arrays.sort(leftovers, (a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+      for (File segment : leftovers) {
+        nextSequence = Math.max(nextSequence, sequenceOf(segment) + 1);
+        queueDepth.addAndGet(countRecords(segment));
+        sealedSegments.addLast(segment);
+      }
+      flushNext();
+    });
+  }
+
+  public void append(TrafficJunction junction) {
+    String junctionId = junction.getJunctionId();
+    double latitude = junction.getLatitude();
+    double longitude = junction.getLongitude();
+    int density = junction.getVehicleDensity();
+    int greenLight = junction.getGreenLightDuration();
+    long timestamp = junction.getTimestamp();
+    boolean emergency = junction.isEmergencyVehiclePresent();
+    queueDepth.incrementAndGet();
+    executor.execute(() -> appendRecord(junctionId, latitude, longitude, density, greenLight,
+        timestamp, emergency));
+  }
+
+  // Forces the open segment out without waiting for the size or time threshold
+  public void flush() {
+    executor.execute(() -> {
+      seal();
+      flushNext();
+    });
+  }
+
+  // Cancels the pending flush timer and retry; what is spooled by then waits for the next start
+  public void stop() {
+    executor.execute(() -> {
+      stopped = true;
+      seal();
+      if (timer != null) {
+        timer.cancel(false);
+        timer = null;
+      }
+      if (retry != null) {
+        retry.cancel(false);
+        retry = null;
+      }
+    });
+  }
+
+  // Samples written to disk but not yet acknowledged by the backend
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  public long getFlushedCount() {
+    return flushedSamples.get();
+  }
+
+  public long getFailedFlushCount() {
+    return failedFlushes.get();
+  }
+
+  // Samples that could not be written to disk and went straight to the backend instead
+  public long getSpoolFailureCount() {
+    return spoolFailures.get();
+  }
+
+  // Samples lost for good: neither the disk nor the backend took them
+  public long getDroppedSampleCount() {
+    return droppedSamples.get();
+  }
+
+  public LatencyHistogram getFlushLatency() {
+    return flushLatency;
+  }
+
+  private void appendRecord(String junctionId, double latitude, double longitude, int density,
+      int greenLight, long timestamp, boolean emergency) {
+    byte[] payload;
+    try {
+      recordBuffer.reset();
+      recordOut.writeUTF(junctionId);
+      recordOut.writeDouble(latitude);
+      recordOut.writeDouble(longitude);
+      recordOut.writeInt(density);
+      recordOut.writeInt(greenLight);
+      recordOut.writeLong(timestamp);
+      recordOut.writeBoolean(emergency);
+      payload = recordBuffer.toByteArray();
+    } catch (IOException e) {
+      // Ids longer than writeUTF allows cannot be framed at all
+      queueDepth.decrementAndGet();
+      droppedSamples.incrementAndGet();
+      return;
+    }
+    try {
+      writeRecord(payload);
+    } catch (IOException first) {
+      // The segment may now end in a torn record; seal it so its intact records still go out
+      seal();
+      try {
+        writeRecord(payload);
+      } catch (IOException second) {
+        seal();
+        flushNext();
+        writeDirectly(payload);
+        return;
+      }
+    }
+
+    if (stopped) {
+      return;
+    }
+    if (currentCount >= maxBatchSize) {
+      seal();
+      flushNext();
+    } else if (timer == null) {
+      timer = executor.schedule(() -> {
+        timer = null;
+        seal();
+        flushNext();
+      }, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void writeRecord(byte[] payload) throws IOException {
+    if (segmentOut == null) {
+      openSegment();
+    }
+    crc.reset();
+    crc.update(payload, 0, payload.length);
+    segmentOut.writeInt(payload.length);
+    segmentOut.writeInt((int) crc.getValue());
+    segmentOut.write(payload);
+    // Hand the bytes to the OS so they survive a process death
+    segmentOut.flush();
+    currentCount++;
+  }
+
+  // Disk is unusable: send the sample on its own, without the durability of a segment
+  private void writeDirectly(byte[] payload) {
+    spoolFailures.incrementAndGet();
+    Map<String, Object> updates = new HashMap<>();
+    try {
+      addUpdate(payload, updates);
+    } catch (IOException e) {
+      queueDepth.decrementAndGet();
+      droppedSamples.incrementAndGet();
+      return;
+    }
+    target.write(updates, error -> executor.execute(() -> {
+      queueDepth.decrementAndGet();
+      if (error == null) {
+        flushedSamples.incrementAndGet();
+      } else {
+        failedFlushes.incrementAndGet();
+        droppedSamples.incrementAndGet();
+      }
+    }));
+  }
+
+  private void openSegment() throws IOException {
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    currentSegment = new File(directory, SEGMENT_PREFIX + (nextSequence++) + SEGMENT_SUFFIX);
+    segmentOut = new DataOutputStream(new FileOutputStream(currentSegment, true));
+    currentCount = 0;
+  }
+
+  private void seal() {
+    if (segmentOut == null) {
+      return;
+    }
+    try {
+      segmentOut.close();
+    } catch (IOException e) {
+      // The records already reached the file; a bad tail is dropped on replay
+    }
+    segmentOut = null;
+    if (currentCount > 0) {
+      sealedSegments.addLast(currentSegment);
+    } else {
+      currentSegment.delete();
+    }
+    currentSegment = null;
+    currentCount = 0;
+  }
+
+  private void flushNext() {
+    if (stopped || flushInFlight || sealedSegments.isEmpty()) {
+      return;
+    }
+    File segment = sealedSegments.peekFirst();
+    Map<String, Object> updates = new HashMap<>();
+    int samples = readSegment(segment, updates);
+    if (samples == 0) {
+      sealedSegments.pollFirst();
+      segment.delete();
+      flushNext();
+      return;
+    }
+
+    flushInFlight = true;
+    long start = System.nanoTime();
+    target.write(updates, error -> executor.execute(() -> {
+      flushInFlight = false;
+      if (error == null) {
+        flushLatency.recordNanos(System.nanoTime() - start);
+        sealedSegments.pollFirst();
+        segment.delete();
+        queueDepth.addAndGet(-samples);
+        flushedSamples.addAndGet(samples);
+        flushNext();
+      } else {
+        failedFlushes.incrementAndGet();
+        if (!stopped) {
+          retry = executor.schedule(() -> {
+            retry = null;
+            flushNext();
+          }, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+      }
+    }));
+  }
+
+  // Returns the number of intact records, adding their history paths to updates if non-null
+  private int readSegment(File segment, Map<String, Object> updates) {
+    int count = 0;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(segment)))) {
+      while (true) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length <= 0 || length > 1 << 16) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        if (updates != null) {
+          addUpdate(payload, updates);
+        }
+        count++;
+      }
+    } catch (EOFException e) {
+      // End of segment, possibly with a torn record
+    } catch (IOException e) {
+      failedFlushes.incrementAndGet();
+    }
+    return count;
+  }
+
+  private int countRecords(File segment) {
+    return readSegment(segment, null);
+  }
+
+  private static void addUpdate(byte[] payload, Map<String, Object> updates) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    String junctionId = in.readUTF();
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(TrafficJunctionDecoder.JUNCTION_ID, junctionId);
+    fields.put(TrafficJunctionDecoder.LATITUDE, in.readDouble());
+    fields.put(TrafficJunctionDecoder.LONGITUDE, in.readDouble());
+    fields.put(TrafficJunctionDecoder.VEHICLE_DENSITY, in.readInt());
+    fields.put(TrafficJunctionDecoder.GREEN_LIGHT_DURATION, in.readInt());
+    long timestamp = in.readLong();
+    fields.put(TrafficJunctionDecoder.TIMESTAMP, timestamp);
+    fields.put(TrafficJunctionDecoder.EMERGENCY_VEHICLE_PRESENT, in.readBoolean());
+    updates.put(junctionId + "/" + timestamp, fields);
+  }
+
+  private static long sequenceOf(File segment) {
+    String name = segment.getName();
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+          name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the fastest route between a fixed origin and destination up to date as edge weights
+ * change, using Lifelong Planning A*. After the first search, {@link #repair()} only revisits
+ * nodes whose cost-to-come the changed edges actually affect, so a density update far from
+ * the route costs next to nothing and one on the route costs about the size of the detour.
+ *
+ * <p>{@link #edgesIntoChanged} may be called from any thread, typically from a
+ * {@link TrafficEdgeWeights.Listener}; everything else belongs to one thread. The
+ * {@link Listener} hears about a repair only when the sequence of nodes changed.
+ */
+public class IncrementalRoutePlanner {
+  private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+  public interface Listener {
+    // Null when the destination became unreachable
+    void onRouteChanged(Route route);
+  }
+
+  private final RoadGraph graph;
+  private final EdgeWeights weights;
+  private final double[] g;
+  private final double[] rhs;
+  private final double[] heuristics;
+  private final int[] heuristicStamps;
+  private final NodeHeap open = new NodeHeap(1024);
+  private int stamp;
+  private int from = -1;
+  private int to = -1;
+  private Route route;
+  private Listener listener;
+  private int lastExpanded;
+  // Set by adopt: the route stands but there is no search state behind it yet
+  private boolean searchPending;
+
+  // Nodes whose incoming edges changed since the last repair, deduplicated by a flag
+  private final IntList changed = new IntList();
+  private final boolean[] changedFlags;
+
+  public IncrementalRoutePlanner(RoadGraph graph, EdgeWeights weights) {
+    this.graph = graph;
+    this.weights = weights;
+    int n = graph.getNodeCount();
+    g = new double[n];
+    rhs = new double[n];
+    heuristics = new double[n];
+    heuristicStamps = new int[n];
+    changedFlags = new boolean[n];
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Plans from scratch between two nodes and makes them the pair that later repairs keep. */
+  public Route plan(int from, int to) {
+    this.from = from;
+    this.to = to;
+    searchPending = false;
+    if (++stamp == 0) {
+      Arrays.fill(heuristicStamps, 0);
+      stamp = 1;
+    }
+    Arrays.fill(g, INFINITY);
+    Arrays.fill(rhs, INFINITY);
+    synchronized (changed) {
+      for (int i = 0; i < changed.size(); i++) {
+        changedFlags[changed.get(i)] = false;
+      }
+      changed.clear();
+    }
+    open.clear();
+    rhs[from] = 0;
+    open.push(from, heuristic(from), 0);
+    lastExpanded = 0;
+    computeShortestPath();
+    route = extractRoute();
+    return route;
+  }
+
+  public Route plan(double fromLat, double fromLon, double toLat, double toLon) {
+    int origin = graph.nearestNode(fromLat, fromLon);
+    int destination = graph.nearestNode(toLat, toLon);
+    return origin < 0 || destination < 0 ? null : plan(origin, destination);
+  }
+
+  /**
+   * Follows a route found elsewhere, e.g. one served from a {@link RouteCache}, without
+   * searching now. The first repair with changes to apply plans its endpoints from scratch.
+   */
+  public void adopt(Route route) {
+    from = route.getNode(0);
+    to = route.getNode(route.getNodeCount() - 1);
+    this.route = route;
+    searchPending = true;
+    lastExpanded = 0;
+  }
+
+  // Every edge entering the node changed travel time; safe from any thread
+  public void edgesIntoChanged(int node) {
+    synchronized (changed) {
+      if (!changedFlags[node]) {
+        changedFlags[node] = true;
+        changed.add(node);
+      }
+    }
+  }
+
+  public boolean hasPendingChanges() {
+    synchronized (changed) {
+      return !changed.isEmpty();
+    }
+  }
+
+  /**
+   * Applies the changes reported since the last call and returns whether the route's nodes
+   * changed, in which case the listener has been told.
+   */
+  public boolean repair() {
+    int[] nodes;
+    synchronized (changed) {
+      nodes = changed.toArray();
+      for (int node : nodes) {
+        changedFlags[node] = false;
+      }
+      changed.clear();
+    }
+    lastExpanded = 0;
+    if (from < 0 || nodes.length == 0) {
+      return false;
+    }
+    Route repaired;
+    if (searchPending) {
+      Route adopted = route;
+      repaired = plan(from, to);
+      route = adopted;
+    } else {
+      for (int node : nodes) {
+        updateVertex(node);
+      }
+      computeShortestPath();
+      repaired = extractRoute();
+    }
+    boolean same = route == null ? repaired == null
+        : repaired != null && Arrays.equals(route.getNodes(), repaired.getNodes());
+    route = repaired;
+    if (!same && listener != null) {
+      listener.onRouteChanged(repaired);
+    }
+    return !same;
+  }
+
+  public Route getRoute() {
+    return route;
+  }
+
+  // Nodes expanded by the last plan or repair
+  public int getLastExpandedCount() {
+    return lastExpanded;
+  }
+
+  private void computeShortestPath() {
+    while (!open.isEmpty()) {
+      int u = open.peekNode();
+      double k1 = open.peekKey();
+      double k2 = open.peekTie();
+      // Skip copies left behind by a later push or by the node becoming consistent
+      if (g[u] == rhs[u] || k1 != key1(u) || k2 != key2(u)) {
+        open.pop();
+        continue;
+      }
+      if (!less(k1, k2, key1(to), key2(to)) && rhs[to] == g[to]) {
+        break;
+      }
+      open.pop();
+      lastExpanded++;
+      if (g[u] > rhs[u]) {
+        g[u] = rhs[u];
+        for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+          int s = graph.getTarget(e);
+          double candidate = g[u] + weights.travelSeconds(e);
+          if (s != from && candidate < rhs[s]) {
+            rhs[s] = candidate;
+            enqueue(s);
+          }
+        }
+      } else {
+        g[u] = INFINITY;
+        updateVertex(u);
+        for (int e = graph.firstEdge(u); e < graph.endEdge(u); e++) {
+          updateVertex(graph.getTarget(e));
+        }
+      }
+    }
+  }
+
+  private void updateVertex(int node) {
+    if (node != from) {
+      double best = INFINITY;
+      for (int i = graph.firstInEdge(node); i < graph.endInEdge(node); i++) {
+        int e = graph.getInEdge(i);
+        double gSource = g[graph.getSource(e)];
+        if (gSource != INFINITY) {
+          best = Math.min(best, gSource + weights.travelSeconds(e));
+        }
+      }
+      rhs[node] = best;
+    }
+    enqueue(node);
+  }
+
+  private void enqueue(int node) {
+    if (g[node] != rhs[node]) {
+      open.push(node, key1(node), key2(node));
+    }
+  }
+
+  private double key1(int node) {
+    double k = Math.min(g[node], rhs[node]);
+    return k == INFINITY ? INFINITY : k + heuristic(node);
+  }
+
+  private double key2(int node) {
+    return Math.min(g[node], rhs[node]);
+  }
+
+  private double heuristic(int node) {
+    if (heuristicStamps[node] != stamp) {
+      heuristicStamps[node] = stamp;
+      heuristics[node] = graph.lowerBoundSeconds(node, graph.getLatitude(to),
+          graph.getLongitude(to));
+    }
+    return heuristics[node];
+  }
+
+  private static boolean less(double a1, double a2, double b1, double b2) {
+    return a1 < b1 || (a1 == b1 && a2 < b2);
+  }
+
+  // Walks back from the destination through the predecessor that explains its cost
+  private Route extractRoute() {
+    if (g[to] == INFINITY) {
+      return null;
+    }
+    IntList reversed = new IntList();
+    double meters = 0;
+    int node = to;
+    reversed.add(node);
+    while (node != from) {
+      int bestEdge = -1;
+      double best = INFINITY;
+      for (int i = graph.firstInEdge(node); i < graph.endInEdge(node); i++) {
+        int e = graph.getInEdge(i);
+        double cost = g[graph.getSource(e)] + weights.travelSeconds(e);
+        if (cost < best) {
+          best = cost;
+          bestEdge = e;
+        }
+      }
+      if (bestEdge < 0 || reversed.size() > graph.getNodeCount()) {
+        // Weights moved under us mid-walk; the next repair will settle them
+        return route;
+      }
+      meters += graph.getLengthMeters(bestEdge);
+      node = graph.getSource(bestEdge);
+      reversed.add(node);
+    }
+    int[] nodes = new int[reversed.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = reversed.get(nodes.length - 1 - i);
+    }
+    return new Route(graph, nodes, g[to], meters);
+  }
+}
@@ -0,0 +1,73 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, used to pass junction indices around without boxing.
+ */
+public final class IntList {
+  private int[] values;
+  private int size;
+
+  public IntList() {
+    this(16);
+  }
+
+  public IntList(int capacity) {
+    values = new int[Math.max(1, capacity)];
+  }
+
+  public void add(int value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  public int get(int position) {
+    return values[position];
+  }
+
+  public void set(int position, int value) {
+    values[position] = value;
+  }
+
+  // Moves the last element into position; returns the element that moved, or -1
+  public int removeSwap(int position) {
+    int last = values[--size];
+    if (position == size) {
+      return -1;
+    }
+    values[position] = last;
+    return last;
+  }
+
+  public void truncate(int newSize) {
+    size = newSize;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  public boolean contains(int value) {
+    for (int i = 0; i < size; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,111 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the live set of junctions in a {@link JunctionStateStore} and turns raw feed events
+ * into change notifications. Supports both the legacy full-snapshot path and the incremental
+ * child added/changed/removed path. Not thread-safe: feed it from a single thread (the
+ * Firebase callback thread).
+ */
+public class JunctionIngestor {
+  private final JunctionStateStore store;
+  private final Sink sink;
+
+  public interface Sink {
+    void onJunctionsChanged(List<TrafficJunction> changed);
+
+    void onJunctionRemoved(String junctionId);
+  }
+
+  public JunctionIngestor(Sink sink) {
+    this(new JunctionStateStore(), sink);
+  }
+
+  public JunctionIngestor(JunctionStateStore store, Sink sink) {
+    this.store = store;
+    this.sink = sink;
+  }
+
+  // Incremental path: a single child was added or changed
+  public void upsert(String key, TrafficJunction junction) {
+    if (junction == null) {
+      return;
+    }
+    // The child key is authoritative, the stored id field may be missing
+    junction.setJunctionId(key);
+    store.update(junction);
+    sink.onJunctionsChanged(Collections.singletonList(junction));
+  }
+
+  // Incremental path straight from the raw child map, no reflective bean mapping
+  public void upsertFields(String key, Map<String, Object> fields) {
+    int index = TrafficJunctionDecoder.decodeInto(store, key, fields);
+    if (index >= 0) {
+      sink.onJunctionsChanged(Collections.singletonList(store.toJunction(index)));
+    }
+  }
+
+  // Incremental path: a single child was removed
+  public void remove(String key) {
+    if (store.remove(store.indexOf(key))) {
+      sink.onJunctionRemoved(key);
+    }
+  }
+
+  // Full-snapshot path: the whole tree was re-read, every junction is reported as changed
+  public void replaceAll(Map<String, TrafficJunction> snapshot) {
+    List<String> removed = new ArrayList<>();
+    store.forEach(index -> {
+      if (snapshot.get(store.getJunctionId(index)) == null) {
+        removed.add(store.getJunctionId(index));
+      }
+    });
+    for (String key : removed) {
+      store.remove(store.indexOf(key));
+    }
+
+    List<TrafficJunction> changed = new ArrayList<>(snapshot.size());
+    for (Map.Entry<String, TrafficJunction> entry : snapshot.entrySet()) {
+      TrafficJunction junction = entry.getValue();
+      if (junction == null) {
+        continue;
+      }
+      junction.setJunctionId(entry.getKey());
+      store.update(junction);
+      changed.add(junction);
+    }
+
+    for (String key : removed) {
+      sink.onJunctionRemoved(key);
+    }
+    sink.onJunctionsChanged(changed);
+  }
+
+  public JunctionStateStore getStore() {
+    return store;
+  }
+
+  public TrafficJunction getJunction(String junctionId) {
+    int index = store.indexOf(junctionId);
+    return store.isPresent(index) ? store.toJunction(index) : null;
+  }
+
+  public List<TrafficJunction> getJunctions() {
+    List<TrafficJunction> junctions = new ArrayList<>(store.count());
+    store.forEach(index -> junctions.add(store.toJunction(index)));
+    return junctions;
+  }
+
+  public int size() {
+    return store.count();
+  }
+
+  public void clear() {
+    store.clear();
+  }
+}
@@ -0,0 +1,356 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Arrays;
+
+/**
+ * Columnar store for live junction state. Junction ids are interned to dense int indices
+ * and every field lives in a parallel primitive array, so updating or scanning junctions
+ * does not allocate. Columns grow in fixed-size chunks; existing chunks are never copied.
+ *
+ * <p>Single writer: all mutating calls must come from one thread. Readers on other threads
+ * are safe: a grown set of chunks and a rehashed id table are each published whole, and
+ * {@link #size()} is raised only after both, so any index a reader gets from
+ * {@link #indexOf}, {@link #size()}, {@link #forEach} or the spatial index can be read. Field
+ * values are not published together, so a reader may observe a junction half-way through an
+ * update, which is acceptable for rendering.
+ */
+public class JunctionStateStore {
+  private static final int CHUNK_SHIFT = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private volatile Table table = new Table(2 * CHUNK_SIZE);
+  private volatile Columns columns = new Columns(0);
+  // Written last when a junction is interned
+  private volatile int size;
+  private int presentCount;
+  private volatile int version;
+  private SpatialIndex spatialIndex;
+  private volatile Observer[] observers = new Observer[0];
+
+  public interface Visitor {
+    void visit(int index);
+  }
+
+  // Called on the writer thread after each mutation, for derived structures kept in step
+  public interface Observer {
+    void onJunctionUpdated(JunctionStateStore store, int index);
+
+    void onJunctionRemoved(JunctionStateStore store, int index);
+
+    void onCleared(JunctionStateStore store);
+  }
+
+  // Chunked field columns. A new chunk means new outer arrays sharing the existing chunks
+  private static final class Columns {
+    final String[][] ids;
+    final double[][] latitude;
+    final double[][] longitude;
+    final int[][] vehicleDensity;
+    final int[][] greenLightDuration;
+    final long[][] timestamp;
+    final long[][] emergencyBits;
+    final long[][] presentBits;
+
+    Columns(int chunks) {
+      ids = new String[chunks][];
+      latitude = new double[chunks][];
+      longitude = new double[chunks][];
+      vehicleDensity = new int[chunks][];
+      greenLightDuration = new int[chunks][];
+      timestamp = new long[chunks][];
+      emergencyBits = new long[chunks][];
+      presentBits = new long[chunks][];
+    }
+
+    Columns withChunk() {
+      int last = ids.length;
+      Columns grown = new Columns(last + 1);
+      System.arraycopy(ids, 0, grown.ids, 0, last);
+      System.arraycopy(latitude, 0, grown.latitude, 0, last);
+      System.arraycopy(longitude, 0, grown.longitude, 0, last);
+      System.arraycopy(vehicleDensity, 0, grown.vehicleDensity, 0, last);
+      System.arraycopy(greenLightDuration, 0, grown.greenLightDuration, 0, last);
+      System.arraycopy(timestamp, 0, grown.timestamp, 0, last);
+      System.arraycopy(emergencyBits, 0, grown.emergencyBits, 0, last);
+      System.arraycopy(presentBits, 0, grown.presentBits, 0, last);
+      grown.ids[last] = new String[CHUNK_SIZE];
+      grown.latitude[last] = new double[CHUNK_SIZE];
+      grown.longitude[last] = new double[CHUNK_SIZE];
+      grown.vehicleDensity[last] = new int[CHUNK_SIZE];
+      grown.greenLightDuration[last] = new int[CHUNK_SIZE];
+      grown.timestamp[last] = new long[CHUNK_SIZE];
+      grown.emergencyBits[last] = new long[CHUNK_SIZE / 64];
+      grown.presentBits[last] = new long[CHUNK_SIZE / 64];
+      return grown;
+    }
+  }
+
+  // Open-addressing id -> index table, slots hold index + 1 (0 means empty)
+  private static final class Table {
+    final String[] keys;
+    final int[] slots;
+
+    Table(int capacity) {
+      keys = new String[capacity];
+      slots = new int[capacity];
+    }
+  }
+
+  // Returns the index for the id, assigning a new one the first time the id is seen
+  public int intern(String junctionId) {
+    int index = indexOf(junctionId);
+    if (index >= 0) {
+      return index;
+    }
+    index = size;
+    Columns columns = this.columns;
+    if ((index >> CHUNK_SHIFT) >= columns.ids.length) {
+      columns = columns.withChunk();
+      this.columns = columns;
+    }
+    columns.ids[index >> CHUNK_SHIFT][index & CHUNK_MASK] = junctionId;
+    Table table = this.table;
+    if ((index + 1) * 2 > table.keys.length) {
+      table = rehash(table, table.keys.length * 2);
+      this.table = table;
+    }
+    insertSlot(table, junctionId, index);
+    size = index + 1;
+    return index;
+  }
+
+  public int indexOf(String junctionId) {
+    Table table = this.table;
+    int mask = table.keys.length - 1;
+    int slot = mix(junctionId.hashCode()) & mask;
+    while (true) {
+      String key = table.keys[slot];
+      if (key == null) {
+        return -1;
+      }
+      if (key.equals(junctionId)) {
+        int index = table.slots[slot] - 1;
+        // A slot being filled in is not there yet; size orders it after its chunk
+        return index < size ? index : -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public void update(int index, double lat, double lon, int density, int greenLight,
+      long time, boolean emergency) {
+    Columns columns = this.columns;
+    int chunk = index >> CHUNK_SHIFT;
+    int offset = index & CHUNK_MASK;
+    boolean present = getBit(columns.presentBits, index);
+    if (spatialIndex != null && (!present || columns.latitude[chunk][offset] != lat
+        || columns.longitude[chunk][offset] != lon)) {
+      spatialIndex.update(index, lat, lon);
+    }
+    columns.latitude[chunk][offset] = lat;
+    columns.longitude[chunk][offset] = lon;
+    columns.vehicleDensity[chunk][offset] = density;
+    columns.greenLightDuration[chunk][offset] = greenLight;
+    columns.timestamp[chunk][offset] = time;
+    setBit(columns.emergencyBits, index, emergency);
+    if (!present) {
+      setBit(columns.presentBits, index, true);
+      presentCount++;
+    }
+    version++;
+    for (Observer observer : observers) {
+      observer.onJunctionUpdated(this, index);
+    }
+  }
+
+  public int update(TrafficJunction junction) {
+    int index = intern(junction.getJunctionId());
+    update(index, junction.getLatitude(), junction.getLongitude(), junction.getVehicleDensity(),
+        junction.getGreenLightDuration(), junction.getTimestamp(),
+        junction.isEmergencyVehiclePresent());
+    return index;
+  }
+
+  // The index stays interned so the junction keeps its slot if it reappears
+  public boolean remove(int index) {
+    if (!isPresent(index)) {
+      return false;
+    }
+    Columns columns = this.columns;
+    setBit(columns.presentBits, index, false);
+    setBit(columns.emergencyBits, index, false);
+    if (spatialIndex != null) {
+      spatialIndex.remove(index);
+    }
+    presentCount--;
+    version++;
+    for (Observer observer : observers) {
+      observer.onJunctionRemoved(this, index);
+    }
+    return true;
+  }
+
+  public void clear() {
+    Columns columns = this.columns;
+    for (int chunk = 0; chunk < columns.presentBits.length; chunk++) {
+      Arrays.fill(columns.presentBits[chunk], 0L);
+      Arrays.fill(columns.emergencyBits[chunk], 0L);
+    }
+    if (spatialIndex != null) {
+      spatialIndex.clear();
+    }
+    presentCount = 0;
+    version++;
+    for (Observer observer : observers) {
+      observer.onCleared(this);
+    }
+  }
+
+  // Replays every present junction into the observer, then keeps it informed
+  public void addObserver(Observer observer) {
+    observers = Arrays.copyOf(observers, observers.length + 1);
+    observers[observers.length - 1] = observer;
+    forEach(index -> observer.onJunctionUpdated(this, index));
+  }
+
+  public void removeObserver(Observer observer) {
+    for (int i = 0; i < observers.length; i++) {
+      if (observers[i] == observer) {
+        Observer[] remaining = new Observer[observers.length - 1];
+        System.arraycopy(observers, 0, remaining, 0, i);
+        System.arraycopy(observers, i + 1, remaining, i, observers.length - i - 1);
+        observers = remaining;
+        return;
+      }
+    }
+  }
+
+  // Keeps the index in step with every present junction from now on; null detaches it
+  public void setSpatialIndex(SpatialIndex spatialIndex) {
+    this.spatialIndex = spatialIndex;
+    if (spatialIndex != null) {
+      spatialIndex.clear();
+      forEach(index -> spatialIndex.update(index, getLatitude(index), getLongitude(index)));
+    }
+  }
+
+  public SpatialIndex getSpatialIndex() {
+    return spatialIndex;
+  }
+
+  public void forEach(Visitor visitor) {
+    long[][] presentBits = columns.presentBits;
+    for (int chunk = 0; chunk < presentBits.length; chunk++) {
+      long[] words = presentBits[chunk];
+      for (int word = 0; word < words.length; word++) {
+        long bits = words[word];
+        while (bits != 0) {
+          int index = (chunk << CHUNK_SHIFT) + (word << 6) + Long.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+          visitor.visit(index);
+        }
+      }
+    }
+  }
+
+  // Highest assigned index + 1; indices below this may or may not be present
+  public int size() {
+    return size;
+  }
+
+  public int count() {
+    return presentCount;
+  }
+
+  // Bumped on every mutation, lets readers cheaply detect change
+  public int version() {
+    return version;
+  }
+
+  public boolean isPresent(int index) {
+    return index >= 0 && index < size && getBit(columns.presentBits, index);
+  }
+
+  public String getJunctionId(int index) {
+    return columns.ids[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public double getLatitude(int index) {
+    return columns.latitude[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public double getLongitude(int index) {
+    return columns.longitude[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public int getVehicleDensity(int index) {
+    return columns.vehicleDensity[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public int getGreenLightDuration(int index) {
+    return columns.greenLightDuration[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public long getTimestamp(int index) {
+    return columns.timestamp[index >> CHUNK_SHIFT][index & CHUNK_MASK];
+  }
+
+  public boolean isEmergencyVehiclePresent(int index) {
+    return getBit(columns.emergencyBits, index);
+  }
+
+  // Materialises a junction object for APIs that still need one
+  public TrafficJunction toJunction(int index) {
+    TrafficJunction junction = new TrafficJunction();
+    junction.setJunctionId(getJunctionId(index));
+    junction.setLatitude(getLatitude(index));
+    junction.setLongitude(getLongitude(index));
+    junction.setVehicleDensity(getVehicleDensity(index));
+    junction.setGreenLightDuration(getGreenLightDuration(index));
+    junction.setTimestamp(getTimestamp(index));
+    junction.setEmergencyVehiclePresent(isEmergencyVehiclePresent(index));
+    return junction;
+  }
+
+  // Builds the bigger table off to the side, so readers only ever see a complete one
+  private static Table rehash(Table table, int capacity) {
+    Table rehashed = new Table(capacity);
+    for (int i = 0; i < table.keys.length; i++) {
+      if (table.keys[i] != null) {
+        insertSlot(rehashed, table.keys[i], table.slots[i] - 1);
+      }
+    }
+    return rehashed;
+  }
+
+  // The index goes in before the key, so a reader that finds the key finds its index
+  private static void insertSlot(Table table, String key, int index) {
+    int mask = table.keys.length - 1;
+    int slot = mix(key.hashCode()) & mask;
+    while (table.keys[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    table.slots[slot] = index + 1;
+    table.keys[slot] = key;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean getBit(long[][] bits, int index) {
+    return (bits[index >> CHUNK_SHIFT][(index & CHUNK_MASK) >> 6] & (1L << index)) != 0;
+  }
+
+  private static void setBit(long[][] bits, int index, boolean value) {
+    long[] words = bits[index >> CHUNK_SHIFT];
+    int word = (index & CHUNK_MASK) >> 6;
+    if (value) {
+      words[word] |= 1L << index;
+    } else {
+      words[word] &= ~(1L << index);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Implicit 2-d tree over junction coordinates. Queries are O(sqrt N + k) with no per-cell
+ * tuning, but any change marks the tree dirty and the next query rebuilds it in
+ * O(N log N), so it suits registries that change far less often than they are queried.
+ */
+public class KdTreeIndex implements SpatialIndex {
+  private double[] latitudes = new double[0];
+  private double[] longitudes = new double[0];
+  private double[] cosLatitudes = new double[0];
+  private boolean[] present = new boolean[0];
+  private int size;
+
+  // Tree order: the median of tree[lo, hi) sits at (lo + hi) / 2, split on lat at even depths
+  private int[] tree = new int[0];
+  private boolean dirty;
+  // Lower bound on metres per degree of longitude across the indexed points
+  private double lonMetersPerDegree;
+
+  @Override
+  public synchronized void update(int index, double latitude, double longitude) {
+    if (index >= present.length) {
+      int grown = Math.max(index + 1, present.length * 2);
+      latitudes = Arrays.copyOf(latitudes, grown);
+      longitudes = Arrays.copyOf(longitudes, grown);
+      cosLatitudes = Arrays.copyOf(cosLatitudes, grown);
+      present = Arrays.copyOf(present, grown);
+    }
+    if (!present[index]) {
+      present[index] = true;
+      size++;
+    } else if (latitudes[index] == latitude && longitudes[index] == longitude) {
+      return;
+    }
+    latitudes[index] = latitude;
+    longitudes[index] = longitude;
+    cosLatitudes[index] = GeoMath.cosLatitude(latitude);
+    dirty = true;
+  }
+
+  @Override
+  public synchronized void remove(int index) {
+    if (index >= 0 && index < present.length && present[index]) {
+      present[index] = false;
+      size--;
+      dirty = true;
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    Arrays.fill(present, false);
+    size = 0;
+    dirty = true;
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public synchronized int queryBox(double minLat, double minLon, double maxLat, double maxLon,
+      IntList out) {
+    if (dirty) {
+      rebuild();
+    }
+    int start = out.size();
+    search(0, tree.length, 0, minLat, minLon, maxLat, maxLon, out);
+    return out.size() - start;
+  }
+
+  @Override
+  public synchronized int queryRadius(double latitude, double longitude, double radiusMeters,
+      IntList out) {
+    int start = out.size();
+    GeoMath.Proximity proximity = new GeoMath.Proximity(latitude, longitude, radiusMeters);
+    queryBox(proximity.getMinLat(), proximity.getMinLon(), proximity.getMaxLat(),
+        proximity.getMaxLon(), out);
+    int kept = start;
+    for (int i = start; i < out.size(); i++) {
+      int index = out.get(i);
+      if (proximity.contains(latitudes[index], longitudes[index], cosLatitudes[index])) {
+        out.set(kept++, index);
+      }
+    }
+    out.truncate(kept);
+    return kept - start;
+  }
+
+  @Override
+  public synchronized int queryNearest(double latitude, double longitude, int k, IntList out) {
+    if (dirty) {
+      rebuild();
+    }
+    NearestCollector nearest = new NearestCollector(Math.min(k, size));
+    if (k > 0) {
+      nearest(0, tree.length, 0, latitude, longitude,
+          Math.min(lonMetersPerDegree, GeoMath.METERS_PER_DEGREE
+              * GeoMath.cosLatitude(Math.min(89.9, Math.abs(latitude))) * 0.99), nearest);
+    }
+    int start = out.size();
+    nearest.drainSorted(out);
+    return out.size() - start;
+  }
+
+  private void nearest(int lo, int hi, int depth, double latitude, double longitude,
+      double lonMeters, NearestCollector nearest) {
+    if (lo >= hi) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    int index = tree[mid];
+    nearest.offer(index,
+        GeoMath.haversineMeters(latitude, longitude, latitudes[index], longitudes[index]));
+    boolean byLat = (depth & 1) == 0;
+    double delta = byLat ? latitude - latitudes[index] : longitude - longitudes[index];
+    double gapMeters = Math.abs(delta) * (byLat ? GeoMath.METERS_PER_DEGREE : lonMeters);
+    // Visit the side holding the query first, the other only if it can still beat the worst
+    if (delta < 0) {
+      nearest(lo, mid, depth + 1, latitude, longitude, lonMeters, nearest);
+      if (gapMeters <= nearest.worst()) {
+        nearest(mid + 1, hi, depth + 1, latitude, longitude, lonMeters, nearest);
+      }
+    } else {
+      nearest(mid + 1, hi, depth + 1, latitude, longitude, lonMeters, nearest);
+      if (gapMeters <= nearest.worst()) {
+        nearest(lo, mid, depth + 1, latitude, longitude, lonMeters, nearest);
+      }
+    }
+  }
+
+  private void search(int lo, int hi, int depth, double minLat, double minLon, double maxLat,
+      double maxLon, IntList out) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int index = tree[mid];
+      double lat = latitudes[index];
+      double lon = longitudes[index];
+      if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+        out.add(index);
+      }
+      double split = (depth & 1) == 0 ? lat : lon;
+      double min = (depth & 1) == 0 ? minLat : minLon;
+      double max = (depth & 1) == 0 ? maxLat : maxLon;
+      boolean left = min <= split;
+      boolean right = max >= split;
+      depth++;
+      if (left && right) {
+        search(lo, mid, depth, minLat, minLon, maxLat, maxLon, out);
+        lo = mid + 1;
+      } else if (left) {
+        hi = mid;
+      } else if (right) {
+        lo = mid + 1;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void rebuild() {
+    tree = new int[size];
+    int n = 0;
+    double maxAbsLat = 0;
+    for (int i = 0; i < present.length; i++) {
+      if (present[i]) {
+        tree[n++] = i;
+        maxAbsLat = Math.max(maxAbsLat, Math.abs(latitudes[i]));
+      }
+    }
+    lonMetersPerDegree = GeoMath.METERS_PER_DEGREE
+        * GeoMath.cosLatitude(Math.min(89.9, maxAbsLat)) * 0.99;
+    build(0, size, 0);
+    dirty = false;
+  }
+
+  private void build(int lo, int hi, int depth) {
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      select(lo, hi - 1, mid, (depth & 1) == 0 ? latitudes : longitudes);
+      build(lo, mid, depth + 1);
+      lo = mid + 1;
+      depth++;
+    }
+  }
+
+  // Quickselect: afterwards tree[k] holds the k-th smallest key and is partitioned around it
+  private void select(int lo, int hi, int k, double[] keys) {
+    while (hi > lo) {
+      double pivot = keys[tree[(lo + hi) >>> 1]];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (keys[tree[i]] < pivot) {
+          i++;
+        }
+        while (keys[tree[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int t = tree[i];
+          tree[i] = tree[j];
+          tree[j] = t;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package harish.project.maps.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets. Recording never
+ * allocates, so it is safe on hot delivery paths. Percentiles are reported as the upper
+ * bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+  private static final int BUCKETS = 40;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void recordNanos(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max;
+    while (micros > (max = maxMicros.get())) {
+      if (maxMicros.compareAndSet(max, micros)) {
+        break;
+      }
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public double getMeanMillis() {
+    long samples = count.get();
+    return samples == 0 ? 0 : totalMicros.get() / 1000.0 / samples;
+  }
+
+  public double getMaxMillis() {
+    return maxMicros.get() / 1000.0;
+  }
+
+  // e.g. getPercentileMillis(0.99)
+  public double getPercentileMillis(double percentile) {
+    long samples = count.get();
+    if (samples == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile * samples);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += buckets.get(bucket);
+      if (seen >= rank) {
+        return bucket == 0 ? 0.001 : Math.min((1L << bucket) / 1000.0, getMaxMillis());
+      }
+    }
+    return getMaxMillis();
+  }
+
+  public void reset() {
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      buckets.set(bucket, 0);
+    }
+    count.set(0);
+    totalMicros.set(0);
+    maxMicros.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+        getCount(), getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99),
+        getMaxMillis());
+  }
+}
@@ -0,0 +1,312 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent fan-out for {@link FirebaseService.TrafficDataListener}s. Every subscriber gets
+ * its own bounded queue and delivery thread, so a slow consumer only ever delays itself.
+ * Emergency transitions travel on a separate unbounded priority lane that is always drained
+ * before bulk density updates. Registration and publishing may happen from any thread.
+ */
+public class ListenerRegistry {
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  public enum OverflowPolicy {
+    // Discard the oldest queued update or removal to make room
+    DROP_OLDEST,
+    // Merge all queued updates into one latest-wins batch
+    CONFLATE
+  }
+
+  public Subscription register(FirebaseService.TrafficDataListener listener,
+      OverflowPolicy policy, int capacity) {
+    Subscription existing = find(listener);
+    if (existing != null) {
+      return existing;
+    }
+    Subscription subscription = new Subscription(listener, policy, capacity);
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  public boolean unregister(FirebaseService.TrafficDataListener listener) {
+    Subscription subscription = find(listener);
+    if (subscription == null || !subscriptions.remove(subscription)) {
+      return false;
+    }
+    subscription.close();
+    return true;
+  }
+
+  public Subscription find(FirebaseService.TrafficDataListener listener) {
+    for (Subscription subscription : subscriptions) {
+      if (subscription.listener == listener) {
+        return subscription;
+      }
+    }
+    return null;
+  }
+
+  public List<Subscription> getSubscriptions() {
+    return new ArrayList<>(subscriptions);
+  }
+
+  public int size() {
+    return subscriptions.size();
+  }
+
+  public boolean isEmpty() {
+    return subscriptions.isEmpty();
+  }
+
+  public void publishUpdate(List<TrafficJunction> junctions) {
+    for (Subscription subscription : subscriptions) {
+      subscription.enqueue(new Event(Event.UPDATE, junctions, null));
+    }
+  }
+
+  public void publishRemoval(String junctionId) {
+    for (Subscription subscription : subscriptions) {
+      subscription.enqueue(new Event(Event.REMOVAL, null, junctionId));
+    }
+  }
+
+  public void publishEmergency(TrafficJunction junction) {
+    publishPriority(Event.EMERGENCY, junction);
+  }
+
+  public void publishEmergencyCleared(TrafficJunction junction) {
+    publishPriority(Event.EMERGENCY_CLEARED, junction);
+  }
+
+  private void publishPriority(int kind, TrafficJunction junction) {
+    List<TrafficJunction> payload = new ArrayList<>(1);
+    payload.add(junction);
+    for (Subscription subscription : subscriptions) {
+      subscription.enqueue(new Event(kind, payload, null));
+    }
+  }
+
+  private static class Event {
+    static final int UPDATE = 0;
+    static final int REMOVAL = 1;
+    static final int EMERGENCY = 2;
+    static final int EMERGENCY_CLEARED = 3;
+
+    final int kind;
+    final List<TrafficJunction> junctions;
+    final String junctionId;
+    final long enqueuedNanos;
+
+    Event(int kind, List<TrafficJunction> junctions, String junctionId) {
+      this(kind, junctions, junctionId, System.nanoTime());
+    }
+
+    Event(int kind, List<TrafficJunction> junctions, String junctionId, long enqueuedNanos) {
+      this.kind = kind;
+      this.junctions = junctions;
+      this.junctionId = junctionId;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+
+    boolean isPriority() {
+      return kind == EMERGENCY || kind == EMERGENCY_CLEARED;
+    }
+  }
+
+  public static class Subscription {
+    private final FirebaseService.TrafficDataListener listener;
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final ExecutorService executor;
+    private final ArrayDeque<Event> queue = new ArrayDeque<>();
+    private final ArrayDeque<Event> priorityQueue = new ArrayDeque<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram priorityLatency = new LatencyHistogram();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private boolean draining;
+    private volatile boolean closed;
+
+    Subscription(FirebaseService.TrafficDataListener listener, OverflowPolicy policy,
+        int capacity) {
+      this.listener = listener;
+      this.policy = policy;
+      this.capacity = Math.max(1, capacity);
+      this.executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "traffic-listener-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+
+    public FirebaseService.TrafficDataListener getListener() {
+      return listener;
+    }
+
+    public OverflowPolicy getPolicy() {
+      return policy;
+    }
+
+    // Time from publish until the listener callback returned
+    public LatencyHistogram getDeliveryLatency() {
+      return latency;
+    }
+
+    // Same as above, for emergency events on the priority lane only
+    public LatencyHistogram getPriorityDeliveryLatency() {
+      return priorityLatency;
+    }
+
+    public long getDroppedCount() {
+      return dropped.get();
+    }
+
+    public long getConflatedCount() {
+      return conflated.get();
+    }
+
+    public long getFailureCount() {
+      return failures.get();
+    }
+
+    public int getQueueDepth() {
+      synchronized (queue) {
+        return queue.size() + priorityQueue.size();
+      }
+    }
+
+    void enqueueUpdate(List<TrafficJunction> junctions) {
+      enqueue(new Event(Event.UPDATE, junctions, null));
+    }
+
+    void enqueue(Event event) {
+      if (closed) {
+        return;
+      }
+      boolean startDrain;
+      synchronized (queue) {
+        if (event.isPriority()) {
+          priorityQueue.addLast(event);
+        } else {
+          if (queue.size() >= capacity) {
+            makeRoom();
+          }
+          queue.addLast(event);
+        }
+        startDrain = !draining;
+        draining = true;
+      }
+      if (startDrain) {
+        executor.execute(this::drain);
+      }
+    }
+
+    // Called with the queue lock held
+    private void makeRoom() {
+      if (policy == OverflowPolicy.CONFLATE) {
+        conflate();
+        if (queue.size() < capacity) {
+          return;
+        }
+      }
+      // Emergencies live on the priority lane and are never dropped
+      while (queue.size() >= capacity) {
+        queue.pollFirst();
+        dropped.incrementAndGet();
+      }
+    }
+
+    // Folds every queued update into a single latest-wins batch placed after the removals
+    private void conflate() {
+      Map<String, TrafficJunction> merged = new LinkedHashMap<>();
+      List<Event> kept = new ArrayList<>();
+      long oldestUpdate = Long.MAX_VALUE;
+      int updates = 0;
+      for (Event event : queue) {
+        if (event.kind == Event.UPDATE) {
+          updates++;
+          oldestUpdate = Math.min(oldestUpdate, event.enqueuedNanos);
+          for (TrafficJunction junction : event.junctions) {
+            merged.put(junction.getJunctionId(), junction);
+          }
+        } else {
+          merged.remove(event.junctionId);
+          kept.add(event);
+        }
+      }
+      if (updates <= 1) {
+        return;
+      }
+      conflated.addAndGet(updates - 1);
+      queue.clear();
+      queue.addAll(kept);
+      if (!merged.isEmpty()) {
+        queue.addLast(new Event(Event.UPDATE, new ArrayList<>(merged.values()), null,
+            oldestUpdate));
+      }
+    }
+
+    private void drain() {
+      while (true) {
+        Event event;
+        synchronized (queue) {
+          event = priorityQueue.pollFirst();
+          if (event == null) {
+            event = queue.pollFirst();
+          }
+          if (event == null || closed) {
+            draining = false;
+            return;
+          }
+        }
+        try {
+          switch (event.kind) {
+            case Event.UPDATE:
+              listener.onTrafficDataUpdated(event.junctions);
+              break;
+            case Event.REMOVAL:
+              listener.onTrafficJunctionRemoved(event.junctionId);
+              break;
+            case Event.EMERGENCY:
+              listener.onEmergencyVehicleDetected(event.junctions.get(0));
+              break;
+            default:
+              listener.onEmergencyVehicleCleared(event.junctions.get(0));
+              break;
+          }
+        } catch (RuntimeException e) {
+          // A failing listener must not take the delivery thread down
+          failures.incrementAndGet();
+        }
+        long elapsed = System.nanoTime() - event.enqueuedNanos;
+        latency.recordNanos(elapsed);
+        if (event.isPriority()) {
+          priorityLatency.recordNanos(elapsed);
+        }
+      }
+    }
+
+    void close() {
+      closed = true;
+      synchronized (queue) {
+        queue.clear();
+        priorityQueue.clear();
+      }
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the partitioned backend. Junctions published here are filed under
+ * their geohash partition and pushed to subscribers as the raw field maps Firebase would
+ * deliver, while counting the records and approximate JSON bytes each subscriber received.
+ * Any {@link TrafficDataSource} can drive it through {@link #publisher()}.
+ *
+ * <p>All work runs on the executor, which delivers callbacks asynchronously the way the
+ * Firebase client does; tests can pass {@code Runnable::run}.
+ */
+public class LocalPartitionFeed implements PartitionedTrafficDataSource.PartitionFeed {
+  private final int precision;
+  private final Executor executor;
+
+  // Only touched on the executor
+  private final Map<String, Map<String, Map<String, Object>>> partitions = new HashMap<>();
+  private final Map<String, String> partitionOf = new HashMap<>();
+  private final Map<String, List<Subscriber>> subscribers = new HashMap<>();
+
+  private final AtomicLong recordsDelivered = new AtomicLong();
+  private final AtomicLong bytesDelivered = new AtomicLong();
+
+  private static final class Subscriber {
+    final PartitionedTrafficDataSource.PartitionSink sink;
+    volatile boolean cancelled;
+
+    Subscriber(PartitionedTrafficDataSource.PartitionSink sink) {
+      this.sink = sink;
+    }
+  }
+
+  public LocalPartitionFeed(Executor executor) {
+    this(PartitionedTrafficDataSource.DEFAULT_PRECISION, executor);
+  }
+
+  public LocalPartitionFeed(int precision, Executor executor) {
+    this.precision = precision;
+    this.executor = executor;
+  }
+
+  public void publish(TrafficJunction junction) {
+    String junctionId = junction.getJunctionId();
+    Map<String, Object> fields = toFields(junction);
+    String partition = Geohash.encode(junction.getLatitude(), junction.getLongitude(), precision);
+    executor.execute(() -> {
+      String previous = partitionOf.put(junctionId, partition);
+      if (previous != null && !previous.equals(partition)) {
+        partitions.get(previous).remove(junctionId);
+        for (Subscriber subscriber : subscribersOf(previous)) {
+          subscriber.sink.onJunctionRemoved(junctionId);
+        }
+      }
+      Map<String, Map<String, Object>> junctions = partitions.get(partition);
+      if (junctions == null) {
+        junctions = new LinkedHashMap<>();
+        partitions.put(partition, junctions);
+      }
+      junctions.put(junctionId, fields);
+      deliver(subscribersOf(partition), junctionId, fields);
+      deliver(subscribersOf(PartitionedTrafficDataSource.ALL), junctionId, fields);
+    });
+  }
+
+  public void remove(String junctionId) {
+    executor.execute(() -> {
+      String partition = partitionOf.remove(junctionId);
+      if (partition == null) {
+        return;
+      }
+      partitions.get(partition).remove(junctionId);
+      for (Subscriber subscriber : subscribersOf(partition)) {
+        subscriber.sink.onJunctionRemoved(junctionId);
+      }
+      for (Subscriber subscriber : subscribersOf(PartitionedTrafficDataSource.ALL)) {
+        subscriber.sink.onJunctionRemoved(junctionId);
+      }
+    });
+  }
+
+  // Sink that publishes everything it receives, e.g. for a synthetic or replayed source
+  public TrafficDataSource.Sink publisher() {
+    return new TrafficDataSource.Sink() {
+      @Override
+      public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+        publish(junction);
+      }
+
+      @Override
+      public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+        publish(TrafficJunctionDecoder.decode(junctionId, fields));
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        remove(junctionId);
+      }
+
+      @Override
+      public void onSnapshot(Map<String, TrafficJunction> junctions) {
+        for (TrafficJunction junction : junctions.values()) {
+          publish(junction);
+        }
+      }
+
+      @Override
+      public void onError(String error) {
+        // Nothing to forward to; subscribers only see published junctions
+      }
+    };
+  }
+
+  @Override
+  public PartitionedTrafficDataSource.Subscription subscribe(String partition,
+      PartitionedTrafficDataSource.PartitionSink sink) {
+    Subscriber subscriber = new Subscriber(sink);
+    executor.execute(() -> {
+      if (subscriber.cancelled) {
+        return;
+      }
+      List<Subscriber> list = subscribers.get(partition);
+      if (list == null) {
+        list = new ArrayList<>();
+        subscribers.put(partition, list);
+      }
+      list.add(subscriber);
+      List<Subscriber> single = new ArrayList<>(1);
+      single.add(subscriber);
+      if (PartitionedTrafficDataSource.ALL.equals(partition)) {
+        for (Map<String, Map<String, Object>> junctions : partitions.values()) {
+          for (Map.Entry<String, Map<String, Object>> entry : junctions.entrySet()) {
+            deliver(single, entry.getKey(), entry.getValue());
+          }
+        }
+      } else {
+        Map<String, Map<String, Object>> junctions = partitions.get(partition);
+        if (junctions != null) {
+          for (Map.Entry<String, Map<String, Object>> entry : junctions.entrySet()) {
+            deliver(single, entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      if (!subscriber.cancelled) {
+        sink.onLoaded();
+      }
+    });
+    return () -> {
+      subscriber.cancelled = true;
+      executor.execute(() -> {
+        List<Subscriber> list = subscribers.get(partition);
+        if (list != null) {
+          list.remove(subscriber);
+        }
+      });
+    };
+  }
+
+  public long getRecordsDelivered() {
+    return recordsDelivered.get();
+  }
+
+  // Approximate JSON payload the Firebase client would have downloaded
+  public long getBytesDelivered() {
+    return bytesDelivered.get();
+  }
+
+  public void resetCounters() {
+    recordsDelivered.set(0);
+    bytesDelivered.set(0);
+  }
+
+  private List<Subscriber> subscribersOf(String partition) {
+    List<Subscriber> list = subscribers.get(partition);
+    return list != null ? list : new ArrayList<>(0);
+  }
+
+  private void deliver(List<Subscriber> targets, String junctionId, Map<String, Object> fields) {
+    for (Subscriber subscriber : targets) {
+      if (subscriber.cancelled) {
+        continue;
+      }
+      recordsDelivered.incrementAndGet();
+      bytesDelivered.addAndGet(jsonLength(junctionId, fields));
+      // Subscribers may keep the map, so each gets its own copy as from the network
+      subscriber.sink.onJunctionFieldsUpserted(junctionId, new HashMap<>(fields));
+    }
+  }
+
+  private static Map<String, Object> toFields(TrafficJunction junction) {
+    // Shaped like Firebase's raw child maps: whole numbers as Long
+    Map<String, Object> fields = new HashMap<>();
+    fields.put(TrafficJunctionDecoder.JUNCTION_ID, junction.getJunctionId());
+    fields.put(TrafficJunctionDecoder.LATITUDE, junction.getLatitude());
+    fields.put(TrafficJunctionDecoder.LONGITUDE, junction.getLongitude());
+    fields.put(TrafficJunctionDecoder.VEHICLE_DENSITY, (long) junction.getVehicleDensity());
+    fields.put(TrafficJunctionDecoder.GREEN_LIGHT_DURATION,
+        (long) junction.getGreenLightDuration());
+    fields.put(TrafficJunctionDecoder.TIMESTAMP, junction.getTimestamp());
+    fields.put(TrafficJunctionDecoder.EMERGENCY_VEHICLE_PRESENT,
+        junction.isEmergencyVehiclePresent());
+    return fields;
+  }
+
+  // {"<id>":{"<key>":<value>,...}}
+  static int jsonLength(String junctionId, Map<String, Object> fields) {
+    int length = junctionId.length() + 6;
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      Object value = field.getValue();
+      length += field.getKey().length() + 4 + String.valueOf(value).length()
+          + (value instanceof String ? 2 : 0);
+    }
+    return length;
+  }
+}
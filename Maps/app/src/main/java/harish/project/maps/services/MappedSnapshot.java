@@ -0,0 +1,405 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Startup snapshot of the junction registry and, if one was loaded, the road graph, laid out
+ * as fixed-width little-endian columns so that {@link #open} only maps the file and checks the
+ * header. Junction fields are read straight from the mapping; nothing is decoded until asked
+ * for, and the page cache rather than the heap holds the bytes.
+ *
+ * <pre>
+ * header   := magic:i32 version:i32 syncedUntil:i64 junctions:i32 nodes:i32 edges:i32
+ *             idBytes:i32, padded to 64 bytes
+ * registry := lat:f64[J] lon:f64[J] timestamp:i64[J] density:i32[J] greenLight:i32[J]
+ *             node:i32[J] idOffset:i32[J+1] flags:u8[J] id:utf8[idBytes]
+ * graph    := lat:f64[N] lon:f64[N] edgeStart:i32[N+1] target:i32[E] length:f32[E]
+ *             speed:f32[E]
+ * </pre>
+ *
+ * Every column starts on an 8-byte boundary. {@code node} is the road graph node a junction is
+ * snapped to, or -1. {@code syncedUntil} is the newest junction timestamp, from which a delta
+ * sync can pick up.
+ */
+public final class MappedSnapshot {
+  public static final int MAGIC = 0x534E4150;
+  public static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+  private static final int FLAG_EMERGENCY = 1;
+
+  private final ByteBuffer buffer;
+  private final Layout layout;
+  private final long syncedUntil;
+
+  // Column offsets, derived from the counts alone
+  private static final class Layout {
+    final int junctions;
+    final int nodes;
+    final int edges;
+    final int idBytes;
+    final int latitudes;
+    final int longitudes;
+    final int timestamps;
+    final int densities;
+    final int greenLights;
+    final int junctionNodes;
+    final int idOffsets;
+    final int flags;
+    final int ids;
+    final int nodeLatitudes;
+    final int nodeLongitudes;
+    final int edgeStart;
+    final int targets;
+    final int lengths;
+    final int speeds;
+    final long end;
+
+    Layout(int junctions, int nodes, int edges, int idBytes) {
+      this.junctions = junctions;
+      this.nodes = nodes;
+      this.edges = edges;
+      this.idBytes = idBytes;
+      long at = HEADER_BYTES;
+      latitudes = (int) at;
+      at = align(at + 8L * junctions);
+      longitudes = (int) at;
+      at = align(at + 8L * junctions);
+      timestamps = (int) at;
+      at = align(at + 8L * junctions);
+      densities = (int) at;
+      at = align(at + 4L * junctions);
+      greenLights = (int) at;
+      at = align(at + 4L * junctions);
+      junctionNodes = (int) at;
+      at = align(at + 4L * junctions);
+      idOffsets = (int) at;
+      at = align(at + 4L * (junctions + 1));
+      flags = (int) at;
+      at = align(at + junctions);
+      ids = (int) at;
+      at = align(at + idBytes);
+      nodeLatitudes = (int) at;
+      at = align(at + 8L * nodes);
+      nodeLongitudes = (int) at;
+      at = align(at + 8L * nodes);
+      edgeStart = (int) at;
+      at = align(at + 4L * (nodes + 1));
+      targets = (int) at;
+      at = align(at + 4L * edges);
+      lengths = (int) at;
+      at = align(at + 4L * edges);
+      speeds = (int) at;
+      at = align(at + 4L * edges);
+      if (at > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Snapshot too large: " + at + " bytes");
+      }
+      end = at;
+    }
+
+    private static long align(long offset) {
+      return (offset + 7) & ~7L;
+    }
+  }
+
+  private MappedSnapshot(ByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IllegalArgumentException("Not a snapshot");
+    }
+    int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported snapshot version " + version);
+    }
+    syncedUntil = buffer.getLong(8);
+    int junctions = buffer.getInt(16);
+    int nodes = buffer.getInt(20);
+    int edges = buffer.getInt(24);
+    int idBytes = buffer.getInt(28);
+    if (junctions < 0 || nodes < 0 || edges < 0 || idBytes < 0) {
+      throw new IllegalArgumentException("Corrupt snapshot header");
+    }
+    layout = new Layout(junctions, nodes, edges, idBytes);
+    if (layout.end > buffer.capacity()) {
+      throw new IllegalArgumentException("Truncated snapshot: " + buffer.capacity() + " of "
+          + layout.end + " bytes");
+    }
+  }
+
+  /** Maps the file read-only; the mapping stays valid after the file is replaced. */
+  public static MappedSnapshot open(File file) throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel channel = in.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return wrap(mapped);
+    }
+  }
+
+  public static MappedSnapshot wrap(ByteBuffer buffer) {
+    return new MappedSnapshot(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Writes the present junctions and, if graph is non-null, the graph. The file is replaced
+   * atomically, so a reader never maps a half-written snapshot.
+   */
+  public static void write(File file, JunctionStateStore store, RoadGraph graph)
+      throws IOException {
+    write(file, encode(store, graph));
+  }
+
+  // For bytes encoded earlier, e.g. captured before the store was cleared
+  public static void write(File file, ByteBuffer bytes) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      while (bytes.hasRemaining()) {
+        out.getChannel().write(bytes);
+      }
+      out.getFD().sync();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Cannot replace " + file);
+    }
+  }
+
+  /** Present junctions copied out of a store, so encoding can run off the store's lock. */
+  public static final class Capture {
+    final String[] ids;
+    final double[] latitudes;
+    final double[] longitudes;
+    final long[] timestamps;
+    final int[] densities;
+    final int[] greenLights;
+    final boolean[] emergencies;
+
+    Capture(int junctions) {
+      ids = new String[junctions];
+      latitudes = new double[junctions];
+      longitudes = new double[junctions];
+      timestamps = new long[junctions];
+      densities = new int[junctions];
+      greenLights = new int[junctions];
+      emergencies = new boolean[junctions];
+    }
+
+    public int size() {
+      return ids.length;
+    }
+  }
+
+  public static Capture capture(JunctionStateStore store) {
+    Capture capture = new Capture(store.count());
+    int[] next = new int[1];
+    store.forEach(index -> {
+      int j = next[0];
+      if (j < capture.ids.length) {
+        capture.ids[j] = store.getJunctionId(index);
+        capture.latitudes[j] = store.getLatitude(index);
+        capture.longitudes[j] = store.getLongitude(index);
+        capture.timestamps[j] = store.getTimestamp(index);
+        capture.densities[j] = store.getVehicleDensity(index);
+        capture.greenLights[j] = store.getGreenLightDuration(index);
+        capture.emergencies[j] = store.isEmergencyVehiclePresent(index);
+        next[0]++;
+      }
+    });
+    return capture;
+  }
+
+  public static ByteBuffer encode(JunctionStateStore store, RoadGraph graph) {
+    return encode(capture(store), graph);
+  }
+
+  // Snaps every junction to the graph, so callers holding a lock capture first
+  public static ByteBuffer encode(Capture capture, RoadGraph graph) {
+    int junctions = capture.size();
+    byte[][] ids = new byte[junctions][];
+    int idBytes = 0;
+    for (int j = 0; j < junctions; j++) {
+      ids[j] = capture.ids[j].getBytes(StandardCharsets.UTF_8);
+      idBytes += ids[j].length;
+    }
+    int nodes = graph == null ? 0 : graph.getNodeCount();
+    int edges = graph == null ? 0 : graph.getEdgeCount();
+    Layout layout = new Layout(junctions, nodes, edges, idBytes);
+    ByteBuffer out = ByteBuffer.allocate((int) layout.end).order(ByteOrder.LITTLE_ENDIAN);
+
+    long syncedUntil = 0;
+    int idAt = 0;
+    for (int j = 0; j < junctions; j++) {
+      double lat = capture.latitudes[j];
+      double lon = capture.longitudes[j];
+      long timestamp = capture.timestamps[j];
+      syncedUntil = Math.max(syncedUntil, timestamp);
+      out.putDouble(layout.latitudes + 8 * j, lat);
+      out.putDouble(layout.longitudes + 8 * j, lon);
+      out.putLong(layout.timestamps + 8 * j, timestamp);
+      out.putInt(layout.densities + 4 * j, capture.densities[j]);
+      out.putInt(layout.greenLights + 4 * j, capture.greenLights[j]);
+      out.putInt(layout.junctionNodes + 4 * j, graph == null ? -1 : snap(graph, lat, lon));
+      out.putInt(layout.idOffsets + 4 * j, idAt);
+      out.put(layout.flags + j, (byte) (capture.emergencies[j] ? FLAG_EMERGENCY : 0));
+      for (byte b : ids[j]) {
+        out.put(layout.ids + idAt++, b);
+      }
+    }
+    out.putInt(layout.idOffsets + 4 * junctions, idAt);
+
+    for (int n = 0; n < nodes; n++) {
+      out.putDouble(layout.nodeLatitudes + 8 * n, graph.getLatitude(n));
+      out.putDouble(layout.nodeLongitudes + 8 * n, graph.getLongitude(n));
+      out.putInt(layout.edgeStart + 4 * n, graph.firstEdge(n));
+    }
+    out.putInt(layout.edgeStart + 4 * nodes, edges);
+    for (int e = 0; e < edges; e++) {
+      out.putInt(layout.targets + 4 * e, graph.getTarget(e));
+      out.putFloat(layout.lengths + 4 * e, graph.getLengthMeters(e));
+      out.putFloat(layout.speeds + 4 * e, graph.getSpeed(e));
+    }
+
+    out.putInt(0, MAGIC);
+    out.putInt(4, VERSION);
+    out.putLong(8, syncedUntil);
+    out.putInt(16, junctions);
+    out.putInt(20, nodes);
+    out.putInt(24, edges);
+    out.putInt(28, idBytes);
+    return out;
+  }
+
+  // Newest junction timestamp in the snapshot; changes after it still need syncing
+  public long getSyncedUntil() {
+    return syncedUntil;
+  }
+
+  /**
+   * Where a delta sync has to start so that it also fetches every junction flagged with an
+   * emergency. Those flags may be long stale, so they are never restored from the snapshot;
+   * the live source re-sends the ones that still hold.
+   */
+  public long getResyncFrom() {
+    long from = syncedUntil;
+    for (int i = 0; i < layout.junctions; i++) {
+      if (isEmergencyVehiclePresent(i)) {
+        from = Math.min(from, getTimestamp(i));
+      }
+    }
+    return from;
+  }
+
+  public int getJunctionCount() {
+    return layout.junctions;
+  }
+
+  public String getJunctionId(int index) {
+    int from = buffer.getInt(layout.idOffsets + 4 * index);
+    int to = buffer.getInt(layout.idOffsets + 4 * index + 4);
+    byte[] bytes = new byte[to - from];
+    column(layout.ids + from).get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public double getLatitude(int index) {
+    return buffer.getDouble(layout.latitudes + 8 * index);
+  }
+
+  public double getLongitude(int index) {
+    return buffer.getDouble(layout.longitudes + 8 * index);
+  }
+
+  public long getTimestamp(int index) {
+    return buffer.getLong(layout.timestamps + 8 * index);
+  }
+
+  public int getVehicleDensity(int index) {
+    return buffer.getInt(layout.densities + 4 * index);
+  }
+
+  public int getGreenLightDuration(int index) {
+    return buffer.getInt(layout.greenLights + 4 * index);
+  }
+
+  public boolean isEmergencyVehiclePresent(int index) {
+    return (buffer.get(layout.flags + index) & FLAG_EMERGENCY) != 0;
+  }
+
+  // Road graph node the junction was snapped to when the snapshot was written, or -1
+  public int getJunctionNode(int index) {
+    return buffer.getInt(layout.junctionNodes + 4 * index);
+  }
+
+  public TrafficJunction toJunction(int index) {
+    TrafficJunction junction = new TrafficJunction();
+    junction.setJunctionId(getJunctionId(index));
+    junction.setLatitude(getLatitude(index));
+    junction.setLongitude(getLongitude(index));
+    junction.setVehicleDensity(getVehicleDensity(index));
+    junction.setGreenLightDuration(getGreenLightDuration(index));
+    junction.setTimestamp(getTimestamp(index));
+    junction.setEmergencyVehiclePresent(isEmergencyVehiclePresent(index));
+    return junction;
+  }
+
+  public boolean hasRoadGraph() {
+    return layout.nodes > 0;
+  }
+
+  /**
+   * Copies the graph columns into a {@link RoadGraph}. Searches index the arrays in their
+   * inner loops, so the graph lives on the heap, but each column is one bulk copy.
+   */
+  public RoadGraph toRoadGraph() {
+    int nodes = layout.nodes;
+    int edges = layout.edges;
+    double[] latitudes = new double[nodes];
+    double[] longitudes = new double[nodes];
+    int[] edgeStart = new int[nodes + 1];
+    int[] targets = new int[edges];
+    float[] lengths = new float[edges];
+    float[] speeds = new float[edges];
+    column(layout.nodeLatitudes).asDoubleBuffer().get(latitudes);
+    column(layout.nodeLongitudes).asDoubleBuffer().get(longitudes);
+    column(layout.edgeStart).asIntBuffer().get(edgeStart);
+    column(layout.targets).asIntBuffer().get(targets);
+    column(layout.lengths).asFloatBuffer().get(lengths);
+    column(layout.speeds).asFloatBuffer().get(speeds);
+    if (edgeStart[0] != 0 || edgeStart[nodes] != edges) {
+      throw new IllegalArgumentException("Corrupt road graph offsets");
+    }
+    for (int n = 0; n < nodes; n++) {
+      if (edgeStart[n + 1] < edgeStart[n]) {
+        throw new IllegalArgumentException("Corrupt road graph offsets at node " + n);
+      }
+    }
+    for (int e = 0; e < edges; e++) {
+      if (targets[e] < 0 || targets[e] >= nodes) {
+        throw new IllegalArgumentException("Edge " + e + " targets unknown node " + targets[e]);
+      }
+    }
+    return new RoadGraph(latitudes, longitudes, edgeStart, targets, lengths, speeds);
+  }
+
+  private ByteBuffer column(int offset) {
+    ByteBuffer column = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    column.position(offset);
+    return column.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int snap(RoadGraph graph, double lat, double lon) {
+    int node = graph.nearestNode(lat, lon);
+    if (node < 0 || GeoMath.haversineMeters(lat, lon, graph.getLatitude(node),
+        graph.getLongitude(node)) > TrafficEdgeWeights.SNAP_RADIUS_M) {
+      return -1;
+    }
+    return node;
+  }
+}
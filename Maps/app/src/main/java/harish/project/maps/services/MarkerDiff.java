@@ -0,0 +1,245 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Works out, off the main thread, which junction markers have to be added, moved, recoloured
+ * or removed to bring the map in line with the store and the current viewport. It remembers
+ * what it last asked the map to show, so an unchanged junction costs nothing on the UI thread.
+ *
+ * <p>Not thread-safe: {@link #plan} must not run again until the previous {@link Plan} has been
+ * applied, which also lets the plan buffers be reused.
+ */
+public class MarkerDiff {
+  public static final byte ADD = 0;
+  public static final byte MOVE = 1;
+  public static final byte RECOLOR = 2;
+  public static final byte REMOVE = 3;
+
+  public interface Styler {
+    int colorOf(JunctionStateStore store, int index);
+  }
+
+  /** Operations to apply in order. Fields for an operation are only meaningful for its kind. */
+  public static final class Plan {
+    private byte[] kinds = new byte[64];
+    private int[] indices = new int[64];
+    private int[] colors = new int[64];
+    private double[] latitudes = new double[64];
+    private double[] longitudes = new double[64];
+    private double[] radii = new double[64];
+    private int size;
+
+    public int size() {
+      return size;
+    }
+
+    public byte getKind(int op) {
+      return kinds[op];
+    }
+
+    public int getIndex(int op) {
+      return indices[op];
+    }
+
+    public int getColor(int op) {
+      return colors[op];
+    }
+
+    public double getLatitude(int op) {
+      return latitudes[op];
+    }
+
+    public double getLongitude(int op) {
+      return longitudes[op];
+    }
+
+    // Circle radius in metres, or 0 to let the renderer pick its default
+    public double getRadius(int op) {
+      return radii[op];
+    }
+
+    void add(byte kind, int index, int color, double latitude, double longitude) {
+      add(kind, index, color, latitude, longitude, 0);
+    }
+
+    void add(byte kind, int index, int color, double latitude, double longitude,
+        double radius) {
+      if (size == kinds.length) {
+        int grown = size * 2;
+        kinds = Arrays.copyOf(kinds, grown);
+        indices = Arrays.copyOf(indices, grown);
+        colors = Arrays.copyOf(colors, grown);
+        latitudes = Arrays.copyOf(latitudes, grown);
+        longitudes = Arrays.copyOf(longitudes, grown);
+        radii = Arrays.copyOf(radii, grown);
+      }
+      kinds[size] = kind;
+      indices[size] = index;
+      colors[size] = color;
+      latitudes[size] = latitude;
+      longitudes[size] = longitude;
+      radii[size] = radius;
+      size++;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+
+  private final Styler styler;
+  private final Plan plan = new Plan();
+  private final IntList visible = new IntList();
+
+  // What the map currently shows, by store index
+  private final IntList rendered = new IntList();
+  private int[] renderedSlot = new int[0];
+  private int[] renderedColor = new int[0];
+  private double[] renderedLat = new double[0];
+  private double[] renderedLon = new double[0];
+
+  private int lastVersion = -1;
+  private double minLat;
+  private double minLon;
+  private double maxLat;
+  private double maxLon;
+  private boolean hasViewport;
+  private boolean enabled = true;
+
+  public MarkerDiff(Styler styler) {
+    this.styler = styler;
+  }
+
+  // Only junctions inside the box are shown; without a viewport every junction is
+  public void setViewport(double minLat, double minLon, double maxLat, double maxLon) {
+    if (hasViewport && this.minLat == minLat && this.minLon == minLon
+        && this.maxLat == maxLat && this.maxLon == maxLon) {
+      return;
+    }
+    this.minLat = minLat;
+    this.minLon = minLon;
+    this.maxLat = maxLat;
+    this.maxLon = maxLon;
+    hasViewport = true;
+    lastVersion = -1;
+  }
+
+  // While disabled, e.g. when clusters are drawn instead, the next plan removes every marker
+  public void setEnabled(boolean enabled) {
+    if (this.enabled != enabled) {
+      this.enabled = enabled;
+      lastVersion = -1;
+    }
+  }
+
+  // Forces the next plan to re-check everything, e.g. after the styling rules changed
+  public void invalidate() {
+    lastVersion = -1;
+  }
+
+  public int getRenderedCount() {
+    return rendered.size();
+  }
+
+  /**
+   * Returns the operations needed since the last plan; empty when neither the store nor the
+   * viewport changed.
+   */
+  public Plan plan(JunctionStateStore store) {
+    plan.clear();
+    int version = store.version();
+    if (version == lastVersion) {
+      return plan;
+    }
+    lastVersion = version;
+
+    // Drop markers whose junction vanished or left the viewport
+    for (int i = rendered.size() - 1; i >= 0; i--) {
+      int index = rendered.get(i);
+      if (!store.isPresent(index) || !inViewport(store.getLatitude(index),
+          store.getLongitude(index))) {
+        plan.add(REMOVE, index, 0, 0, 0);
+        unrender(index);
+      }
+    }
+
+    visible.clear();
+    SpatialIndex spatialIndex = store.getSpatialIndex();
+    if (!enabled) {
+      return plan;
+    } else if (hasViewport && spatialIndex != null) {
+      spatialIndex.queryBox(minLat, minLon, maxLat, maxLon, visible);
+    } else {
+      for (int index = 0; index < store.size(); index++) {
+        if (store.isPresent(index)
+            && inViewport(store.getLatitude(index), store.getLongitude(index))) {
+          visible.add(index);
+        }
+      }
+    }
+
+    for (int i = 0; i < visible.size(); i++) {
+      int index = visible.get(i);
+      if (!store.isPresent(index)) {
+        continue;
+      }
+      // Junctions interned since the plan started can sit past the arrays
+      ensureCapacity(index + 1);
+      double lat = store.getLatitude(index);
+      double lon = store.getLongitude(index);
+      int color = styler.colorOf(store, index);
+      if (renderedSlot[index] < 0) {
+        plan.add(ADD, index, color, lat, lon);
+        renderedSlot[index] = rendered.size();
+        rendered.add(index);
+      } else {
+        if (renderedLat[index] != lat || renderedLon[index] != lon) {
+          plan.add(MOVE, index, color, lat, lon);
+        }
+        if (renderedColor[index] != color) {
+          plan.add(RECOLOR, index, color, lat, lon);
+        }
+      }
+      renderedColor[index] = color;
+      renderedLat[index] = lat;
+      renderedLon[index] = lon;
+    }
+    return plan;
+  }
+
+  // Forgets everything rendered; the caller clears the map itself
+  public void reset() {
+    for (int i = 0; i < rendered.size(); i++) {
+      renderedSlot[rendered.get(i)] = -1;
+    }
+    rendered.clear();
+    lastVersion = -1;
+  }
+
+  private boolean inViewport(double lat, double lon) {
+    return enabled && (!hasViewport
+        || (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon));
+  }
+
+  private void unrender(int index) {
+    int moved = rendered.removeSwap(renderedSlot[index]);
+    if (moved >= 0) {
+      renderedSlot[moved] = renderedSlot[index];
+    }
+    renderedSlot[index] = -1;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= renderedSlot.length) {
+      return;
+    }
+    int old = renderedSlot.length;
+    int grown = Math.max(capacity, old * 2);
+    renderedSlot = Arrays.copyOf(renderedSlot, grown);
+    Arrays.fill(renderedSlot, old, grown, -1);
+    renderedColor = Arrays.copyOf(renderedColor, grown);
+    renderedLat = Arrays.copyOf(renderedLat, grown);
+    renderedLon = Arrays.copyOf(renderedLon, grown);
+  }
+}
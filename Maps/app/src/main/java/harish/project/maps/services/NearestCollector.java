@@ -0,0 +1,89 @@
+package harish.project.maps.services;
+
+/**
+ * Keeps the k closest indices seen so far in a max-heap keyed by distance.
+ */
+final class NearestCollector {
+  private final int k;
+  private final double[] distances;
+  private final int[] indices;
+  private int size;
+
+  NearestCollector(int k) {
+    this.k = k;
+    distances = new double[Math.max(1, k)];
+    indices = new int[Math.max(1, k)];
+  }
+
+  void offer(int index, double distance) {
+    if (k == 0) {
+      return;
+    }
+    if (size < k) {
+      int slot = size++;
+      while (slot > 0) {
+        int parent = (slot - 1) >> 1;
+        if (distances[parent] >= distance) {
+          break;
+        }
+        distances[slot] = distances[parent];
+        indices[slot] = indices[parent];
+        slot = parent;
+      }
+      distances[slot] = distance;
+      indices[slot] = index;
+    } else if (distance < distances[0]) {
+      siftDown(index, distance);
+    }
+  }
+
+  boolean isFull() {
+    return size == k;
+  }
+
+  // Distance a candidate has to beat to get in
+  double worst() {
+    return size < k ? Double.POSITIVE_INFINITY : distances[0];
+  }
+
+  int size() {
+    return size;
+  }
+
+  // Appends the collected indices to out, nearest first, and empties the collector
+  void drainSorted(IntList out) {
+    int start = out.size();
+    int count = size;
+    for (int i = 0; i < count; i++) {
+      out.add(0);
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      out.set(start + i, indices[0]);
+      size--;
+      if (size > 0) {
+        siftDown(indices[size], distances[size]);
+      }
+    }
+  }
+
+  private void siftDown(int index, double distance) {
+    int slot = 0;
+    while (true) {
+      int child = 2 * slot + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && distances[child + 1] > distances[child]) {
+        child++;
+      }
+      if (distances[child] <= distance) {
+        break;
+      }
+      distances[slot] = distances[child];
+      indices[slot] = indices[child];
+      slot = child;
+    }
+    distances[slot] = distance;
+    indices[slot] = index;
+  }
+}
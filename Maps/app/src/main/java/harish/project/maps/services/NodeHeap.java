@@ -0,0 +1,105 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of graph nodes keyed by a double, with an optional second key to break ties.
+ * A node may be pushed again with a lower key instead of decreasing it in place; callers skip
+ * the stale copies when they surface.
+ */
+final class NodeHeap {
+  private double[] keys;
+  private double[] ties;
+  private int[] nodes;
+  private int size;
+
+  NodeHeap(int capacity) {
+    keys = new double[Math.max(1, capacity)];
+    ties = new double[Math.max(1, capacity)];
+    nodes = new int[Math.max(1, capacity)];
+  }
+
+  void push(int node, double key) {
+    push(node, key, 0);
+  }
+
+  void push(int node, double key, double tie) {
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      ties = Arrays.copyOf(ties, size * 2);
+      nodes = Arrays.copyOf(nodes, size * 2);
+    }
+    int slot = size++;
+    while (slot > 0) {
+      int parent = (slot - 1) >> 1;
+      if (!less(key, tie, keys[parent], ties[parent])) {
+        break;
+      }
+      keys[slot] = keys[parent];
+      ties[slot] = ties[parent];
+      nodes[slot] = nodes[parent];
+      slot = parent;
+    }
+    keys[slot] = key;
+    ties[slot] = tie;
+    nodes[slot] = node;
+  }
+
+  double peekKey() {
+    return keys[0];
+  }
+
+  double peekTie() {
+    return ties[0];
+  }
+
+  int peekNode() {
+    return nodes[0];
+  }
+
+  // Removes the minimum and returns its node
+  int pop() {
+    int top = nodes[0];
+    size--;
+    if (size > 0) {
+      double key = keys[size];
+      double tie = ties[size];
+      int node = nodes[size];
+      int slot = 0;
+      int half = size >> 1;
+      while (slot < half) {
+        int child = 2 * slot + 1;
+        if (child + 1 < size && less(keys[child + 1], ties[child + 1], keys[child], ties[child])) {
+          child++;
+        }
+        if (!less(keys[child], ties[child], key, tie)) {
+          break;
+        }
+        keys[slot] = keys[child];
+        ties[slot] = ties[child];
+        nodes[slot] = nodes[child];
+        slot = child;
+      }
+      keys[slot] = key;
+      ties[slot] = tie;
+      nodes[slot] = node;
+    }
+    return top;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  private static boolean less(double key, double tie, double otherKey, double otherTie) {
+    return key < otherKey || (key == otherKey && tie < otherTie);
+  }
+}
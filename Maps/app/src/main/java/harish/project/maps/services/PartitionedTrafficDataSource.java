@@ -0,0 +1,259 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Subscribes only to the geohash partitions covering the viewport plus a margin, instead of
+ * every junction in the city. {@link #setViewport} swaps subscriptions as the camera moves:
+ * new partitions are subscribed before old ones are dropped, and junctions of dropped
+ * partitions are reported as removed once every new partition has loaded, unless one of them
+ * delivered the junction in the meantime. A viewport needing more than {@code maxPartitions}
+ * partitions falls back to the single {@link #ALL} partition.
+ *
+ * <p>Nothing is subscribed until the first viewport arrives. Feed callbacks and viewport
+ * changes may come from different threads; they are serialized before reaching the sink.
+ */
+public class PartitionedTrafficDataSource implements TrafficDataSource {
+  public static final int DEFAULT_PRECISION = 5;
+  public static final int DEFAULT_MAX_PARTITIONS = 48;
+  // Extra viewport fraction subscribed on every side, so short pans need no resubscribe
+  public static final double DEFAULT_MARGIN = 0.25;
+  // Stands for every junction
+  public static final String ALL = "";
+
+  public interface PartitionFeed {
+    // Delivers the partition's current junctions, then onLoaded, then its changes until cancelled
+    Subscription subscribe(String partition, PartitionSink sink);
+  }
+
+  public interface PartitionSink extends Sink {
+    void onLoaded();
+  }
+
+  public interface Subscription {
+    void cancel();
+  }
+
+  private final PartitionFeed feed;
+  private final int precision;
+  private final int maxPartitions;
+  private final double margin;
+
+  private Sink sink;
+  private final Map<String, Partition> partitions = new HashMap<>();
+  // Partition that last delivered each junction; it alone may remove the junction
+  private final Map<String, Partition> owners = new HashMap<>();
+  // Dropped partitions whose junctions wait for the new partitions to load
+  private final List<Partition> draining = new ArrayList<>();
+  private double[] viewport;
+  private long resubscribes;
+
+  public PartitionedTrafficDataSource(PartitionFeed feed) {
+    this(feed, DEFAULT_PRECISION, DEFAULT_MAX_PARTITIONS, DEFAULT_MARGIN);
+  }
+
+  public PartitionedTrafficDataSource(PartitionFeed feed, int precision, int maxPartitions,
+      double margin) {
+    this.feed = feed;
+    this.precision = precision;
+    this.maxPartitions = maxPartitions;
+    this.margin = margin;
+  }
+
+  @Override
+  public synchronized void start(Sink sink) {
+    this.sink = sink;
+    if (viewport != null) {
+      resubscribe();
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    for (Partition partition : partitions.values()) {
+      partition.cancel();
+    }
+    partitions.clear();
+    owners.clear();
+    draining.clear();
+    sink = null;
+  }
+
+  public synchronized void setViewport(double minLat, double minLon, double maxLat,
+      double maxLon) {
+    double latMargin = (maxLat - minLat) * margin;
+    double lonMargin = (maxLon - minLon) * margin;
+    viewport = new double[] {minLat - latMargin, minLon - lonMargin, maxLat + latMargin,
+        maxLon + lonMargin};
+    if (sink != null) {
+      resubscribe();
+    }
+  }
+
+  public synchronized List<String> getPartitions() {
+    return new ArrayList<>(partitions.keySet());
+  }
+
+  // Viewport changes that added or dropped at least one partition
+  public synchronized long getResubscribeCount() {
+    return resubscribes;
+  }
+
+  private void resubscribe() {
+    Set<String> wanted = new LinkedHashSet<>();
+    if (Geohash.coverCount(viewport[0], viewport[1], viewport[2], viewport[3], precision)
+        > maxPartitions) {
+      wanted.add(ALL);
+    } else {
+      Geohash.cover(viewport[0], viewport[1], viewport[2], viewport[3], precision, wanted);
+    }
+    if (wanted.equals(partitions.keySet())) {
+      return;
+    }
+    resubscribes++;
+    List<Partition> dropped = new ArrayList<>();
+    for (Partition partition : partitions.values()) {
+      if (!wanted.contains(partition.key)) {
+        dropped.add(partition);
+      }
+    }
+    // Every new partition is registered before any subscribes, since feeds may deliver inline
+    List<Partition> added = new ArrayList<>();
+    for (String key : wanted) {
+      if (!partitions.containsKey(key)) {
+        Partition partition = new Partition(key);
+        partitions.put(key, partition);
+        added.add(partition);
+      }
+    }
+    for (Partition partition : added) {
+      partition.subscription = feed.subscribe(partition.key, partition);
+    }
+    // Junctions the new partitions deliver before they load change owner and survive the drop
+    for (Partition partition : dropped) {
+      partitions.remove(partition.key);
+      partition.cancel();
+      draining.add(partition);
+    }
+    removeDrained();
+  }
+
+  private void removeDrained() {
+    if (draining.isEmpty()) {
+      return;
+    }
+    for (Partition partition : partitions.values()) {
+      if (!partition.loaded) {
+        return;
+      }
+    }
+    for (Partition partition : draining) {
+      for (String junctionId : partition.junctionIds) {
+        if (owners.get(junctionId) == partition) {
+          owners.remove(junctionId);
+          sink.onJunctionRemoved(junctionId);
+        }
+      }
+    }
+    draining.clear();
+  }
+
+  private final class Partition implements PartitionSink {
+    final String key;
+    final Set<String> junctionIds = new HashSet<>();
+    Subscription subscription;
+    boolean cancelled;
+    boolean loaded;
+
+    Partition(String key) {
+      this.key = key;
+    }
+
+    void cancel() {
+      cancelled = true;
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    }
+
+    private boolean claim(String junctionId) {
+      if (cancelled || sink == null) {
+        return false;
+      }
+      Partition previous = owners.put(junctionId, this);
+      if (previous != null && previous != this) {
+        previous.junctionIds.remove(junctionId);
+      }
+      junctionIds.add(junctionId);
+      return true;
+    }
+
+    @Override
+    public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+      synchronized (PartitionedTrafficDataSource.this) {
+        if (claim(junctionId)) {
+          sink.onJunctionUpserted(junctionId, junction);
+        }
+      }
+    }
+
+    @Override
+    public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+      synchronized (PartitionedTrafficDataSource.this) {
+        if (claim(junctionId)) {
+          sink.onJunctionFieldsUpserted(junctionId, fields);
+        }
+      }
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+      synchronized (PartitionedTrafficDataSource.this) {
+        if (cancelled || sink == null || !junctionIds.remove(junctionId)) {
+          return;
+        }
+        // A junction that moved to another partition may already be owned there
+        if (owners.get(junctionId) == this) {
+          owners.remove(junctionId);
+          sink.onJunctionRemoved(junctionId);
+        }
+      }
+    }
+
+    @Override
+    public void onSnapshot(Map<String, TrafficJunction> junctions) {
+      for (Map.Entry<String, TrafficJunction> entry : junctions.entrySet()) {
+        onJunctionUpserted(entry.getKey(), entry.getValue());
+      }
+    }
+
+    @Override
+    public void onLoaded() {
+      synchronized (PartitionedTrafficDataSource.this) {
+        if (!cancelled && sink != null) {
+          loaded = true;
+          removeDrained();
+        }
+      }
+    }
+
+    @Override
+    public void onError(String error) {
+      synchronized (PartitionedTrafficDataSource.this) {
+        if (!cancelled && sink != null) {
+          sink.onError(error);
+          // A failed partition delivers nothing more, so removals stop waiting for it
+          loaded = true;
+          removeDrained();
+        }
+      }
+    }
+  }
+}
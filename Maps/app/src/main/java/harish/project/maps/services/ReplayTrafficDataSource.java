@@ -0,0 +1,239 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Replays a recorded junction stream, optionally faster than real time. The file is plain
+ * text, one event per line:
+ *
+ * <pre>
+ * offsetMillis,U,junctionId,latitude,longitude,density,greenLight,timestamp,emergency
+ * offsetMillis,R,junctionId
+ * </pre>
+ *
+ * Lines starting with '#' are ignored; malformed lines are reported to the sink's
+ * {@code onError} with their line number and skipped. Use {@link Recorder} to capture such a file from any
+ * other source.
+ */
+public class ReplayTrafficDataSource implements TrafficDataSource {
+  private final File file;
+  private final double speedUp;
+  private final boolean loop;
+  // Cleared by stop, so a thread left over from before a restart winds down on its own
+  private volatile Thread thread;
+
+  public ReplayTrafficDataSource(File file, double speedUp, boolean loop) {
+    this.file = file;
+    this.speedUp = speedUp;
+    this.loop = loop;
+  }
+
+  @Override
+  public synchronized void start(Sink sink) {
+    if (thread != null) {
+      return;
+    }
+    thread = new Thread(() -> replay(sink), "traffic-replay");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  public boolean isRunning() {
+    return thread != null;
+  }
+
+  private boolean isCurrent() {
+    return thread == Thread.currentThread();
+  }
+
+  private void replay(Sink sink) {
+    try {
+      do {
+        replayOnce(sink);
+      } while (loop && isCurrent());
+    } catch (IOException e) {
+      sink.onError("Error replaying " + file.getName() + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        if (isCurrent()) {
+          thread = null;
+        }
+      }
+    }
+  }
+
+  private void replayOnce(Sink sink) throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      int lineNumber = 0;
+      while (isCurrent() && (line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        String[] fields = line.split(",", -1);
+        long offsetMillis;
+        TrafficJunction junction;
+        try {
+          offsetMillis = Long.parseLong(fields[0]);
+          junction = parse(fields);
+        } catch (RuntimeException e) {
+          // A bad line is reported and skipped, the rest of the recording still plays
+          sink.onError("Skipping line " + lineNumber + " of " + file.getName() + ": " + e);
+          continue;
+        }
+        long dueNanos = (long) (offsetMillis * 1_000_000L / speedUp);
+        long waitNanos = dueNanos - (System.nanoTime() - startNanos);
+        if (waitNanos > 0) {
+          Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        }
+        if (junction == null) {
+          sink.onJunctionRemoved(fields[2]);
+        } else {
+          sink.onJunctionUpserted(fields[2], junction);
+        }
+      }
+    }
+  }
+
+  // The upserted junction, or null for a removal
+  private static TrafficJunction parse(String[] fields) {
+    boolean removal = fields.length > 1 && "R".equals(fields[1]);
+    int expected = removal ? 3 : 9;
+    if (fields.length != expected || !(removal || "U".equals(fields[1]))) {
+      throw new IllegalArgumentException("expected " + expected + " fields, got "
+          + fields.length);
+    }
+    if (removal) {
+      return null;
+    }
+    TrafficJunction junction = new TrafficJunction();
+    junction.setJunctionId(fields[2]);
+    junction.setLatitude(Double.parseDouble(fields[3]));
+    junction.setLongitude(Double.parseDouble(fields[4]));
+    junction.setVehicleDensity(Integer.parseInt(fields[5]));
+    junction.setGreenLightDuration(Integer.parseInt(fields[6]));
+    junction.setTimestamp(Long.parseLong(fields[7]));
+    junction.setEmergencyVehiclePresent(Boolean.parseBoolean(fields[8]));
+    return junction;
+  }
+
+  /**
+   * Sink that writes every event it sees in the replay format and forwards it to an
+   * optional downstream sink. Snapshots are recorded as one upsert per junction. The format
+   * has no escaping, so events for junction ids containing a comma or line break are not
+   * recorded; they are reported to the downstream sink's {@code onError} and still forwarded.
+   */
+  public static class Recorder implements Sink {
+    private final Writer writer;
+    private final Sink downstream;
+    private final long startMillis = System.currentTimeMillis();
+
+    public Recorder(Writer writer, Sink downstream) {
+      this.writer = writer;
+      this.downstream = downstream;
+    }
+
+    @Override
+    public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+      writeUpsert(junctionId, junction);
+      if (downstream != null) {
+        downstream.onJunctionUpserted(junctionId, junction);
+      }
+    }
+
+    @Override
+    public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+      writeUpsert(junctionId, TrafficJunctionDecoder.decode(junctionId, fields));
+      if (downstream != null) {
+        downstream.onJunctionFieldsUpserted(junctionId, fields);
+      }
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+      if (isRecordable(junctionId)) {
+        write(offset() + ",R," + junctionId);
+      }
+      if (downstream != null) {
+        downstream.onJunctionRemoved(junctionId);
+      }
+    }
+
+    @Override
+    public void onSnapshot(Map<String, TrafficJunction> junctions) {
+      for (Map.Entry<String, TrafficJunction> entry : junctions.entrySet()) {
+        writeUpsert(entry.getKey(), entry.getValue());
+      }
+      if (downstream != null) {
+        downstream.onSnapshot(junctions);
+      }
+    }
+
+    @Override
+    public void onError(String error) {
+      if (downstream != null) {
+        downstream.onError(error);
+      }
+    }
+
+    public void flush() throws IOException {
+      writer.flush();
+    }
+
+    private void writeUpsert(String junctionId, TrafficJunction junction) {
+      if (junction != null && isRecordable(junctionId)) {
+        write(offset() + ",U," + junctionId + "," + junction.getLatitude() + ","
+            + junction.getLongitude() + "," + junction.getVehicleDensity() + ","
+            + junction.getGreenLightDuration() + "," + junction.getTimestamp() + ","
+            + junction.isEmergencyVehiclePresent());
+      }
+    }
+
+    private boolean isRecordable(String junctionId) {
+      for (int i = 0; i < junctionId.length(); i++) {
+        char c = junctionId.charAt(i);
+        if (c == ',' || c == '\n' || c == '\r') {
+          if (downstream != null) {
+            downstream.onError("Not recording junction id " + junctionId
+                + ", the replay format cannot hold ',' or line breaks");
+          }
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private long offset() {
+      return System.currentTimeMillis() - startMillis;
+    }
+
+    private void write(String line) {
+      try {
+        writer.write(line);
+        writer.write('\n');
+      } catch (IOException e) {
+        if (downstream != null) {
+          downstream.onError("Error recording traffic stream: " + e.getMessage());
+        }
+      }
+    }
+  }
+}
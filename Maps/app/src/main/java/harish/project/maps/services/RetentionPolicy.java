@@ -0,0 +1,34 @@
+package harish.project.maps.services;
+
+/**
+ * How long raw history samples and each rollup tier are kept. A negative retention keeps
+ * data forever.
+ */
+public class RetentionPolicy {
+  private static final long DAY_MS = 86_400_000L;
+
+  private final long rawMillis;
+  private final long[] tierMillis;
+
+  public RetentionPolicy(long rawMillis, long minuteMillis, long hourMillis, long dayMillis) {
+    this.rawMillis = rawMillis;
+    this.tierMillis = new long[] {minuteMillis, hourMillis, dayMillis};
+  }
+
+  // Raw samples for a week, minutes for two days, hours for 90 days, days forever
+  public static RetentionPolicy defaults() {
+    return new RetentionPolicy(7 * DAY_MS, 2 * DAY_MS, 90 * DAY_MS, -1);
+  }
+
+  public long getRawCutoff(long nowMillis) {
+    return cutoff(rawMillis, nowMillis);
+  }
+
+  public long getCutoff(TrafficRollup.Tier tier, long nowMillis) {
+    return cutoff(tierMillis[tier.ordinal()], nowMillis);
+  }
+
+  private static long cutoff(long retention, long nowMillis) {
+    return retention < 0 ? Long.MIN_VALUE : nowMillis - retention;
+  }
+}
@@ -0,0 +1,255 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Immutable directed road network in compressed sparse row form: the edges leaving node
+ * {@code n} are {@code firstEdge(n)} up to {@code endEdge(n)}, stored in flat primitive arrays
+ * so a search touches no objects. Two-way roads are two edges.
+ */
+public final class RoadGraph {
+  // Stored lengths are rounded (floats, decimetres on disk), so a straight edge can come out a
+  // hair shorter than the great-circle distance; the lower bound leaves room for that
+  private static final double BOUND_SHAVE = 0.99;
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final int[] edgeStart;
+  private final int[] edgeTargets;
+  private final float[] edgeLengths;
+  private final float[] edgeSpeeds;
+  private final float maxSpeed;
+  private volatile GeoGridIndex nodeIndex;
+  private volatile Incoming incoming;
+
+  // Reverse adjacency, for searches that need a node's predecessors
+  private static final class Incoming {
+    final int[] start;
+    final int[] edges;
+    final int[] sources;
+
+    Incoming(int[] start, int[] edges, int[] sources) {
+      this.start = start;
+      this.edges = edges;
+      this.sources = sources;
+    }
+  }
+
+  RoadGraph(double[] latitudes, double[] longitudes, int[] edgeStart, int[] edgeTargets,
+      float[] edgeLengths, float[] edgeSpeeds) {
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.edgeStart = edgeStart;
+    this.edgeTargets = edgeTargets;
+    this.edgeLengths = edgeLengths;
+    this.edgeSpeeds = edgeSpeeds;
+    float max = 0;
+    for (float speed : edgeSpeeds) {
+      max = Math.max(max, speed);
+    }
+    this.maxSpeed = max;
+  }
+
+  public int getNodeCount() {
+    return latitudes.length;
+  }
+
+  public int getEdgeCount() {
+    return edgeTargets.length;
+  }
+
+  public double getLatitude(int node) {
+    return latitudes[node];
+  }
+
+  public double getLongitude(int node) {
+    return longitudes[node];
+  }
+
+  public int firstEdge(int node) {
+    return edgeStart[node];
+  }
+
+  public int endEdge(int node) {
+    return edgeStart[node + 1];
+  }
+
+  public int getTarget(int edge) {
+    return edgeTargets[edge];
+  }
+
+  public float getLengthMeters(int edge) {
+    return edgeLengths[edge];
+  }
+
+  // Free-flow speed in metres per second
+  public float getSpeed(int edge) {
+    return edgeSpeeds[edge];
+  }
+
+  public float getMaxSpeed() {
+    return maxSpeed;
+  }
+
+  // Free-flow travel time in seconds
+  public double getTravelSeconds(int edge) {
+    return edgeLengths[edge] / edgeSpeeds[edge];
+  }
+
+  // Never more than the travel time from node to the point, so it can guide A*
+  public double lowerBoundSeconds(int node, double latitude, double longitude) {
+    return GeoMath.haversineMeters(latitudes[node], longitudes[node], latitude, longitude)
+        * BOUND_SHAVE / maxSpeed;
+  }
+
+  // Edges entering a node are getInEdge(firstInEdge(n)) up to getInEdge(endInEdge(n) - 1)
+  public int firstInEdge(int node) {
+    return incoming().start[node];
+  }
+
+  public int endInEdge(int node) {
+    return incoming().start[node + 1];
+  }
+
+  public int getInEdge(int position) {
+    return incoming().edges[position];
+  }
+
+  public int getSource(int edge) {
+    return incoming().sources[edge];
+  }
+
+  private Incoming incoming() {
+    Incoming current = incoming;
+    if (current == null) {
+      synchronized (this) {
+        current = incoming;
+        if (current == null) {
+          int nodes = latitudes.length;
+          int edges = edgeTargets.length;
+          int[] sources = new int[edges];
+          int[] start = new int[nodes + 1];
+          for (int n = 0; n < nodes; n++) {
+            for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+              sources[e] = n;
+              start[edgeTargets[e] + 1]++;
+            }
+          }
+          for (int n = 0; n < nodes; n++) {
+            start[n + 1] += start[n];
+          }
+          int[] next = Arrays.copyOf(start, nodes);
+          int[] byTarget = new int[edges];
+          for (int e = 0; e < edges; e++) {
+            byTarget[next[edgeTargets[e]]++] = e;
+          }
+          current = new Incoming(start, byTarget, sources);
+          incoming = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /** Nearest node to the point, or -1 for an empty graph. The index is built on first use. */
+  public int nearestNode(double latitude, double longitude) {
+    IntList out = new IntList(1);
+    return nodeIndex().queryNearest(latitude, longitude, 1, out) == 0 ? -1 : out.get(0);
+  }
+
+  public GeoGridIndex nodeIndex() {
+    GeoGridIndex index = nodeIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = nodeIndex;
+        if (index == null) {
+          index = new GeoGridIndex();
+          for (int node = 0; node < latitudes.length; node++) {
+            index.update(node, latitudes[node], longitudes[node]);
+          }
+          nodeIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /** Accumulates nodes and edges in any order and sorts them into CSR form on build. */
+  public static final class Builder {
+    private double[] latitudes = new double[64];
+    private double[] longitudes = new double[64];
+    private int nodeCount;
+    private int[] sources = new int[64];
+    private int[] targets = new int[64];
+    private float[] lengths = new float[64];
+    private float[] speeds = new float[64];
+    private int edgeCount;
+
+    public int addNode(double latitude, double longitude) {
+      if (nodeCount == latitudes.length) {
+        latitudes = Arrays.copyOf(latitudes, nodeCount * 2);
+        longitudes = Arrays.copyOf(longitudes, nodeCount * 2);
+      }
+      latitudes[nodeCount] = latitude;
+      longitudes[nodeCount] = longitude;
+      return nodeCount++;
+    }
+
+    // Straight edge; its length is the great-circle distance between the nodes
+    public Builder addEdge(int from, int to, double speedMetersPerSecond) {
+      return addEdge(from, to, GeoMath.haversineMeters(latitudes[from], longitudes[from],
+          latitudes[to], longitudes[to]), speedMetersPerSecond);
+    }
+
+    public Builder addEdge(int from, int to, double lengthMeters, double speedMetersPerSecond) {
+      if (from < 0 || from >= nodeCount || to < 0 || to >= nodeCount) {
+        throw new IllegalArgumentException("Unknown node in edge " + from + " -> " + to);
+      }
+      if (speedMetersPerSecond <= 0) {
+        throw new IllegalArgumentException("Speed must be positive: " + speedMetersPerSecond);
+      }
+      if (edgeCount == sources.length) {
+        int grown = edgeCount * 2;
+        sources = Arrays.copyOf(sources, grown);
+        targets = Arrays.copyOf(targets, grown);
+        lengths = Arrays.copyOf(lengths, grown);
+        speeds = Arrays.copyOf(speeds, grown);
+      }
+      sources[edgeCount] = from;
+      targets[edgeCount] = to;
+      lengths[edgeCount] = (float) lengthMeters;
+      speeds[edgeCount] = (float) speedMetersPerSecond;
+      edgeCount++;
+      return this;
+    }
+
+    public Builder addRoad(int a, int b, double speedMetersPerSecond) {
+      addEdge(a, b, speedMetersPerSecond);
+      return addEdge(b, a, speedMetersPerSecond);
+    }
+
+    public RoadGraph build() {
+      // Counting sort by source keeps insertion order within each node
+      int[] start = new int[nodeCount + 1];
+      for (int e = 0; e < edgeCount; e++) {
+        start[sources[e] + 1]++;
+      }
+      for (int n = 0; n < nodeCount; n++) {
+        start[n + 1] += start[n];
+      }
+      int[] next = Arrays.copyOf(start, nodeCount);
+      int[] sortedTargets = new int[edgeCount];
+      float[] sortedLengths = new float[edgeCount];
+      float[] sortedSpeeds = new float[edgeCount];
+      for (int e = 0; e < edgeCount; e++) {
+        int slot = next[sources[e]]++;
+        sortedTargets[slot] = targets[e];
+        sortedLengths[slot] = lengths[e];
+        sortedSpeeds[slot] = speeds[e];
+      }
+      return new RoadGraph(Arrays.copyOf(latitudes, nodeCount),
+          Arrays.copyOf(longitudes, nodeCount), start, sortedTargets, sortedLengths,
+          sortedSpeeds);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package harish.project.maps.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact binary format for {@link RoadGraph}, a few bytes per node and edge.
+ *
+ * <pre>
+ * graph := 'R' version:u8 nodes:varint edges:varint node* edge*
+ * node  := dlat:zigzag dlon:zigzag degree:varint    (1e-6 degree deltas to the previous node)
+ * edge  := dtarget:zigzag length:varint speed:varint (target minus source, decimetres, dm/s)
+ * </pre>
+ *
+ * Edges are written in CSR order, so each node's degree is all that is needed to rebuild the
+ * offsets. Graphs whose node ids follow the road layout keep target deltas small.
+ */
+public final class RoadGraphCodec {
+  public static final byte MAGIC = 'R';
+  public static final byte VERSION = 1;
+
+  private static final double COORD_SCALE = 1e6;
+  private static final double LENGTH_SCALE = 10;
+  private static final double SPEED_SCALE = 10;
+
+  private RoadGraphCodec() {
+  }
+
+  public static byte[] encode(RoadGraph graph) {
+    int nodes = graph.getNodeCount();
+    int edges = graph.getEdgeCount();
+    // Varints of up to 32 bits take at most 5 bytes
+    ByteBuffer out = ByteBuffer.allocate(12 + nodes * 15 + edges * 15);
+    out.put(MAGIC).put(VERSION);
+    TrafficWireCodec.putVarint(out, nodes);
+    TrafficWireCodec.putVarint(out, edges);
+    long lastLat = 0;
+    long lastLon = 0;
+    for (int n = 0; n < nodes; n++) {
+      long lat = Math.round(graph.getLatitude(n) * COORD_SCALE);
+      long lon = Math.round(graph.getLongitude(n) * COORD_SCALE);
+      TrafficWireCodec.putVarint(out, TrafficWireCodec.zigzag(lat - lastLat));
+      TrafficWireCodec.putVarint(out, TrafficWireCodec.zigzag(lon - lastLon));
+      TrafficWireCodec.putVarint(out, graph.endEdge(n) - graph.firstEdge(n));
+      lastLat = lat;
+      lastLon = lon;
+    }
+    for (int n = 0; n < nodes; n++) {
+      for (int e = graph.firstEdge(n); e < graph.endEdge(n); e++) {
+        TrafficWireCodec.putVarint(out, TrafficWireCodec.zigzag((long) graph.getTarget(e) - n));
+        TrafficWireCodec.putVarint(out, Math.round(graph.getLengthMeters(e) * LENGTH_SCALE));
+        // Never round a speed down to zero
+        TrafficWireCodec.putVarint(out, Math.max(1, Math.round(graph.getSpeed(e) * SPEED_SCALE)));
+      }
+    }
+    return Arrays.copyOf(out.array(), out.position());
+  }
+
+  public static RoadGraph decode(ByteBuffer in) {
+    try {
+      if (in.get() != MAGIC) {
+        throw new IllegalArgumentException("Not a road graph");
+      }
+      byte version = in.get();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported road graph version " + version);
+      }
+      int nodes = TrafficWireCodec.getVarint(in);
+      int edges = TrafficWireCodec.getVarint(in);
+      double[] latitudes = new double[nodes];
+      double[] longitudes = new double[nodes];
+      int[] edgeStart = new int[nodes + 1];
+      long lat = 0;
+      long lon = 0;
+      for (int n = 0; n < nodes; n++) {
+        lat += TrafficWireCodec.unzigzagLong(TrafficWireCodec.getVarLong(in));
+        lon += TrafficWireCodec.unzigzagLong(TrafficWireCodec.getVarLong(in));
+        latitudes[n] = lat / COORD_SCALE;
+        longitudes[n] = lon / COORD_SCALE;
+        edgeStart[n + 1] = edgeStart[n] + TrafficWireCodec.getVarint(in);
+      }
+      if (edgeStart[nodes] != edges) {
+        throw new IllegalArgumentException("Degrees add up to " + edgeStart[nodes]
+            + " edges, expected " + edges);
+      }
+      int[] targets = new int[edges];
+      float[] lengths = new float[edges];
+      float[] speeds = new float[edges];
+      for (int n = 0; n < nodes; n++) {
+        for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+          long target = n + TrafficWireCodec.unzigzagLong(TrafficWireCodec.getVarLong(in));
+          if (target < 0 || target >= nodes) {
+            throw new IllegalArgumentException("Edge " + e + " targets unknown node " + target);
+          }
+          targets[e] = (int) target;
+          lengths[e] = (float) (TrafficWireCodec.getVarint(in) / LENGTH_SCALE);
+          speeds[e] = (float) (TrafficWireCodec.getVarint(in) / SPEED_SCALE);
+        }
+      }
+      return new RoadGraph(latitudes, longitudes, edgeStart, targets, lengths, speeds);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated road graph", e);
+    }
+  }
+
+  public static void write(RoadGraph graph, File file) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(encode(graph));
+    }
+  }
+
+  public static RoadGraph read(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    try (InputStream in = new FileInputStream(file)) {
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n < 0) {
+          throw new IOException("Road graph truncated while reading " + file);
+        }
+        read += n;
+      }
+    }
+    return decode(ByteBuffer.wrap(bytes));
+  }
+}
@@ -0,0 +1,48 @@
+package harish.project.maps.services;
+
+import com.google.android.gms.maps.model.LatLng;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A path through a {@link RoadGraph} with its length and expected travel time. */
+public final class Route {
+  private final RoadGraph graph;
+  private final int[] nodes;
+  private final double travelSeconds;
+  private final double lengthMeters;
+
+  Route(RoadGraph graph, int[] nodes, double travelSeconds, double lengthMeters) {
+    this.graph = graph;
+    this.nodes = nodes;
+    this.travelSeconds = travelSeconds;
+    this.lengthMeters = lengthMeters;
+  }
+
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  public int getNode(int position) {
+    return nodes[position];
+  }
+
+  public int[] getNodes() {
+    return nodes.clone();
+  }
+
+  public double getTravelSeconds() {
+    return travelSeconds;
+  }
+
+  public double getLengthMeters() {
+    return lengthMeters;
+  }
+
+  public List<LatLng> getPoints() {
+    List<LatLng> points = new ArrayList<>(nodes.length);
+    for (int node : nodes) {
+      points.add(new LatLng(graph.getLatitude(node), graph.getLongitude(node)));
+    }
+    return points;
+  }
+}
@@ -0,0 +1,333 @@
+package harish.project.maps.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches planned routes by snapped origin and destination cell plus a traffic epoch, so asking
+ * for the same commute again is a lookup instead of a search. Entries expire after a TTL, the
+ * least recently used ones are evicted beyond {@code maxEntries}, and an entry is dropped as
+ * soon as the density of a junction along its polyline moves by {@code densityTolerance} or
+ * more from what it was when the route was planned.
+ *
+ * <p>The epoch advances when the store is cleared or {@link #advanceEpoch()} is called, e.g.
+ * after loading another road graph; entries of older epochs are never returned. Congestion
+ * clearing away from a cached route is not noticed until the entry expires.
+ *
+ * <p>A route is cached only if neither the store nor the epoch changed from the start of its
+ * planning until it is filed, so the densities it is checked against are the ones it was
+ * planned with; otherwise it is returned uncached.
+ *
+ * <p>Attach with {@link JunctionStateStore#addObserver}. Lookups may come from any thread.
+ */
+public class RouteCache implements JunctionStateStore.Observer {
+  public static final int DEFAULT_MAX_ENTRIES = 128;
+  public static final long DEFAULT_TTL_MS = 5 * 60_000;
+  // About 110 m; origins and destinations in the same cell share a route
+  public static final double DEFAULT_CELL_DEGREES = 0.001;
+  public static final int DEFAULT_DENSITY_TOLERANCE = 10;
+  public static final double DEFAULT_CORRIDOR_M = 75;
+
+  public interface Planner {
+    // Null when no route exists; null results are not cached
+    Route plan(double fromLat, double fromLon, double toLat, double toLon);
+  }
+
+  private static final class Key {
+    final long from;
+    final long to;
+    final long epoch;
+
+    Key(long from, long to, long epoch) {
+      this.from = from;
+      this.to = to;
+      this.epoch = epoch;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return from == key.from && to == key.to && epoch == key.epoch;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(from) * 31 * 31 + Long.hashCode(to) * 31 + Long.hashCode(epoch);
+    }
+  }
+
+  private static final class Entry {
+    final Key key;
+    final Route route;
+    final long expiresAtMillis;
+    final long planNanos;
+    // Junctions along the route and their densities when it was planned
+    final int[] junctions;
+    final int[] densities;
+
+    Entry(Key key, Route route, long expiresAtMillis, long planNanos, int[] junctions,
+        int[] densities) {
+      this.key = key;
+      this.route = route;
+      this.expiresAtMillis = expiresAtMillis;
+      this.planNanos = planNanos;
+      this.junctions = junctions;
+      this.densities = densities;
+    }
+  }
+
+  private final JunctionStateStore store;
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final double cellDegrees;
+  private final int densityTolerance;
+  private final double corridorMeters;
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Integer, List<Entry>> entriesByJunction = new HashMap<>();
+  private long epoch;
+
+  private long hits;
+  private long misses;
+  private long invalidations;
+  private long expirations;
+  private long evictions;
+  private long discarded;
+  private long savedNanos;
+  private final LatencyHistogram planLatency = new LatencyHistogram();
+
+  public RouteCache(JunctionStateStore store) {
+    this(store, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, DEFAULT_CELL_DEGREES,
+        DEFAULT_DENSITY_TOLERANCE, DEFAULT_CORRIDOR_M);
+  }
+
+  public RouteCache(JunctionStateStore store, int maxEntries, long ttlMillis,
+      double cellDegrees, int densityTolerance, double corridorMeters) {
+    this.store = store;
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.cellDegrees = cellDegrees;
+    this.densityTolerance = densityTolerance;
+    this.corridorMeters = corridorMeters;
+  }
+
+  /** Cached route for the trip, or one freshly planned (outside the lock) and cached. */
+  public Route route(double fromLat, double fromLon, double toLat, double toLon, long nowMillis,
+      Planner planner) {
+    Route cached = get(fromLat, fromLon, toLat, toLon, nowMillis);
+    if (cached != null) {
+      return cached;
+    }
+    long planEpoch;
+    synchronized (this) {
+      planEpoch = epoch;
+    }
+    int planVersion = store.version();
+    long start = System.nanoTime();
+    Route route = planner.plan(fromLat, fromLon, toLat, toLon);
+    long elapsed = System.nanoTime() - start;
+    synchronized (this) {
+      planLatency.recordNanos(elapsed);
+    }
+    if (route != null) {
+      put(fromLat, fromLon, toLat, toLon, route, elapsed, nowMillis, planEpoch, planVersion);
+    }
+    return route;
+  }
+
+  public synchronized Route get(double fromLat, double fromLon, double toLat, double toLon,
+      long nowMillis) {
+    Key key = keyOf(fromLat, fromLon, toLat, toLon);
+    Entry entry = entries.get(key);
+    if (entry != null && entry.expiresAtMillis <= nowMillis) {
+      expirations++;
+      drop(entry);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    savedNanos += entry.planNanos;
+    return entry.route;
+  }
+
+  // For a route planned against the store as it is now
+  public void put(double fromLat, double fromLon, double toLat, double toLon, Route route,
+      long planNanos, long nowMillis) {
+    long planEpoch;
+    synchronized (this) {
+      planEpoch = epoch;
+    }
+    put(fromLat, fromLon, toLat, toLon, route, planNanos, nowMillis, planEpoch, store.version());
+  }
+
+  private void put(double fromLat, double fromLon, double toLat, double toLon, Route route,
+      long planNanos, long nowMillis, long planEpoch, int planVersion) {
+    // Junctions along the route are found before locking; the query reads the store
+    List<RouteCorridor.Match> along = new RouteCorridor(route.getPoints()).query(store,
+        corridorMeters);
+    int[] junctions = new int[along.size()];
+    int[] densities = new int[along.size()];
+    for (int i = 0; i < junctions.length; i++) {
+      junctions[i] = along.get(i).index;
+      densities[i] = store.getVehicleDensity(junctions[i]);
+    }
+    synchronized (this) {
+      // Checked under the lock: a later update bumps the version, then waits here to invalidate
+      if (epoch != planEpoch || store.version() != planVersion) {
+        discarded++;
+        return;
+      }
+      Key key = keyOf(fromLat, fromLon, toLat, toLon);
+      Entry previous = entries.get(key);
+      if (previous != null) {
+        drop(previous);
+      }
+      Entry entry = new Entry(key, route, nowMillis + ttlMillis, planNanos, junctions,
+          densities);
+      entries.put(key, entry);
+      for (int junction : junctions) {
+        List<Entry> list = entriesByJunction.get(junction);
+        if (list == null) {
+          list = new ArrayList<>(2);
+          entriesByJunction.put(junction, list);
+        }
+        list.add(entry);
+      }
+      while (entries.size() > maxEntries) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        Entry evicted = eldest.next();
+        evictions++;
+        drop(evicted);
+      }
+    }
+  }
+
+  // Makes every cached route unreachable
+  public synchronized void advanceEpoch() {
+    epoch++;
+    entries.clear();
+    entriesByJunction.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized void onJunctionUpdated(JunctionStateStore store, int index) {
+    List<Entry> list = entriesByJunction.get(index);
+    if (list == null) {
+      return;
+    }
+    int density = store.getVehicleDensity(index);
+    // Walk a copy; drop() edits the list
+    for (Entry entry : list.toArray(new Entry[0])) {
+      for (int i = 0; i < entry.junctions.length; i++) {
+        if (entry.junctions[i] == index
+            && Math.abs(density - entry.densities[i]) >= densityTolerance) {
+          invalidations++;
+          drop(entry);
+          break;
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void onJunctionRemoved(JunctionStateStore store, int index) {
+    List<Entry> list = entriesByJunction.get(index);
+    if (list == null) {
+      return;
+    }
+    for (Entry entry : list.toArray(new Entry[0])) {
+      invalidations++;
+      drop(entry);
+    }
+  }
+
+  @Override
+  public void onCleared(JunctionStateStore store) {
+    advanceEpoch();
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized double getHitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  // Entries dropped because traffic along their route changed
+  public synchronized long getInvalidationCount() {
+    return invalidations;
+  }
+
+  public synchronized long getExpiredCount() {
+    return expirations;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  // Routes not cached because traffic or the epoch changed while they were planned
+  public synchronized long getDiscardedCount() {
+    return discarded;
+  }
+
+  // Planning time the hits would have spent, as measured when each route was planned
+  public synchronized double getSavedMillis() {
+    return savedNanos / 1e6;
+  }
+
+  public synchronized LatencyHistogram getPlanLatency() {
+    return planLatency;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.US,
+        "%d routes, hit rate %.0f%% (%d/%d), %d invalidated, %d expired, %.0f ms saved",
+        entries.size(), getHitRate() * 100, hits, hits + misses, invalidations, expirations,
+        getSavedMillis());
+  }
+
+  private void drop(Entry entry) {
+    entries.remove(entry.key);
+    for (int junction : entry.junctions) {
+      List<Entry> list = entriesByJunction.get(junction);
+      if (list != null) {
+        list.remove(entry);
+        if (list.isEmpty()) {
+          entriesByJunction.remove(junction);
+        }
+      }
+    }
+  }
+
+  private Key keyOf(double fromLat, double fromLon, double toLat, double toLon) {
+    return new Key(cellOf(fromLat, fromLon), cellOf(toLat, toLon), epoch);
+  }
+
+  private long cellOf(double lat, double lon) {
+    long y = (long) Math.floor(lat / cellDegrees);
+    long x = (long) Math.floor(lon / cellDegrees);
+    return (y << 32) ^ (x & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,165 @@
+package harish.project.maps.services;
+
+import com.google.android.gms.maps.model.LatLng;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route polyline prepared for "junctions along the route" queries. Long segments are split
+ * so each one's bounding box stays tight, and cumulative distances are computed once, so a
+ * corridor can be queried repeatedly while the user moves without touching the route again.
+ *
+ * <p>Offsets use a local equirectangular projection per segment, which is well within a
+ * metre over the short segments involved.
+ */
+public class RouteCorridor {
+  private static final double MAX_SEGMENT_M = 500;
+
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final double[] cumulative;
+
+  public static final class Match {
+    public final int index;
+    // Distance along the route to the point closest to the junction
+    public final double alongMeters;
+    // Distance from the junction to the route
+    public final double offsetMeters;
+
+    Match(int index, double alongMeters, double offsetMeters) {
+      this.index = index;
+      this.alongMeters = alongMeters;
+      this.offsetMeters = offsetMeters;
+    }
+  }
+
+  public RouteCorridor(List<LatLng> route) {
+    List<double[]> points = new ArrayList<>();
+    for (int i = 0; i < route.size(); i++) {
+      LatLng point = route.get(i);
+      if (i > 0) {
+        LatLng previous = route.get(i - 1);
+        double length = GeoMath.haversineMeters(previous.latitude, previous.longitude,
+            point.latitude, point.longitude);
+        int pieces = (int) Math.ceil(length / MAX_SEGMENT_M);
+        for (int p = 1; p < pieces; p++) {
+          double t = p / (double) pieces;
+          points.add(new double[] {
+              previous.latitude + (point.latitude - previous.latitude) * t,
+              previous.longitude + (point.longitude - previous.longitude) * t});
+        }
+      }
+      points.add(new double[] {point.latitude, point.longitude});
+    }
+    latitudes = new double[points.size()];
+    longitudes = new double[points.size()];
+    cumulative = new double[points.size()];
+    for (int i = 0; i < points.size(); i++) {
+      latitudes[i] = points.get(i)[0];
+      longitudes[i] = points.get(i)[1];
+      if (i > 0) {
+        cumulative[i] = cumulative[i - 1] + segmentLength(i - 1);
+      }
+    }
+  }
+
+  public double getLengthMeters() {
+    return cumulative.length == 0 ? 0 : cumulative[cumulative.length - 1];
+  }
+
+  public int getSegmentCount() {
+    return Math.max(0, latitudes.length - 1);
+  }
+
+  // Distance along the route of the route point closest to the given position
+  public double locate(double latitude, double longitude) {
+    double bestOffset = Double.POSITIVE_INFINITY;
+    double bestAlong = 0;
+    double[] projection = new double[2];
+    for (int s = 0; s < getSegmentCount(); s++) {
+      project(s, latitude, longitude, projection);
+      if (projection[1] < bestOffset) {
+        bestOffset = projection[1];
+        bestAlong = projection[0];
+      }
+    }
+    return bestAlong;
+  }
+
+  /**
+   * Returns every junction within widthMeters of the route, ordered by distance along the
+   * route. With a spatial index attached to the store only the cells around each segment are
+   * visited; otherwise every junction is a candidate.
+   */
+  public List<Match> query(JunctionStateStore store, double widthMeters) {
+    SpatialIndex index = store.getSpatialIndex();
+    Map<Integer, Match> best = new HashMap<>();
+    IntList candidates = new IntList();
+    double[] projection = new double[2];
+    double dLat = GeoMath.latitudeDelta(widthMeters);
+    for (int s = 0; s < getSegmentCount(); s++) {
+      double minLat = Math.min(latitudes[s], latitudes[s + 1]) - dLat;
+      double maxLat = Math.max(latitudes[s], latitudes[s + 1]) + dLat;
+      double dLon = GeoMath.longitudeDelta(widthMeters,
+          Math.max(Math.abs(minLat), Math.abs(maxLat)));
+      double minLon = Math.min(longitudes[s], longitudes[s + 1]) - dLon;
+      double maxLon = Math.max(longitudes[s], longitudes[s + 1]) + dLon;
+      candidates.clear();
+      if (index != null) {
+        index.queryBox(minLat, minLon, maxLat, maxLon, candidates);
+      } else {
+        for (int i = 0; i < store.size(); i++) {
+          double lat = store.getLatitude(i);
+          double lon = store.getLongitude(i);
+          if (store.isPresent(i) && lat >= minLat && lat <= maxLat && lon >= minLon
+              && lon <= maxLon) {
+            candidates.add(i);
+          }
+        }
+      }
+      for (int i = 0; i < candidates.size(); i++) {
+        int candidate = candidates.get(i);
+        project(s, store.getLatitude(candidate), store.getLongitude(candidate), projection);
+        if (projection[1] > widthMeters) {
+          continue;
+        }
+        Match match = best.get(candidate);
+        if (match == null || projection[1] < match.offsetMeters) {
+          best.put(candidate, new Match(candidate, projection[0], projection[1]));
+        }
+      }
+    }
+    List<Match> matches = new ArrayList<>(best.values());
+    Collections.sort(matches, (a, b) -> Double.compare(a.alongMeters, b.alongMeters));
+    return matches;
+  }
+
+  // out[0] = distance along the route, out[1] = offset from the segment, both in metres
+  private void project(int segment, double latitude, double longitude, double[] out) {
+    double lat0 = latitudes[segment];
+    double lon0 = longitudes[segment];
+    double scale = GeoMath.METERS_PER_DEGREE;
+    double lonScale = scale * GeoMath.cosLatitude((lat0 + latitudes[segment + 1]) * 0.5);
+    double sx = (longitudes[segment + 1] - lon0) * lonScale;
+    double sy = (latitudes[segment + 1] - lat0) * scale;
+    double px = (longitude - lon0) * lonScale;
+    double py = (latitude - lat0) * scale;
+    double lengthSq = sx * sx + sy * sy;
+    double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, (px * sx + py * sy) / lengthSq));
+    double ox = px - t * sx;
+    double oy = py - t * sy;
+    out[0] = cumulative[segment] + t * Math.sqrt(lengthSq);
+    out[1] = Math.sqrt(ox * ox + oy * oy);
+  }
+
+  private double segmentLength(int segment) {
+    double lonScale = GeoMath.METERS_PER_DEGREE
+        * GeoMath.cosLatitude((latitudes[segment] + latitudes[segment + 1]) * 0.5);
+    double sx = (longitudes[segment + 1] - longitudes[segment]) * lonScale;
+    double sy = (latitudes[segment + 1] - latitudes[segment]) * GeoMath.METERS_PER_DEGREE;
+    return Math.sqrt(sx * sx + sy * sy);
+  }
+}
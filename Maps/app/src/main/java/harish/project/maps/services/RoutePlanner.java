@@ -0,0 +1,127 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Fastest-route search over a {@link RoadGraph} with A*. The heuristic is
+ * {@link RoadGraph#lowerBoundSeconds}, the great-circle distance to the destination at the
+ * graph's top speed, which never overestimates as long as the weights never undercut
+ * free-flow time.
+ *
+ * <p>Search state lives in arrays sized to the graph and reset lazily by a generation stamp, so
+ * repeated queries allocate only the returned route. Not thread-safe; use one planner per
+ * thread over a shared graph.
+ */
+public class RoutePlanner {
+  private final RoadGraph graph;
+  private final EdgeWeights weights;
+  private final double[] costs;
+  private final int[] parents;
+  private final int[] parentEdges;
+  private final int[] seen;
+  private final boolean[] settled;
+  private final NodeHeap open;
+  private int generation;
+  private boolean heuristic = true;
+  private int lastSettled;
+
+  public RoutePlanner(RoadGraph graph) {
+    this(graph, graph::getTravelSeconds);
+  }
+
+  public RoutePlanner(RoadGraph graph, EdgeWeights weights) {
+    this.graph = graph;
+    this.weights = weights;
+    int n = graph.getNodeCount();
+    costs = new double[n];
+    parents = new int[n];
+    parentEdges = new int[n];
+    seen = new int[n];
+    settled = new boolean[n];
+    open = new NodeHeap(1024);
+  }
+
+  // Without the heuristic the search is plain Dijkstra
+  public void setHeuristic(boolean heuristic) {
+    this.heuristic = heuristic;
+  }
+
+  public RoadGraph getGraph() {
+    return graph;
+  }
+
+  // Nodes the last search expanded
+  public int getLastSettledCount() {
+    return lastSettled;
+  }
+
+  /** Route between the graph nodes nearest to the two points, or null if none connects them. */
+  public Route route(double fromLat, double fromLon, double toLat, double toLon) {
+    int from = graph.nearestNode(fromLat, fromLon);
+    int to = graph.nearestNode(toLat, toLon);
+    return from < 0 || to < 0 ? null : route(from, to);
+  }
+
+  public Route route(int from, int to) {
+    if (++generation == 0) {
+      // Stamps wrapped around; old ones could now look current
+      Arrays.fill(seen, 0);
+      generation = 1;
+    }
+    open.clear();
+    lastSettled = 0;
+    double toLat = graph.getLatitude(to);
+    double toLon = graph.getLongitude(to);
+    visit(from, 0, -1, -1);
+    open.push(from, 0);
+    while (!open.isEmpty()) {
+      int node = open.pop();
+      if (settled[node]) {
+        continue;
+      }
+      settled[node] = true;
+      lastSettled++;
+      if (node == to) {
+        return buildRoute(from, to);
+      }
+      double cost = costs[node];
+      for (int e = graph.firstEdge(node); e < graph.endEdge(node); e++) {
+        int target = graph.getTarget(e);
+        double candidate = cost + weights.travelSeconds(e);
+        if (seen[target] == generation && (settled[target] || candidate >= costs[target])) {
+          continue;
+        }
+        visit(target, candidate, node, e);
+        double estimate = heuristic ? graph.lowerBoundSeconds(target, toLat, toLon) : 0;
+        open.push(target, candidate + estimate);
+      }
+    }
+    return null;
+  }
+
+  private void visit(int node, double cost, int parent, int parentEdge) {
+    seen[node] = generation;
+    settled[node] = false;
+    costs[node] = cost;
+    parents[node] = parent;
+    parentEdges[node] = parentEdge;
+  }
+
+  private Route buildRoute(int from, int to) {
+    int count = 1;
+    for (int node = to; node != from; node = parents[node]) {
+      count++;
+    }
+    int[] nodes = new int[count];
+    double meters = 0;
+    int node = to;
+    for (int i = count - 1; i >= 0; i--) {
+      nodes[i] = node;
+      if (i > 0) {
+        meters += graph.getLengthMeters(parentEdges[node]);
+        node = parents[node];
+      }
+    }
+    return new Route(graph, nodes, costs[to], meters);
+  }
+}
@@ -0,0 +1,202 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Green times for every junction of a district, the Java side of the camera controller's
+ * {@code calculate_green_time}: the vehicles waiting at a junction, each weighted by how long
+ * its class takes to cross, give {@code total * 5 / lanes} seconds of green, clamped to
+ * [{@link #MIN_GREEN_SECONDS}, {@link #MAX_GREEN_SECONDS}] and truncated to whole seconds. An
+ * emergency vehicle gets the maximum straight away.
+ *
+ * <p>Junctions are numbered like {@link JunctionStateStore} indices. Per-class counts live in
+ * one flat array, {@code junction * VehicleClass.COUNT + class}, and {@link #computeCycle()}
+ * splits the junctions into fixed chunks that are reused every cycle, so a cycle creates no
+ * objects beyond the pool's own bookkeeping for one submission. Fill the inputs and run
+ * cycles from one thread.
+ */
+public class SignalTimingEngine {
+  public static final int MIN_GREEN_SECONDS = 5;
+  public static final int MAX_GREEN_SECONDS = 28;
+  public static final int DEFAULT_LANES = 4;
+  // Seconds of green per second of crossing time, before sharing it out over the lanes
+  public static final double GREEN_PER_CROSSING = 5;
+  private static final int CHUNK = 4096;
+
+  public enum VehicleClass {
+    CAR(2.5),
+    MOTORCYCLE(1.5),
+    BUS(4.0),
+    TRUCK(4.0),
+    RICKSHAW(2.0);
+
+    public static final int COUNT = values().length;
+
+    private final double crossingSeconds;
+
+    VehicleClass(double crossingSeconds) {
+      this.crossingSeconds = crossingSeconds;
+    }
+
+    // Typical time for one vehicle of the class to clear the stop line
+    public double getCrossingSeconds() {
+      return crossingSeconds;
+    }
+  }
+
+  private final int junctions;
+  private final ForkJoinPool pool;
+  private final double[] crossingSeconds = new double[VehicleClass.COUNT];
+  private final int lanes;
+  private final int minGreen;
+  private final int maxGreen;
+  private final int[] counts;
+  private final boolean[] emergency;
+  private final int[] greenSeconds;
+  private final Chunk[] chunks;
+  private final Cycle cycle = new Cycle();
+
+  public SignalTimingEngine(int junctions) {
+    this(junctions, ForkJoinPool.commonPool());
+  }
+
+  public SignalTimingEngine(int junctions, ForkJoinPool pool) {
+    this(junctions, pool, DEFAULT_LANES, MIN_GREEN_SECONDS, MAX_GREEN_SECONDS);
+  }
+
+  public SignalTimingEngine(int junctions, ForkJoinPool pool, int lanes, int minGreen,
+      int maxGreen) {
+    if (lanes <= 0 || minGreen > maxGreen) {
+      throw new IllegalArgumentException("Bad timing limits: " + lanes + " lanes, green "
+          + minGreen + ".." + maxGreen);
+    }
+    this.junctions = junctions;
+    this.pool = pool;
+    this.lanes = lanes;
+    this.minGreen = minGreen;
+    this.maxGreen = maxGreen;
+    for (VehicleClass type : VehicleClass.values()) {
+      crossingSeconds[type.ordinal()] = type.getCrossingSeconds();
+    }
+    counts = new int[junctions * VehicleClass.COUNT];
+    emergency = new boolean[junctions];
+    greenSeconds = new int[junctions];
+    Arrays.fill(greenSeconds, minGreen);
+    chunks = new Chunk[(junctions + CHUNK - 1) / CHUNK];
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = new Chunk(i * CHUNK, Math.min(junctions, (i + 1) * CHUNK));
+    }
+  }
+
+  // Local conditions may differ, e.g. a junction where buses turn slowly
+  public void setCrossingSeconds(VehicleClass type, double seconds) {
+    crossingSeconds[type.ordinal()] = seconds;
+  }
+
+  public int getJunctionCount() {
+    return junctions;
+  }
+
+  public void setCount(int junction, VehicleClass type, int count) {
+    counts[junction * VehicleClass.COUNT + type.ordinal()] = count;
+  }
+
+  public int getCount(int junction, VehicleClass type) {
+    return counts[junction * VehicleClass.COUNT + type.ordinal()];
+  }
+
+  public void setEmergency(int junction, boolean present) {
+    emergency[junction] = present;
+  }
+
+  // Takes emergency flags from live junction state; indices beyond the engine are ignored
+  public void copyEmergencies(JunctionStateStore store) {
+    int limit = Math.min(junctions, store.size());
+    for (int i = 0; i < limit; i++) {
+      emergency[i] = store.isPresent(i) && store.isEmergencyVehiclePresent(i);
+    }
+  }
+
+  /** Recomputes every junction's green time, in parallel on the pool. */
+  public void computeCycle() {
+    if (chunks.length == 1) {
+      compute(0, junctions);
+    } else if (chunks.length > 1) {
+      cycle.reinitialize();
+      pool.invoke(cycle);
+    }
+  }
+
+  // Same result as computeCycle on the calling thread only
+  public void computeCycleSerially() {
+    compute(0, junctions);
+  }
+
+  public int getGreenSeconds(int junction) {
+    return greenSeconds[junction];
+  }
+
+  /** Green time for one junction's counts, indexed by {@link VehicleClass#ordinal()}. */
+  public int greenSeconds(int[] classCounts, boolean emergencyPresent) {
+    if (emergencyPresent) {
+      return maxGreen;
+    }
+    double total = 0;
+    for (int c = 0; c < VehicleClass.COUNT; c++) {
+      total += classCounts[c] * crossingSeconds[c];
+    }
+    return greenFor(total);
+  }
+
+  private void compute(int from, int to) {
+    for (int j = from; j < to; j++) {
+      if (emergency[j]) {
+        greenSeconds[j] = maxGreen;
+        continue;
+      }
+      int at = j * VehicleClass.COUNT;
+      double total = 0;
+      for (int c = 0; c < VehicleClass.COUNT; c++) {
+        total += counts[at + c] * crossingSeconds[c];
+      }
+      greenSeconds[j] = greenFor(total);
+    }
+  }
+
+  // Operation for operation as in the Python controller, so both round the same way
+  private int greenFor(double totalCrossingSeconds) {
+    double green = (totalCrossingSeconds * GREEN_PER_CROSSING) / lanes;
+    return (int) Math.max(Math.min(green, maxGreen), minGreen);
+  }
+
+  private final class Cycle extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void compute() {
+      for (Chunk chunk : chunks) {
+        chunk.reinitialize();
+      }
+      invokeAll(chunks);
+    }
+  }
+
+  private final class Chunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+
+    Chunk(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      SignalTimingEngine.this.compute(from, to);
+    }
+  }
+}
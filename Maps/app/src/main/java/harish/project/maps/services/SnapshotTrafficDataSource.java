@@ -0,0 +1,53 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+
+/**
+ * Delivers the junctions of a {@link MappedSnapshot} straight away and then hands over to a
+ * live source, typically one that only fetches what changed since
+ * {@link MappedSnapshot#getResyncFrom()}. The map can paint the last known state before the
+ * first byte arrives from the network.
+ *
+ * <p>Only the first start delivers the snapshot. Stopping the feed clears the store, so later
+ * starts sync in full from {@code full} instead; replaying the snapshot again would bring back
+ * junctions deleted since it was taken. Emergency flags are dropped, so an alert is only raised
+ * by live data.
+ */
+public class SnapshotTrafficDataSource implements TrafficDataSource {
+  private final MappedSnapshot snapshot;
+  private final TrafficDataSource delta;
+  private final TrafficDataSource full;
+  private TrafficDataSource active;
+  private boolean replayed;
+
+  public SnapshotTrafficDataSource(MappedSnapshot snapshot, TrafficDataSource delta,
+      TrafficDataSource full) {
+    this.snapshot = snapshot;
+    this.delta = delta;
+    this.full = full;
+  }
+
+  @Override
+  public synchronized void start(Sink sink) {
+    if (replayed) {
+      active = full;
+    } else {
+      replayed = true;
+      for (int i = 0; i < snapshot.getJunctionCount(); i++) {
+        TrafficJunction junction = snapshot.toJunction(i);
+        junction.setEmergencyVehiclePresent(false);
+        sink.onJunctionUpserted(junction.getJunctionId(), junction);
+      }
+      active = delta;
+    }
+    active.start(sink);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (active != null) {
+      active.stop();
+      active = null;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package harish.project.maps.services;
+
+/**
+ * Point index over junction store indices. Implementations keep their own copy of the
+ * coordinates and are safe to query from any thread while a single writer updates them.
+ */
+public interface SpatialIndex {
+  void update(int index, double latitude, double longitude);
+
+  void remove(int index);
+
+  void clear();
+
+  int size();
+
+  // Appends every index inside the box to out and returns how many were added
+  int queryBox(double minLat, double minLon, double maxLat, double maxLon, IntList out);
+
+  // Appends every index within radiusMeters (haversine) to out and returns how many were added
+  int queryRadius(double latitude, double longitude, double radiusMeters, IntList out);
+
+  // Appends the k indices nearest to the point (haversine), nearest first; returns how many
+  int queryNearest(double latitude, double longitude, int k, IntList out);
+}
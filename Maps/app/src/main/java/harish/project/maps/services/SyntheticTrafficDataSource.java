@@ -0,0 +1,116 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a synthetic city: {@code junctionCount} junctions scattered around a centre point
+ * whose densities random-walk at a configurable aggregate update rate. Emergencies appear and
+ * clear at random. Deterministic for a given seed.
+ */
+public class SyntheticTrafficDataSource implements TrafficDataSource {
+  private static final long TICK_MS = 10;
+
+  private final int junctionCount;
+  private final double updatesPerSecond;
+  private final double centreLat;
+  private final double centreLon;
+  private final double spreadDegrees;
+  private final long seed;
+  private final double emergencyRate;
+
+  private ScheduledExecutorService executor;
+  private Random random;
+  private int[] densities;
+  private boolean[] emergencies;
+  private double[] latitudes;
+  private double[] longitudes;
+  private double carry;
+  // Written by the emitting thread only, read from any
+  private volatile long emitted;
+
+  public SyntheticTrafficDataSource(int junctionCount, double updatesPerSecond) {
+    // Defaults to roughly the extent of Bangalore
+    this(junctionCount, updatesPerSecond, 12.9716, 77.5946, 0.15, 42L, 0.001);
+  }
+
+  public SyntheticTrafficDataSource(int junctionCount, double updatesPerSecond,
+      double centreLat, double centreLon, double spreadDegrees, long seed, double emergencyRate) {
+    this.junctionCount = junctionCount;
+    this.updatesPerSecond = updatesPerSecond;
+    this.centreLat = centreLat;
+    this.centreLon = centreLon;
+    this.spreadDegrees = spreadDegrees;
+    this.seed = seed;
+    this.emergencyRate = emergencyRate;
+  }
+
+  @Override
+  public synchronized void start(Sink sink) {
+    if (executor != null) {
+      return;
+    }
+    random = new Random(seed);
+    densities = new int[junctionCount];
+    emergencies = new boolean[junctionCount];
+    latitudes = new double[junctionCount];
+    longitudes = new double[junctionCount];
+    carry = 0;
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "synthetic-traffic");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.execute(() -> {
+      for (int i = 0; i < junctionCount; i++) {
+        latitudes[i] = centreLat + (random.nextDouble() * 2 - 1) * spreadDegrees;
+        longitudes[i] = centreLon + (random.nextDouble() * 2 - 1) * spreadDegrees;
+        densities[i] = random.nextInt(101);
+        emit(sink, i);
+      }
+    });
+    executor.scheduleAtFixedRate(() -> tick(sink), TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  public long getEmittedCount() {
+    return emitted;
+  }
+
+  public static String junctionId(int i) {
+    return "SYN" + i;
+  }
+
+  private void tick(Sink sink) {
+    carry += updatesPerSecond * TICK_MS / 1000.0;
+    int updates = (int) carry;
+    carry -= updates;
+    for (int u = 0; u < updates; u++) {
+      int i = random.nextInt(junctionCount);
+      densities[i] = Math.max(0, Math.min(100, densities[i] + random.nextInt(21) - 10));
+      if (emergencies[i]) {
+        emergencies[i] = random.nextDouble() >= 0.1;
+      } else {
+        emergencies[i] = random.nextDouble() < emergencyRate;
+      }
+      emit(sink, i);
+    }
+  }
+
+  private void emit(Sink sink, int i) {
+    TrafficJunction junction = new TrafficJunction(junctionId(i), latitudes[i], longitudes[i],
+        densities[i], 10 + densities[i] / 5, emergencies[i]);
+    emitted++;
+    sink.onJunctionUpserted(junction.getJunctionId(), junction);
+  }
+}
@@ -0,0 +1,29 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Map;
+
+/**
+ * Origin of live junction state. The Firebase backend is one implementation; recorded
+ * streams and synthetic generators let the ingestion pipeline run without a network.
+ * Implementations call the sink from a single thread.
+ */
+public interface TrafficDataSource {
+  interface Sink {
+    void onJunctionUpserted(String junctionId, TrafficJunction junction);
+
+    // Raw child map as delivered by the backend, decoded without reflection
+    void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields);
+
+    void onJunctionRemoved(String junctionId);
+
+    // Full-tree delivery for sources that cannot report individual changes
+    void onSnapshot(Map<String, TrafficJunction> junctions);
+
+    void onError(String error);
+  }
+
+  void start(Sink sink);
+
+  void stop();
+}
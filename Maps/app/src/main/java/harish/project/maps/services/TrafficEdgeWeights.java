@@ -0,0 +1,154 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+
+/**
+ * Edge travel times slowed down by live junction density. Each junction is snapped to the
+ * nearest road graph node within {@link #SNAP_RADIUS_M}, and every edge entering that node
+ * takes {@code 1 + CONGESTION_PENALTY * density / 100} times its free-flow time, so a jammed
+ * junction costs up to three times as much to drive through. When several junctions snap to
+ * one node the latest update wins.
+ *
+ * <p>Attach with {@link JunctionStateStore#addObserver}. Searches on other threads read the
+ * factors without locking and may see a mix of old and new densities, which only affects
+ * which of two near-equal routes wins.
+ */
+public class TrafficEdgeWeights implements EdgeWeights, JunctionStateStore.Observer {
+  public static final double SNAP_RADIUS_M = 75;
+  public static final double CONGESTION_PENALTY = 2.0;
+
+  public interface Listener {
+    // Every edge entering the node changed travel time; called on the store's writer thread
+    void onNodeFactorChanged(int node);
+  }
+
+  private final RoadGraph graph;
+  private final float[] nodeFactors;
+  // Node each junction index is snapped to, or -1
+  private int[] junctionNodes = new int[0];
+  private double[] junctionLats = new double[0];
+  private double[] junctionLons = new double[0];
+  private volatile int version;
+  private volatile Listener listener;
+
+  public TrafficEdgeWeights(RoadGraph graph) {
+    this.graph = graph;
+    this.nodeFactors = new float[graph.getNodeCount()];
+    Arrays.fill(nodeFactors, 1f);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public double travelSeconds(int edge) {
+    return graph.getTravelSeconds(edge) * nodeFactors[graph.getTarget(edge)];
+  }
+
+  // Frozen copy of the current weights, for batch work that must see one consistent state
+  public EdgeWeights snapshot() {
+    float[] factors = nodeFactors.clone();
+    return edge -> graph.getTravelSeconds(edge) * factors[graph.getTarget(edge)];
+  }
+
+  public float getNodeFactor(int node) {
+    return nodeFactors[node];
+  }
+
+  // Node the junction is snapped to, or -1 if it is too far from every road
+  public int getJunctionNode(int index) {
+    int[] current = junctionNodes;
+    return index < current.length ? current[index] : -1;
+  }
+
+  // Changes whenever some edge's travel time changed
+  public int version() {
+    return version;
+  }
+
+  public static float factorOf(int density) {
+    return (float) (1 + CONGESTION_PENALTY * Math.max(0, Math.min(100, density)) / 100.0);
+  }
+
+  @Override
+  public void onJunctionUpdated(JunctionStateStore store, int index) {
+    ensureCapacity(index + 1);
+    double lat = store.getLatitude(index);
+    double lon = store.getLongitude(index);
+    int node = junctionNodes[index];
+    if (node < 0 || junctionLats[index] != lat || junctionLons[index] != lon) {
+      release(index);
+      node = snap(lat, lon);
+      junctionNodes[index] = node;
+      junctionLats[index] = lat;
+      junctionLons[index] = lon;
+    }
+    if (node >= 0) {
+      setFactor(node, factorOf(store.getVehicleDensity(index)));
+    }
+  }
+
+  @Override
+  public void onJunctionRemoved(JunctionStateStore store, int index) {
+    if (index < junctionNodes.length) {
+      release(index);
+    }
+  }
+
+  @Override
+  public void onCleared(JunctionStateStore store) {
+    Arrays.fill(junctionNodes, -1);
+    Listener current = listener;
+    for (int node = 0; node < nodeFactors.length; node++) {
+      if (nodeFactors[node] != 1f) {
+        nodeFactors[node] = 1f;
+        if (current != null) {
+          current.onNodeFactorChanged(node);
+        }
+      }
+    }
+    version++;
+  }
+
+  private int snap(double lat, double lon) {
+    int node = graph.nearestNode(lat, lon);
+    if (node < 0 || GeoMath.haversineMeters(lat, lon, graph.getLatitude(node),
+        graph.getLongitude(node)) > SNAP_RADIUS_M) {
+      return -1;
+    }
+    return node;
+  }
+
+  private void release(int index) {
+    int node = junctionNodes[index];
+    if (node >= 0) {
+      junctionNodes[index] = -1;
+      setFactor(node, 1f);
+    }
+  }
+
+  private void setFactor(int node, float factor) {
+    if (nodeFactors[node] != factor) {
+      nodeFactors[node] = factor;
+      version++;
+      Listener current = listener;
+      if (current != null) {
+        current.onNodeFactorChanged(node);
+      }
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= junctionNodes.length) {
+      return;
+    }
+    int previous = junctionNodes.length;
+    int grown = Math.max(capacity, previous * 2);
+    junctionLats = Arrays.copyOf(junctionLats, grown);
+    junctionLons = Arrays.copyOf(junctionLons, grown);
+    int[] nodes = Arrays.copyOf(junctionNodes, grown);
+    Arrays.fill(nodes, previous, grown, -1);
+    junctionNodes = nodes;
+  }
+}
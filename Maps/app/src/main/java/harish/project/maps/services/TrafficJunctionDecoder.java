@@ -0,0 +1,117 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Map;
+
+/**
+ * Hand-written decoder for the raw child maps Firebase hands out via
+ * {@code DataSnapshot.getValue()}. Replaces {@code getValue(TrafficJunction.class)}, which
+ * goes through bean reflection for every junction. Field names match the bean properties
+ * the reflective mapper would use, so existing data decodes identically.
+ */
+public final class TrafficJunctionDecoder {
+  public static final String JUNCTION_ID = "junctionId";
+  public static final String LATITUDE = "latitude";
+  public static final String LONGITUDE = "longitude";
+  public static final String VEHICLE_DENSITY = "vehicleDensity";
+  public static final String GREEN_LIGHT_DURATION = "greenLightDuration";
+  public static final String TIMESTAMP = "timestamp";
+  public static final String EMERGENCY_VEHICLE_PRESENT = "emergencyVehiclePresent";
+
+  private TrafficJunctionDecoder() {
+  }
+
+  // Writes the fields straight into the store without building a TrafficJunction; -1 if unusable
+  public static int decodeInto(JunctionStateStore store, String junctionId, Object raw) {
+    if (!(raw instanceof Map)) {
+      return -1;
+    }
+    Map<?, ?> fields = (Map<?, ?>) raw;
+    double latitude = 0;
+    double longitude = 0;
+    int density = 0;
+    int greenLight = 0;
+    long timestamp = 0;
+    boolean emergency = false;
+    for (Map.Entry<?, ?> field : fields.entrySet()) {
+      Object value = field.getValue();
+      switch ((String) field.getKey()) {
+        case LATITUDE:
+          latitude = toDouble(value);
+          break;
+        case LONGITUDE:
+          longitude = toDouble(value);
+          break;
+        case VEHICLE_DENSITY:
+          density = (int) toLong(value);
+          break;
+        case GREEN_LIGHT_DURATION:
+          greenLight = (int) toLong(value);
+          break;
+        case TIMESTAMP:
+          timestamp = toLong(value);
+          break;
+        case EMERGENCY_VEHICLE_PRESENT:
+          emergency = Boolean.TRUE.equals(value);
+          break;
+        default:
+          // Unknown fields are ignored, as the reflective mapper does
+          break;
+      }
+    }
+    int index = store.intern(junctionId);
+    store.update(index, latitude, longitude, density, greenLight, timestamp, emergency);
+    return index;
+  }
+
+  public static TrafficJunction decode(String junctionId, Object raw) {
+    if (!(raw instanceof Map)) {
+      return null;
+    }
+    TrafficJunction junction = new TrafficJunction();
+    junction.setJunctionId(junctionId);
+    for (Map.Entry<?, ?> field : ((Map<?, ?>) raw).entrySet()) {
+      Object value = field.getValue();
+      switch ((String) field.getKey()) {
+        case LATITUDE:
+          junction.setLatitude(toDouble(value));
+          break;
+        case LONGITUDE:
+          junction.setLongitude(toDouble(value));
+          break;
+        case VEHICLE_DENSITY:
+          junction.setVehicleDensity((int) toLong(value));
+          break;
+        case GREEN_LIGHT_DURATION:
+          junction.setGreenLightDuration((int) toLong(value));
+          break;
+        case TIMESTAMP:
+          junction.setTimestamp(toLong(value));
+          break;
+        case EMERGENCY_VEHICLE_PRESENT:
+          junction.setEmergencyVehiclePresent(Boolean.TRUE.equals(value));
+          break;
+        default:
+          break;
+      }
+    }
+    return junction;
+  }
+
+  // Reads a single field without decoding the rest, e.g. for history charts
+  public static int readVehicleDensity(Object raw) {
+    if (!(raw instanceof Map)) {
+      return -1;
+    }
+    Object value = ((Map<?, ?>) raw).get(VEHICLE_DENSITY);
+    return value instanceof Number ? ((Number) value).intValue() : -1;
+  }
+
+  private static double toDouble(Object value) {
+    return value instanceof Number ? ((Number) value).doubleValue() : 0;
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+}
@@ -0,0 +1,419 @@
+package harish.project.maps.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Keeps per-junction minute, hour and day aggregates of vehicle density up to date as
+ * samples arrive, so charts never have to read raw history.
+ *
+ * <p>Each process writes its own partial aggregate per bucket under
+ * {@code <tier>/<bucketStart>/<junctionId>/<writerId>}; bucket-first keys let a chart read a
+ * window with one key-range query. Partials are absolute values, so a flush can simply
+ * overwrite them, and readers merge partials with {@link #readSeries}. Each partial also
+ * carries the junction's location. Only buckets that are still open or not yet flushed are
+ * kept in memory.
+ *
+ * <p>Attach it to the live {@link JunctionStateStore} with
+ * {@link JunctionStateStore#addObserver} to aggregate every update as it is ingested; one
+ * rollup observes one store. Every connected app sees the same feed, so only the one holding
+ * the writer lease should aggregate it: {@link #setActiveFrom} admits store samples taken
+ * from the moment the lease was won, which also keeps out the current samples a new process
+ * is handed when it connects.
+ *
+ * <p>Buckets close per junction, a full bucket after that junction's own newest sample, so a
+ * junction whose clock runs ahead makes no other junction's samples late.
+ */
+public class TrafficRollup implements JunctionStateStore.Observer {
+  static final String COUNT = "count";
+  static final String SUM = "sum";
+  static final String MIN = "min";
+  static final String MAX = "max";
+  static final String HISTOGRAM = "histogram";
+
+  // Density is 0-100, so 5-wide bins give p95 to within 5 with a 21-slot histogram
+  static final int BIN_WIDTH = 5;
+  static final int BINS = 21;
+
+  public enum Tier {
+    MINUTE("minute", 60_000L),
+    HOUR("hour", 3_600_000L),
+    DAY("day", 86_400_000L);
+
+    private final String path;
+    private final long millis;
+
+    Tier(String path, long millis) {
+      this.path = path;
+      this.millis = millis;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long bucketStart(long timestamp) {
+      return Math.floorDiv(timestamp, millis) * millis;
+    }
+
+    // Coarsest tier that still gives at least minPoints buckets over the window
+    public static Tier forWindow(long windowMillis, int minPoints) {
+      Tier[] tiers = values();
+      for (int i = tiers.length - 1; i > 0; i--) {
+        if (windowMillis / tiers[i].millis >= minPoints) {
+          return tiers[i];
+        }
+      }
+      return MINUTE;
+    }
+  }
+
+  public static final class Aggregate {
+    private long count;
+    private long sum;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private final int[] histogram = new int[BINS];
+    // Where the junction is, so readers can place it without the raw history
+    private double latitude = Double.NaN;
+    private double longitude = Double.NaN;
+    private boolean dirty;
+
+    public void add(int value) {
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      histogram[bin(value)]++;
+      dirty = true;
+    }
+
+    public void setLocation(double latitude, double longitude) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+
+    public void merge(Aggregate other) {
+      if (!hasLocation()) {
+        setLocation(other.latitude, other.longitude);
+      }
+      count += other.count;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      for (int i = 0; i < BINS; i++) {
+        histogram[i] += other.histogram[i];
+      }
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public boolean hasLocation() {
+      return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    public double getLatitude() {
+      return latitude;
+    }
+
+    public double getLongitude() {
+      return longitude;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public int getMin() {
+      return count == 0 ? 0 : min;
+    }
+
+    public int getMax() {
+      return count == 0 ? 0 : max;
+    }
+
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // Upper edge of the bin holding the 95th percentile, capped at the observed maximum
+    public int getP95() {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * 0.95);
+      long seen = 0;
+      for (int i = 0; i < BINS; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          return Math.min(max, (i + 1) * BIN_WIDTH - 1);
+        }
+      }
+      return max;
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> fields = new HashMap<>();
+      fields.put(COUNT, count);
+      fields.put(SUM, sum);
+      fields.put(MIN, min);
+      fields.put(MAX, max);
+      List<Long> bins = new ArrayList<>(BINS);
+      for (int bin : histogram) {
+        bins.add((long) bin);
+      }
+      fields.put(HISTOGRAM, bins);
+      if (hasLocation()) {
+        fields.put(TrafficJunctionDecoder.LATITUDE, latitude);
+        fields.put(TrafficJunctionDecoder.LONGITUDE, longitude);
+      }
+      return fields;
+    }
+
+    // Firebase hands back numbers as Long and arrays as List; null if raw is not an aggregate
+    static Aggregate fromMap(Object raw) {
+      if (!(raw instanceof Map)) {
+        return null;
+      }
+      Map<?, ?> fields = (Map<?, ?>) raw;
+      Aggregate aggregate = new Aggregate();
+      aggregate.count = toLong(fields.get(COUNT));
+      aggregate.sum = toLong(fields.get(SUM));
+      aggregate.min = (int) toLong(fields.get(MIN));
+      aggregate.max = (int) toLong(fields.get(MAX));
+      Object latitude = fields.get(TrafficJunctionDecoder.LATITUDE);
+      Object longitude = fields.get(TrafficJunctionDecoder.LONGITUDE);
+      if (latitude instanceof Number && longitude instanceof Number) {
+        aggregate.setLocation(((Number) latitude).doubleValue(),
+            ((Number) longitude).doubleValue());
+      }
+      Object bins = fields.get(HISTOGRAM);
+      if (bins instanceof List) {
+        List<?> list = (List<?>) bins;
+        for (int i = 0; i < Math.min(BINS, list.size()); i++) {
+          aggregate.histogram[i] = (int) toLong(list.get(i));
+        }
+      }
+      return aggregate.count > 0 ? aggregate : null;
+    }
+
+    private static int bin(int value) {
+      return Math.max(0, Math.min(BINS - 1, value / BIN_WIDTH));
+    }
+  }
+
+  // What one junction has closed; kept per junction so clocks do not interfere
+  private static final class Clock {
+    long latest = Long.MIN_VALUE;
+    // Per tier, the newest bucket already flushed and forgotten; samples for it are late
+    final long[] evictedThrough = new long[Tier.values().length];
+
+    Clock() {
+      Arrays.fill(evictedThrough, Long.MIN_VALUE);
+    }
+  }
+
+  private final String writerId;
+  // tier ordinal -> junction -> bucket start -> aggregate
+  private final List<Map<String, TreeMap<Long, Aggregate>>> tiers = new ArrayList<>();
+  private final Map<String, Clock> clocks = new HashMap<>();
+  private long lateSamples;
+  // Timestamp of the last sample taken per store index, so a resync adds nothing twice
+  private long[] sampledAt = new long[0];
+  // Store samples taken before this belong to another writer, or to none
+  private long activeFrom = Long.MIN_VALUE;
+
+  public TrafficRollup() {
+    this(UUID.randomUUID().toString().replace("-", "").substring(0, 12));
+  }
+
+  public TrafficRollup(String writerId) {
+    this.writerId = writerId;
+    for (int i = 0; i < Tier.values().length; i++) {
+      tiers.add(new HashMap<>());
+    }
+  }
+
+  public String getWriterId() {
+    return writerId;
+  }
+
+  /**
+   * Aggregates store samples with a timestamp from fromMillis on; Long.MAX_VALUE stops
+   * aggregating, e.g. while another process holds the writer lease.
+   */
+  public synchronized void setActiveFrom(long fromMillis) {
+    activeFrom = fromMillis;
+  }
+
+  public void add(String junctionId, long timestamp, int density) {
+    add(junctionId, Double.NaN, Double.NaN, timestamp, density);
+  }
+
+  public synchronized void add(String junctionId, double latitude, double longitude,
+      long timestamp, int density) {
+    Clock clock = clocks.get(junctionId);
+    if (clock == null) {
+      clock = new Clock();
+      clocks.put(junctionId, clock);
+    }
+    clock.latest = Math.max(clock.latest, timestamp);
+    for (Tier tier : Tier.values()) {
+      if (tier.bucketStart(timestamp) <= clock.evictedThrough[tier.ordinal()]) {
+        // Its bucket is flushed and forgotten; a fresh partial would overwrite it
+        lateSamples++;
+        continue;
+      }
+      TreeMap<Long, Aggregate> buckets = tiers.get(tier.ordinal()).get(junctionId);
+      if (buckets == null) {
+        buckets = new TreeMap<>();
+        tiers.get(tier.ordinal()).put(junctionId, buckets);
+      }
+      long start = tier.bucketStart(timestamp);
+      Aggregate aggregate = buckets.get(start);
+      if (aggregate == null) {
+        aggregate = new Aggregate();
+        buckets.put(start, aggregate);
+      }
+      aggregate.add(density);
+      if (!Double.isNaN(latitude)) {
+        aggregate.setLocation(latitude, longitude);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void onJunctionUpdated(JunctionStateStore store, int index) {
+    long timestamp = store.getTimestamp(index);
+    if (index >= sampledAt.length) {
+      sampledAt = Arrays.copyOf(sampledAt, Math.max(index + 1, sampledAt.length * 2));
+    }
+    if (timestamp > 0 && timestamp != sampledAt[index]) {
+      sampledAt[index] = timestamp;
+      if (timestamp < activeFrom) {
+        return;
+      }
+      add(store.getJunctionId(index), store.getLatitude(index), store.getLongitude(index),
+          timestamp, store.getVehicleDensity(index));
+    }
+  }
+
+  @Override
+  public void onJunctionRemoved(JunctionStateStore store, int index) {
+    // Aggregates outlive the live junction
+  }
+
+  @Override
+  public void onCleared(JunctionStateStore store) {
+  }
+
+  public synchronized Aggregate get(Tier tier, String junctionId, long timestamp) {
+    TreeMap<Long, Aggregate> buckets = tiers.get(tier.ordinal()).get(junctionId);
+    return buckets != null ? buckets.get(tier.bucketStart(timestamp)) : null;
+  }
+
+  // Every junction seen so far, including ones whose buckets were already evicted
+  public synchronized List<String> getJunctionIds() {
+    return new ArrayList<>(clocks.keySet());
+  }
+
+  /**
+   * Adds every bucket changed since the last drain to updates as a relative path, then
+   * forgets buckets that are both flushed and closed. A quiet junction keeps at most its two
+   * newest buckets per tier. Returns the number of buckets added.
+   */
+  public synchronized int drainDirty(Map<String, Object> updates) {
+    int drained = 0;
+    for (Tier tier : Tier.values()) {
+      Iterator<Map.Entry<String, TreeMap<Long, Aggregate>>> junctions =
+          tiers.get(tier.ordinal()).entrySet().iterator();
+      while (junctions.hasNext()) {
+        Map.Entry<String, TreeMap<Long, Aggregate>> junction = junctions.next();
+        Clock clock = clocks.get(junction.getKey());
+        // A bucket is closed once the junction has a sample a full bucket later
+        long closedBefore = tier.bucketStart(clock.latest) - tier.millis;
+        Iterator<Map.Entry<Long, Aggregate>> buckets = junction.getValue().entrySet().iterator();
+        while (buckets.hasNext()) {
+          Map.Entry<Long, Aggregate> bucket = buckets.next();
+          Aggregate aggregate = bucket.getValue();
+          if (aggregate.dirty) {
+            updates.put(tier.path + "/" + bucket.getKey() + "/" + junction.getKey() + "/"
+                + writerId, aggregate.toMap());
+            aggregate.dirty = false;
+            drained++;
+          }
+          if (bucket.getKey() <= closedBefore) {
+            buckets.remove();
+            clock.evictedThrough[tier.ordinal()] =
+                Math.max(clock.evictedThrough[tier.ordinal()], bucket.getKey());
+          }
+        }
+        if (junction.getValue().isEmpty()) {
+          junctions.remove();
+        }
+      }
+    }
+    return drained;
+  }
+
+  // Samples skipped in some tier because they arrived after their bucket closed
+  public synchronized long getLateSampleCount() {
+    return lateSamples;
+  }
+
+  /**
+   * Merges a tier as read from the backend ({@code bucket -> junction -> writer -> fields})
+   * into one aggregate per bucket across all junctions, skipping buckets before fromMillis.
+   */
+  public static TreeMap<Long, Aggregate> readSeries(Object rawTier, long fromMillis) {
+    TreeMap<Long, Aggregate> series = new TreeMap<>();
+    if (!(rawTier instanceof Map)) {
+      return series;
+    }
+    for (Map.Entry<?, ?> bucket : ((Map<?, ?>) rawTier).entrySet()) {
+      long start;
+      try {
+        start = Long.parseLong(String.valueOf(bucket.getKey()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (start < fromMillis || !(bucket.getValue() instanceof Map)) {
+        continue;
+      }
+      for (Object junction : ((Map<?, ?>) bucket.getValue()).values()) {
+        if (!(junction instanceof Map)) {
+          continue;
+        }
+        for (Object partial : ((Map<?, ?>) junction).values()) {
+          Aggregate aggregate = Aggregate.fromMap(partial);
+          if (aggregate == null) {
+            continue;
+          }
+          Aggregate merged = series.get(start);
+          if (merged == null) {
+            series.put(start, aggregate);
+          } else {
+            merged.merge(aggregate);
+          }
+        }
+      }
+    }
+    return series;
+  }
+
+  private static long toLong(Object value) {
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+}
@@ -1,14 +1,25 @@
 package harish.project.maps.services;
 
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import harish.project.maps.models.TrafficJunction;
 import java.util.ArrayList;
 import java.util.List;
 
 public class TrafficService {
-  private static final double TRAFFIC_RADIUS = 100.0; // meters
-  private static final int HEAVY_TRAFFIC_THRESHOLD = 60;
-  private static final int MODERATE_TRAFFIC_THRESHOLD = 30;
+  public static final double DEFAULT_RADIUS = 100.0; // meters
+  static final int HEAVY_TRAFFIC_THRESHOLD = 60;
+  static final int MODERATE_TRAFFIC_THRESHOLD = 30;
+
+  private volatile double radiusMeters;
+
+  public TrafficService() {
+    this(DEFAULT_RADIUS);
+  }
+
+  public TrafficService(double radiusMeters) {
+    this.radiusMeters = radiusMeters;
+  }
 
   public interface TrafficCallback {
     void onTrafficUpdate(List<TrafficJunction> junctions);
@@ -16,24 +27,106 @@ public class TrafficService {
     void onError(String error);
   }
 
-  public void analyzeTrafficDensity(List<TrafficJunction> junctions, LatLng location, TrafficCallback callback) {
+  public double getRadius() {
+    return radiusMeters;
+  }
+
+  public void setRadius(double radiusMeters) {
+    this.radiusMeters = radiusMeters;
+  }
+
+  public void analyzeTrafficDensity(JunctionStateStore store, LatLng location, TrafficCallback callback) {
+    analyzeTrafficDensity(store, location, radiusMeters, callback);
+  }
+
+  public void analyzeTrafficDensity(JunctionStateStore store, LatLng location,
+      double radiusMeters, TrafficCallback callback) {
     try {
-      List<TrafficJunction> nearbyJunctions = new ArrayList<>();
+      IntList matches = new IntList();
+      findWithinRadius(store, location.latitude, location.longitude, radiusMeters, matches);
+      callback.onTrafficUpdate(toJunctions(store, matches));
+    } catch (Exception e) {
+      callback.onError("Error analyzing traffic: " + e.getMessage());
+    }
+  }
 
-      for (TrafficJunction junction : junctions) {
-        double distance = calculateDistance(
-            location.latitude, location.longitude,
-            junction.getLatitude(), junction.getLongitude());
+  public List<TrafficJunction> findJunctionsInBounds(JunctionStateStore store, LatLngBounds bounds) {
+    IntList matches = new IntList();
+    SpatialIndex index = store.getSpatialIndex();
+    if (index != null) {
+      index.queryBox(bounds.southwest.latitude, bounds.southwest.longitude,
+          bounds.northeast.latitude, bounds.northeast.longitude, matches);
+    } else {
+      for (int i = 0; i < store.size(); i++) {
+        double lat = store.getLatitude(i);
+        double lon = store.getLongitude(i);
+        if (store.isPresent(i) && lat >= bounds.southwest.latitude
+            && lat <= bounds.northeast.latitude && lon >= bounds.southwest.longitude
+            && lon <= bounds.northeast.longitude) {
+          matches.add(i);
+        }
+      }
+    }
+    return toJunctions(store, matches);
+  }
 
-        if (distance <= TRAFFIC_RADIUS) {
-          nearbyJunctions.add(junction);
+  // The k junctions nearest to the location, nearest first
+  public List<TrafficJunction> findNearestJunctions(JunctionStateStore store, LatLng location,
+      int k) {
+    IntList matches = new IntList(k);
+    SpatialIndex index = store.getSpatialIndex();
+    if (index != null) {
+      index.queryNearest(location.latitude, location.longitude, k, matches);
+    } else {
+      NearestCollector nearest = new NearestCollector(k);
+      for (int i = 0; i < store.size(); i++) {
+        if (store.isPresent(i)) {
+          nearest.offer(i, GeoMath.haversineMeters(location.latitude, location.longitude,
+              store.getLatitude(i), store.getLongitude(i)));
         }
       }
+      nearest.drainSorted(matches);
+    }
+    return toJunctions(store, matches);
+  }
 
-      callback.onTrafficUpdate(nearbyJunctions);
-    } catch (Exception e) {
-      callback.onError("Error analyzing traffic: " + e.getMessage());
+  // Junctions within corridorMeters of the route, in the order the route passes them
+  public List<TrafficJunction> findJunctionsAlongRoute(JunctionStateStore store,
+      RouteCorridor route, double corridorMeters) {
+    IntList matches = new IntList();
+    for (RouteCorridor.Match match : route.query(store, corridorMeters)) {
+      matches.add(match.index);
     }
+    return toJunctions(store, matches);
+  }
+
+  // Uses the store's spatial index when one is attached, otherwise scans every junction
+  int findWithinRadius(JunctionStateStore store, double latitude, double longitude,
+      double radiusMeters, IntList out) {
+    SpatialIndex index = store.getSpatialIndex();
+    if (index != null) {
+      return index.queryRadius(latitude, longitude, radiusMeters, out);
+    }
+    int start = out.size();
+    GeoMath.Proximity proximity = new GeoMath.Proximity(latitude, longitude, radiusMeters);
+    for (int i = 0; i < store.size(); i++) {
+      if (store.isPresent(i) && proximity.contains(store.getLatitude(i), store.getLongitude(i))) {
+        out.add(i);
+      }
+    }
+    return out.size() - start;
+  }
+
+  private static List<TrafficJunction> toJunctions(JunctionStateStore store, IntList indices) {
+    List<TrafficJunction> junctions = new ArrayList<>(indices.size());
+    for (int i = 0; i < indices.size(); i++) {
+      int index = indices.get(i);
+      // The index may briefly lag a removal made by the writer thread
+      if (store.isPresent(index)) {
+        junctions.add(store.toJunction(index));
+      }
+    }
+    return junctions;
   }
 
   public String getTrafficStatus(int density) {
@@ -55,19 +148,4 @@ public class TrafficService {
       return 0x8000FF00; // Green with 50% opacity
     }
   }
-
-  private double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
-    double R = 6371e3; // Earth's radius in meters
-    double φ1 = Math.toRadians(lat1);
-    double φ2 = Math.toRadians(lat2);
-    double Δφ = Math.toRadians(lat2 - lat1);
-    double Δλ = Math.toRadians(lon2 - lon1);
-
-    double a = Math.sin(Δφ / 2) * Math.sin(Δφ / 2) +
-        Math.cos(φ1) * Math.cos(φ2) *
-            Math.sin(Δλ / 2) * Math.sin(Δλ / 2);
-    double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-    return R * c; // Distance in meters
-  }
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, versioned binary format for junction telemetry batches. Encoder and decoder each
+ * keep per-session state, so a stream must be decoded in the order it was encoded.
+ *
+ * <pre>
+ * batch   := 'T' version:u8 count:u32 record*
+ * record  := flags:u8 id:varint [name] [coords] [sample]
+ * name    := length:varint utf8-bytes              (FLAG_DEFINE, first use of an id)
+ * coords  := lat:zigzag lon:zigzag                 (FLAG_COORDS, 1e-6 degree units)
+ * sample  := density:varint green:varint dt:zigzag (absent when FLAG_REMOVED)
+ * </pre>
+ *
+ * Junction ids are replaced by session-local varints after their first appearance,
+ * coordinates are only resent when they move, and timestamps are deltas against the
+ * previous record.
+ */
+public final class TrafficWireCodec {
+  public static final byte MAGIC = 'T';
+  public static final byte VERSION = 1;
+
+  static final int FLAG_EMERGENCY = 1;
+  static final int FLAG_REMOVED = 1 << 1;
+  static final int FLAG_DEFINE = 1 << 2;
+  static final int FLAG_COORDS = 1 << 3;
+
+  private static final double COORD_SCALE = 1e6;
+
+  private TrafficWireCodec() {
+  }
+
+  public interface Visitor {
+    void onJunction(String junctionId, double latitude, double longitude, int vehicleDensity,
+        int greenLightDuration, long timestamp, boolean emergencyVehiclePresent);
+
+    void onJunctionRemoved(String junctionId);
+  }
+
+  public static class Encoder {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int[] lastLat = new int[64];
+    private int[] lastLon = new int[64];
+    private long lastTimestamp;
+    private ByteBuffer out;
+    private int countPosition;
+    private int count;
+
+    public void beginBatch(ByteBuffer out) {
+      if (this.out != null) {
+        throw new IllegalStateException("Batch already open");
+      }
+      this.out = out;
+      out.put(MAGIC).put(VERSION);
+      countPosition = out.position();
+      out.putInt(0);
+      count = 0;
+    }
+
+    public void write(TrafficJunction junction) {
+      write(junction.getJunctionId(), junction.getLatitude(), junction.getLongitude(),
+          junction.getVehicleDensity(), junction.getGreenLightDuration(),
+          junction.getTimestamp(), junction.isEmergencyVehiclePresent());
+    }
+
+    public void write(JunctionStateStore store, int index) {
+      write(store.getJunctionId(index), store.getLatitude(index), store.getLongitude(index),
+          store.getVehicleDensity(index), store.getGreenLightDuration(index),
+          store.getTimestamp(index), store.isEmergencyVehiclePresent(index));
+    }
+
+    // On overflow the buffer is rewound to the last complete record and the session is untouched
+    public void write(String junctionId, double latitude, double longitude, int vehicleDensity,
+        int greenLightDuration, long timestamp, boolean emergency) {
+      Integer known = ids.get(junctionId);
+      int id = known != null ? known : ids.size();
+      int lat = (int) Math.round(latitude * COORD_SCALE);
+      int lon = (int) Math.round(longitude * COORD_SCALE);
+      boolean coords = known == null || lastLat[id] != lat || lastLon[id] != lon;
+      int flags = (emergency ? FLAG_EMERGENCY : 0)
+          | (known == null ? FLAG_DEFINE : 0)
+          | (coords ? FLAG_COORDS : 0);
+
+      int start = out.position();
+      try {
+        out.put((byte) flags);
+        putVarint(out, id);
+        if (known == null) {
+          putString(out, junctionId);
+        }
+        if (coords) {
+          putVarint(out, zigzag(lat));
+          putVarint(out, zigzag(lon));
+        }
+        putVarint(out, vehicleDensity);
+        putVarint(out, greenLightDuration);
+        putVarint(out, zigzag(timestamp - lastTimestamp));
+      } catch (BufferOverflowException e) {
+        out.position(start);
+        throw e;
+      }
+
+      if (known == null) {
+        ids.put(junctionId, id);
+        if (id >= lastLat.length) {
+          lastLat = Arrays.copyOf(lastLat, lastLat.length * 2);
+          lastLon = Arrays.copyOf(lastLon, lastLon.length * 2);
+        }
+      }
+      lastLat[id] = lat;
+      lastLon[id] = lon;
+      lastTimestamp = timestamp;
+      count++;
+    }
+
+    public void writeRemoval(String junctionId) {
+      Integer known = ids.get(junctionId);
+      int start = out.position();
+      try {
+        out.put((byte) (FLAG_REMOVED | (known == null ? FLAG_DEFINE : 0)));
+        putVarint(out, known != null ? known : ids.size());
+        if (known == null) {
+          putString(out, junctionId);
+        }
+      } catch (BufferOverflowException e) {
+        out.position(start);
+        throw e;
+      }
+      if (known == null) {
+        int id = ids.size();
+        ids.put(junctionId, id);
+        if (id >= lastLat.length) {
+          lastLat = Arrays.copyOf(lastLat, lastLat.length * 2);
+          lastLon = Arrays.copyOf(lastLon, lastLon.length * 2);
+        }
+        // Force coordinates on the next sample for this id
+        lastLat[id] = Integer.MIN_VALUE;
+      }
+      count++;
+    }
+
+    // Returns the number of records in the finished batch
+    public int endBatch() {
+      out.putInt(countPosition, count);
+      out = null;
+      return count;
+    }
+
+    public int getRecordCount() {
+      return count;
+    }
+  }
+
+  public static class Decoder {
+    private final List<String> ids = new ArrayList<>();
+    private int[] lastLat = new int[64];
+    private int[] lastLon = new int[64];
+    private long lastTimestamp;
+
+    // Decodes one batch from the buffer's position and returns the number of records
+    public int decode(ByteBuffer in, Visitor visitor) {
+      try {
+        if (in.get() != MAGIC) {
+          throw new IllegalArgumentException("Not a traffic batch");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+          throw new IllegalArgumentException("Unsupported traffic batch version " + version);
+        }
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+          readRecord(in, visitor);
+        }
+        return count;
+      } catch (BufferUnderflowException e) {
+        throw new IllegalArgumentException("Truncated traffic batch", e);
+      }
+    }
+
+    public int decodeInto(ByteBuffer in, JunctionStateStore store) {
+      return decode(in, new Visitor() {
+        @Override
+        public void onJunction(String junctionId, double latitude, double longitude,
+            int vehicleDensity, int greenLightDuration, long timestamp, boolean emergency) {
+          store.update(store.intern(junctionId), latitude, longitude, vehicleDensity,
+              greenLightDuration, timestamp, emergency);
+        }
+
+        @Override
+        public void onJunctionRemoved(String junctionId) {
+          store.remove(store.indexOf(junctionId));
+        }
+      });
+    }
+
+    private void readRecord(ByteBuffer in, Visitor visitor) {
+      int flags = in.get() & 0xFF;
+      int id = getVarint(in);
+      if ((flags & FLAG_DEFINE) != 0) {
+        if (id != ids.size()) {
+          throw new IllegalArgumentException("Out of order junction definition " + id);
+        }
+        ids.add(getString(in));
+        if (id >= lastLat.length) {
+          lastLat = Arrays.copyOf(lastLat, lastLat.length * 2);
+          lastLon = Arrays.copyOf(lastLon, lastLon.length * 2);
+        }
+      } else if (id >= ids.size()) {
+        throw new IllegalArgumentException("Unknown junction id " + id);
+      }
+      String junctionId = ids.get(id);
+      if ((flags & FLAG_REMOVED) != 0) {
+        visitor.onJunctionRemoved(junctionId);
+        return;
+      }
+      if ((flags & FLAG_COORDS) != 0) {
+        lastLat[id] = unzigzag(getVarint(in));
+        lastLon[id] = unzigzag(getVarint(in));
+      }
+      int density = getVarint(in);
+      int green = getVarint(in);
+      lastTimestamp += unzigzagLong(getVarLong(in));
+      visitor.onJunction(junctionId, lastLat[id] / COORD_SCALE, lastLon[id] / COORD_SCALE,
+          density, green, lastTimestamp, (flags & FLAG_EMERGENCY) != 0);
+    }
+  }
+
+  static void putVarint(ByteBuffer out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.put((byte) value);
+  }
+
+  static int getVarint(ByteBuffer in) {
+    return (int) getVarLong(in);
+  }
+
+  static long getVarLong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static int unzigzag(long value) {
+    return (int) unzigzagLong(value);
+  }
+
+  static long unzigzagLong(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void putString(ByteBuffer out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    putVarint(out, bytes.length);
+    out.put(bytes);
+  }
+
+  private static String getString(ByteBuffer in) {
+    // Checked before allocating, so a corrupt length cannot ask for a huge or negative array
+    long length = getVarLong(in);
+    if (length < 0 || length > in.remaining()) {
+      throw new IllegalArgumentException("Bad junction id length " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,218 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Travel times between many origins and many destinations, e.g. every ambulance to every open
+ * incident. Each origin gets one Dijkstra search that stops once all destinations are settled,
+ * or each destination one backward search when there are fewer of them, and the searches run
+ * in parallel on a {@link ForkJoinPool}.
+ *
+ * <p>Workers share the graph and the weights without locking, so the weights must not change
+ * during a call; pass {@link TrafficEdgeWeights#snapshot()} rather than the live weights. Each
+ * pool thread keeps its own search arrays between calls. Calls may come from any thread.
+ */
+public class TravelTimeMatrix {
+  public static final double UNREACHABLE = Double.POSITIVE_INFINITY;
+
+  private final RoadGraph graph;
+  private final ForkJoinPool pool;
+  private final ThreadLocal<Search> searches;
+  private volatile long lastNanos;
+  private volatile long lastRoutes;
+
+  public TravelTimeMatrix(RoadGraph graph) {
+    this(graph, ForkJoinPool.commonPool());
+  }
+
+  public TravelTimeMatrix(RoadGraph graph, ForkJoinPool pool) {
+    this.graph = graph;
+    this.pool = pool;
+    searches = ThreadLocal.withInitial(() -> new Search(graph.getNodeCount()));
+  }
+
+  /**
+   * Seconds from each origin to each destination, row-major:
+   * {@code result[i * destinations.length + j]}. {@link #UNREACHABLE} where no path exists.
+   */
+  public double[] compute(int[] origins, int[] destinations, EdgeWeights weights) {
+    long start = System.nanoTime();
+    double[] result = new double[origins.length * destinations.length];
+    if (result.length > 0) {
+      // Fewer searches win; a backward search fills a column instead of a row
+      boolean backward = destinations.length < origins.length;
+      pool.invoke(new Searches(backward ? destinations : origins,
+          backward ? origins : destinations, backward, weights, result, 0,
+          backward ? destinations.length : origins.length));
+    }
+    lastRoutes = result.length;
+    lastNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Index of the origin that reaches the destination soonest, or -1 if none can. One backward
+   * search from the destination, stopped at the first origin it settles.
+   */
+  public int nearestOrigin(int[] origins, int destination, EdgeWeights weights) {
+    Search search = searches.get();
+    int node = search.run(destination, origins, true, weights, true);
+    if (node < 0) {
+      return -1;
+    }
+    for (int i = 0; i < origins.length; i++) {
+      if (origins[i] == node) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Graph node nearest to each point, -1 for an empty graph
+  public int[] nearestNodes(double[] latitudes, double[] longitudes) {
+    int[] nodes = new int[latitudes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = graph.nearestNode(latitudes[i], longitudes[i]);
+    }
+    return nodes;
+  }
+
+  // Origin-destination pairs answered by the last compute call
+  public long getLastRouteCount() {
+    return lastRoutes;
+  }
+
+  public double getLastRoutesPerSecond() {
+    long nanos = lastNanos;
+    return nanos == 0 ? 0 : lastRoutes * 1e9 / nanos;
+  }
+
+  private final class Searches extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] sources;
+    private final int[] targets;
+    private final boolean backward;
+    private final EdgeWeights weights;
+    private final double[] result;
+    private final int from;
+    private final int to;
+
+    Searches(int[] sources, int[] targets, boolean backward, EdgeWeights weights,
+        double[] result, int from, int to) {
+      this.sources = sources;
+      this.targets = targets;
+      this.backward = backward;
+      this.weights = weights;
+      this.result = result;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Searches(sources, targets, backward, weights, result, from, middle),
+            new Searches(sources, targets, backward, weights, result, middle, to));
+        return;
+      }
+      Search search = searches.get();
+      search.run(sources[from], targets, backward, weights, false);
+      for (int j = 0; j < targets.length; j++) {
+        double seconds = search.costOf(targets[j]);
+        if (backward) {
+          result[j * sources.length + from] = seconds;
+        } else {
+          result[from * targets.length + j] = seconds;
+        }
+      }
+    }
+  }
+
+  // One thread's Dijkstra state, reset lazily by generation stamps
+  private final class Search {
+    private final double[] costs;
+    private final int[] seen;
+    private final int[] settled;
+    private final int[] targetStamps;
+    private final NodeHeap open = new NodeHeap(1024);
+    private int generation;
+
+    Search(int nodes) {
+      costs = new double[nodes];
+      seen = new int[nodes];
+      settled = new int[nodes];
+      targetStamps = new int[nodes];
+    }
+
+    /**
+     * Searches out of source (into it when backward) until every target is settled, or the
+     * first one when firstOnly. Returns the last target settled, or -1 if none was reached.
+     */
+    int run(int source, int[] targets, boolean backward, EdgeWeights weights,
+        boolean firstOnly) {
+      if (++generation == 0) {
+        Arrays.fill(seen, 0);
+        Arrays.fill(settled, 0);
+        Arrays.fill(targetStamps, 0);
+        generation = 1;
+      }
+      int remaining = 0;
+      for (int target : targets) {
+        if (target >= 0 && targetStamps[target] != generation) {
+          targetStamps[target] = generation;
+          remaining++;
+        }
+      }
+      int last = -1;
+      open.clear();
+      if (source < 0) {
+        return -1;
+      }
+      seen[source] = generation;
+      costs[source] = 0;
+      open.push(source, 0);
+      while (remaining > 0 && !open.isEmpty()) {
+        int node = open.pop();
+        if (settled[node] == generation) {
+          continue;
+        }
+        settled[node] = generation;
+        if (targetStamps[node] == generation) {
+          last = node;
+          remaining--;
+          if (firstOnly) {
+            break;
+          }
+        }
+        double cost = costs[node];
+        if (backward) {
+          for (int i = graph.firstInEdge(node); i < graph.endInEdge(node); i++) {
+            int e = graph.getInEdge(i);
+            relax(graph.getSource(e), cost + weights.travelSeconds(e));
+          }
+        } else {
+          for (int e = graph.firstEdge(node); e < graph.endEdge(node); e++) {
+            relax(graph.getTarget(e), cost + weights.travelSeconds(e));
+          }
+        }
+      }
+      return last;
+    }
+
+    double costOf(int node) {
+      return node >= 0 && settled[node] == generation ? costs[node] : UNREACHABLE;
+    }
+
+    private void relax(int node, double candidate) {
+      if (seen[node] != generation || (settled[node] != generation && candidate < costs[node])) {
+        seen[node] = generation;
+        costs[node] = candidate;
+        open.push(node, candidate);
+      }
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package harish.project.maps.services;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Typical congestion by time of week, learned from history: each road graph node with
+ * junctions snapped to it keeps a mean density for every 15-minute bin of the week, over all
+ * samples from those junctions, and from it the travel time factor for the edges entering it,
+ * as in {@link TrafficEdgeWeights}. Junctions that do not snap to the graph are not profiled.
+ * A node's bins are allocated one day at a time, when that day gets its first sample, so
+ * memory follows the nodes and days that actually have data.
+ *
+ * <p>Samples may be added from any thread; they queue until {@link #rebuild()}, which folds
+ * them in. Rebuilds belong to one background thread and lookups may run concurrently, seeing
+ * each bin either before or after the rebuild. A bin is a running mean of its first
+ * {@link #MAX_WEIGHT} samples and a moving average after that, so profiles follow gradual
+ * changes in traffic. Bins without samples count as free flow.
+ *
+ * <p>Attach with {@link JunctionStateStore#addObserver} to learn from live updates, and feed
+ * older samples from the hour rollup tier with {@link #addHourBucket}.
+ */
+public class TravelTimeProfile implements JunctionStateStore.Observer {
+  public static final long BIN_MILLIS = 15 * 60_000;
+  public static final int BINS_PER_DAY = 96;
+  public static final int BINS_PER_WEEK = 7 * BINS_PER_DAY;
+  public static final int MAX_WEIGHT = 1000;
+  private static final long WEEK_MILLIS = BINS_PER_WEEK * BIN_MILLIS;
+  private static final int DAYS = 7;
+  private static final int BINS_PER_HOUR = 4;
+
+  private final RoadGraph graph;
+  private final TimeZone zone;
+  private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+  private final LatencyHistogram rebuildLatency = new LatencyHistogram();
+
+  // Queued samples, swapped out wholesale by rebuild; guarded by the queue lock
+  private final Object queueLock = new Object();
+  private Samples queued = new Samples();
+  private Samples draining = new Samples();
+  private double[] queuedLats = new double[16];
+  private double[] queuedLons = new double[16];
+  private long[] lastTimestamps = new long[16];
+  private int slotCount;
+
+  // Junction slot -> node slot, -1 when the junction is off the graph; written by rebuild only
+  private volatile int[] junctionNodeSlots = new int[0];
+  private int builtSlots;
+
+  // Node profiles by nodeSlot * DAYS + day, one chunk of bins per day; a missing chunk or -1
+  // marks bins without samples. Chunks are written by rebuild only
+  private final int[] nodeSlots;
+  private int nodeSlotCount;
+  private volatile float[][] nodeMeans = new float[0][];
+  private char[][] nodeWeights = new char[0][];
+  private volatile int allocatedBins;
+  private volatile long appliedCount;
+  private volatile int version;
+
+  // Parallel sample columns; a new junction's slot is assigned when its first sample queues.
+  // A sample can stand for several readings with the same mean, as a rollup bucket does
+  private static final class Samples {
+    int[] slots = new int[256];
+    long[] timestamps = new long[256];
+    float[] densities = new float[256];
+    char[] weights = new char[256];
+    int size;
+
+    void add(int slot, long timestamp, float density, int weight) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        densities = Arrays.copyOf(densities, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+      slots[size] = slot;
+      timestamps[size] = timestamp;
+      densities[size] = Math.max(0, Math.min(100, density));
+      weights[size] = (char) weight;
+      size++;
+    }
+  }
+
+  public TravelTimeProfile(RoadGraph graph) {
+    this(graph, TimeZone.getDefault());
+  }
+
+  // Bins follow local clock time in the zone, so rush hour stays put across DST changes
+  public TravelTimeProfile(RoadGraph graph, TimeZone zone) {
+    this.graph = graph;
+    this.zone = zone;
+    nodeSlots = new int[graph.getNodeCount()];
+    Arrays.fill(nodeSlots, -1);
+  }
+
+  public void add(String junctionId, double latitude, double longitude, long timestamp,
+      int density) {
+    synchronized (queueLock) {
+      Integer slot = slots.get(junctionId);
+      if (slot == null) {
+        slot = newSlot(latitude, longitude);
+        slots.put(junctionId, slot);
+      } else if (lastTimestamps[slot] == timestamp) {
+        // The same reading delivered again, e.g. by a snapshot re-read
+        return;
+      }
+      lastTimestamps[slot] = timestamp;
+      queued.add(slot, timestamp, density, 1);
+    }
+  }
+
+  /**
+   * Adds one bucket of the hour rollup tier as read from the backend
+   * ({@code junctionId -> writerId -> aggregate}). Each junction's hourly mean goes into the
+   * four bins of the hour with a quarter of its sample count as weight. Buckets that end
+   * after untilMillis are skipped, since live updates cover them, as are junctions never seen
+   * before whose partials carry no location to snap them by. Returns the junctions added.
+   */
+  public int addHourBucket(long hourStart, Object rawBucket, long untilMillis) {
+    if (hourStart + BINS_PER_HOUR * BIN_MILLIS > untilMillis || !(rawBucket instanceof Map)) {
+      return 0;
+    }
+    int added = 0;
+    for (Map.Entry<?, ?> junction : ((Map<?, ?>) rawBucket).entrySet()) {
+      if (!(junction.getValue() instanceof Map)) {
+        continue;
+      }
+      TrafficRollup.Aggregate merged = null;
+      for (Object partial : ((Map<?, ?>) junction.getValue()).values()) {
+        TrafficRollup.Aggregate aggregate = TrafficRollup.Aggregate.fromMap(partial);
+        if (aggregate == null) {
+          continue;
+        }
+        if (merged == null) {
+          merged = aggregate;
+        } else {
+          merged.merge(aggregate);
+        }
+      }
+      if (merged == null) {
+        continue;
+      }
+      String junctionId = String.valueOf(junction.getKey());
+      int weight = (int) Math.max(1, Math.min(MAX_WEIGHT, merged.getCount() / BINS_PER_HOUR));
+      float density = (float) merged.getMean();
+      synchronized (queueLock) {
+        Integer slot = slots.get(junctionId);
+        if (slot == null) {
+          if (!merged.hasLocation()) {
+            continue;
+          }
+          slot = newSlot(merged.getLatitude(), merged.getLongitude());
+          slots.put(junctionId, slot);
+        }
+        for (int quarter = 0; quarter < BINS_PER_HOUR; quarter++) {
+          queued.add(slot, hourStart + quarter * BIN_MILLIS, density, weight);
+        }
+      }
+      added++;
+    }
+    return added;
+  }
+
+  @Override
+  public void onJunctionUpdated(JunctionStateStore store, int index) {
+    long timestamp = store.getTimestamp(index);
+    if (timestamp > 0) {
+      add(store.getJunctionId(index), store.getLatitude(index), store.getLongitude(index),
+          timestamp, store.getVehicleDensity(index));
+    }
+  }
+
+  @Override
+  public void onJunctionRemoved(JunctionStateStore store, int index) {
+    // History outlives the live junction
+  }
+
+  @Override
+  public void onCleared(JunctionStateStore store) {
+  }
+
+  /** Folds queued samples into the profiles and returns how many were applied. */
+  public int rebuild() {
+    long start = System.nanoTime();
+    Samples batch;
+    synchronized (queueLock) {
+      batch = queued;
+      queued = draining;
+      draining = batch;
+      growJunctions(slotCount);
+    }
+    int applied = batch.size;
+    if (applied == 0) {
+      return 0;
+    }
+    int[] nodeSlotsOf = junctionNodeSlots;
+    float[][] means = nodeMeans;
+    for (int i = 0; i < applied; i++) {
+      int nodeSlot = nodeSlotsOf[batch.slots[i]];
+      if (nodeSlot < 0) {
+        continue;
+      }
+      int bin = weekBin(batch.timestamps[i]);
+      int chunk = nodeSlot * DAYS + bin / BINS_PER_DAY;
+      int at = bin % BINS_PER_DAY;
+      float[] dayMeans = means[chunk];
+      if (dayMeans == null) {
+        dayMeans = new float[BINS_PER_DAY];
+        Arrays.fill(dayMeans, -1f);
+        nodeWeights[chunk] = new char[BINS_PER_DAY];
+        means[chunk] = dayMeans;
+        allocatedBins += BINS_PER_DAY;
+      }
+      char[] dayWeights = nodeWeights[chunk];
+      int added = batch.weights[i];
+      int weight = Math.min(MAX_WEIGHT, dayWeights[at] + added);
+      float mean = dayWeights[at] == 0 ? 0 : dayMeans[at];
+      dayMeans[at] = mean + (batch.densities[i] - mean) * Math.min(added, weight) / weight;
+      dayWeights[at] = (char) weight;
+    }
+    batch.size = 0;
+    appliedCount += applied;
+    version++;
+    rebuildLatency.recordNanos(System.nanoTime() - start);
+    return applied;
+  }
+
+  // Bin of the week in the profile's zone; bin 0 starts on Thursday at midnight, like epoch day 0
+  public int weekBin(long timeMillis) {
+    return binAt(timeMillis, zone.getOffset(timeMillis));
+  }
+
+  /**
+   * Typical density at the node the junction snapped to, at that time of week, or -1 without
+   * samples or for a junction off the graph.
+   */
+  public float getDensity(String junctionId, long timeMillis) {
+    Integer slot = slots.get(junctionId);
+    int[] nodeSlotsOf = junctionNodeSlots;
+    if (slot == null || slot >= nodeSlotsOf.length || nodeSlotsOf[slot] < 0) {
+      return -1;
+    }
+    return meanAt(nodeSlotsOf[slot], weekBin(timeMillis));
+  }
+
+  // Factor applied to the free-flow time of every edge entering the node at that time of week
+  public float getNodeFactor(int node, long timeMillis) {
+    return factorAt(node, weekBin(timeMillis));
+  }
+
+  public double travelSeconds(int edge, long timeMillis) {
+    return graph.getTravelSeconds(edge) * getNodeFactor(graph.getTarget(edge), timeMillis);
+  }
+
+  public double estimateSeconds(Route route, long departMillis) {
+    return arrivalSeconds(route, departMillis, null);
+  }
+
+  /**
+   * Predicts the trip departing at departMillis segment by segment, each segment priced at the
+   * time the route reaches it. Fills out, if given, with the seconds from departure to each
+   * node of the route and returns the total.
+   */
+  public double arrivalSeconds(Route route, long departMillis, double[] out) {
+    // The offset is taken once; a DST change during the trip shifts it by at most one hour
+    long offset = zone.getOffset(departMillis);
+    double elapsed = 0;
+    if (out != null) {
+      out[0] = 0;
+    }
+    for (int i = 1; i < route.getNodeCount(); i++) {
+      int edge = edgeBetween(route.getNode(i - 1), route.getNode(i));
+      if (edge >= 0) {
+        long at = departMillis + (long) (elapsed * 1000);
+        elapsed += graph.getTravelSeconds(edge) * factorAt(route.getNode(i), binAt(at, offset));
+      }
+      if (out != null) {
+        out[i] = elapsed;
+      }
+    }
+    return elapsed;
+  }
+
+  public int getJunctionCount() {
+    return slots.size();
+  }
+
+  public int getPendingCount() {
+    synchronized (queueLock) {
+      return queued.size;
+    }
+  }
+
+  // Bins held across all node profiles; grows with the nodes and days that have samples
+  public int getAllocatedBinCount() {
+    return allocatedBins;
+  }
+
+  public long getAppliedCount() {
+    return appliedCount;
+  }
+
+  // Changes after every rebuild that applied samples
+  public int version() {
+    return version;
+  }
+
+  public LatencyHistogram getRebuildLatency() {
+    return rebuildLatency;
+  }
+
+  private static int binAt(long timeMillis, long offsetMillis) {
+    return (int) (Math.floorMod(timeMillis + offsetMillis, WEEK_MILLIS) / BIN_MILLIS);
+  }
+
+  private float factorAt(int node, int bin) {
+    int slot = nodeSlots[node];
+    float mean = slot < 0 ? -1 : meanAt(slot, bin);
+    return mean < 0 ? 1f
+        : (float) (1 + TrafficEdgeWeights.CONGESTION_PENALTY * mean / 100.0);
+  }
+
+  private float meanAt(int nodeSlot, int bin) {
+    float[][] means = nodeMeans;
+    int chunk = nodeSlot * DAYS + bin / BINS_PER_DAY;
+    // A node slot can be seen before the grown chunk table that covers it
+    float[] dayMeans = chunk < means.length ? means[chunk] : null;
+    return dayMeans == null ? -1 : dayMeans[bin % BINS_PER_DAY];
+  }
+
+  // The fastest edge from a to b, or -1 if the route left the graph
+  private int edgeBetween(int a, int b) {
+    int best = -1;
+    for (int e = graph.firstEdge(a); e < graph.endEdge(a); e++) {
+      if (graph.getTarget(e) == b
+          && (best < 0 || graph.getTravelSeconds(e) < graph.getTravelSeconds(best))) {
+        best = e;
+      }
+    }
+    return best;
+  }
+
+  private int newSlot(double latitude, double longitude) {
+    int slot = slotCount++;
+    if (slot == queuedLats.length) {
+      queuedLats = Arrays.copyOf(queuedLats, slot * 2);
+      queuedLons = Arrays.copyOf(queuedLons, slot * 2);
+      lastTimestamps = Arrays.copyOf(lastTimestamps, slot * 2);
+    }
+    queuedLats[slot] = latitude;
+    queuedLons[slot] = longitude;
+    lastTimestamps[slot] = Long.MIN_VALUE;
+    return slot;
+  }
+
+  // Called with the queue lock held; snaps junctions that queued their first sample
+  private void growJunctions(int count) {
+    if (count <= builtSlots) {
+      return;
+    }
+    int[] nodeSlotsOf = junctionNodeSlots;
+    if (count > nodeSlotsOf.length) {
+      int grown = Math.max(count, nodeSlotsOf.length * 2);
+      nodeSlotsOf = Arrays.copyOf(nodeSlotsOf, grown);
+      Arrays.fill(nodeSlotsOf, count, grown, -1);
+    }
+    for (int slot = builtSlots; slot < count; slot++) {
+      nodeSlotsOf[slot] = snap(queuedLats[slot], queuedLons[slot]);
+    }
+    junctionNodeSlots = nodeSlotsOf;
+    builtSlots = count;
+  }
+
+  private int snap(double latitude, double longitude) {
+    int node = graph.nearestNode(latitude, longitude);
+    if (node < 0 || GeoMath.haversineMeters(latitude, longitude, graph.getLatitude(node),
+        graph.getLongitude(node)) > TrafficEdgeWeights.SNAP_RADIUS_M) {
+      return -1;
+    }
+    int nodeSlot = nodeSlots[node];
+    if (nodeSlot < 0) {
+      nodeSlot = nodeSlotCount++;
+      int needed = (nodeSlot + 1) * DAYS;
+      if (needed > nodeWeights.length) {
+        int grown = Math.max(needed, nodeWeights.length * 2);
+        nodeWeights = Arrays.copyOf(nodeWeights, grown);
+        nodeMeans = Arrays.copyOf(nodeMeans, grown);
+      }
+      // Publish the chunk table before the slot that points into it
+      nodeSlots[node] = nodeSlot;
+    }
+    return nodeSlot;
+  }
+}
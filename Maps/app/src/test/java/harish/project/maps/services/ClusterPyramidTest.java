@@ -0,0 +1,211 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClusterPyramidTest {
+  private static final ClusterDiff.Styler BY_MEAN = (meanDensity, emergencies) ->
+      emergencies > 0 ? 0xFFFF0000
+          : new TrafficService().getTrafficColor((int) Math.round(meanDensity));
+
+  private static int count(MarkerDiff.Plan plan, byte kind) {
+    int count = 0;
+    for (int op = 0; op < plan.size(); op++) {
+      if (plan.getKind(op) == kind) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // cell -> {count, densitySum, emergencies}
+  private static Map<Long, long[]> bruteForce(JunctionStateStore store, double cellDegrees) {
+    Map<Long, long[]> cells = new HashMap<>();
+    store.forEach(index -> {
+      long y = (long) Math.floor(store.getLatitude(index) / cellDegrees);
+      long x = (long) Math.floor(store.getLongitude(index) / cellDegrees);
+      long[] cell = cells.computeIfAbsent((y << 32) | (x & 0xFFFFFFFFL), key -> new long[3]);
+      cell[0]++;
+      cell[1] += store.getVehicleDensity(index);
+      cell[2] += store.isEmergencyVehiclePresent(index) ? 1 : 0;
+    });
+    return cells;
+  }
+
+  @Test
+  public void aggregates_matchBruteForceAfterRandomChanges() {
+    JunctionStateStore store = new JunctionStateStore();
+    ClusterPyramid pyramid = new ClusterPyramid(0.001, 6, 15f);
+    store.addObserver(pyramid);
+    Random random = new Random(7);
+    for (int step = 0; step < 20_000; step++) {
+      String id = "J" + random.nextInt(2_000);
+      if (random.nextInt(10) == 0) {
+        int index = store.indexOf(id);
+        if (index >= 0) {
+          store.remove(index);
+        }
+        continue;
+      }
+      store.update(new TrafficJunction(id, 12.9 + random.nextDouble() * 0.1,
+          77.5 + random.nextDouble() * 0.1, random.nextInt(101), 30, random.nextInt(20) == 0));
+    }
+
+    for (int level = 0; level < pyramid.getLevelCount(); level++) {
+      Map<Long, long[]> expected = bruteForce(store, pyramid.getCellDegrees(level));
+      assertEquals(expected.size(), pyramid.getClusterCount(level));
+      int visited = pyramid.query(level, -90, -180, 90, 180,
+          (cell, count, latitude, longitude, meanDensity, emergencies) -> {
+            long[] want = expected.get(cell);
+            assertNotNull(want);
+            assertEquals(want[0], count);
+            assertEquals((double) want[1] / want[0], meanDensity, 1e-9);
+            assertEquals(want[2], emergencies);
+          });
+      assertEquals(expected.size(), visited);
+    }
+
+    store.clear();
+    assertEquals(0, pyramid.getClusterCount(0));
+  }
+
+  @Test
+  public void query_onlyReturnsClustersInTheBox() {
+    JunctionStateStore store = new JunctionStateStore();
+    ClusterPyramid pyramid = new ClusterPyramid(0.01, 3, 15f);
+    for (int i = 0; i < 10; i++) {
+      store.update(new TrafficJunction("J" + i, 12.005 + i * 0.01, 77.005, 50, 30, false));
+    }
+    // Observers added late are backfilled
+    store.addObserver(pyramid);
+
+    int[] seen = new int[1];
+    assertEquals(3, pyramid.query(0, 12.021, 77.0, 12.049, 77.01,
+        (cell, count, latitude, longitude, meanDensity, emergencies) -> {
+          assertTrue(latitude >= 12.02 && latitude < 12.05);
+          seen[0] += count;
+        }));
+    assertEquals(3, seen[0]);
+    // Level 2 cells are 0.04 degrees wide
+    assertEquals(3, pyramid.getClusterCount(2));
+  }
+
+  @Test
+  public void levelForZoom_coarsensAsTheMapZoomsOut() {
+    ClusterPyramid pyramid = new ClusterPyramid();
+    assertEquals(-1, pyramid.levelForZoom(ClusterPyramid.DEFAULT_INDIVIDUAL_ZOOM));
+    assertEquals(-1, pyramid.levelForZoom(18f));
+    int previous = 0;
+    for (float zoom = 14.5f; zoom >= 0; zoom -= 0.5f) {
+      int level = pyramid.levelForZoom(zoom);
+      assertTrue(level >= previous);
+      previous = level;
+    }
+    assertEquals(pyramid.getLevelCount() - 1, pyramid.levelForZoom(0f));
+  }
+
+  @Test
+  public void diff_swapsClustersForJunctionsWhenZooming() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    ClusterPyramid pyramid = new ClusterPyramid(0.01, 4, 15f);
+    store.addObserver(pyramid);
+    for (int i = 0; i < 100; i++) {
+      store.update(new TrafficJunction("J" + i, 12.9005 + (i % 10) * 0.001 + (i / 10) * 0.01,
+          77.505, 10, 30, false));
+    }
+    MarkerDiff markers = new MarkerDiff((junctions, index) -> 0);
+    ClusterDiff clusters = new ClusterDiff(pyramid, BY_MEAN);
+
+    // Zoomed out: ten clusters of ten, no junction circles
+    markers.setEnabled(false);
+    clusters.setView(0, 12.8, 77.4, 13.1, 77.6);
+    assertEquals(0, markers.plan(store).size());
+    MarkerDiff.Plan plan = clusters.plan();
+    assertEquals(10, count(plan, MarkerDiff.ADD));
+    assertEquals(0.01 * GeoMath.METERS_PER_DEGREE * 0.35, plan.getRadius(0), 1e-6);
+    assertEquals(0, clusters.plan().size());
+
+    // One junction changing bucket is not enough to change its cluster's mean bucket
+    store.update(store.indexOf("J0"), 12.9005, 77.505, 80, 30, 0, false);
+    assertEquals(0, clusters.plan().size());
+    for (int i = 1; i < 10; i++) {
+      store.update(store.indexOf("J" + i), store.getLatitude(store.indexOf("J" + i)), 77.505,
+          80, 30, 0, false);
+    }
+    plan = clusters.plan();
+    assertEquals(1, plan.size());
+    assertEquals(MarkerDiff.RECOLOR, plan.getKind(0));
+
+    // An emergency anywhere in a cluster shows on it
+    store.update(store.indexOf("J55"), store.getLatitude(store.indexOf("J55")), 77.505, 10,
+        30, 0, true);
+    plan = clusters.plan();
+    assertEquals(1, plan.size());
+    assertEquals(0xFFFF0000, plan.getColor(0));
+
+    // Coarser level: every cluster is replaced
+    clusters.setView(1, 12.8, 77.4, 13.1, 77.6);
+    plan = clusters.plan();
+    assertEquals(10, count(plan, MarkerDiff.REMOVE));
+    assertEquals(pyramid.getClusterCount(1), count(plan, MarkerDiff.ADD));
+
+    // Zoomed in: clusters go, junctions come back
+    clusters.setView(-1, 12.8, 77.4, 13.1, 77.6);
+    markers.setEnabled(true);
+    assertEquals(pyramid.getClusterCount(1), count(clusters.plan(), MarkerDiff.REMOVE));
+    assertEquals(100, count(markers.plan(store), MarkerDiff.ADD));
+    assertEquals(0, clusters.getRenderedCount());
+    markers.setEnabled(false);
+    assertEquals(100, count(markers.plan(store), MarkerDiff.REMOVE));
+  }
+
+  // Pyramid build, density update and per-zoom plan costs for a city of junctions
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void clustersAtCityScale() {
+    for (int n : new int[] {50_000, 200_000}) {
+      JunctionStateStore store = new JunctionStateStore();
+      ClusterPyramid pyramid = new ClusterPyramid();
+      Random random = new Random(n);
+      double spread = 0.5 * Math.sqrt(n / 50_000.0);
+      for (int i = 0; i < n; i++) {
+        store.update(new TrafficJunction("J" + i, 12.97 + (random.nextDouble() - 0.5) * spread,
+            77.59 + (random.nextDouble() - 0.5) * spread, random.nextInt(101), 30, false));
+      }
+      long start = System.nanoTime();
+      store.addObserver(pyramid);
+      double buildMs = (System.nanoTime() - start) / 1e6;
+
+      int updates = 200_000;
+      start = System.nanoTime();
+      for (int u = 0; u < updates; u++) {
+        int index = random.nextInt(n);
+        store.update(index, store.getLatitude(index), store.getLongitude(index),
+            random.nextInt(101), 30, 0, false);
+      }
+      double updateNs = (System.nanoTime() - start) / (double) updates;
+
+      ClusterDiff diff = new ClusterDiff(pyramid, ClusterPyramidTest.BY_MEAN);
+      StringBuilder zooms = new StringBuilder();
+      for (float zoom : new float[] {9f, 11f, 13f}) {
+        int level = pyramid.levelForZoom(zoom);
+        // Roughly a phone screen's worth of map at this zoom
+        double half = 540 * 360.0 / (256 * Math.pow(2, zoom));
+        diff.setView(level, 12.97 - half, 77.59 - half, 12.97 + half, 77.59 + half);
+        start = System.nanoTime();
+        int drawn = diff.plan().size();
+        double planUs = (System.nanoTime() - start) / 1e3;
+        zooms.append(String.format(" z%.0f=%d clusters/%.0fus", zoom, drawn, planUs));
+      }
+      System.out.printf("Clusters n=%d: build %.0f ms, %.0f ns/density update,%s%n", n, buildMs,
+          updateNs, zooms);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoalescingDispatcherTest {
+  private final List<Runnable> ticks = new ArrayList<>();
+  private final List<List<TrafficJunction>> batches = new ArrayList<>();
+  private final List<String> removals = new ArrayList<>();
+
+  private CoalescingDispatcher newDispatcher(int maxPending, List<TrafficJunction> fullState) {
+    return new CoalescingDispatcher(new CoalescingDispatcher.Sink() {
+      @Override
+      public void onJunctionsChanged(List<TrafficJunction> changed) {
+        batches.add(changed);
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        removals.add(junctionId);
+      }
+    }, ticks::add, () -> fullState, maxPending);
+  }
+
+  private static List<TrafficJunction> junction(String id, int density) {
+    return Collections.singletonList(new TrafficJunction(id, 0, 0, density, 30, false));
+  }
+
+  private void tick() {
+    List<Runnable> due = new ArrayList<>(ticks);
+    ticks.clear();
+    for (Runnable flush : due) {
+      flush.run();
+    }
+  }
+
+  @Test
+  public void burst_isMergedPerJunctionWithLatestWinning() {
+    CoalescingDispatcher dispatcher = newDispatcher(100, Collections.emptyList());
+    for (int i = 0; i < 50; i++) {
+      dispatcher.submit(junction("A", i));
+      dispatcher.submit(junction("B", i));
+    }
+    assertEquals(1, ticks.size());
+
+    tick();
+
+    assertEquals(1, batches.size());
+    assertEquals(2, batches.get(0).size());
+    assertEquals(49, batches.get(0).get(0).getVehicleDensity());
+    assertEquals(98, dispatcher.getCoalescedCount());
+    assertEquals(100, dispatcher.getSubmittedCount());
+    assertEquals(0, dispatcher.getPendingCount());
+  }
+
+  @Test
+  public void removalCancelsPendingUpdate() {
+    CoalescingDispatcher dispatcher = newDispatcher(100, Collections.emptyList());
+    dispatcher.submit(junction("A", 10));
+    dispatcher.submitRemoval("A");
+    tick();
+
+    assertTrue(batches.isEmpty());
+    assertEquals(1, removals.size());
+  }
+
+  @Test
+  public void overflow_dropsBatchAndResyncsFromFullState() {
+    List<TrafficJunction> fullState = new ArrayList<>();
+    fullState.add(new TrafficJunction("X", 0, 0, 1, 30, false));
+    CoalescingDispatcher dispatcher = newDispatcher(3, fullState);
+    for (int i = 0; i < 10; i++) {
+      dispatcher.submit(junction("J" + i, i));
+    }
+    tick();
+
+    assertEquals(1, batches.size());
+    assertSame(fullState, batches.get(0));
+    assertEquals(10, dispatcher.getDroppedCount());
+  }
+}
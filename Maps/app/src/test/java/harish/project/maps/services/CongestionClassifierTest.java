@@ -0,0 +1,190 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CongestionClassifierTest {
+  private static void set(JunctionStateStore store, String id, int density) {
+    store.update(new TrafficJunction(id, 12.97, 77.59, density, 30, false));
+  }
+
+  @Test
+  public void classify_needsTheMarginToChangeBucket() {
+    int[] thresholds = {30, 60};
+    assertEquals(0, CongestionClassifier.classify(thresholds, 29, -1, 5));
+    assertEquals(1, CongestionClassifier.classify(thresholds, 30, -1, 5));
+    assertEquals(0, CongestionClassifier.classify(thresholds, 34, 0, 5));
+    assertEquals(1, CongestionClassifier.classify(thresholds, 35, 0, 5));
+    assertEquals(1, CongestionClassifier.classify(thresholds, 26, 1, 5));
+    assertEquals(0, CongestionClassifier.classify(thresholds, 24, 1, 5));
+    // Big jumps skip levels in one go
+    assertEquals(2, CongestionClassifier.classify(thresholds, 90, 0, 5));
+    assertEquals(0, CongestionClassifier.classify(thresholds, 3, 2, 5));
+  }
+
+  @Test
+  public void oscillationAroundAThreshold_doesNotFlipTheLevel() {
+    JunctionStateStore store = new JunctionStateStore();
+    CongestionClassifier classifier = new CongestionClassifier();
+    store.addObserver(classifier);
+    List<Integer> changes = new ArrayList<>();
+    classifier.setListener((index, previous, level) -> changes.add(level));
+
+    set(store, "A", 28);
+    int index = store.indexOf("A");
+    assertEquals(CongestionClassifier.LIGHT, classifier.getLevel(index));
+    int version = classifier.version();
+    for (int i = 0; i < 20; i++) {
+      set(store, "A", i % 2 == 0 ? 32 : 27);
+    }
+    assertEquals(CongestionClassifier.LIGHT, classifier.getLevel(index));
+    assertEquals("Light Traffic", classifier.getStatus(index));
+    assertEquals(version, classifier.version());
+    assertEquals(10, classifier.getSuppressedCount());
+    assertTrue(changes.isEmpty());
+
+    set(store, "A", 40);
+    assertEquals(CongestionClassifier.MODERATE, classifier.getLevel(index));
+    assertEquals(new TrafficService().getTrafficColor(40), classifier.getColor(index));
+    assertNotEquals(version, classifier.version());
+    assertEquals(1, changes.size());
+
+    // Moving is visible even when the level holds
+    version = classifier.version();
+    store.update(new TrafficJunction("A", 12.98, 77.59, 40, 30, false));
+    assertNotEquals(version, classifier.version());
+  }
+
+  @Test
+  public void smoothing_damsSingleSpikes() {
+    JunctionStateStore store = new JunctionStateStore();
+    CongestionClassifier classifier = new CongestionClassifier(30, 60, 0, 0.25, false);
+    store.addObserver(classifier);
+    set(store, "A", 10);
+    int index = store.indexOf("A");
+    set(store, "A", 90);
+    assertEquals(30, classifier.getSmoothedDensity(index), 1e-9);
+    set(store, "A", 10);
+    assertEquals(CongestionClassifier.LIGHT, classifier.getLevel(index));
+    // A sustained rise still gets through
+    for (int i = 0; i < 10; i++) {
+      set(store, "A", 90);
+    }
+    assertEquals(CongestionClassifier.HEAVY, classifier.getLevel(index));
+
+    try {
+      new CongestionClassifier(30, 60, 0, 0, false);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Zero weight would never move
+    }
+  }
+
+  @Test
+  public void ramp_runsGreenThroughOrangeToRed() {
+    JunctionStateStore store = new JunctionStateStore();
+    CongestionClassifier classifier = new CongestionClassifier(30, 60, 5, 1.0, true);
+    store.addObserver(classifier);
+    int previousRed = -1;
+    int previousGreen = 256;
+    for (int density = 0; density <= 100; density += 7) {
+      set(store, "D" + density, density);
+      int color = classifier.getColor(store.indexOf("D" + density));
+      assertEquals(0x80, color >>> 24);
+      int red = (color >> 16) & 0xFF;
+      int green = (color >> 8) & 0xFF;
+      assertTrue(red >= previousRed);
+      assertTrue(density < 30 || green <= previousGreen);
+      previousRed = red;
+      previousGreen = green;
+    }
+    // Steps are coloured at their midpoint, so the first is almost pure green
+    assertTrue(((classifier.getColor(store.indexOf("D0")) >> 16) & 0xFF) < 0x20);
+    assertEquals(0x80FF0000, classifier.getColor(store.indexOf("D98")));
+  }
+
+  @Test
+  public void hysteresis_suppressesRedrawsForNoisyJunctions() {
+    int n = 1000;
+    MarkerDiff.Styler plain = (store, index) ->
+        new TrafficService().getTrafficColor(store.getVehicleDensity(index));
+    for (boolean hysteresis : new boolean[] {false, true}) {
+      JunctionStateStore store = new JunctionStateStore();
+      CongestionClassifier classifier = new CongestionClassifier(30, 60,
+          hysteresis ? CongestionClassifier.DEFAULT_HYSTERESIS : 0, 1.0, false);
+      store.addObserver(classifier);
+      MarkerDiff diff = new MarkerDiff(hysteresis ? (s, index) -> classifier.getColor(index)
+          : plain);
+      Random random = new Random(11);
+      // Every junction sits near a threshold with +-4 of sensor noise
+      int[] base = new int[n];
+      for (int i = 0; i < n; i++) {
+        base[i] = random.nextBoolean() ? 30 : 60;
+        store.update(new TrafficJunction("J" + i, 12.9 + i * 1e-5, 77.59, base[i], 30, false));
+      }
+      diff.plan(store);
+      long recolors = 0;
+      for (int round = 0; round < 10; round++) {
+        for (int i = 0; i < n; i++) {
+          store.update(i, store.getLatitude(i), 77.59, base[i] + random.nextInt(9) - 4, 30, 0,
+              false);
+        }
+        recolors += diff.plan(store).size();
+      }
+      if (hysteresis) {
+        assertEquals(0, recolors);
+      } else {
+        assertTrue(recolors > n);
+      }
+    }
+  }
+
+  // Marker work for a city of junctions hovering around the colour thresholds
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void redrawsSuppressedForNoisyJunctions() {
+    int n = 10_000;
+    int rounds = 50;
+    MarkerDiff.Styler plain = (store, index) ->
+        new TrafficService().getTrafficColor(store.getVehicleDensity(index));
+    for (boolean hysteresis : new boolean[] {false, true}) {
+      JunctionStateStore store = new JunctionStateStore();
+      CongestionClassifier classifier = new CongestionClassifier(30, 60,
+          hysteresis ? CongestionClassifier.DEFAULT_HYSTERESIS : 0, 1.0, false);
+      store.addObserver(classifier);
+      MarkerDiff diff = new MarkerDiff(hysteresis ? (s, index) -> classifier.getColor(index)
+          : plain);
+      Random random = new Random(11);
+      int[] base = new int[n];
+      for (int i = 0; i < n; i++) {
+        base[i] = random.nextBoolean() ? 30 : 60;
+        store.update(new TrafficJunction("J" + i, 12.9 + i * 1e-5, 77.59, base[i], 30, false));
+      }
+      diff.plan(store);
+      long recolors = 0;
+      int renders = 0;
+      int lastVersion = classifier.version();
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++) {
+        for (int i = 0; i < n; i++) {
+          store.update(i, store.getLatitude(i), 77.59, base[i] + random.nextInt(9) - 4, 30, 0,
+              false);
+        }
+        if (!hysteresis || classifier.version() != lastVersion) {
+          lastVersion = classifier.version();
+          renders++;
+          recolors += diff.plan(store).size();
+        }
+      }
+      double ms = (System.nanoTime() - start) / 1e6;
+      System.out.printf("Classifier %s: %d recolours over %d rounds, %d/%d renders, %.0f ms%n",
+          hysteresis ? "hysteresis=5" : "plain", recolors, rounds, renders, rounds, ms);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package harish.project.maps.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EmergencyTrackerTest {
+  @Test
+  public void firesOnlyOnTransitions() {
+    List<String> events = new ArrayList<>();
+    EmergencyTracker tracker = new EmergencyTracker(new EmergencyTracker.TransitionListener() {
+      @Override
+      public void onEmergencyRaised(int index) {
+        events.add("raised:" + index);
+      }
+
+      @Override
+      public void onEmergencyCleared(int index) {
+        events.add("cleared:" + index);
+      }
+    });
+
+    tracker.observe(3, false);
+    tracker.observe(3, true);
+    tracker.observe(3, true);
+    tracker.observe(3, true);
+    assertEquals(EmergencyTracker.ONGOING, tracker.getState(3));
+    tracker.observe(5000, true);
+    tracker.recordAlert(3);
+    tracker.observe(3, false);
+    assertEquals(EmergencyTracker.CLEARED, tracker.getState(3));
+    tracker.observe(3, false);
+    assertEquals(EmergencyTracker.NONE, tracker.getState(3));
+
+    assertEquals(3, events.size());
+    assertEquals("raised:3", events.get(0));
+    assertEquals("raised:5000", events.get(1));
+    assertEquals("cleared:3", events.get(2));
+    assertEquals(1, tracker.getActiveCount());
+    assertEquals(1, tracker.getRaiseToAlertLatency().getCount());
+  }
+}
@@ -0,0 +1,97 @@
+package harish.project.maps.services;
+
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GeoMathTest {
+  @Test
+  public void proximity_matchesHaversineAtTheBoundary() {
+    Random random = new Random(3);
+    long checked = 0;
+    for (int i = 0; i < 2_000_000; i++) {
+      double lat = (random.nextDouble() * 2 - 1) * 85;
+      double lon = (random.nextDouble() * 2 - 1) * 179;
+      double radius = 10 + random.nextDouble() * 60_000;
+      // Candidates cluster within a few metres of the radius, the hardest case
+      double distance = radius + (random.nextDouble() - 0.5) * 10;
+      double bearing = random.nextDouble() * 2 * Math.PI;
+      double otherLat = lat + distance * Math.cos(bearing) / GeoMath.METERS_PER_DEGREE;
+      double otherLon = lon + distance * Math.sin(bearing)
+          / (GeoMath.METERS_PER_DEGREE * GeoMath.cosLatitude(lat));
+      if (Math.abs(otherLat) > 90 || Math.abs(otherLon) > 180) {
+        continue;
+      }
+      GeoMath.Proximity proximity = new GeoMath.Proximity(lat, lon, radius);
+      boolean expected = GeoMath.haversineMeters(lat, lon, otherLat, otherLon) <= radius;
+      assertEquals(expected, proximity.contains(otherLat, otherLon));
+      assertEquals(expected, proximity.contains(otherLat, otherLon,
+          GeoMath.cosLatitude(otherLat)));
+      checked++;
+    }
+    assertTrue(checked > 1_000_000);
+  }
+
+  @Test
+  public void proximity_exactPointOnTheRadius() {
+    GeoMath.Proximity proximity = new GeoMath.Proximity(12.9716, 77.5946, 100);
+    double onRadius = GeoMath.haversineMeters(12.9716, 77.5946, 12.9716 + 0.0009, 77.5946);
+    GeoMath.Proximity exact = new GeoMath.Proximity(12.9716, 77.5946, onRadius);
+    assertTrue(exact.contains(12.9716 + 0.0009, 77.5946));
+    assertFalse(proximity.contains(12.9716 + 0.0009, 77.5946));
+  }
+
+  // Fast proximity pipeline against plain haversine over a city-sized scan
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void proximityScan() {
+    int n = 200_000;
+    Random random = new Random(5);
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    double[] cos = new double[n];
+    for (int i = 0; i < n; i++) {
+      lats[i] = 12.9716 + (random.nextDouble() - 0.5) * 0.3;
+      lons[i] = 77.5946 + (random.nextDouble() - 0.5) * 0.3;
+      cos[i] = GeoMath.cosLatitude(lats[i]);
+    }
+    int queries = 50;
+    long haversineHits = 0;
+    long fastHits = 0;
+    long haversineNanos = 0;
+    long fastNanos = 0;
+    // Alternate a few rounds so neither side benefits from JIT warm-up order
+    for (int round = 0; round < 3; round++) {
+      haversineHits = 0;
+      fastHits = 0;
+      long start = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        double lat = lats[q];
+        double lon = lons[q];
+        for (int i = 0; i < n; i++) {
+          if (GeoMath.haversineMeters(lat, lon, lats[i], lons[i]) <= 2000) {
+            haversineHits++;
+          }
+        }
+      }
+      haversineNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        GeoMath.Proximity proximity = new GeoMath.Proximity(lats[q], lons[q], 2000);
+        for (int i = 0; i < n; i++) {
+          if (proximity.contains(lats[i], lons[i], cos[i])) {
+            fastHits++;
+          }
+        }
+      }
+      fastNanos = System.nanoTime() - start;
+    }
+    System.out.printf("Proximity scan of %d points: haversine %.1f ns/point, pipeline %.1f "
+        + "ns/point (%.1fx), %d/%d hits%n", n, haversineNanos / (double) (n * queries),
+        fastNanos / (double) (n * queries), haversineNanos / (double) fastNanos, fastHits,
+        haversineHits);
+  }
+}
@@ -0,0 +1,111 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeatmapRasterizerTest {
+  private static final int ZOOM = 14;
+  private static final int PIXELS = HeatmapRasterizer.TILE_SIZE * HeatmapRasterizer.TILE_SIZE;
+
+  private static int tileX(double lon) {
+    return (int) (HeatmapRasterizer.worldX(lon, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+  }
+
+  private static int tileY(double lat) {
+    return (int) (HeatmapRasterizer.worldY(lat, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+  }
+
+  private static int pixelAt(int[] tile, double lat, double lon) {
+    int px = (int) Math.round(HeatmapRasterizer.worldX(lon, ZOOM)) % HeatmapRasterizer.TILE_SIZE;
+    int py = (int) Math.round(HeatmapRasterizer.worldY(lat, ZOOM)) % HeatmapRasterizer.TILE_SIZE;
+    return tile[py * HeatmapRasterizer.TILE_SIZE + px];
+  }
+
+  @Test
+  public void mercator_roundTrips() {
+    for (double lat = -80; lat <= 80; lat += 7.3) {
+      for (int zoom : new int[] {0, 10, 20}) {
+        assertEquals(lat, HeatmapRasterizer.latitudeAt(HeatmapRasterizer.worldY(lat, zoom), zoom),
+            1e-9);
+      }
+    }
+    assertEquals(77.59, HeatmapRasterizer.longitudeAt(HeatmapRasterizer.worldX(77.59, 12), 12),
+        1e-9);
+    assertEquals(HeatmapRasterizer.worldSize(3) / 2, HeatmapRasterizer.worldY(0, 3), 1e-9);
+  }
+
+  @Test
+  public void render_coloursByTrafficThresholds() {
+    TrafficService traffic = new TrafficService();
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    // Inside one zoom-14 tile, far enough apart that kernels do not overlap
+    double lat = 12.97;
+    store.update(new TrafficJunction("LOW", lat, 77.590, 10, 30, false));
+    store.update(new TrafficJunction("MID", lat, 77.594, 45, 30, false));
+    store.update(new TrafficJunction("HIGH", lat, 77.598, 90, 30, false));
+    assertEquals(tileX(77.590), tileX(77.598));
+
+    HeatmapRasterizer rasterizer = new HeatmapRasterizer(traffic);
+    int[] tile = new int[PIXELS];
+    assertTrue(rasterizer.render(store, ZOOM, tileX(77.59), tileY(lat), tile));
+    assertEquals(traffic.getTrafficColor(10) & 0xFFFFFF, pixelAt(tile, lat, 77.590) & 0xFFFFFF);
+    assertEquals(traffic.getTrafficColor(45) & 0xFFFFFF, pixelAt(tile, lat, 77.594) & 0xFFFFFF);
+    assertEquals(traffic.getTrafficColor(90) & 0xFFFFFF, pixelAt(tile, lat, 77.598) & 0xFFFFFF);
+    assertEquals(0xC0, pixelAt(tile, lat, 77.590) >>> 24);
+    // Kernels fade out towards their edge
+    assertTrue(pixelAt(tile, lat, 77.592) >>> 24 < 0x10);
+
+    assertFalse(rasterizer.render(store, ZOOM, tileX(77.59) + 5, tileY(lat), tile));
+  }
+
+  @Test
+  public void render_includesJunctionsJustOutsideTheTile() {
+    JunctionStateStore store = new JunctionStateStore();
+    int x = tileX(77.59);
+    int y = tileY(12.97);
+    // A few pixels left of the tile's west edge
+    double lon = HeatmapRasterizer.longitudeAt(x * HeatmapRasterizer.TILE_SIZE - 5.0, ZOOM);
+    store.update(new TrafficJunction("EDGE", 12.97, lon, 80, 30, false));
+    int[] tile = new int[PIXELS];
+    assertTrue(new HeatmapRasterizer(new TrafficService()).render(store, ZOOM, x, y, tile));
+  }
+
+  // Tile render cost as the city grows around a fixed screen of tiles
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void tileCostTracksTilesNotJunctions() {
+    TrafficService traffic = new TrafficService();
+    HeatmapRasterizer rasterizer = new HeatmapRasterizer(traffic);
+    int[] tile = new int[HeatmapRasterizer.TILE_SIZE * HeatmapRasterizer.TILE_SIZE];
+    for (int n : new int[] {1_000, 50_000}) {
+      JunctionStateStore store = new JunctionStateStore();
+      store.setSpatialIndex(new GeoGridIndex());
+      Random random = new Random(n);
+      double spread = 0.1 * Math.sqrt(n / 1000.0);
+      for (int i = 0; i < n; i++) {
+        store.update(new TrafficJunction("J" + i, 12.97 + (random.nextDouble() - 0.5) * spread,
+            77.59 + (random.nextDouble() - 0.5) * spread, random.nextInt(101), 30, false));
+      }
+      // A 5x5 block of tiles around the centre, like a phone screen at zoom 14
+      int cx = (int) (HeatmapRasterizer.worldX(77.59, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+      int cy = (int) (HeatmapRasterizer.worldY(12.97, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+      for (int warm = 0; warm < 3; warm++) {
+        rasterizer.render(store, ZOOM, cx, cy, tile);
+      }
+      long start = System.nanoTime();
+      int drawn = 0;
+      for (int dy = -2; dy <= 2; dy++) {
+        for (int dx = -2; dx <= 2; dx++) {
+          drawn += rasterizer.render(store, ZOOM, cx + dx, cy + dy, tile) ? 1 : 0;
+        }
+      }
+      double perTileMs = (System.nanoTime() - start) / 1e6 / 25;
+      System.out.printf("Heatmap n=%d: %d/25 tiles drawn, %.2f ms/tile%n", n, drawn, perTileMs);
+    }
+  }
+}
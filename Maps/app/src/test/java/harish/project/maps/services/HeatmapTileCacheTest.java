@@ -0,0 +1,175 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeatmapTileCacheTest {
+  private static final int ZOOM = 14;
+  private static final byte[] TILE = {1};
+
+  private static int tileX(double lon) {
+    return (int) (HeatmapRasterizer.worldX(lon, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+  }
+
+  private static int tileY(double lat) {
+    return (int) (HeatmapRasterizer.worldY(lat, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+  }
+
+  private static void cache(HeatmapTileCache cache, int zoom, int x, int y) {
+    long token = cache.beginRender(zoom, x, y);
+    assertTrue(cache.finishRender(zoom, x, y, token, TILE));
+  }
+
+  @Test
+  public void lru_evictsLeastRecentlyUsed() {
+    HeatmapTileCache cache = new HeatmapTileCache(3, 24);
+    cache(cache, ZOOM, 0, 0);
+    cache(cache, ZOOM, 1, 0);
+    cache(cache, ZOOM, 2, 0);
+    assertNotNull(cache.get(ZOOM, 0, 0));
+    cache(cache, ZOOM, 3, 0);
+    assertEquals(3, cache.size());
+    assertNull(cache.get(ZOOM, 1, 0));
+    assertNotNull(cache.get(ZOOM, 0, 0));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void update_invalidatesOnlyTilesUnderTheJunction() {
+    JunctionStateStore store = new JunctionStateStore();
+    HeatmapTileCache cache = new HeatmapTileCache(100, 24);
+    store.addObserver(cache);
+    store.update(new TrafficJunction("A", 12.97, 77.59, 10, 30, false));
+    int x = tileX(77.59);
+    int y = tileY(12.97);
+    for (int dy = -2; dy <= 2; dy++) {
+      for (int dx = -2; dx <= 2; dx++) {
+        cache(cache, ZOOM, x + dx, y + dy);
+      }
+    }
+    // A coarser zoom is cached as well
+    cache(cache, 10, x >> 4, y >> 4);
+    int version = cache.version();
+
+    // Same values again: nothing to do
+    store.update(new TrafficJunction("A", 12.97, 77.59, 10, 30, false));
+    assertEquals(26, cache.size());
+    assertEquals(version, cache.version());
+
+    store.update(new TrafficJunction("A", 12.97, 77.59, 70, 30, false));
+    assertNull(cache.get(ZOOM, x, y));
+    assertNull(cache.get(10, x >> 4, y >> 4));
+    assertNotNull(cache.get(ZOOM, x + 2, y + 2));
+    // The kernel may reach into a neighbour, never further
+    assertTrue(cache.getInvalidationCount() >= 2 && cache.getInvalidationCount() <= 5);
+    assertNotEquals(version, cache.version());
+
+    // Moving invalidates both where it was and where it went
+    cache(cache, ZOOM, x, y);
+    double farLon = HeatmapRasterizer.longitudeAt((x + 2.5) * HeatmapRasterizer.TILE_SIZE, ZOOM);
+    store.update(new TrafficJunction("A", 12.97, farLon, 70, 30, false));
+    assertNull(cache.get(ZOOM, x, y));
+    assertNull(cache.get(ZOOM, x + 2, y));
+
+    store.remove(store.indexOf("A"));
+    assertNull(cache.get(ZOOM, x + 2, y));
+  }
+
+  @Test
+  public void render_raceWithUpdateIsNotCached() {
+    JunctionStateStore store = new JunctionStateStore();
+    HeatmapTileCache cache = new HeatmapTileCache(100, 24);
+    store.addObserver(cache);
+    int x = tileX(77.59);
+    int y = tileY(12.97);
+
+    long token = cache.beginRender(ZOOM, x, y);
+    store.update(new TrafficJunction("A", 12.97, 77.59, 10, 30, false));
+    assertFalse(cache.finishRender(ZOOM, x, y, token, TILE));
+    assertNull(cache.get(ZOOM, x, y));
+
+    token = cache.beginRender(ZOOM, x, y);
+    assertTrue(cache.finishRender(ZOOM, x, y, token, TILE));
+    assertNotNull(cache.get(ZOOM, x, y));
+  }
+
+  @Test
+  public void render_overlappingRendersOfOneTileAreJudgedSeparately() {
+    JunctionStateStore store = new JunctionStateStore();
+    HeatmapTileCache cache = new HeatmapTileCache(100, 24);
+    store.addObserver(cache);
+    int x = tileX(77.59);
+    int y = tileY(12.97);
+
+    long early = cache.beginRender(ZOOM, x, y);
+    store.update(new TrafficJunction("A", 12.97, 77.59, 10, 30, false));
+    long late = cache.beginRender(ZOOM, x, y);
+    // The later render saw the update; the earlier one finishing first must not clear that
+    assertFalse(cache.finishRender(ZOOM, x, y, early, TILE));
+    assertTrue(cache.finishRender(ZOOM, x, y, late, TILE));
+
+    early = cache.beginRender(ZOOM, x, y);
+    late = cache.beginRender(ZOOM, x, y);
+    store.update(new TrafficJunction("A", 12.97, 77.59, 20, 30, false));
+    assertFalse(cache.finishRender(ZOOM, x, y, late, TILE));
+    // Still stale although the other render of the tile already ended
+    assertFalse(cache.finishRender(ZOOM, x, y, early, TILE));
+    assertNull(cache.get(ZOOM, x, y));
+  }
+
+  private static void cache(HeatmapTileCache cache, int x, int y) {
+    cache.finishRender(ZOOM, x, y, cache.beginRender(ZOOM, x, y), TILE);
+  }
+
+  // How much of a screen of cached tiles survives a busy frame
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void updatesLeaveMostTilesCached() {
+    int n = 50_000;
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    HeatmapTileCache cache = new HeatmapTileCache(HeatmapTileCache.DEFAULT_MAX_TILES, 24);
+    store.addObserver(cache);
+    Random random = new Random(3);
+    for (int i = 0; i < n; i++) {
+      store.update(new TrafficJunction("J" + i, 12.97 + (random.nextDouble() - 0.5) * 0.7,
+          77.59 + (random.nextDouble() - 0.5) * 0.7, random.nextInt(101), 30, false));
+    }
+    // The screen: 5x5 tiles at zoom 14
+    int cx = (int) (HeatmapRasterizer.worldX(77.59, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+    int cy = (int) (HeatmapRasterizer.worldY(12.97, ZOOM) / HeatmapRasterizer.TILE_SIZE);
+    for (int dy = -2; dy <= 2; dy++) {
+      for (int dx = -2; dx <= 2; dx++) {
+        cache(cache, cx + dx, cy + dy);
+      }
+    }
+
+    // 1% of the city changes per frame; count tiles still cached after each frame
+    int frames = 50;
+    long kept = 0;
+    long start = System.nanoTime();
+    for (int frame = 0; frame < frames; frame++) {
+      for (int u = 0; u < n / 100; u++) {
+        int index = random.nextInt(n);
+        store.update(index, store.getLatitude(index), store.getLongitude(index),
+            random.nextInt(101), 30, 0, false);
+      }
+      kept += cache.size();
+      for (int dy = -2; dy <= 2; dy++) {
+        for (int dx = -2; dx <= 2; dx++) {
+          if (cache.get(ZOOM, cx + dx, cy + dy) == null) {
+            cache(cache, cx + dx, cy + dy);
+          }
+        }
+      }
+    }
+    double updateNs = (System.nanoTime() - start) / (double) (frames * (n / 100));
+    System.out.printf("Heatmap cache n=%d: %.1f/25 tiles survive a frame, %.0f ns/update%n", n,
+        kept / (double) frames, updateNs);
+  }
+}
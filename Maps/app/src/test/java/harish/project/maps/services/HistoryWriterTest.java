@@ -0,0 +1,261 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistoryWriterTest {
+  private File directory;
+  private ScheduledExecutorService executor;
+
+  // Records batches and acknowledges them only when told to
+  private static class RecordingTarget implements HistoryWriter.BatchTarget {
+    final List<Map<String, Object>> batches = new CopyOnWriteArrayList<>();
+    final List<Callback> pending = new CopyOnWriteArrayList<>();
+    volatile boolean autoAck = true;
+    volatile String error;
+
+    @Override
+    public void write(Map<String, Object> updates, Callback callback) {
+      batches.add(updates);
+      if (autoAck) {
+        callback.onComplete(error);
+      } else {
+        pending.add(callback);
+      }
+    }
+
+    int samples() {
+      int total = 0;
+      for (Map<String, Object> batch : batches) {
+        total += batch.size();
+      }
+      return total;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("history").toFile();
+    executor = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static TrafficJunction sample(int junction, long timestamp) {
+    TrafficJunction sample = new TrafficJunction("J" + junction, 12.9 + junction * 0.001, 77.5,
+        junction % 100, 30, false);
+    sample.setTimestamp(timestamp);
+    return sample;
+  }
+
+  private void drain() throws Exception {
+    executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+  }
+
+  // Acknowledgements hop back onto the executor, so wait for the chain to settle
+  private static void await(BooleanSupplier condition) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
+  @Test
+  public void sizeThreshold_flushesOneMultiPathUpdatePerBatch() throws Exception {
+    RecordingTarget target = new RecordingTarget();
+    HistoryWriter writer = new HistoryWriter(directory, target, 100, 60_000, executor);
+    writer.start();
+
+    for (int i = 0; i < 1000; i++) {
+      writer.append(sample(i % 50, 1000 + i));
+    }
+    await(() -> writer.getQueueDepth() == 0);
+
+    assertEquals(10, target.batches.size());
+    assertEquals(1000, target.samples());
+    assertEquals(0, writer.getQueueDepth());
+    assertEquals(1000, writer.getFlushedCount());
+    assertEquals(10, writer.getFlushLatency().getCount());
+
+    Object fields = target.batches.get(0).get("J0/1000");
+    assertEquals(0, TrafficJunctionDecoder.readVehicleDensity(fields));
+    assertEquals(0, directory.listFiles().length);
+  }
+
+  @Test
+  public void timeThreshold_flushesPartialBatch() throws Exception {
+    RecordingTarget target = new RecordingTarget();
+    HistoryWriter writer = new HistoryWriter(directory, target, 1000, 50, executor);
+    writer.start();
+
+    writer.append(sample(1, 1));
+    writer.append(sample(2, 2));
+    drain();
+    assertEquals(2, writer.getQueueDepth());
+    assertTrue(target.batches.isEmpty());
+
+    await(() -> writer.getQueueDepth() == 0);
+    assertEquals(1, target.batches.size());
+    assertEquals(0, writer.getQueueDepth());
+  }
+
+  @Test
+  public void stop_cancelsTheTimerAndLeavesSamplesForTheNextStart() throws Exception {
+    RecordingTarget target = new RecordingTarget();
+    HistoryWriter writer = new HistoryWriter(directory, target, 1000, 50, executor);
+    writer.start();
+    writer.append(sample(1, 1));
+    writer.stop();
+    writer.append(sample(2, 2));
+    drain();
+
+    // Well past the 50 ms flush delay
+    Thread.sleep(150);
+    assertTrue(target.batches.isEmpty());
+
+    HistoryWriter next = new HistoryWriter(directory, target, 1000, 50, executor);
+    next.start();
+    await(() -> target.samples() == 2);
+  }
+
+  @Test
+  public void failedFlush_keepsSegmentForRetry() throws Exception {
+    RecordingTarget target = new RecordingTarget();
+    target.error = "offline";
+    HistoryWriter writer = new HistoryWriter(directory, target, 10, 60_000, executor);
+    writer.start();
+
+    for (int i = 0; i < 10; i++) {
+      writer.append(sample(i, i));
+    }
+    await(() -> writer.getFailedFlushCount() == 1);
+
+    assertEquals(10, writer.getQueueDepth());
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  public void unwritableDisk_sendsSamplesStraightToTheBackend() throws Exception {
+    // A plain file where the segment directory should be, so no segment can be opened
+    File blocked = new File(directory, "blocked");
+    assertTrue(blocked.createNewFile());
+    RecordingTarget target = new RecordingTarget();
+    HistoryWriter writer = new HistoryWriter(blocked, target, 10, 60_000, executor);
+
+    writer.append(sample(1, 1));
+    writer.append(sample(2, 2));
+    await(() -> writer.getQueueDepth() == 0);
+    assertEquals(2, target.samples());
+    assertEquals(2, writer.getFlushedCount());
+    assertEquals(2, writer.getSpoolFailureCount());
+    assertEquals(0, writer.getDroppedSampleCount());
+
+    target.error = "offline";
+    writer.append(sample(3, 3));
+    await(() -> writer.getDroppedSampleCount() == 1);
+    assertEquals(0, writer.getQueueDepth());
+  }
+
+  @Test
+  public void restart_replaysUnflushedSegments() throws Exception {
+    RecordingTarget offline = new RecordingTarget();
+    offline.autoAck = false;
+    HistoryWriter first = new HistoryWriter(directory, offline, 10, 60_000, executor);
+    first.start();
+    for (int i = 0; i < 25; i++) {
+      first.append(sample(i, i));
+    }
+    drain();
+    // Two sealed segments (one in flight, never acknowledged) plus an open one; then the process dies
+    assertEquals(25, first.getQueueDepth());
+    executor.shutdownNow();
+
+    // Simulate a torn write at the tail of the newest segment
+    File[] segments = directory.listFiles();
+    assertEquals(3, segments.length);
+    File newest = segments[0];
+    for (File segment : segments) {
+      if (segment.getName().compareTo(newest.getName()) > 0) {
+        newest = segment;
+      }
+    }
+    try (FileOutputStream out = new FileOutputStream(newest, true)) {
+      out.write(new byte[] {0, 0, 0, 40, 1, 2});
+    }
+
+    executor = Executors.newSingleThreadScheduledExecutor();
+    RecordingTarget online = new RecordingTarget();
+    HistoryWriter second = new HistoryWriter(directory, online, 10, 60_000, executor);
+    second.start();
+    // Depth starts at zero until start() has counted the leftovers, so wait on delivery
+    await(() -> online.samples() == 25 && second.getQueueDepth() == 0);
+
+    assertEquals(3, online.batches.size());
+    assertEquals(25, online.samples());
+    assertEquals(0, second.getQueueDepth());
+    assertEquals(0, directory.listFiles().length);
+
+    // New segments continue after the replayed ones
+    second.append(sample(1, 99));
+    second.flush();
+    await(() -> second.getQueueDepth() == 0);
+    assertEquals(4, online.batches.size());
+  }
+
+  // Spooling throughput and backend round trips for a burst of history samples
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void roundTripsPerSample() throws Exception {
+    File directory = Files.createTempDirectory("history").toFile();
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    RecordingTarget target = new RecordingTarget();
+    HistoryWriter writer = new HistoryWriter(directory, target, 500, 60_000, executor);
+    writer.start();
+
+    int samples = 50_000;
+    List<TrafficJunction> batch = new ArrayList<>();
+    for (int i = 0; i < samples; i++) {
+      batch.add(HistoryWriterTest.sample(i % 1000, 1000 + i));
+    }
+    long start = System.nanoTime();
+    for (TrafficJunction junction : batch) {
+      writer.append(junction);
+    }
+    writer.flush();
+    HistoryWriterTest.await(() -> writer.getQueueDepth() == 0);
+    long elapsed = System.nanoTime() - start;
+
+    System.out.printf("History: %d samples in %d round trips (was %d), %.0f samples/s spooled, "
+            + "flush latency %s%n", samples, target.batches.size(), samples,
+        samples / (elapsed / 1e9), writer.getFlushLatency());
+    executor.shutdownNow();
+    directory.delete();
+  }
+}
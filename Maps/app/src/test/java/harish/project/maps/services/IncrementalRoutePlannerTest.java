@@ -0,0 +1,175 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IncrementalRoutePlannerTest {
+  private static final class Setup {
+    final RoadGraph graph;
+    final JunctionStateStore store = new JunctionStateStore();
+    final TrafficEdgeWeights weights;
+    final IncrementalRoutePlanner incremental;
+    final RoutePlanner full;
+    int[] nodes;
+
+    Setup(RoadGraph graph) {
+      this.graph = graph;
+      weights = new TrafficEdgeWeights(graph);
+      store.addObserver(weights);
+      incremental = new IncrementalRoutePlanner(graph, weights);
+      weights.setListener(incremental::edgesIntoChanged);
+      full = new RoutePlanner(graph, weights);
+    }
+
+    // One junction on each of count random nodes, all free-flowing
+    void placeJunctions(int count, Random random) {
+      nodes = new int[count];
+      for (int i = 0; i < count; i++) {
+        nodes[i] = random.nextInt(graph.getNodeCount());
+        store.update(new TrafficJunction("J" + i, graph.getLatitude(nodes[i]),
+            graph.getLongitude(nodes[i]), 0, 30, false));
+      }
+    }
+
+    void setDensity(int junction, int density) {
+      store.update(junction, graph.getLatitude(nodes[junction]),
+          graph.getLongitude(nodes[junction]), density, 30, 0, false);
+    }
+  }
+
+  @Test
+  public void repairs_matchAFreshSearch() {
+    Random random = new Random(12);
+    Setup setup = new Setup(TestRoadGraphs.city(40, 11));
+    setup.placeJunctions(400, random);
+    for (int trip = 0; trip < 5; trip++) {
+      int from = random.nextInt(setup.graph.getNodeCount());
+      int to = random.nextInt(setup.graph.getNodeCount());
+      Route planned = setup.incremental.plan(from, to);
+      Route expected = setup.full.route(from, to);
+      assertEquals(expected.getTravelSeconds(), planned.getTravelSeconds(), 1e-6);
+      for (int round = 0; round < 50; round++) {
+        // Mostly single updates, sometimes a burst
+        int updates = round % 10 == 0 ? 20 : 1;
+        for (int u = 0; u < updates; u++) {
+          setup.setDensity(random.nextInt(setup.nodes.length), random.nextInt(101));
+        }
+        setup.incremental.repair();
+        Route repaired = setup.incremental.getRoute();
+        expected = setup.full.route(from, to);
+        assertEquals(expected.getTravelSeconds(), repaired.getTravelSeconds(), 1e-6);
+        assertEquals(from, repaired.getNode(0));
+        assertEquals(to, repaired.getNode(repaired.getNodeCount() - 1));
+      }
+    }
+  }
+
+  @Test
+  public void listener_hearsOnlyAboutDifferentRoutes() {
+    // Two ways from a to d; the one through b is slightly shorter. e hangs off d.
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.900, 77.500);
+    int b = builder.addNode(12.905, 77.505);
+    int c = builder.addNode(12.8945, 77.5055);
+    int d = builder.addNode(12.900, 77.510);
+    int e = builder.addNode(12.900, 77.520);
+    builder.addRoad(a, b, 10).addRoad(b, d, 10).addRoad(a, c, 10).addRoad(c, d, 10)
+        .addRoad(d, e, 10);
+    Setup setup = new Setup(builder.build());
+    List<Route> changes = new ArrayList<>();
+    setup.incremental.setListener(changes::add);
+    assertArrayEquals(new int[] {a, b, d}, setup.incremental.plan(a, d).getNodes());
+
+    // Congestion past the destination changes nothing on the route
+    setup.store.update(new TrafficJunction("beyond", 12.900, 77.520, 90, 30, false));
+    assertFalse(setup.incremental.repair());
+    // A little congestion on the route makes it slower but not different
+    setup.store.update(new TrafficJunction("jam", 12.905, 77.505, 2, 30, false));
+    assertTrue(setup.incremental.hasPendingChanges());
+    assertFalse(setup.incremental.repair());
+    assertTrue(changes.isEmpty());
+
+    setup.store.update(new TrafficJunction("jam", 12.905, 77.505, 100, 30, false));
+    assertTrue(setup.incremental.repair());
+    assertEquals(1, changes.size());
+    assertArrayEquals(new int[] {a, c, d}, changes.get(0).getNodes());
+
+    setup.store.remove(setup.store.indexOf("jam"));
+    assertTrue(setup.incremental.repair());
+    assertArrayEquals(new int[] {a, b, d}, setup.incremental.getRoute().getNodes());
+    assertFalse(setup.incremental.repair());
+  }
+
+  @Test
+  public void adoptedRoute_isSearchedOnTheFirstRepair() {
+    Random random = new Random(5);
+    Setup setup = new Setup(TestRoadGraphs.city(40, 11));
+    setup.placeJunctions(400, random);
+    Route cached = setup.full.route(3, 1500);
+    List<Route> changes = new ArrayList<>();
+    setup.incremental.setListener(changes::add);
+
+    setup.incremental.adopt(cached);
+    assertSame(cached, setup.incremental.getRoute());
+    assertEquals(0, setup.incremental.getLastExpandedCount());
+    // Nothing changed, so there is nothing to search for
+    assertFalse(setup.incremental.repair());
+    assertSame(cached, setup.incremental.getRoute());
+
+    for (int round = 0; round < 20; round++) {
+      setup.setDensity(random.nextInt(setup.nodes.length), random.nextInt(101));
+      setup.incremental.repair();
+      Route expected = setup.full.route(3, 1500);
+      assertEquals(expected.getTravelSeconds(), setup.incremental.getRoute().getTravelSeconds(),
+          1e-6);
+    }
+    for (Route change : changes) {
+      assertEquals(3, change.getNode(0));
+      assertEquals(1500, change.getNode(change.getNodeCount() - 1));
+    }
+  }
+
+  // LPA* repairs against a fresh A* search after each density change on a cross-town trip
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void repairVersusReplan() {
+    Random random = new Random(13);
+    Setup setup = new Setup(TestRoadGraphs.city(300, 14));
+    setup.placeJunctions(20_000, random);
+    // A cross-town trip of about 20 km
+    int from = 20 * 300 + 20;
+    int to = 280 * 300 + 280;
+    setup.incremental.plan(from, to);
+    int initialExpanded = setup.incremental.getLastExpandedCount();
+
+    int rounds = 300;
+    long repairNanos = 0;
+    long replanNanos = 0;
+    long repairExpanded = 0;
+    long replanSettled = 0;
+    int routeChanges = 0;
+    for (int round = 0; round < rounds; round++) {
+      setup.setDensity(random.nextInt(setup.nodes.length), random.nextInt(101));
+      long start = System.nanoTime();
+      if (setup.incremental.repair()) {
+        routeChanges++;
+      }
+      repairNanos += System.nanoTime() - start;
+      repairExpanded += setup.incremental.getLastExpandedCount();
+      start = System.nanoTime();
+      setup.full.route(from, to);
+      replanNanos += System.nanoTime() - start;
+      replanSettled += setup.full.getLastSettledCount();
+    }
+    System.out.printf("Incremental routing: first plan %d nodes; per update repair %.3f ms "
+            + "(%d nodes) vs replan %.2f ms (%d nodes); route changed %d/%d times%n",
+        initialExpanded, repairNanos / 1e6 / rounds, repairExpanded / rounds,
+        replanNanos / 1e6 / rounds, replanSettled / rounds, routeChanges, rounds);
+  }
+}
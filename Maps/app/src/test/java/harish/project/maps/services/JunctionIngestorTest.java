@@ -0,0 +1,155 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the legacy full-snapshot ingestion path with the incremental child-event path
+ * against an in-memory stand-in for the traffic_data tree.
+ */
+public class JunctionIngestorTest {
+  private static final int JUNCTIONS = 2000;
+  private static final int UPDATES = 2000;
+
+  // In-memory replacement for the Firebase tree; "decoding" allocates a fresh junction
+  // per child exactly like DataSnapshot.getValue(TrafficJunction.class) does.
+  private static class InMemoryTrafficTree {
+    private final Map<String, int[]> children = new LinkedHashMap<>();
+    private final Random random = new Random(42);
+
+    InMemoryTrafficTree(int size) {
+      for (int i = 0; i < size; i++) {
+        children.put("J" + i, new int[] { random.nextInt(100), 30 });
+      }
+    }
+
+    String mutateRandomChild() {
+      String key = "J" + random.nextInt(children.size());
+      children.get(key)[0] = random.nextInt(100);
+      return key;
+    }
+
+    TrafficJunction decode(String key) {
+      int[] raw = children.get(key);
+      return new TrafficJunction(key, 12.97, 77.59, raw[0], raw[1], false);
+    }
+
+    Map<String, TrafficJunction> decodeAll() {
+      Map<String, TrafficJunction> snapshot = new LinkedHashMap<>();
+      for (String key : children.keySet()) {
+        snapshot.put(key, decode(key));
+      }
+      return snapshot;
+    }
+  }
+
+  private static class CountingSink implements JunctionIngestor.Sink {
+    long delivered;
+    final List<String> removed = new ArrayList<>();
+
+    @Override
+    public void onJunctionsChanged(List<TrafficJunction> changed) {
+      delivered += changed.size();
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+      removed.add(junctionId);
+    }
+  }
+
+  @Test
+  public void incrementalPath_deliversOnlyChangedJunctions() {
+    CountingSink sink = new CountingSink();
+    JunctionIngestor ingestor = new JunctionIngestor(sink);
+
+    ingestor.upsert("A", new TrafficJunction(null, 1, 1, 10, 30, false));
+    ingestor.upsert("B", new TrafficJunction("B", 2, 2, 20, 30, false));
+    ingestor.upsert("A", new TrafficJunction("A", 1, 1, 70, 30, false));
+    ingestor.remove("B");
+    ingestor.remove("missing");
+
+    assertEquals(3, sink.delivered);
+    assertEquals(1, ingestor.size());
+    assertEquals("A", ingestor.getJunction("A").getJunctionId());
+    assertEquals(70, ingestor.getJunction("A").getVehicleDensity());
+    assertEquals(1, sink.removed.size());
+    assertEquals("B", sink.removed.get(0));
+  }
+
+  @Test
+  public void snapshotPath_reportsRemovedChildren() {
+    CountingSink sink = new CountingSink();
+    JunctionIngestor ingestor = new JunctionIngestor(sink);
+    Map<String, TrafficJunction> first = new LinkedHashMap<>();
+    first.put("A", new TrafficJunction("A", 1, 1, 10, 30, false));
+    first.put("B", new TrafficJunction("B", 2, 2, 20, 30, false));
+    ingestor.replaceAll(first);
+
+    Map<String, TrafficJunction> second = new LinkedHashMap<>();
+    second.put("A", new TrafficJunction("A", 1, 1, 15, 30, false));
+    ingestor.replaceAll(second);
+
+    assertEquals(1, ingestor.size());
+    assertEquals(1, sink.removed.size());
+    assertEquals("B", sink.removed.get(0));
+  }
+
+  @Test
+  public void incrementalAndSnapshotPaths_converge() {
+    InMemoryTrafficTree snapshotTree = new InMemoryTrafficTree(200);
+    JunctionIngestor snapshotIngestor = new JunctionIngestor(new CountingSink());
+    snapshotIngestor.replaceAll(snapshotTree.decodeAll());
+    InMemoryTrafficTree incrementalTree = new InMemoryTrafficTree(200);
+    JunctionIngestor incrementalIngestor = new JunctionIngestor(new CountingSink());
+    incrementalIngestor.replaceAll(incrementalTree.decodeAll());
+    for (int i = 0; i < 500; i++) {
+      snapshotTree.mutateRandomChild();
+      snapshotIngestor.replaceAll(snapshotTree.decodeAll());
+      String key = incrementalTree.mutateRandomChild();
+      incrementalIngestor.upsert(key, incrementalTree.decode(key));
+    }
+
+    for (int i = 0; i < 200; i++) {
+      String key = "J" + i;
+      assertEquals(snapshotIngestor.getJunction(key).getVehicleDensity(),
+          incrementalIngestor.getJunction(key).getVehicleDensity());
+    }
+  }
+
+  // Update throughput of the full-snapshot path against the incremental child-event path
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void incrementalVersusSnapshot() {
+    InMemoryTrafficTree snapshotTree = new InMemoryTrafficTree(JUNCTIONS);
+    JunctionIngestor snapshotIngestor = new JunctionIngestor(new CountingSink());
+    snapshotIngestor.replaceAll(snapshotTree.decodeAll());
+    long start = System.nanoTime();
+    for (int i = 0; i < UPDATES; i++) {
+      snapshotTree.mutateRandomChild();
+      snapshotIngestor.replaceAll(snapshotTree.decodeAll());
+    }
+    long snapshotNanos = System.nanoTime() - start;
+
+    InMemoryTrafficTree incrementalTree = new InMemoryTrafficTree(JUNCTIONS);
+    JunctionIngestor incrementalIngestor = new JunctionIngestor(new CountingSink());
+    incrementalIngestor.replaceAll(incrementalTree.decodeAll());
+    start = System.nanoTime();
+    for (int i = 0; i < UPDATES; i++) {
+      String key = incrementalTree.mutateRandomChild();
+      incrementalIngestor.upsert(key, incrementalTree.decode(key));
+    }
+    long incrementalNanos = System.nanoTime() - start;
+
+    System.out.printf("Ingestion (%d junctions): snapshot %.0f updates/s, incremental %.0f "
+        + "updates/s%n", JUNCTIONS, UPDATES / (snapshotNanos / 1e9), UPDATES / (incrementalNanos / 1e9));
+  }
+}
@@ -0,0 +1,90 @@
+package harish.project.maps.services;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JunctionStateStoreTest {
+  @Test
+  public void intern_assignsDenseStableIndicesAcrossChunks() {
+    JunctionStateStore store = new JunctionStateStore();
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i, store.intern("J" + i));
+    }
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i, store.indexOf("J" + i));
+    }
+    assertEquals(-1, store.indexOf("unknown"));
+    assertEquals(5000, store.size());
+  }
+
+  @Test
+  public void update_removeAndIterate() {
+    JunctionStateStore store = new JunctionStateStore();
+    for (int i = 0; i < 3000; i++) {
+      int index = store.intern("J" + i);
+      store.update(index, i * 0.001, 77.5, i % 100, 30, 1000L + i, i % 2 == 0);
+    }
+    store.remove(store.indexOf("J10"));
+
+    assertEquals(2999, store.count());
+    assertFalse(store.isPresent(10));
+    assertFalse(store.isEmergencyVehiclePresent(10));
+    assertTrue(store.isEmergencyVehiclePresent(2048));
+    assertEquals(47, store.getVehicleDensity(2047));
+    assertEquals(2.047, store.getLatitude(2047), 1e-9);
+    assertEquals(3047L, store.getTimestamp(2047));
+
+    int[] visited = new int[1];
+    store.forEach(index -> visited[0]++);
+    assertEquals(2999, visited[0]);
+
+    // A removed junction keeps its index when it comes back
+    store.update(store.intern("J10"), 0, 0, 5, 30, 0L, false);
+    assertEquals(10, store.indexOf("J10"));
+    assertEquals(3000, store.count());
+  }
+
+  @Test
+  public void readers_keepUpWithAGrowingStore() throws Exception {
+    JunctionStateStore store = new JunctionStateStore();
+    int junctions = 100_000;
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[2];
+    for (int r = 0; r < readers.length; r++) {
+      readers[r] = new Thread(() -> {
+        try {
+          while (store.size() < junctions) {
+            int size = store.size();
+            String id = "J" + (size - 1);
+            int index = store.indexOf(id);
+            // Whatever index a reader sees must belong to that id and have readable columns
+            if (index >= 0) {
+              assertEquals(id, store.getJunctionId(index));
+              store.getLatitude(index);
+            }
+            for (int i = Math.max(0, size - 64); i < size; i++) {
+              store.isPresent(i);
+              store.getVehicleDensity(i);
+            }
+            store.forEach(store::getTimestamp);
+          }
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      });
+      readers[r].start();
+    }
+    for (int i = 0; i < junctions; i++) {
+      store.update(store.intern("J" + i), 12.9, 77.5, i % 100, 30, i, false);
+    }
+    for (Thread reader : readers) {
+      reader.join(10_000);
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(junctions, store.count());
+  }
+}
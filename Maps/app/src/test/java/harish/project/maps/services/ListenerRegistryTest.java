@@ -0,0 +1,180 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ListenerRegistryTest {
+  private static class RecordingListener implements FirebaseService.TrafficDataListener {
+    final List<TrafficJunction> updates = Collections.synchronizedList(new ArrayList<>());
+    final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch emergency = new CountDownLatch(1);
+    final CountDownLatch release;
+
+    RecordingListener(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void onTrafficDataUpdated(List<TrafficJunction> junctions) {
+      awaitRelease();
+      for (TrafficJunction junction : junctions) {
+        order.add("update:" + junction.getJunctionId());
+      }
+      updates.addAll(junctions);
+    }
+
+    @Override
+    public void onTrafficJunctionRemoved(String junctionId) {
+    }
+
+    @Override
+    public void onEmergencyVehicleDetected(TrafficJunction junction) {
+      order.add("emergency:" + junction.getJunctionId());
+      emergency.countDown();
+    }
+
+    @Override
+    public void onEmergencyVehicleCleared(TrafficJunction junction) {
+      order.add("cleared:" + junction.getJunctionId());
+    }
+
+    private void awaitRelease() {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static List<TrafficJunction> update(String id, int density) {
+    return Collections.singletonList(new TrafficJunction(id, 0, 0, density, 30, false));
+  }
+
+  @Test
+  public void slowListener_doesNotDelayOthers() throws Exception {
+    ListenerRegistry registry = new ListenerRegistry();
+    CountDownLatch blocked = new CountDownLatch(1);
+    RecordingListener slow = new RecordingListener(blocked);
+    RecordingListener fast = new RecordingListener(new CountDownLatch(0));
+    registry.register(slow, ListenerRegistry.OverflowPolicy.DROP_OLDEST, 4);
+    registry.register(fast, ListenerRegistry.OverflowPolicy.DROP_OLDEST, 4);
+
+    registry.publishUpdate(update("A", 10));
+    registry.publishEmergency(new TrafficJunction("E", 0, 0, 90, 30, true));
+
+    assertTrue(fast.emergency.await(2, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 2000;
+    while (fast.updates.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, fast.updates.size());
+    assertEquals(0, slow.updates.size());
+    blocked.countDown();
+    assertTrue(slow.emergency.await(2, TimeUnit.SECONDS));
+    // Latency is recorded after the callback returns, so it can trail the delivery
+    LatencyHistogram latency = registry.find(fast).getDeliveryLatency();
+    deadline = System.currentTimeMillis() + 2000;
+    while (latency.getCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, latency.getCount());
+  }
+
+  @Test
+  public void overflow_conflatesQueuedUpdates() throws Exception {
+    ListenerRegistry registry = new ListenerRegistry();
+    CountDownLatch blocked = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener(blocked);
+    ListenerRegistry.Subscription subscription =
+        registry.register(listener, ListenerRegistry.OverflowPolicy.CONFLATE, 3);
+
+    // The first update occupies the delivery thread, the rest queue up behind it
+    registry.publishUpdate(update("A", 0));
+    Thread.sleep(100);
+    for (int i = 1; i <= 20; i++) {
+      registry.publishUpdate(update(i % 2 == 0 ? "A" : "B", i));
+    }
+    assertTrue(subscription.getQueueDepth() <= 3);
+    assertTrue(subscription.getConflatedCount() > 0);
+    assertEquals(0, subscription.getDroppedCount());
+
+    blocked.countDown();
+    long deadline = System.currentTimeMillis() + 2000;
+    while (subscription.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+    TrafficJunction lastA = null;
+    TrafficJunction lastB = null;
+    synchronized (listener.updates) {
+      for (TrafficJunction junction : listener.updates) {
+        if (junction.getJunctionId().equals("A")) {
+          lastA = junction;
+        } else {
+          lastB = junction;
+        }
+      }
+    }
+    assertEquals(20, lastA.getVehicleDensity());
+    assertEquals(19, lastB.getVehicleDensity());
+  }
+
+  @Test
+  public void overflow_dropOldestKeepsEmergencies() throws Exception {
+    ListenerRegistry registry = new ListenerRegistry();
+    CountDownLatch blocked = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener(blocked);
+    ListenerRegistry.Subscription subscription =
+        registry.register(listener, ListenerRegistry.OverflowPolicy.DROP_OLDEST, 2);
+
+    registry.publishUpdate(update("A", 0));
+    Thread.sleep(100);
+    registry.publishEmergency(new TrafficJunction("E", 0, 0, 90, 30, true));
+    for (int i = 1; i <= 5; i++) {
+      registry.publishUpdate(update("A", i));
+    }
+    // The emergency sits on the priority lane and does not count against the capacity
+    assertEquals(3, subscription.getDroppedCount());
+
+    blocked.countDown();
+    assertTrue(listener.emergency.await(2, TimeUnit.SECONDS));
+    registry.unregister(listener);
+    assertTrue(registry.isEmpty());
+  }
+
+  @Test
+  public void emergencies_overtakeQueuedUpdates() throws Exception {
+    ListenerRegistry registry = new ListenerRegistry();
+    CountDownLatch blocked = new CountDownLatch(1);
+    RecordingListener listener = new RecordingListener(blocked);
+    ListenerRegistry.Subscription subscription =
+        registry.register(listener, ListenerRegistry.OverflowPolicy.DROP_OLDEST, 8);
+
+    registry.publishUpdate(update("A", 0));
+    Thread.sleep(100);
+    registry.publishUpdate(update("B", 1));
+    registry.publishUpdate(update("C", 2));
+    TrafficJunction emergency = new TrafficJunction("E", 0, 0, 90, 30, true);
+    registry.publishEmergency(emergency);
+    registry.publishEmergencyCleared(emergency);
+    blocked.countDown();
+
+    long deadline = System.currentTimeMillis() + 2000;
+    while (listener.order.size() < 5 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("update:A", listener.order.get(0));
+    assertEquals("emergency:E", listener.order.get(1));
+    assertEquals("cleared:E", listener.order.get(2));
+    assertEquals("update:B", listener.order.get(3));
+    assertEquals(2, subscription.getPriorityDeliveryLatency().getCount());
+  }
+}
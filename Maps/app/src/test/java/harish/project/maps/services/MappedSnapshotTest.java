@@ -0,0 +1,316 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MappedSnapshotTest {
+  private static JunctionStateStore randomStore(RoadGraph graph, int count, Random random) {
+    JunctionStateStore store = new JunctionStateStore();
+    for (int i = 0; i < count; i++) {
+      int node = random.nextInt(graph.getNodeCount());
+      TrafficJunction junction = new TrafficJunction("junction-" + i, graph.getLatitude(node),
+          graph.getLongitude(node), random.nextInt(101), 10 + random.nextInt(50),
+          random.nextInt(50) == 0);
+      junction.setTimestamp(1_700_000_000_000L + random.nextInt(1_000_000));
+      store.update(junction);
+    }
+    return store;
+  }
+
+  @Test
+  public void roundTrip_keepsJunctionsAndGraph() throws IOException {
+    Random random = new Random(41);
+    RoadGraph graph = TestRoadGraphs.city(30, 42);
+    JunctionStateStore store = randomStore(graph, 200, random);
+    store.remove(store.indexOf("junction-7"));
+    store.update(new TrafficJunction("जंक्शन", 13.5, 78.5, 40, 20, false));
+
+    File file = File.createTempFile("snapshot", ".bin");
+    try {
+      MappedSnapshot.write(file, store, graph);
+      MappedSnapshot snapshot = MappedSnapshot.open(file);
+      assertEquals(200, snapshot.getJunctionCount());
+      long newest = 0;
+      for (int i = 0; i < snapshot.getJunctionCount(); i++) {
+        int index = store.indexOf(snapshot.getJunctionId(i));
+        assertTrue(store.isPresent(index));
+        TrafficJunction expected = store.toJunction(index);
+        TrafficJunction actual = snapshot.toJunction(i);
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+        assertEquals(expected.getVehicleDensity(), actual.getVehicleDensity());
+        assertEquals(expected.getGreenLightDuration(), actual.getGreenLightDuration());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.isEmergencyVehiclePresent(), actual.isEmergencyVehiclePresent());
+        newest = Math.max(newest, expected.getTimestamp());
+        // Junctions sit on grid nodes, except the one far outside the city
+        int node = snapshot.getJunctionNode(i);
+        if (expected.getLatitude() == 13.5) {
+          assertEquals(-1, node);
+        } else {
+          assertEquals(expected.getLatitude(), graph.getLatitude(node), 0);
+        }
+      }
+      assertEquals(newest, snapshot.getSyncedUntil());
+
+      assertTrue(snapshot.hasRoadGraph());
+      RoadGraph copy = snapshot.toRoadGraph();
+      assertEquals(graph.getNodeCount(), copy.getNodeCount());
+      assertEquals(graph.getEdgeCount(), copy.getEdgeCount());
+      for (int n = 0; n < graph.getNodeCount(); n++) {
+        assertEquals(graph.getLatitude(n), copy.getLatitude(n), 0);
+        assertEquals(graph.endEdge(n), copy.endEdge(n));
+      }
+      for (int e = 0; e < graph.getEdgeCount(); e++) {
+        assertEquals(graph.getTarget(e), copy.getTarget(e));
+        assertEquals(graph.getTravelSeconds(e), copy.getTravelSeconds(e), 0);
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void withoutGraph_junctionsAreUnsnapped() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("J", 12.9, 77.5, 10, 30, false));
+    MappedSnapshot snapshot = MappedSnapshot.wrap(MappedSnapshot.encode(store, null));
+    assertEquals(1, snapshot.getJunctionCount());
+    assertEquals("J", snapshot.getJunctionId(0));
+    assertEquals(-1, snapshot.getJunctionNode(0));
+    assertFalse(snapshot.hasRoadGraph());
+  }
+
+  @Test
+  public void damagedFiles_areRejected() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("J", 12.9, 77.5, 10, 30, false));
+    ByteBuffer bytes = MappedSnapshot.encode(store, TestRoadGraphs.city(5, 43));
+    ByteBuffer truncated = ByteBuffer.wrap(bytes.array(), 0, bytes.capacity() - 8).slice();
+    try {
+      MappedSnapshot.wrap(truncated);
+      fail("Truncated snapshot accepted");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+    bytes.put(0, (byte) 0);
+    try {
+      MappedSnapshot.wrap(bytes);
+      fail("Bad magic accepted");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void source_paintsTheSnapshotOnTheFirstStartOnly() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("old", 12.9, 77.5, 10, 30, false));
+    TrafficJunction flagged = new TrafficJunction("flagged", 12.8, 77.4, 90, 30, true);
+    flagged.setTimestamp(500);
+    store.update(flagged);
+    MappedSnapshot snapshot = MappedSnapshot.wrap(MappedSnapshot.encode(store, null));
+    List<String> events = new ArrayList<>();
+    SnapshotTrafficDataSource source = new SnapshotTrafficDataSource(snapshot,
+        recording("delta", events), recording("full", events));
+    TrafficDataSource.Sink sink = new TrafficDataSource.Sink() {
+      @Override
+      public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+        events.add(junctionId + "=" + junction.getVehicleDensity()
+            + (junction.isEmergencyVehiclePresent() ? "!" : ""));
+      }
+
+      @Override
+      public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+      }
+
+      @Override
+      public void onSnapshot(Map<String, TrafficJunction> junctions) {
+      }
+
+      @Override
+      public void onError(String error) {
+      }
+    };
+    source.start(sink);
+    source.stop();
+    source.start(sink);
+    // The restart begins from a cleared store, and the snapshot may hold deleted junctions
+    assertEquals(List.of("old=10", "flagged=90", "delta", "full"), events);
+    // The delta sync reaches back far enough to fetch the flagged junction live
+    assertEquals(500, snapshot.getResyncFrom());
+  }
+
+  private static TrafficDataSource recording(String name, List<String> events) {
+    return new TrafficDataSource() {
+      @Override
+      public void start(Sink sink) {
+        events.add(name);
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+  }
+
+  @Test
+  public void restartedFeed_restoresTheStoreWithoutRaisingAlerts() {
+    JunctionStateStore seed = new JunctionStateStore();
+    seed.update(new TrafficJunction("A", 12.9, 77.5, 10, 30, false));
+    seed.update(new TrafficJunction("B", 12.8, 77.4, 90, 30, true));
+    TrafficDataSource delta = new TrafficDataSource() {
+      @Override
+      public void start(Sink sink) {
+        sink.onJunctionUpserted("C", new TrafficJunction("C", 12.7, 77.3, 40, 30, false));
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+    // B was deleted after the snapshot was taken
+    TrafficDataSource full = new TrafficDataSource() {
+      @Override
+      public void start(Sink sink) {
+        sink.onJunctionUpserted("A", new TrafficJunction("A", 12.9, 77.5, 20, 30, false));
+        sink.onJunctionUpserted("C", new TrafficJunction("C", 12.7, 77.3, 40, 30, false));
+      }
+
+      @Override
+      public void stop() {
+      }
+    };
+    FirebaseService service = new FirebaseService(new SnapshotTrafficDataSource(
+        MappedSnapshot.wrap(MappedSnapshot.encode(seed, null)), delta, full),
+        CoalescingDispatcher.immediate());
+    FirebaseService.TrafficDataListener listener = new FirebaseService.TrafficDataListener() {
+      @Override
+      public void onTrafficDataUpdated(List<TrafficJunction> junctions) {
+      }
+
+      @Override
+      public void onTrafficJunctionRemoved(String junctionId) {
+      }
+
+      @Override
+      public void onEmergencyVehicleDetected(TrafficJunction junction) {
+      }
+
+      @Override
+      public void onEmergencyVehicleCleared(TrafficJunction junction) {
+      }
+    };
+
+    service.addTrafficDataListener(listener);
+    assertEquals(3, service.getStateStore().count());
+    assertEquals(0, service.getEmergencyTracker().getActiveCount());
+
+    // Captured before the stop clears the store, as the activity does on pause
+    MappedSnapshot.Capture saved = service.captureSnapshot();
+    service.removeTrafficDataListener(listener);
+    assertEquals(0, service.getStateStore().count());
+    assertNull(service.captureSnapshot());
+    assertEquals(3, MappedSnapshot.wrap(MappedSnapshot.encode(saved, null)).getJunctionCount());
+
+    service.addTrafficDataListener(listener);
+    JunctionStateStore store = service.getStateStore();
+    assertEquals(2, store.count());
+    assertFalse(store.isPresent(store.indexOf("B")));
+    assertEquals(0, service.getEmergencyTracker().getActiveCount());
+    service.removeTrafficDataListener(listener);
+  }
+
+  // Startup load from the mapped snapshot against decoding raw junction maps and the graph file
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void mappedVersusColdLoad() throws IOException {
+    Random random = new Random(44);
+    RoadGraph graph = TestRoadGraphs.city(300, 45);
+    JunctionStateStore live = MappedSnapshotTest.randomStore(graph, 20_000, random);
+    File snapshotFile = File.createTempFile("snapshot", ".bin");
+    File graphFile = File.createTempFile("graph", ".bin");
+    try {
+      MappedSnapshot.write(snapshotFile, live, graph);
+      RoadGraphCodec.write(graph, graphFile);
+      // What the backend hands over today: one raw field map per junction
+      Map<String, Object> tree = new HashMap<>();
+      live.forEach(index -> {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(TrafficJunctionDecoder.LATITUDE, live.getLatitude(index));
+        fields.put(TrafficJunctionDecoder.LONGITUDE, live.getLongitude(index));
+        fields.put(TrafficJunctionDecoder.VEHICLE_DENSITY, (long) live.getVehicleDensity(index));
+        fields.put(TrafficJunctionDecoder.GREEN_LIGHT_DURATION,
+            (long) live.getGreenLightDuration(index));
+        fields.put(TrafficJunctionDecoder.TIMESTAMP, live.getTimestamp(index));
+        fields.put(TrafficJunctionDecoder.EMERGENCY_VEHICLE_PRESENT,
+            live.isEmergencyVehiclePresent(index));
+        tree.put(live.getJunctionId(index), fields);
+      });
+
+      int rounds = 5;
+      long coldNanos = 0;
+      long mappedNanos = 0;
+      long coldHeap = 0;
+      long mappedHeap = 0;
+      long firstPaintNanos = 0;
+      for (int round = 0; round < rounds; round++) {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        JunctionStateStore cold = new JunctionStateStore();
+        for (Map.Entry<String, Object> child : tree.entrySet()) {
+          TrafficJunctionDecoder.decodeInto(cold, child.getKey(), child.getValue());
+        }
+        RoadGraphCodec.read(graphFile);
+        coldNanos += System.nanoTime() - start;
+        coldHeap += usedHeap() - before;
+
+        before = usedHeap();
+        start = System.nanoTime();
+        MappedSnapshot snapshot = MappedSnapshot.open(snapshotFile);
+        // The map can paint once the snapshot's junctions are in the store
+        JunctionStateStore warm = new JunctionStateStore();
+        for (int i = 0; i < snapshot.getJunctionCount(); i++) {
+          warm.update(warm.intern(snapshot.getJunctionId(i)), snapshot.getLatitude(i),
+              snapshot.getLongitude(i), snapshot.getVehicleDensity(i),
+              snapshot.getGreenLightDuration(i), snapshot.getTimestamp(i),
+              snapshot.isEmergencyVehiclePresent(i));
+        }
+        firstPaintNanos += System.nanoTime() - start;
+        snapshot.toRoadGraph();
+        mappedNanos += System.nanoTime() - start;
+        mappedHeap += usedHeap() - before;
+      }
+      System.out.printf("Startup load of %d junctions and a %d-node graph: cold decode %.1f ms "
+              + "(%d KB heap), mapped snapshot %.1f ms (%d KB heap, junctions ready after "
+              + "%.1f ms); snapshot %d KB on disk%n", live.count(), graph.getNodeCount(),
+          coldNanos / 1e6 / rounds, coldHeap / 1024 / rounds, mappedNanos / 1e6 / rounds,
+          mappedHeap / 1024 / rounds, firstPaintNanos / 1e6 / rounds,
+          snapshotFile.length() / 1024);
+    } finally {
+      snapshotFile.delete();
+      graphFile.delete();
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
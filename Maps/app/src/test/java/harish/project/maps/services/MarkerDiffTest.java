@@ -0,0 +1,118 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MarkerDiffTest {
+  private static final MarkerDiff.Styler BY_DENSITY = (store, index) ->
+      store.isEmergencyVehiclePresent(index) ? 0xFFFF0000
+          : new TrafficService().getTrafficColor(store.getVehicleDensity(index));
+
+  private static int count(MarkerDiff.Plan plan, byte kind) {
+    int count = 0;
+    for (int op = 0; op < plan.size(); op++) {
+      if (plan.getKind(op) == kind) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void plan_touchesOnlyChangedMarkers() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("A", 12.97, 77.59, 10, 30, false));
+    store.update(new TrafficJunction("B", 12.98, 77.60, 70, 30, false));
+    MarkerDiff diff = new MarkerDiff(BY_DENSITY);
+
+    MarkerDiff.Plan plan = diff.plan(store);
+    assertEquals(2, count(plan, MarkerDiff.ADD));
+    assertEquals(0, diff.plan(store).size());
+
+    // Same colour bucket: nothing to do
+    store.update(new TrafficJunction("A", 12.97, 77.59, 20, 30, false));
+    assertEquals(0, diff.plan(store).size());
+
+    // New bucket and an emergency
+    store.update(new TrafficJunction("A", 12.97, 77.59, 40, 30, false));
+    store.update(new TrafficJunction("B", 12.98, 77.60, 70, 30, true));
+    plan = diff.plan(store);
+    assertEquals(2, plan.size());
+    assertEquals(2, count(plan, MarkerDiff.RECOLOR));
+
+    store.update(new TrafficJunction("A", 12.971, 77.59, 40, 30, false));
+    plan = diff.plan(store);
+    assertEquals(1, plan.size());
+    assertEquals(MarkerDiff.MOVE, plan.getKind(0));
+
+    store.remove(store.indexOf("B"));
+    plan = diff.plan(store);
+    assertEquals(1, plan.size());
+    assertEquals(MarkerDiff.REMOVE, plan.getKind(0));
+    assertEquals(store.indexOf("B"), plan.getIndex(0));
+    assertEquals(1, diff.getRenderedCount());
+  }
+
+  @Test
+  public void viewport_cullsAndRestoresMarkers() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    for (int i = 0; i < 100; i++) {
+      store.update(new TrafficJunction("J" + i, 12.9 + i * 0.001, 77.5, i, 30, false));
+    }
+    MarkerDiff diff = new MarkerDiff(BY_DENSITY);
+    diff.setViewport(12.9, 77.4, 12.9495, 77.6);
+    assertEquals(50, count(diff.plan(store), MarkerDiff.ADD));
+
+    // Pan up by 20 junctions: 20 leave, 20 arrive, the rest stay untouched
+    diff.setViewport(12.92, 77.4, 12.9695, 77.6);
+    MarkerDiff.Plan plan = diff.plan(store);
+    assertEquals(20, count(plan, MarkerDiff.REMOVE));
+    assertEquals(20, count(plan, MarkerDiff.ADD));
+    assertEquals(40, plan.size());
+    assertEquals(50, diff.getRenderedCount());
+
+    diff.reset();
+    assertEquals(50, count(diff.plan(store), MarkerDiff.ADD));
+  }
+
+  // UI operations per frame as the city grows around a fixed viewport
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void uiWorkStaysFlatAsJunctionsGrow() {
+    for (int n : new int[] {1_000, 10_000, 100_000}) {
+      JunctionStateStore store = new JunctionStateStore();
+      store.setSpatialIndex(new GeoGridIndex());
+      Random random = new Random(n);
+      // City grows outward; the viewport stays one neighbourhood
+      double spread = 0.05 * Math.sqrt(n / 1000.0);
+      for (int i = 0; i < n; i++) {
+        store.update(new TrafficJunction("J" + i, 12.97 + (random.nextDouble() - 0.5) * spread,
+            77.59 + (random.nextDouble() - 0.5) * spread, random.nextInt(101), 30, false));
+      }
+      MarkerDiff diff = new MarkerDiff(MarkerDiffTest.BY_DENSITY);
+      diff.setViewport(12.95, 77.57, 12.99, 77.61);
+      diff.plan(store);
+
+      int frames = 100;
+      long ops = 0;
+      long start = System.nanoTime();
+      for (int frame = 0; frame < frames; frame++) {
+        // 1% of the city changes per frame
+        for (int u = 0; u < n / 100; u++) {
+          int index = random.nextInt(n);
+          store.update(index, store.getLatitude(index), store.getLongitude(index),
+              random.nextInt(101), 30, 0, false);
+        }
+        ops += diff.plan(store).size();
+      }
+      double planUs = (System.nanoTime() - start) / 1e3 / frames;
+      System.out.printf("Markers n=%d: %d drawn, %.1f UI ops/frame (was %d), plan %.0f us/frame "
+          + "off-thread%n", n, diff.getRenderedCount(), ops / (double) frames, n / 100, planUs);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PartitionedTrafficDataSourceTest {
+  // Records the live junction set the downstream pipeline would see
+  private static class RecordingSink implements TrafficDataSource.Sink {
+    final Map<String, TrafficJunction> junctions = new HashMap<>();
+    long decoded;
+    final List<String> errors = new ArrayList<>();
+
+    @Override
+    public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+      junctions.put(junctionId, junction);
+    }
+
+    @Override
+    public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+      decoded++;
+      junctions.put(junctionId, TrafficJunctionDecoder.decode(junctionId, fields));
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+      junctions.remove(junctionId);
+    }
+
+    @Override
+    public void onSnapshot(Map<String, TrafficJunction> snapshot) {
+      junctions.putAll(snapshot);
+    }
+
+    @Override
+    public void onError(String error) {
+      errors.add(error);
+    }
+  }
+
+  private static TrafficJunction junction(String id, double lat, double lon, int density) {
+    return new TrafficJunction(id, lat, lon, density, 30, false);
+  }
+
+  @Test
+  public void geohash_matchesKnownValuesAndCoversTheBox() {
+    assertEquals("ezs42", Geohash.encode(42.6, -5.6, 5));
+    Set<String> cells = new HashSet<>();
+    Geohash.cover(12.90, 77.50, 13.00, 77.70, 5, cells);
+    assertEquals(Geohash.coverCount(12.90, 77.50, 13.00, 77.70, 5), cells.size());
+    Random random = new Random(3);
+    for (int i = 0; i < 1000; i++) {
+      double lat = 12.90 + random.nextDouble() * 0.10;
+      double lon = 77.50 + random.nextDouble() * 0.20;
+      assertTrue(cells.contains(Geohash.encode(lat, lon, 5)));
+    }
+  }
+
+  @Test
+  public void onlyJunctionsNearTheViewportAreDelivered() {
+    LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+    feed.publish(junction("in", 12.97, 77.59, 10));
+    feed.publish(junction("far", 13.20, 77.90, 10));
+    PartitionedTrafficDataSource source = new PartitionedTrafficDataSource(feed);
+    RecordingSink sink = new RecordingSink();
+    source.start(sink);
+    // Nothing until the camera reports a viewport
+    assertTrue(sink.junctions.isEmpty());
+
+    source.setViewport(12.96, 77.58, 12.98, 77.60);
+    assertEquals(Collections.singleton("in"), sink.junctions.keySet());
+    feed.publish(junction("in", 12.97, 77.59, 55));
+    feed.publish(junction("far", 13.20, 77.90, 55));
+    assertEquals(55, sink.junctions.get("in").getVehicleDensity());
+    assertFalse(sink.junctions.containsKey("far"));
+
+    feed.remove("in");
+    assertTrue(sink.junctions.isEmpty());
+    source.stop();
+  }
+
+  @Test
+  public void panningAway_dropsOldPartitionsAndTheirJunctions() {
+    LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+    feed.publish(junction("a", 12.97, 77.59, 10));
+    feed.publish(junction("b", 13.20, 77.90, 20));
+    PartitionedTrafficDataSource source = new PartitionedTrafficDataSource(feed);
+    RecordingSink sink = new RecordingSink();
+    source.start(sink);
+    source.setViewport(12.96, 77.58, 12.98, 77.60);
+    long resubscribes = source.getResubscribeCount();
+    // A nudge within the margin keeps every partition
+    source.setViewport(12.9601, 77.5801, 12.9801, 77.6001);
+    assertEquals(resubscribes, source.getResubscribeCount());
+
+    source.setViewport(13.19, 77.89, 13.21, 77.91);
+    assertEquals(Collections.singleton("b"), sink.junctions.keySet());
+    // Updates from dropped partitions no longer arrive
+    feed.publish(junction("a", 12.97, 77.59, 90));
+    assertFalse(sink.junctions.containsKey("a"));
+  }
+
+  @Test
+  public void junctionMovingBetweenPartitions_staysLive() {
+    LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+    PartitionedTrafficDataSource source = new PartitionedTrafficDataSource(feed);
+    RecordingSink sink = new RecordingSink();
+    source.start(sink);
+    source.setViewport(12.90, 77.50, 13.00, 77.70);
+    assertTrue(source.getPartitions().size() > 1);
+    feed.publish(junction("m", 12.91, 77.51, 10));
+    // The feed adds it to the new cell after removing it from the old one
+    feed.publish(junction("m", 12.99, 77.69, 20));
+    assertEquals(20, sink.junctions.get("m").getVehicleDensity());
+    assertEquals(1, sink.junctions.size());
+  }
+
+  @Test
+  public void hugeViewport_fallsBackToTheWholeTree() {
+    LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+    feed.publish(junction("a", 12.97, 77.59, 10));
+    feed.publish(junction("b", 28.61, 77.20, 10));
+    PartitionedTrafficDataSource source = new PartitionedTrafficDataSource(feed);
+    RecordingSink sink = new RecordingSink();
+    source.start(sink);
+    source.setViewport(8, 68, 35, 97);
+    assertEquals(Collections.singletonList(PartitionedTrafficDataSource.ALL),
+        source.getPartitions());
+    assertEquals(2, sink.junctions.size());
+
+    // Zooming back in hands the junction over to its cell without a removal in between
+    source.setViewport(12.96, 77.58, 12.98, 77.60);
+    assertEquals(Collections.singleton("a"), sink.junctions.keySet());
+    assertFalse(source.getPartitions().contains(PartitionedTrafficDataSource.ALL));
+  }
+
+  @Test
+  public void droppedJunctions_waitForTheNewPartitionsToLoad() {
+    List<Runnable> pending = new ArrayList<>();
+    LocalPartitionFeed feed = new LocalPartitionFeed(pending::add);
+    feed.publish(junction("a", 12.97, 77.59, 10));
+    feed.publish(junction("b", 28.61, 77.20, 10));
+    PartitionedTrafficDataSource source = new PartitionedTrafficDataSource(feed);
+    List<String> removed = new ArrayList<>();
+    RecordingSink sink = new RecordingSink() {
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        removed.add(junctionId);
+        super.onJunctionRemoved(junctionId);
+      }
+    };
+    source.start(sink);
+    source.setViewport(8, 68, 35, 97);
+    runAll(pending);
+    assertEquals(2, sink.junctions.size());
+
+    // The cell has not delivered yet, so nothing may disappear
+    source.setViewport(12.96, 77.58, 12.98, 77.60);
+    assertEquals(2, sink.junctions.size());
+    runAll(pending);
+    assertEquals(Collections.singleton("a"), sink.junctions.keySet());
+    assertEquals(Collections.singletonList("b"), removed);
+  }
+
+  private static void runAll(List<Runnable> pending) {
+    while (!pending.isEmpty()) {
+      pending.remove(0).run();
+    }
+  }
+
+  @Test
+  public void viewport_receivesAFractionOfTheCity() {
+    int n = 5_000;
+    Random random = new Random(5);
+    long[] bytes = new long[2];
+    long[] decoded = new long[2];
+    for (int mode = 0; mode < 2; mode++) {
+      LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+      // A partition budget of 0 always subscribes to the whole tree
+      PartitionedTrafficDataSource source = mode == 0 ? new PartitionedTrafficDataSource(feed)
+          : new PartitionedTrafficDataSource(feed, 5, 0, 0);
+      RecordingSink sink = new RecordingSink();
+      source.start(sink);
+      // A street-level view of about 2 x 2 km in the centre of a Bangalore-sized city
+      source.setViewport(12.962, 77.585, 12.980, 77.603);
+      for (int i = 0; i < n; i++) {
+        feed.publish(junction("J" + i, 12.9716 + (random.nextDouble() * 2 - 1) * 0.15,
+            77.5946 + (random.nextDouble() * 2 - 1) * 0.15, 10));
+      }
+      bytes[mode] = feed.getBytesDelivered();
+      decoded[mode] = sink.decoded;
+      source.stop();
+    }
+    assertTrue(bytes[0] * 10 < bytes[1]);
+    assertTrue(decoded[0] * 10 < decoded[1]);
+  }
+
+  // Bytes, decodes and time for a street-level viewport against subscribing to the whole city
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void viewportSubscriptionVersusWholeCity() {
+    int n = 50_000;
+    int rounds = 5;
+    Random random = new Random(5);
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    for (int i = 0; i < n; i++) {
+      // Roughly the extent of Bangalore, as in SyntheticTrafficDataSource
+      lats[i] = 12.9716 + (random.nextDouble() * 2 - 1) * 0.15;
+      lons[i] = 77.5946 + (random.nextDouble() * 2 - 1) * 0.15;
+    }
+    long[] bytes = new long[2];
+    long[] decoded = new long[2];
+    for (int mode = 0; mode < 2; mode++) {
+      LocalPartitionFeed feed = new LocalPartitionFeed(Runnable::run);
+      for (int i = 0; i < n; i++) {
+        feed.publish(PartitionedTrafficDataSourceTest.junction("J" + i, lats[i], lons[i], 10));
+      }
+      // A partition budget of 0 always subscribes to the whole tree
+      PartitionedTrafficDataSource source = mode == 0 ? new PartitionedTrafficDataSource(feed)
+          : new PartitionedTrafficDataSource(feed, 5, 0, 0);
+      RecordingSink sink = new RecordingSink();
+      source.start(sink);
+      // A street-level view of about 2 x 2 km in the centre
+      source.setViewport(12.962, 77.585, 12.980, 77.603);
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++) {
+        for (int i = 0; i < n; i++) {
+          feed.publish(PartitionedTrafficDataSourceTest.junction("J" + i, lats[i], lons[i],
+              random.nextInt(100)));
+        }
+      }
+      double ms = (System.nanoTime() - start) / 1e6;
+      bytes[mode] = feed.getBytesDelivered();
+      decoded[mode] = sink.decoded;
+      System.out.printf("Partitioned %s: %d live junctions, %d decodes, %.1f MB, %.0f ms%n",
+          mode == 0 ? "viewport" : "whole city", sink.junctions.size(), decoded[mode],
+          bytes[mode] / 1e6, ms);
+      source.stop();
+    }
+    System.out.printf("Partitioned savings: %.1fx bytes, %.1fx decodes%n",
+        (double) bytes[1] / bytes[0], (double) decoded[1] / decoded[0]);
+  }
+}
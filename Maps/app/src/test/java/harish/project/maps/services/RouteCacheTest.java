@@ -0,0 +1,219 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RouteCacheTest {
+  private static final RoadGraph GRAPH = TestRoadGraphs.city(40, 7);
+
+  private static RouteCache.Planner counting(RoutePlanner planner, int[] plans) {
+    return (fromLat, fromLon, toLat, toLon) -> {
+      plans[0]++;
+      return planner.route(fromLat, fromLon, toLat, toLon);
+    };
+  }
+
+  @Test
+  public void repeatedTrip_isServedFromTheCache() {
+    JunctionStateStore store = new JunctionStateStore();
+    RouteCache cache = new RouteCache(store);
+    store.addObserver(cache);
+    int[] plans = new int[1];
+    RouteCache.Planner planner = counting(new RoutePlanner(GRAPH), plans);
+
+    Route first = cache.route(12.8515, 77.4515, 12.8805, 77.4805, 0, planner);
+    assertNotNull(first);
+    // A few metres away still falls in the same cells
+    Route second = cache.route(12.8517, 77.4512, 12.8803, 77.4808, 1000, planner);
+    assertSame(first, second);
+    assertEquals(1, plans[0]);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 1e-9);
+    assertTrue(cache.getSavedMillis() > 0);
+
+    // The reverse trip is a different route
+    cache.route(12.8805, 77.4805, 12.8515, 77.4515, 1000, planner);
+    assertEquals(2, plans[0]);
+  }
+
+  @Test
+  public void cacheHit_isFollowedWithoutASearch() {
+    JunctionStateStore store = new JunctionStateStore();
+    TrafficEdgeWeights weights = new TrafficEdgeWeights(GRAPH);
+    store.addObserver(weights);
+    RouteCache cache = new RouteCache(store);
+    store.addObserver(cache);
+    IncrementalRoutePlanner following = new IncrementalRoutePlanner(GRAPH, weights);
+    weights.setListener(following::edgesIntoChanged);
+    int[] plans = new int[1];
+    RouteCache.Planner planner = counting(new RoutePlanner(GRAPH, weights), plans);
+
+    Route cached = cache.route(12.8515, 77.4515, 12.8805, 77.4805, 0, planner);
+    Route hit = cache.route(12.8517, 77.4512, 12.8803, 77.4808, 1000, planner);
+    assertSame(cached, hit);
+    following.adopt(hit);
+    assertEquals(1, plans[0]);
+    assertEquals(0, following.getLastExpandedCount());
+    assertSame(hit, following.getRoute());
+
+    // Traffic on the route reroutes the adopted trip like a planned one
+    int onRoute = hit.getNode(hit.getNodeCount() / 2);
+    store.update(new TrafficJunction("jam", GRAPH.getLatitude(onRoute),
+        GRAPH.getLongitude(onRoute), 100, 30, false));
+    following.repair();
+    Route expected = new RoutePlanner(GRAPH, weights).route(hit.getNode(0),
+        hit.getNode(hit.getNodeCount() - 1));
+    assertEquals(expected.getTravelSeconds(), following.getRoute().getTravelSeconds(), 1e-6);
+  }
+
+  @Test
+  public void entriesExpireAndTheLeastRecentlyUsedIsEvicted() {
+    JunctionStateStore store = new JunctionStateStore();
+    RouteCache cache = new RouteCache(store, 2, 1000, RouteCache.DEFAULT_CELL_DEGREES,
+        RouteCache.DEFAULT_DENSITY_TOLERANCE, RouteCache.DEFAULT_CORRIDOR_M);
+    int[] plans = new int[1];
+    RouteCache.Planner planner = counting(new RoutePlanner(GRAPH), plans);
+
+    cache.route(12.851, 77.451, 12.860, 77.460, 0, planner);
+    cache.route(12.851, 77.451, 12.870, 77.470, 0, planner);
+    // Touch the first so the second is the eldest
+    cache.route(12.851, 77.451, 12.860, 77.460, 0, planner);
+    cache.route(12.851, 77.451, 12.880, 77.480, 0, planner);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertNotNull(cache.get(12.851, 77.451, 12.860, 77.460, 0));
+    assertNull(cache.get(12.851, 77.451, 12.870, 77.470, 0));
+
+    assertNull(cache.get(12.851, 77.451, 12.860, 77.460, 1000));
+    assertEquals(1, cache.getExpiredCount());
+  }
+
+  @Test
+  public void densityChangeAlongTheRoute_invalidatesOnlyThatRoute() {
+    JunctionStateStore store = new JunctionStateStore();
+    RouteCache cache = new RouteCache(store);
+    store.addObserver(cache);
+    RoutePlanner planner = new RoutePlanner(GRAPH);
+
+    Route route = cache.route(12.851, 77.451, 12.880, 77.480, 0, planner::route);
+    int onRoute = route.getNode(route.getNodeCount() / 2);
+    int elsewhere = 39 * 40 + 39;
+    store.update(new TrafficJunction("on", GRAPH.getLatitude(onRoute),
+        GRAPH.getLongitude(onRoute), 20, 30, false));
+    store.update(new TrafficJunction("off", GRAPH.getLatitude(elsewhere),
+        GRAPH.getLongitude(elsewhere), 20, 30, false));
+    // Junctions reported after caching are not tracked, so cache again with them present
+    cache.advanceEpoch();
+    route = cache.route(12.851, 77.451, 12.880, 77.480, 0, planner::route);
+
+    store.update(new TrafficJunction("off", GRAPH.getLatitude(elsewhere),
+        GRAPH.getLongitude(elsewhere), 95, 30, false));
+    store.update(new TrafficJunction("on", GRAPH.getLatitude(onRoute),
+        GRAPH.getLongitude(onRoute), 25, 30, false));
+    assertSame(route, cache.get(12.851, 77.451, 12.880, 77.480, 0));
+    assertEquals(0, cache.getInvalidationCount());
+
+    store.update(new TrafficJunction("on", GRAPH.getLatitude(onRoute),
+        GRAPH.getLongitude(onRoute), 80, 30, false));
+    assertEquals(1, cache.getInvalidationCount());
+    assertNull(cache.get(12.851, 77.451, 12.880, 77.480, 0));
+
+    cache.route(12.851, 77.451, 12.880, 77.480, 0, planner::route);
+    store.remove(store.indexOf("on"));
+    assertEquals(0, cache.size());
+
+    cache.route(12.851, 77.451, 12.880, 77.480, 0, planner::route);
+    store.clear();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void routePlannedWhileTrafficChanged_isNotCached() {
+    JunctionStateStore store = new JunctionStateStore();
+    RouteCache cache = new RouteCache(store);
+    store.addObserver(cache);
+    RoutePlanner planner = new RoutePlanner(GRAPH);
+
+    // An update lands mid-plan; its density may not become the route's baseline
+    Route route = cache.route(12.851, 77.451, 12.880, 77.480, 0,
+        (fromLat, fromLon, toLat, toLon) -> {
+          Route planned = planner.route(fromLat, fromLon, toLat, toLon);
+          int onRoute = planned.getNode(planned.getNodeCount() / 2);
+          store.update(new TrafficJunction("on", GRAPH.getLatitude(onRoute),
+              GRAPH.getLongitude(onRoute), 95, 30, false));
+          return planned;
+        });
+    assertNotNull(route);
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getDiscardedCount());
+
+    // So does a route planned across an epoch change
+    cache.route(12.851, 77.451, 12.880, 77.480, 0, (fromLat, fromLon, toLat, toLon) -> {
+      cache.advanceEpoch();
+      return planner.route(fromLat, fromLon, toLat, toLon);
+    });
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getDiscardedCount());
+
+    cache.route(12.851, 77.451, 12.880, 77.480, 0, planner::route);
+    assertEquals(1, cache.size());
+  }
+
+  // A household's regular trips asked for again and again while live traffic moves
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void repeatedCommutes() {
+    RoadGraph graph = TestRoadGraphs.city(300, 8);
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    TrafficEdgeWeights weights = new TrafficEdgeWeights(graph);
+    store.addObserver(weights);
+    RouteCache cache = new RouteCache(store);
+    store.addObserver(cache);
+    RoutePlanner planner = new RoutePlanner(graph, weights);
+    Random random = new Random(9);
+    int junctions = 5000;
+    int[] nodes = new int[junctions];
+    for (int i = 0; i < junctions; i++) {
+      nodes[i] = random.nextInt(graph.getNodeCount());
+      store.update(new TrafficJunction("J" + i, graph.getLatitude(nodes[i]),
+          graph.getLongitude(nodes[i]), random.nextInt(101), 30, false));
+    }
+    int trips = 20;
+    double[][] commutes = new double[trips][];
+    for (int i = 0; i < trips; i++) {
+      int from = random.nextInt(graph.getNodeCount());
+      int to = random.nextInt(graph.getNodeCount());
+      commutes[i] = new double[] {graph.getLatitude(from), graph.getLongitude(from),
+          graph.getLatitude(to), graph.getLongitude(to)};
+    }
+    int queries = 1000;
+    long uncachedNanos = 0;
+    long cachedNanos = 0;
+    for (int q = 0; q < queries; q++) {
+      // Live traffic keeps moving between queries
+      for (int u = 0; u < 20; u++) {
+        int i = random.nextInt(junctions);
+        store.update(i, graph.getLatitude(nodes[i]), graph.getLongitude(nodes[i]),
+            Math.max(0, Math.min(100, store.getVehicleDensity(i) + random.nextInt(11) - 5)), 30,
+            q, false);
+      }
+      double[] trip = commutes[random.nextInt(trips)];
+      long start = System.nanoTime();
+      cache.route(trip[0], trip[1], trip[2], trip[3], q * 1000L, planner::route);
+      cachedNanos += System.nanoTime() - start;
+      if (q % 10 == 0) {
+        start = System.nanoTime();
+        planner.route(trip[0], trip[1], trip[2], trip[3]);
+        uncachedNanos += (System.nanoTime() - start) * 10;
+      }
+    }
+    System.out.printf("Route cache: %s; %.2f ms/query cached vs %.2f ms/query planned%n", cache,
+        cachedNanos / 1e6 / queries, uncachedNanos / 1e6 / queries);
+  }
+}
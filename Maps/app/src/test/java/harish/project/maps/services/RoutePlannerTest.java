@@ -0,0 +1,197 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RoutePlannerTest {
+  @Test
+  public void aStar_findsTheSameCostAsDijkstra() {
+    RoadGraph graph = TestRoadGraphs.city(40, 1);
+    RoutePlanner aStar = new RoutePlanner(graph);
+    RoutePlanner dijkstra = new RoutePlanner(graph);
+    dijkstra.setHeuristic(false);
+    Random random = new Random(2);
+    for (int i = 0; i < 200; i++) {
+      int from = random.nextInt(graph.getNodeCount());
+      int to = random.nextInt(graph.getNodeCount());
+      Route expected = dijkstra.route(from, to);
+      Route actual = aStar.route(from, to);
+      assertEquals(expected == null, actual == null);
+      if (actual != null) {
+        assertEquals(expected.getTravelSeconds(), actual.getTravelSeconds(), 1e-6);
+        assertEquals(from, actual.getNode(0));
+        assertEquals(to, actual.getNode(actual.getNodeCount() - 1));
+        assertTrue(aStar.getLastSettledCount() <= dijkstra.getLastSettledCount());
+      }
+    }
+  }
+
+  @Test
+  public void routeFollowsEdgesAndAddsUpTheirLengths() {
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.90, 77.50);
+    int b = builder.addNode(12.90, 77.51);
+    int c = builder.addNode(12.91, 77.51);
+    int d = builder.addNode(12.91, 77.50);
+    builder.addRoad(a, b, 10).addRoad(b, c, 10).addRoad(c, d, 10);
+    // One-way shortcut only usable from d
+    builder.addEdge(d, a, 10);
+    RoadGraph graph = builder.build();
+    RoutePlanner planner = new RoutePlanner(graph);
+
+    Route forward = planner.route(a, d);
+    assertArrayEquals(new int[] {a, b, c, d}, forward.getNodes());
+    double expected = 0;
+    for (int i = 1; i < 4; i++) {
+      expected += GeoMath.haversineMeters(graph.getLatitude(i - 1), graph.getLongitude(i - 1),
+          graph.getLatitude(i), graph.getLongitude(i));
+    }
+    assertEquals(expected, forward.getLengthMeters(), 0.01);
+    assertEquals(expected / 10, forward.getTravelSeconds(), 0.01);
+    assertArrayEquals(new int[] {d, a}, planner.route(d, a).getNodes());
+    assertEquals(4, forward.getPoints().size());
+
+    // Points snap to the nearest node
+    assertArrayEquals(new int[] {c, d}, planner.route(12.9101, 77.5101, 12.9099, 77.4999)
+        .getNodes());
+  }
+
+  @Test
+  public void unreachableDestination_returnsNull() {
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.90, 77.50);
+    int b = builder.addNode(12.90, 77.51);
+    int island = builder.addNode(12.95, 77.55);
+    builder.addRoad(a, b, 10);
+    RoutePlanner planner = new RoutePlanner(builder.build());
+    assertNull(planner.route(a, island));
+    assertNotNull(planner.route(a, b));
+  }
+
+  @Test
+  public void congestedJunction_isDrivenAround() {
+    // Two ways from a to d; the one through b is slightly shorter
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.900, 77.500);
+    int b = builder.addNode(12.905, 77.505);
+    int c = builder.addNode(12.8945, 77.5055);
+    int d = builder.addNode(12.900, 77.510);
+    builder.addRoad(a, b, 10).addRoad(b, d, 10).addRoad(a, c, 10).addRoad(c, d, 10);
+    RoadGraph graph = builder.build();
+    JunctionStateStore store = new JunctionStateStore();
+    TrafficEdgeWeights weights = new TrafficEdgeWeights(graph);
+    store.addObserver(weights);
+    RoutePlanner planner = new RoutePlanner(graph, weights);
+    Route free = planner.route(a, d);
+    assertArrayEquals(new int[] {a, b, d}, free.getNodes());
+    int version = weights.version();
+
+    store.update(new TrafficJunction("jam", 12.9051, 77.5051, 100, 30, false));
+    assertEquals(b, weights.getJunctionNode(store.indexOf("jam")));
+    assertEquals(3f, weights.getNodeFactor(b), 1e-6);
+    assertNotEquals(version, weights.version());
+    Route congested = planner.route(a, d);
+    assertArrayEquals(new int[] {a, c, d}, congested.getNodes());
+    assertTrue(congested.getTravelSeconds() > free.getTravelSeconds());
+
+    // A junction far from every road changes nothing
+    version = weights.version();
+    store.update(new TrafficJunction("field", 13.5, 78.0, 100, 30, false));
+    assertEquals(-1, weights.getJunctionNode(store.indexOf("field")));
+    assertEquals(version, weights.version());
+
+    store.remove(store.indexOf("jam"));
+    assertEquals(1f, weights.getNodeFactor(b), 1e-6);
+    assertArrayEquals(new int[] {a, b, d}, planner.route(a, d).getNodes());
+  }
+
+  @Test
+  public void codec_roundTripsTheGraph() {
+    RoadGraph graph = TestRoadGraphs.city(30, 4);
+    byte[] bytes = RoadGraphCodec.encode(graph);
+    RoadGraph decoded = RoadGraphCodec.decode(ByteBuffer.wrap(bytes));
+    assertEquals(graph.getNodeCount(), decoded.getNodeCount());
+    assertEquals(graph.getEdgeCount(), decoded.getEdgeCount());
+    for (int n = 0; n < graph.getNodeCount(); n++) {
+      assertEquals(graph.getLatitude(n), decoded.getLatitude(n), 1e-6);
+      assertEquals(graph.getLongitude(n), decoded.getLongitude(n), 1e-6);
+      assertEquals(graph.firstEdge(n), decoded.firstEdge(n));
+    }
+    for (int e = 0; e < graph.getEdgeCount(); e++) {
+      assertEquals(graph.getTarget(e), decoded.getTarget(e));
+      assertEquals(graph.getLengthMeters(e), decoded.getLengthMeters(e), 0.05);
+      assertEquals(graph.getSpeed(e), decoded.getSpeed(e), 0.05);
+    }
+
+    try {
+      RoadGraphCodec.decode(ByteBuffer.wrap(new byte[] {'T', 1}));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Wrong magic
+    }
+    try {
+      RoadGraphCodec.decode(ByteBuffer.wrap(bytes, 0, bytes.length / 2));
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Truncated
+    }
+  }
+
+  // Graph load and A* against Dijkstra on a 300 x 300 street grid
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void cityScaleRouting() {
+    int size = 300;
+    long start = System.nanoTime();
+    RoadGraph built = TestRoadGraphs.city(size, 5);
+    double buildMs = (System.nanoTime() - start) / 1e6;
+    byte[] bytes = RoadGraphCodec.encode(built);
+    start = System.nanoTime();
+    RoadGraph graph = RoadGraphCodec.decode(ByteBuffer.wrap(bytes));
+    double loadMs = (System.nanoTime() - start) / 1e6;
+    System.out.printf("Road graph: %d nodes, %d edges, %.1f MB on disk (%.1f B/edge), "
+            + "built in %.0f ms, loaded in %.0f ms%n", graph.getNodeCount(),
+        graph.getEdgeCount(), bytes.length / 1e6, (double) bytes.length / graph.getEdgeCount(),
+        buildMs, loadMs);
+
+    JunctionStateStore store = new JunctionStateStore();
+    TrafficEdgeWeights weights = new TrafficEdgeWeights(graph);
+    store.addObserver(weights);
+    Random random = new Random(6);
+    for (int i = 0; i < 5000; i++) {
+      int node = random.nextInt(graph.getNodeCount());
+      store.update(new TrafficJunction("J" + i, graph.getLatitude(node),
+          graph.getLongitude(node), random.nextInt(101), 30, false));
+    }
+
+    int queries = 200;
+    int[] from = new int[queries];
+    int[] to = new int[queries];
+    for (int i = 0; i < queries; i++) {
+      from[i] = random.nextInt(graph.getNodeCount());
+      to[i] = random.nextInt(graph.getNodeCount());
+    }
+    for (int mode = 0; mode < 2; mode++) {
+      RoutePlanner planner = new RoutePlanner(graph, weights);
+      planner.setHeuristic(mode == 0);
+      // Warm up
+      for (int i = 0; i < 20; i++) {
+        planner.route(from[i], to[i]);
+      }
+      long settled = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < queries; i++) {
+        planner.route(from[i], to[i]);
+        settled += planner.getLastSettledCount();
+      }
+      double ms = (System.nanoTime() - start) / 1e6;
+      System.out.printf("Routing %s: %.2f ms/route, %d settled/route%n",
+          mode == 0 ? "A*" : "Dijkstra", ms / queries, settled / queries);
+    }
+  }
+}
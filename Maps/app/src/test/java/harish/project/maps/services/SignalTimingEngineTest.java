@@ -0,0 +1,145 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import harish.project.maps.services.SignalTimingEngine.VehicleClass;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignalTimingEngineTest {
+  // car, motorcycle, bus, truck, rickshaw
+  private static int green(SignalTimingEngine engine, int... counts) {
+    return engine.greenSeconds(counts, false);
+  }
+
+  @Test
+  public void greenTimes_matchThePythonController() {
+    SignalTimingEngine engine = new SignalTimingEngine(0);
+    // Values from calculate_green_time with 4 lanes
+    assertEquals(5, green(engine, 0, 0, 0, 0, 0));
+    assertEquals(6, green(engine, 2, 0, 0, 0, 0));
+    assertEquals(12, green(engine, 4, 0, 0, 0, 0));
+    assertEquals(14, green(engine, 1, 2, 1, 0, 1));
+    assertEquals(25, green(engine, 8, 0, 0, 0, 0));
+    assertEquals(28, green(engine, 0, 0, 10, 0, 0));
+    assertEquals(28, engine.greenSeconds(new int[5], true));
+  }
+
+  @Test
+  public void weightsAndLimits_areConfigurable() {
+    SignalTimingEngine engine = new SignalTimingEngine(1, ForkJoinPool.commonPool(), 2, 10, 60);
+    assertEquals(10, green(engine, 1, 0, 0, 0, 0));
+    assertEquals(20, green(engine, 0, 0, 2, 0, 0));
+    engine.setCrossingSeconds(VehicleClass.BUS, 6);
+    assertEquals(30, green(engine, 0, 0, 2, 0, 0));
+    assertEquals(60, green(engine, 0, 0, 0, 100, 0));
+    try {
+      new SignalTimingEngine(1, ForkJoinPool.commonPool(), 0, 5, 28);
+      fail("Zero lanes accepted");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void emergencies_comeFromJunctionState() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("calm", 12.9, 77.5, 10, 30, false));
+    store.update(new TrafficJunction("siren", 12.91, 77.51, 10, 30, true));
+    SignalTimingEngine engine = new SignalTimingEngine(store.size());
+    engine.setCount(0, VehicleClass.CAR, 2);
+    engine.setCount(1, VehicleClass.CAR, 2);
+    engine.copyEmergencies(store);
+    engine.computeCycle();
+    assertEquals(6, engine.getGreenSeconds(0));
+    assertEquals(28, engine.getGreenSeconds(1));
+
+    store.remove(store.indexOf("siren"));
+    engine.copyEmergencies(store);
+    engine.computeCycle();
+    assertEquals(6, engine.getGreenSeconds(1));
+  }
+
+  @Test
+  public void parallelCycle_matchesSerial() {
+    Random random = new Random(51);
+    int junctions = 50_000;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    SignalTimingEngine parallel = new SignalTimingEngine(junctions, pool);
+    SignalTimingEngine serial = new SignalTimingEngine(junctions);
+    fill(random, parallel, serial);
+    for (int round = 0; round < 3; round++) {
+      parallel.computeCycle();
+      serial.computeCycleSerially();
+      int[] counts = new int[VehicleClass.COUNT];
+      for (int j = 0; j < junctions; j++) {
+        assertEquals(serial.getGreenSeconds(j), parallel.getGreenSeconds(j));
+        for (VehicleClass type : VehicleClass.values()) {
+          counts[type.ordinal()] = parallel.getCount(j, type);
+        }
+        if (j % 97 != 0) {
+          assertEquals(parallel.greenSeconds(counts, false), parallel.getGreenSeconds(j));
+        }
+      }
+      fill(random, parallel, serial);
+    }
+    pool.shutdown();
+  }
+
+  // Random queues, with an emergency every 97th junction
+  private static void fill(Random random, SignalTimingEngine a, SignalTimingEngine b) {
+    for (int j = 0; j < a.getJunctionCount(); j++) {
+      for (VehicleClass type : VehicleClass.values()) {
+        int count = random.nextInt(6);
+        a.setCount(j, type, count);
+        b.setCount(j, type, count);
+      }
+      a.setEmergency(j, j % 97 == 0);
+      b.setEmergency(j, j % 97 == 0);
+    }
+  }
+
+  // Junctions per second for a district-wide cycle, and what a cycle allocates on the caller
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void junctionsPerSecond() {
+    Random random = new Random(52);
+    int junctions = 200_000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    SignalTimingEngine engine = new SignalTimingEngine(junctions, pool);
+    SignalTimingEngineTest.fill(random, engine, engine);
+    for (int warmup = 0; warmup < 50; warmup++) {
+      engine.computeCycle();
+      engine.computeCycleSerially();
+    }
+
+    int cycles = 200;
+    long start = System.nanoTime();
+    for (int i = 0; i < cycles; i++) {
+      engine.computeCycleSerially();
+    }
+    long serialNanos = System.nanoTime() - start;
+
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long allocatedBefore = threadBean.getThreadAllocatedBytes(thread);
+    start = System.nanoTime();
+    for (int i = 0; i < cycles; i++) {
+      engine.computeCycle();
+    }
+    long parallelNanos = System.nanoTime() - start;
+    long allocated = threadBean.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+    System.out.printf("Signal timing for %d junctions: %.1f M junctions/s on 1 thread, "
+            + "%.1f M junctions/s on %d threads, %d bytes allocated by the caller over %d "
+            + "cycles%n", junctions, junctions * 1e3 * cycles / serialNanos,
+        junctions * 1e3 * cycles / parallelNanos, threads, allocated, cycles);
+    pool.shutdown();
+  }
+}
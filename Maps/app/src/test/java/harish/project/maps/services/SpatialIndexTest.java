@@ -0,0 +1,332 @@
+package harish.project.maps.services;
+
+import com.google.android.gms.maps.model.LatLng;
+import harish.project.maps.models.TrafficJunction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+  private static final double CENTRE_LAT = 12.9716;
+  private static final double CENTRE_LON = 77.5946;
+
+  private static int[] bruteForce(double[] lats, double[] lons, boolean[] present, double lat,
+      double lon, double radius) {
+    IntList out = new IntList();
+    for (int i = 0; i < lats.length; i++) {
+      if (present[i] && GeoMath.haversineMeters(lat, lon, lats[i], lons[i]) <= radius) {
+        out.add(i);
+      }
+    }
+    int[] result = out.toArray();
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static int[] sorted(IntList list) {
+    int[] result = list.toArray();
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static void checkAgainstBruteForce(SpatialIndex index) {
+    Random random = new Random(7);
+    int n = 5000;
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    boolean[] present = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      lats[i] = CENTRE_LAT + (random.nextDouble() - 0.5) * 0.2;
+      lons[i] = CENTRE_LON + (random.nextDouble() - 0.5) * 0.2;
+      present[i] = true;
+      index.update(i, lats[i], lons[i]);
+    }
+    // Move some, remove some
+    for (int i = 0; i < n; i += 7) {
+      lats[i] += 0.01;
+      index.update(i, lats[i], lons[i]);
+    }
+    for (int i = 0; i < n; i += 11) {
+      present[i] = false;
+      index.remove(i);
+    }
+    assertEquals(n - (n + 10) / 11, index.size());
+
+    IntList out = new IntList();
+    for (int q = 0; q < 200; q++) {
+      double lat = CENTRE_LAT + (random.nextDouble() - 0.5) * 0.2;
+      double lon = CENTRE_LON + (random.nextDouble() - 0.5) * 0.2;
+      double radius = 50 + random.nextDouble() * 2000;
+      out.clear();
+      index.queryRadius(lat, lon, radius, out);
+      assertArrayEquals(bruteForce(lats, lons, present, lat, lon, radius), sorted(out));
+    }
+
+    out.clear();
+    index.queryBox(CENTRE_LAT - 0.01, CENTRE_LON - 0.02, CENTRE_LAT + 0.01, CENTRE_LON, out);
+    IntList expected = new IntList();
+    for (int i = 0; i < n; i++) {
+      if (present[i] && lats[i] >= CENTRE_LAT - 0.01 && lats[i] <= CENTRE_LAT + 0.01
+          && lons[i] >= CENTRE_LON - 0.02 && lons[i] <= CENTRE_LON) {
+        expected.add(i);
+      }
+    }
+    assertArrayEquals(sorted(expected), sorted(out));
+
+    index.clear();
+    out.clear();
+    assertEquals(0, index.queryBox(-90, -180, 90, 180, out));
+  }
+
+  @Test
+  public void grid_matchesBruteForce() {
+    checkAgainstBruteForce(new GeoGridIndex());
+  }
+
+  @Test
+  public void kdTree_matchesBruteForce() {
+    checkAgainstBruteForce(new KdTreeIndex());
+  }
+
+  @Test
+  public void store_keepsIndexInSync() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(new TrafficJunction("A", CENTRE_LAT, CENTRE_LON, 10, 30, false));
+    store.setSpatialIndex(new GeoGridIndex());
+    store.update(new TrafficJunction("B", CENTRE_LAT + 0.0005, CENTRE_LON, 20, 30, false));
+    store.update(new TrafficJunction("C", CENTRE_LAT + 0.05, CENTRE_LON, 20, 30, false));
+
+    TrafficService service = new TrafficService(150);
+    AtomicReference<List<TrafficJunction>> result = new AtomicReference<>();
+    TrafficService.TrafficCallback callback = new TrafficService.TrafficCallback() {
+      @Override
+      public void onTrafficUpdate(List<TrafficJunction> junctions) {
+        result.set(junctions);
+      }
+
+      @Override
+      public void onError(String error) {
+        fail(error);
+      }
+    };
+    service.analyzeTrafficDensity(store, new LatLng(CENTRE_LAT, CENTRE_LON), callback);
+    assertEquals(2, result.get().size());
+
+    // C moves next to A, B disappears
+    store.update(new TrafficJunction("C", CENTRE_LAT, CENTRE_LON + 0.0005, 20, 30, false));
+    store.remove(store.indexOf("B"));
+    service.analyzeTrafficDensity(store, new LatLng(CENTRE_LAT, CENTRE_LON), callback);
+    assertEquals(2, result.get().size());
+    assertEquals(2, store.getSpatialIndex().size());
+
+    service.analyzeTrafficDensity(store, new LatLng(CENTRE_LAT, CENTRE_LON), 10, callback);
+    assertEquals(1, result.get().size());
+  }
+
+  private static void checkNearest(SpatialIndex index) {
+    Random random = new Random(11);
+    int n = 3000;
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    for (int i = 0; i < n; i++) {
+      lats[i] = CENTRE_LAT + (random.nextDouble() - 0.5) * 0.3;
+      lons[i] = CENTRE_LON + (random.nextDouble() - 0.5) * 0.3;
+      index.update(i, lats[i], lons[i]);
+    }
+    IntList out = new IntList();
+    for (int q = 0; q < 300; q++) {
+      // Include queries well outside the data
+      double spread = q % 10 == 0 ? 3 : 0.3;
+      double lat = CENTRE_LAT + (random.nextDouble() - 0.5) * spread;
+      double lon = CENTRE_LON + (random.nextDouble() - 0.5) * spread;
+      int k = 1 + random.nextInt(20);
+      out.clear();
+      assertEquals(k, index.queryNearest(lat, lon, k, out));
+
+      double[] expected = new double[n];
+      for (int i = 0; i < n; i++) {
+        expected[i] = GeoMath.haversineMeters(lat, lon, lats[i], lons[i]);
+      }
+      Arrays.sort(expected);
+      for (int i = 0; i < k; i++) {
+        int found = out.get(i);
+        assertEquals(expected[i], GeoMath.haversineMeters(lat, lon, lats[found], lons[found]),
+            1e-9);
+      }
+    }
+    out.clear();
+    assertEquals(n, index.queryNearest(CENTRE_LAT, CENTRE_LON, n + 5, out));
+  }
+
+  @Test
+  public void grid_nearestMatchesBruteForce() {
+    checkNearest(new GeoGridIndex());
+  }
+
+  @Test
+  public void kdTree_nearestMatchesBruteForce() {
+    checkNearest(new KdTreeIndex());
+  }
+
+  @Test
+  public void corridor_findsJunctionsInRouteOrder() {
+    JunctionStateStore indexed = new JunctionStateStore();
+    indexed.setSpatialIndex(new GeoGridIndex());
+    JunctionStateStore plain = new JunctionStateStore();
+    Random random = new Random(13);
+    for (int i = 0; i < 20000; i++) {
+      TrafficJunction junction = new TrafficJunction("J" + i,
+          CENTRE_LAT + (random.nextDouble() - 0.5) * 0.2,
+          CENTRE_LON + (random.nextDouble() - 0.5) * 0.2, 10, 30, false);
+      indexed.update(junction);
+      plain.update(junction);
+    }
+    List<LatLng> route = Arrays.asList(new LatLng(CENTRE_LAT - 0.05, CENTRE_LON - 0.05),
+        new LatLng(CENTRE_LAT, CENTRE_LON + 0.02), new LatLng(CENTRE_LAT + 0.06, CENTRE_LON));
+    RouteCorridor corridor = new RouteCorridor(route);
+    assertTrue(corridor.getSegmentCount() > 2);
+
+    List<RouteCorridor.Match> matches = corridor.query(indexed, 150);
+    List<RouteCorridor.Match> scanned = corridor.query(plain, 150);
+    assertFalse(matches.isEmpty());
+    assertEquals(scanned.size(), matches.size());
+    for (int i = 0; i < matches.size(); i++) {
+      RouteCorridor.Match match = matches.get(i);
+      assertTrue(match.offsetMeters <= 150);
+      if (i > 0) {
+        assertTrue(matches.get(i - 1).alongMeters <= match.alongMeters);
+      }
+      assertEquals(scanned.get(i).index, match.index);
+    }
+    // The first route vertex is at distance zero, the last at the full length
+    assertEquals(0, corridor.locate(CENTRE_LAT - 0.05, CENTRE_LON - 0.05), 1e-6);
+    assertEquals(corridor.getLengthMeters(), corridor.locate(CENTRE_LAT + 0.06, CENTRE_LON),
+        1e-6);
+
+    List<TrafficJunction> along = new TrafficService().findJunctionsAlongRoute(indexed,
+        corridor, 150);
+    assertEquals(matches.size(), along.size());
+    List<TrafficJunction> nearest = new TrafficService().findNearestJunctions(indexed,
+        new LatLng(CENTRE_LAT, CENTRE_LON), 5);
+    List<TrafficJunction> nearestScan = new TrafficService().findNearestJunctions(plain,
+        new LatLng(CENTRE_LAT, CENTRE_LON), 5);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(nearestScan.get(i).getJunctionId(), nearest.get(i).getJunctionId());
+    }
+  }
+
+  // Grid and k-d tree radius queries against a linear scan, from a district up to a million
+  // junctions
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void radiusQueries() {
+    for (int n : new int[] {1_000, 100_000, 1_000_000}) {
+      radiusQueries(n);
+    }
+  }
+
+  private static void radiusQueries(int n) {
+    // Junction density stays city-like: the area grows with the junction count
+    double spread = 0.05 * Math.sqrt(n / 1000.0);
+    Random random = new Random(n);
+    double[] lats = new double[n];
+    double[] lons = new double[n];
+    for (int i = 0; i < n; i++) {
+      lats[i] = CENTRE_LAT + (random.nextDouble() - 0.5) * spread;
+      lons[i] = CENTRE_LON + (random.nextDouble() - 0.5) * spread;
+    }
+    GeoGridIndex grid = new GeoGridIndex();
+    KdTreeIndex tree = new KdTreeIndex();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      grid.update(i, lats[i], lons[i]);
+    }
+    double gridBuildMs = (System.nanoTime() - start) / 1e6;
+    for (int i = 0; i < n; i++) {
+      tree.update(i, lats[i], lons[i]);
+    }
+    IntList out = new IntList();
+    start = System.nanoTime();
+    tree.queryBox(0, 0, 0, 0, out);
+    double treeBuildMs = (System.nanoTime() - start) / 1e6;
+
+    int queries = 2000;
+    double[] qLat = new double[queries];
+    double[] qLon = new double[queries];
+    for (int q = 0; q < queries; q++) {
+      qLat[q] = CENTRE_LAT + (random.nextDouble() - 0.5) * spread;
+      qLon[q] = CENTRE_LON + (random.nextDouble() - 0.5) * spread;
+    }
+
+    long gridHits = 0;
+    start = System.nanoTime();
+    for (int q = 0; q < queries; q++) {
+      out.clear();
+      gridHits += grid.queryRadius(qLat[q], qLon[q], TrafficService.DEFAULT_RADIUS * 5, out);
+    }
+    double gridUs = (System.nanoTime() - start) / 1e3 / queries;
+
+    long treeHits = 0;
+    start = System.nanoTime();
+    for (int q = 0; q < queries; q++) {
+      out.clear();
+      treeHits += tree.queryRadius(qLat[q], qLon[q], TrafficService.DEFAULT_RADIUS * 5, out);
+    }
+    double treeUs = (System.nanoTime() - start) / 1e3 / queries;
+
+    // The linear scan is slow, so it gets fewer queries
+    int scans = Math.max(5, Math.min(queries, 2_000_000 / n));
+    long scanHits = 0;
+    start = System.nanoTime();
+    for (int q = 0; q < scans; q++) {
+      for (int i = 0; i < n; i++) {
+        if (GeoMath.haversineMeters(qLat[q], qLon[q], lats[i], lons[i])
+            <= TrafficService.DEFAULT_RADIUS * 5) {
+          scanHits++;
+        }
+      }
+    }
+    double scanUs = (System.nanoTime() - start) / 1e3 / scans;
+
+    System.out.printf("Spatial n=%d: scan %.1f us/query, grid %.1f us/query (build %.0f ms), "
+        + "kd-tree %.1f us/query (build %.0f ms), %.1f hits/query%n", n, scanUs, gridUs,
+        gridBuildMs, treeUs, treeBuildMs, gridHits / (double) queries);
+  }
+
+  // Nearest-10 queries through the grid against a linear scan
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void nearestQueries() {
+    int n = 100_000;
+    Random random = new Random(17);
+    JunctionStateStore store = new JunctionStateStore();
+    store.setSpatialIndex(new GeoGridIndex());
+    JunctionStateStore plain = new JunctionStateStore();
+    for (int i = 0; i < n; i++) {
+      TrafficJunction junction = new TrafficJunction("J" + i,
+          CENTRE_LAT + (random.nextDouble() - 0.5) * 0.5,
+          CENTRE_LON + (random.nextDouble() - 0.5) * 0.5, 10, 30, false);
+      store.update(junction);
+      plain.update(junction);
+    }
+    TrafficService service = new TrafficService();
+    int queries = 200;
+    long start = System.nanoTime();
+    for (int q = 0; q < queries; q++) {
+      service.findNearestJunctions(store, new LatLng(CENTRE_LAT + q * 1e-3, CENTRE_LON), 10);
+    }
+    double indexedUs = (System.nanoTime() - start) / 1e3 / queries;
+    start = System.nanoTime();
+    for (int q = 0; q < 20; q++) {
+      service.findNearestJunctions(plain, new LatLng(CENTRE_LAT + q * 1e-3, CENTRE_LON), 10);
+    }
+    double scanUs = (System.nanoTime() - start) / 1e3 / 20;
+    System.out.printf("Nearest 10 of %d: scan %.0f us/query, grid %.1f us/query%n", n, scanUs,
+        indexedUs);
+  }
+}
@@ -0,0 +1,51 @@
+package harish.project.maps.services;
+
+import java.util.Random;
+
+// Synthetic road networks shared by the routing tests
+final class TestRoadGraphs {
+  static final double ORIGIN_LAT = 12.85;
+  static final double ORIGIN_LON = 77.45;
+  // About 110 m between grid nodes
+  static final double SPACING = 0.001;
+  static final double STREET_SPEED = 8.3;
+  static final double ARTERIAL_SPEED = 16.7;
+
+  private TestRoadGraphs() {
+  }
+
+  /**
+   * A size x size street grid with jittered nodes, every tenth row and column an arterial at
+   * twice the speed, and a few percent of the blocks closed. Node id is row * size + column.
+   */
+  static RoadGraph city(int size, long seed) {
+    Random random = new Random(seed);
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    for (int row = 0; row < size; row++) {
+      for (int column = 0; column < size; column++) {
+        builder.addNode(ORIGIN_LAT + row * SPACING + (random.nextDouble() - 0.5) * SPACING * 0.3,
+            ORIGIN_LON + column * SPACING + (random.nextDouble() - 0.5) * SPACING * 0.3);
+      }
+    }
+    for (int row = 0; row < size; row++) {
+      for (int column = 0; column < size; column++) {
+        int node = row * size + column;
+        if (column + 1 < size && (row % 10 == 0 || random.nextInt(100) >= 3)) {
+          builder.addRoad(node, node + 1, row % 10 == 0 ? ARTERIAL_SPEED : STREET_SPEED);
+        }
+        if (row + 1 < size && (column % 10 == 0 || random.nextInt(100) >= 3)) {
+          builder.addRoad(node, node + size, column % 10 == 0 ? ARTERIAL_SPEED : STREET_SPEED);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  static double latitudeOf(int row) {
+    return ORIGIN_LAT + row * SPACING;
+  }
+
+  static double longitudeOf(int column) {
+    return ORIGIN_LON + column * SPACING;
+  }
+}
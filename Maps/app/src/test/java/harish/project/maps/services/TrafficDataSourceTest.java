@@ -0,0 +1,290 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the ingestion pipeline against the offline sources, no backend required.
+ */
+public class TrafficDataSourceTest {
+  private static class CountingListener implements FirebaseService.TrafficDataListener {
+    final AtomicLong updates = new AtomicLong();
+    final AtomicLong emergencies = new AtomicLong();
+
+    @Override
+    public void onTrafficDataUpdated(List<TrafficJunction> junctions) {
+      updates.addAndGet(junctions.size());
+    }
+
+    @Override
+    public void onTrafficJunctionRemoved(String junctionId) {
+    }
+
+    @Override
+    public void onEmergencyVehicleDetected(TrafficJunction junction) {
+      emergencies.incrementAndGet();
+    }
+
+    @Override
+    public void onEmergencyVehicleCleared(TrafficJunction junction) {
+    }
+  }
+
+  @Test
+  public void syntheticCity_soaksThePipeline() throws Exception {
+    SyntheticTrafficDataSource source = new SyntheticTrafficDataSource(2000, 20000);
+    FirebaseService service = new FirebaseService(source, CoalescingDispatcher.immediate());
+    CountingListener listener = new CountingListener();
+    service.addTrafficDataListener(listener);
+
+    Thread.sleep(1000);
+    service.removeTrafficDataListener(listener);
+
+    assertTrue(source.getEmittedCount() > 2000);
+    assertTrue(listener.updates.get() > 0);
+  }
+
+  @Test
+  public void shutdown_detachesStoreObservers() throws Exception {
+    SyntheticTrafficDataSource source = new SyntheticTrafficDataSource(100, 5000);
+    FirebaseService service = new FirebaseService(source, CoalescingDispatcher.immediate());
+    AtomicLong seen = new AtomicLong();
+    JunctionStateStore.Observer observer = new JunctionStateStore.Observer() {
+      @Override
+      public void onJunctionUpdated(JunctionStateStore store, int index) {
+        seen.incrementAndGet();
+      }
+
+      @Override
+      public void onJunctionRemoved(JunctionStateStore store, int index) {
+      }
+
+      @Override
+      public void onCleared(JunctionStateStore store) {
+      }
+    };
+    service.addStoreObserver(observer);
+    CountingListener listener = new CountingListener();
+    service.addTrafficDataListener(listener);
+    Thread.sleep(200);
+
+    service.shutdown();
+    long atShutdown = seen.get();
+    // Attaching after shutdown is a no-op
+    service.addStoreObserver(observer);
+    Thread.sleep(200);
+    service.removeTrafficDataListener(listener);
+    assertTrue(atShutdown > 0);
+    assertEquals(atShutdown, seen.get());
+  }
+
+  @Test
+  public void recordedStream_replaysFasterThanRealTime() throws Exception {
+    File file = File.createTempFile("traffic", ".csv");
+    file.deleteOnExit();
+    try (FileWriter writer = new FileWriter(file)) {
+      writer.write("# recorded stream\n");
+      writer.write("0,U,A,12.9,77.5,10,30,1000,false\n");
+      writer.write("1000,U,B,12.8,77.4,70,45,2000,true\n");
+      writer.write("2000,U,A,12.9,77.5,40,30,3000,false\n");
+      writer.write("3000,R,B\n");
+    }
+
+    JunctionStateStore store = new JunctionStateStore();
+    CountDownLatch done = new CountDownLatch(1);
+    ReplayTrafficDataSource source = new ReplayTrafficDataSource(file, 100, false);
+    source.start(new TrafficDataSource.Sink() {
+      @Override
+      public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+        store.update(junction);
+      }
+
+      @Override
+      public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+        TrafficJunctionDecoder.decodeInto(store, junctionId, fields);
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        store.remove(store.indexOf(junctionId));
+        done.countDown();
+      }
+
+      @Override
+      public void onSnapshot(Map<String, TrafficJunction> junctions) {
+      }
+
+      @Override
+      public void onError(String error) {
+        fail(error);
+      }
+    });
+
+    // Three seconds of recording at 100x speed
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals(1, store.count());
+    assertEquals(40, store.getVehicleDensity(store.indexOf("A")));
+    assertFalse(store.isPresent(store.indexOf("B")));
+  }
+
+  @Test
+  public void restartedReplay_keepsPlaying() throws Exception {
+    File file = File.createTempFile("traffic", ".csv");
+    file.deleteOnExit();
+    try (FileWriter writer = new FileWriter(file)) {
+      writer.write("0,U,A,12.9,77.5,10,30,1000,false\n");
+      writer.write("500,U,B,12.8,77.4,70,45,2000,false\n");
+    }
+
+    ReplayTrafficDataSource source = new ReplayTrafficDataSource(file, 1, true);
+    // Pause and resume over and over; the replaced threads must not end the current one
+    for (int i = 0; i < 50; i++) {
+      source.start(new CollectingSink(new ArrayList<>()));
+      source.stop();
+    }
+    List<String> upserted = new ArrayList<>();
+    source.start(new CollectingSink(upserted));
+    Thread.sleep(100);
+    assertTrue(source.isRunning());
+    source.stop();
+    assertFalse(source.isRunning());
+    synchronized (upserted) {
+      assertEquals(List.of("A"), upserted);
+    }
+  }
+
+  private static class CollectingSink implements TrafficDataSource.Sink {
+    private final List<String> upserted;
+
+    CollectingSink(List<String> upserted) {
+      this.upserted = upserted;
+    }
+
+    @Override
+    public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+      synchronized (upserted) {
+        upserted.add(junctionId);
+      }
+    }
+
+    @Override
+    public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+    }
+
+    @Override
+    public void onSnapshot(Map<String, TrafficJunction> junctions) {
+    }
+
+    @Override
+    public void onError(String error) {
+      fail(error);
+    }
+  }
+
+  @Test
+  public void malformedLines_areReportedAndSkipped() throws Exception {
+    File file = File.createTempFile("traffic", ".csv");
+    file.deleteOnExit();
+    try (FileWriter writer = new FileWriter(file)) {
+      writer.write("0,U,A,12.9,77.5,10,30,1000,false\n");
+      writer.write("0,U,B,12.8\n");
+      writer.write("0,U,C,north,77.4,70,45,2000,true\n");
+      writer.write("soon,R,A\n");
+      writer.write("0,U,D,12.7,77.3,20,30,3000,false\n");
+    }
+
+    List<String> upserted = new ArrayList<>();
+    List<String> errors = new ArrayList<>();
+    CountDownLatch done = new CountDownLatch(1);
+    ReplayTrafficDataSource source = new ReplayTrafficDataSource(file, 100, false);
+    source.start(new TrafficDataSource.Sink() {
+      @Override
+      public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+        upserted.add(junctionId);
+        if ("D".equals(junctionId)) {
+          done.countDown();
+        }
+      }
+
+      @Override
+      public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+      }
+
+      @Override
+      public void onJunctionRemoved(String junctionId) {
+        fail("Removal on a malformed line was delivered");
+      }
+
+      @Override
+      public void onSnapshot(Map<String, TrafficJunction> junctions) {
+      }
+
+      @Override
+      public void onError(String error) {
+        errors.add(error);
+      }
+    });
+
+    assertTrue(done.await(2, TimeUnit.SECONDS));
+    assertEquals(List.of("A", "D"), upserted);
+    assertEquals(3, errors.size());
+    assertTrue(errors.get(0), errors.get(0).startsWith("Skipping line 2 "));
+    assertTrue(errors.get(2), errors.get(2).startsWith("Skipping line 4 "));
+  }
+
+  @Test
+  public void recorder_skipsIdsTheFormatCannotHold() {
+    StringWriter out = new StringWriter();
+    List<String> errors = new ArrayList<>();
+    List<String> forwarded = new ArrayList<>();
+    ReplayTrafficDataSource.Recorder recorder = new ReplayTrafficDataSource.Recorder(out,
+        new TrafficDataSource.Sink() {
+          @Override
+          public void onJunctionUpserted(String junctionId, TrafficJunction junction) {
+            forwarded.add(junctionId);
+          }
+
+          @Override
+          public void onJunctionFieldsUpserted(String junctionId, Map<String, Object> fields) {
+          }
+
+          @Override
+          public void onJunctionRemoved(String junctionId) {
+            forwarded.add(junctionId);
+          }
+
+          @Override
+          public void onSnapshot(Map<String, TrafficJunction> junctions) {
+          }
+
+          @Override
+          public void onError(String error) {
+            errors.add(error);
+          }
+        });
+
+    recorder.onJunctionUpserted("A,B", new TrafficJunction("A,B", 12.9, 77.5, 10, 30, false));
+    recorder.onJunctionRemoved("A,B");
+    recorder.onJunctionUpserted("C", new TrafficJunction("C", 12.9, 77.5, 10, 30, false));
+
+    assertEquals(List.of("A,B", "A,B", "C"), forwarded);
+    assertEquals(2, errors.size());
+    assertEquals(1, out.toString().split("\n").length);
+    assertTrue(out.toString().contains(",U,C,"));
+  }
+}
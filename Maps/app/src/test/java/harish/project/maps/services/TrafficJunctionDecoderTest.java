@@ -0,0 +1,138 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficJunctionDecoderTest {
+  private static final int JUNCTIONS = 10_000;
+  private static final int ROUNDS = 20;
+
+  // Same strategy as Firebase's bean mapper: cached setters invoked reflectively per field
+  private static class ReflectiveMapper {
+    private final Map<String, Method> setters = new HashMap<>();
+
+    ReflectiveMapper() {
+      for (Method method : TrafficJunction.class.getMethods()) {
+        if (method.getName().startsWith("set") && method.getParameterTypes().length == 1) {
+          String property = Character.toLowerCase(method.getName().charAt(3))
+              + method.getName().substring(4);
+          setters.put(property, method);
+        }
+      }
+    }
+
+    TrafficJunction map(Map<String, Object> raw) throws Exception {
+      TrafficJunction junction = TrafficJunction.class.getDeclaredConstructor().newInstance();
+      for (Map.Entry<String, Object> field : raw.entrySet()) {
+        Method setter = setters.get(field.getKey());
+        if (setter == null) {
+          continue;
+        }
+        Class<?> type = setter.getParameterTypes()[0];
+        Object value = field.getValue();
+        if (type == int.class) {
+          value = ((Number) value).intValue();
+        } else if (type == double.class) {
+          value = ((Number) value).doubleValue();
+        } else if (type == long.class) {
+          value = ((Number) value).longValue();
+        }
+        setter.invoke(junction, value);
+      }
+      return junction;
+    }
+  }
+
+  private static Map<String, Object> raw(int i) {
+    // Firebase hands out Long for whole numbers and Double otherwise
+    Map<String, Object> raw = new HashMap<>();
+    raw.put("junctionId", "J" + i);
+    raw.put("latitude", 12.9 + i * 1e-5);
+    raw.put("longitude", 77.5 + i * 1e-5);
+    raw.put("vehicleDensity", (long) (i % 100));
+    raw.put("greenLightDuration", 30L);
+    raw.put("timestamp", 1_700_000_000_000L + i);
+    raw.put("emergencyVehiclePresent", i % 50 == 0);
+    return raw;
+  }
+
+  @Test
+  public void decode_matchesReflectiveMapper() throws Exception {
+    ReflectiveMapper mapper = new ReflectiveMapper();
+    JunctionStateStore store = new JunctionStateStore();
+    for (int i = 0; i < 200; i++) {
+      Map<String, Object> raw = raw(i);
+      TrafficJunction expected = mapper.map(raw);
+      TrafficJunction decoded = TrafficJunctionDecoder.decode("J" + i, raw);
+      int index = TrafficJunctionDecoder.decodeInto(store, "J" + i, raw);
+
+      assertEquals(expected.getJunctionId(), decoded.getJunctionId());
+      assertEquals(expected.getLatitude(), decoded.getLatitude(), 0);
+      assertEquals(expected.getLongitude(), store.getLongitude(index), 0);
+      assertEquals(expected.getVehicleDensity(), store.getVehicleDensity(index));
+      assertEquals(expected.getGreenLightDuration(), decoded.getGreenLightDuration());
+      assertEquals(expected.getTimestamp(), store.getTimestamp(index));
+      assertEquals(expected.isEmergencyVehiclePresent(), store.isEmergencyVehiclePresent(index));
+    }
+    assertEquals(-1, TrafficJunctionDecoder.decodeInto(store, "bad", "not a map"));
+    assertEquals(7, TrafficJunctionDecoder.readVehicleDensity(raw(7)));
+  }
+
+  // Per-junction decode cost against the reflective bean mapping Firebase does
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void decoderVersusReflection() throws Exception {
+    List<Map<String, Object>> raws = new ArrayList<>(JUNCTIONS);
+    String[] keys = new String[JUNCTIONS];
+    for (int i = 0; i < JUNCTIONS; i++) {
+      raws.add(TrafficJunctionDecoderTest.raw(i));
+      keys[i] = "J" + i;
+    }
+    ReflectiveMapper mapper = new ReflectiveMapper();
+    JunctionStateStore store = new JunctionStateStore();
+    long sink = 0;
+
+    // Warm-up
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int i = 0; i < JUNCTIONS; i++) {
+        sink += mapper.map(raws.get(i)).getVehicleDensity();
+        sink += TrafficJunctionDecoder.decodeInto(store, keys[i], raws.get(i));
+      }
+    }
+
+    long start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int i = 0; i < JUNCTIONS; i++) {
+        sink += mapper.map(raws.get(i)).getVehicleDensity();
+      }
+    }
+    double reflectiveNs = (System.nanoTime() - start) / (double) (ROUNDS * JUNCTIONS);
+
+    start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int i = 0; i < JUNCTIONS; i++) {
+        sink += TrafficJunctionDecoder.decode(keys[i], raws.get(i)).getVehicleDensity();
+      }
+    }
+    double decodeNs = (System.nanoTime() - start) / (double) (ROUNDS * JUNCTIONS);
+
+    start = System.nanoTime();
+    for (int round = 0; round < ROUNDS; round++) {
+      for (int i = 0; i < JUNCTIONS; i++) {
+        sink += TrafficJunctionDecoder.decodeInto(store, keys[i], raws.get(i));
+      }
+    }
+    double decodeIntoNs = (System.nanoTime() - start) / (double) (ROUNDS * JUNCTIONS);
+
+    System.out.printf("Per-junction decode: reflective %.0f ns, decode %.0f ns, decodeInto %.0f ns "
+        + "(%d)%n", reflectiveNs, decodeNs, decodeIntoNs, sink % 10);
+  }
+}
@@ -0,0 +1,240 @@
+package harish.project.maps.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficRollupTest {
+  private static final long MINUTE = 60_000L;
+  private static final long HOUR = 3_600_000L;
+  private static final long DAY = 86_400_000L;
+
+  @Test
+  public void samples_updateEveryTier() {
+    TrafficRollup rollup = new TrafficRollup("w1");
+    long base = 10 * DAY;
+    for (int i = 1; i <= 100; i++) {
+      rollup.add("J1", base + i * 1000, i);
+    }
+
+    for (TrafficRollup.Tier tier : TrafficRollup.Tier.values()) {
+      TrafficRollup.Aggregate aggregate = rollup.get(tier, "J1", base);
+      assertNotNull(tier.name(), aggregate);
+    }
+    TrafficRollup.Aggregate minute = rollup.get(TrafficRollup.Tier.MINUTE, "J1", base);
+    assertEquals(59, minute.getCount());
+    TrafficRollup.Aggregate day = rollup.get(TrafficRollup.Tier.DAY, "J1", base);
+    assertEquals(100, day.getCount());
+    assertEquals(5050, day.getSum());
+    assertEquals(1, day.getMin());
+    assertEquals(100, day.getMax());
+    assertEquals(50.5, day.getMean(), 1e-9);
+    // True p95 is 95; histogram bins are 5 wide
+    assertTrue(Math.abs(day.getP95() - 95) < TrafficRollup.BIN_WIDTH);
+  }
+
+  @Test
+  public void liveStore_feedsEachSampleOnce() {
+    JunctionStateStore store = new JunctionStateStore();
+    store.update(store.intern("J1"), 12.9, 77.5, 40, 30, 10 * DAY, false);
+    TrafficRollup rollup = new TrafficRollup("w1");
+    // Attaching replays the junction already in the store
+    store.addObserver(rollup);
+    store.update(store.intern("J1"), 12.9, 77.5, 60, 30, 10 * DAY + 1000, false);
+    // A resync delivers the same sample again
+    store.update(store.intern("J1"), 12.9, 77.5, 60, 30, 10 * DAY + 1000, false);
+    store.update(store.intern("J2"), 12.8, 77.4, 90, 30, 0, false);
+
+    TrafficRollup.Aggregate hour = rollup.get(TrafficRollup.Tier.HOUR, "J1", 10 * DAY);
+    assertEquals(2, hour.getCount());
+    assertEquals(100, hour.getSum());
+    // Junctions without a timestamp carry no sample time to bucket by
+    assertEquals(1, rollup.getJunctionIds().size());
+  }
+
+  @Test
+  public void forWindow_picksCoarsestTierWithEnoughPoints() {
+    assertEquals(TrafficRollup.Tier.MINUTE, TrafficRollup.Tier.forWindow(HOUR, 12));
+    assertEquals(TrafficRollup.Tier.HOUR, TrafficRollup.Tier.forWindow(DAY, 12));
+    assertEquals(TrafficRollup.Tier.HOUR, TrafficRollup.Tier.forWindow(7 * DAY, 12));
+    assertEquals(TrafficRollup.Tier.DAY, TrafficRollup.Tier.forWindow(30 * DAY, 12));
+  }
+
+  @Test
+  public void drain_emitsDirtyBucketsOnceAndEvictsClosedOnes() {
+    TrafficRollup rollup = new TrafficRollup("w1");
+    rollup.add("J1", 0, 10);
+    Map<String, Object> updates = new HashMap<>();
+    assertEquals(3, rollup.drainDirty(updates));
+    assertTrue(updates.containsKey("minute/0/J1/w1"));
+    assertTrue(updates.containsKey("hour/0/J1/w1"));
+    assertTrue(updates.containsKey("day/0/J1/w1"));
+
+    updates.clear();
+    assertEquals(0, rollup.drainDirty(updates));
+
+    // Two minutes later the first minute bucket is closed and forgotten
+    rollup.add("J1", 2 * MINUTE, 20);
+    rollup.drainDirty(updates);
+    assertNull(rollup.get(TrafficRollup.Tier.MINUTE, "J1", 0));
+    assertNotNull(rollup.get(TrafficRollup.Tier.HOUR, "J1", 0));
+
+    // A late sample for the closed minute only reaches the open tiers
+    rollup.add("J1", 30_000, 30);
+    assertEquals(1, rollup.getLateSampleCount());
+    assertNull(rollup.get(TrafficRollup.Tier.MINUTE, "J1", 0));
+    assertEquals(3, rollup.get(TrafficRollup.Tier.HOUR, "J1", 0).getCount());
+  }
+
+  @Test
+  public void junctionClockAhead_doesNotMakeOthersLate() {
+    TrafficRollup rollup = new TrafficRollup("w1");
+    rollup.add("J1", 0, 10);
+    rollup.add("ahead", 2 * DAY, 50);
+    rollup.drainDirty(new HashMap<>());
+    rollup.add("J1", 30_000, 20);
+    rollup.drainDirty(new HashMap<>());
+
+    assertEquals(0, rollup.getLateSampleCount());
+    assertEquals(2, rollup.get(TrafficRollup.Tier.MINUTE, "J1", 0).getCount());
+    assertEquals(2, rollup.get(TrafficRollup.Tier.DAY, "J1", 0).getCount());
+  }
+
+  @Test
+  public void storeSamples_countOnlyWhileActive() {
+    JunctionStateStore store = new JunctionStateStore();
+    TrafficRollup rollup = new TrafficRollup("w1");
+    rollup.setActiveFrom(Long.MAX_VALUE);
+    store.addObserver(rollup);
+    store.update(store.intern("J1"), 12.9, 77.5, 10, 30, MINUTE, false);
+
+    // The lease is won later: the sample a new process is handed on connect stays out
+    rollup.setActiveFrom(2 * MINUTE);
+    store.update(store.intern("J1"), 12.9, 77.5, 10, 30, MINUTE, false);
+    store.update(store.intern("J1"), 12.9, 77.5, 40, 30, 3 * MINUTE, false);
+    rollup.setActiveFrom(Long.MAX_VALUE);
+    store.update(store.intern("J1"), 12.9, 77.5, 70, 30, 4 * MINUTE, false);
+
+    TrafficRollup.Aggregate hour = rollup.get(TrafficRollup.Tier.HOUR, "J1", 0);
+    assertEquals(1, hour.getCount());
+    assertEquals(40, hour.getSum());
+  }
+
+  @Test
+  public void readSeries_mergesWritersAndJunctions() {
+    TrafficRollup first = new TrafficRollup("a");
+    TrafficRollup second = new TrafficRollup("b");
+    first.add("J1", HOUR, 10);
+    first.add("J2", HOUR, 30);
+    second.add("J1", HOUR + 1, 50);
+    second.add("J1", 3 * HOUR, 70);
+
+    Map<String, Object> updates = new HashMap<>();
+    first.drainDirty(updates);
+    second.drainDirty(updates);
+    Map<String, Object> tier = toTree(updates, TrafficRollup.Tier.HOUR.getPath());
+
+    TreeMap<Long, TrafficRollup.Aggregate> series = TrafficRollup.readSeries(tier, 0);
+    assertEquals(2, series.size());
+    TrafficRollup.Aggregate merged = series.get(HOUR);
+    assertEquals(3, merged.getCount());
+    assertEquals(30.0, merged.getMean(), 1e-9);
+    assertEquals(10, merged.getMin());
+    assertEquals(50, merged.getMax());
+
+    assertEquals(1, TrafficRollup.readSeries(tier, 2 * HOUR).size());
+  }
+
+  @Test
+  public void rawHistory_readsBackAsHourlyAggregates() {
+    // Two days of one sample per junction per minute for 5 junctions
+    int junctions = 5;
+    long samples = 2 * 24 * 60;
+    TrafficRollup rollup = new TrafficRollup("w");
+    Map<String, Object> updates = new HashMap<>();
+    Random random = new Random(1);
+    for (long m = 0; m < samples; m++) {
+      for (int j = 0; j < junctions; j++) {
+        rollup.add("J" + j, m * MINUTE, random.nextInt(101));
+      }
+      if (m % 60 == 59) {
+        rollup.drainDirty(updates);
+      }
+    }
+    rollup.drainDirty(updates);
+
+    TreeMap<Long, TrafficRollup.Aggregate> series =
+        TrafficRollup.readSeries(toTree(updates, TrafficRollup.Tier.HOUR.getPath()), 0);
+    assertEquals(2 * 24, series.size());
+    assertEquals(samples * junctions, countAll(series));
+  }
+
+  private static long countAll(TreeMap<Long, TrafficRollup.Aggregate> series) {
+    long total = 0;
+    for (TrafficRollup.Aggregate aggregate : series.values()) {
+      total += aggregate.getCount();
+    }
+    return total;
+  }
+
+  // Turns flat multi-path updates back into the nested maps Firebase would return for a tier
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> toTree(Map<String, Object> updates, String tier) {
+    Map<String, Object> root = new HashMap<>();
+    for (Map.Entry<String, Object> update : updates.entrySet()) {
+      String[] path = update.getKey().split("/");
+      if (!path[0].equals(tier)) {
+        continue;
+      }
+      Map<String, Object> node = root;
+      for (int i = 1; i < path.length - 1; i++) {
+        node = (Map<String, Object>) node.computeIfAbsent(path[i], k -> new HashMap<>());
+      }
+      node.put(path[path.length - 1], update.getValue());
+    }
+    return root;
+  }
+
+  // Ingest cost of a week of minute samples, and what the chart reads instead of the raw history
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void chartReadAgainstRawHistory() {
+    // A week of one sample per junction per minute for 50 junctions
+    int junctions = 50;
+    long samples = 7 * 24 * 60;
+    TrafficRollup rollup = new TrafficRollup("w");
+    Map<String, Object> updates = new HashMap<>();
+    Random random = new Random(1);
+    long start = System.nanoTime();
+    for (long m = 0; m < samples; m++) {
+      for (int j = 0; j < junctions; j++) {
+        rollup.add("J" + j, m * MINUTE, random.nextInt(101));
+      }
+      if (m % 60 == 59) {
+        rollup.drainDirty(updates);
+      }
+    }
+    rollup.drainDirty(updates);
+    double ingestMs = (System.nanoTime() - start) / 1e6;
+
+    long raw = samples * junctions;
+    Map<String, Object> hours =
+        TrafficRollupTest.toTree(updates, TrafficRollup.Tier.HOUR.getPath());
+    start = System.nanoTime();
+    TreeMap<Long, TrafficRollup.Aggregate> series = TrafficRollup.readSeries(hours, 0);
+    double readMs = (System.nanoTime() - start) / 1e6;
+
+    long read = 0;
+    for (Object bucket : hours.values()) {
+      read += ((Map<?, ?>) bucket).size();
+    }
+    System.out.printf("Rollups: %d raw samples ingested in %.0f ms; week chart reads %d hourly "
+            + "aggregates (%.0fx fewer) into %d points in %.1f ms%n", raw, ingestMs, read,
+        raw / (double) read, series.size(), readMs);
+  }
+}
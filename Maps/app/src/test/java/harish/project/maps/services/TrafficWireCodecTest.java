@@ -0,0 +1,257 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficWireCodecTest {
+  private static class CollectingVisitor implements TrafficWireCodec.Visitor {
+    final List<TrafficJunction> junctions = new ArrayList<>();
+    final List<String> removed = new ArrayList<>();
+
+    @Override
+    public void onJunction(String junctionId, double latitude, double longitude,
+        int vehicleDensity, int greenLightDuration, long timestamp, boolean emergency) {
+      TrafficJunction junction = new TrafficJunction(junctionId, latitude, longitude,
+          vehicleDensity, greenLightDuration, emergency);
+      junction.setTimestamp(timestamp);
+      junctions.add(junction);
+    }
+
+    @Override
+    public void onJunctionRemoved(String junctionId) {
+      removed.add(junctionId);
+    }
+  }
+
+  private static TrafficJunction junction(String id, double lat, double lon, int density,
+      long timestamp, boolean emergency) {
+    TrafficJunction junction = new TrafficJunction(id, lat, lon, density, 30, emergency);
+    junction.setTimestamp(timestamp);
+    return junction;
+  }
+
+  @Test
+  public void roundTrip_acrossBatches() {
+    TrafficWireCodec.Encoder encoder = new TrafficWireCodec.Encoder();
+    TrafficWireCodec.Decoder decoder = new TrafficWireCodec.Decoder();
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    List<TrafficJunction> first = new ArrayList<>();
+    first.add(junction("junction_mg_road", 12.975123, 77.606789, 45, 1_700_000_000_000L, false));
+    first.add(junction("junction_silk_board", 12.917456, 77.623111, 92, 1_700_000_000_500L, true));
+    encoder.beginBatch(buffer);
+    for (TrafficJunction junction : first) {
+      encoder.write(junction);
+    }
+    assertEquals(2, encoder.endBatch());
+
+    List<TrafficJunction> second = new ArrayList<>();
+    second.add(junction("junction_silk_board", 12.917456, 77.623111, 88, 1_700_000_000_400L, false));
+    second.add(junction("junction_mg_road", 12.975200, 77.606789, 40, 1_700_000_001_000L, false));
+    encoder.beginBatch(buffer);
+    for (TrafficJunction junction : second) {
+      encoder.write(junction);
+    }
+    encoder.writeRemoval("junction_mg_road");
+    encoder.endBatch();
+
+    buffer.flip();
+    CollectingVisitor visitor = new CollectingVisitor();
+    assertEquals(2, decoder.decode(buffer, visitor));
+    assertEquals(3, decoder.decode(buffer, visitor));
+    assertFalse(buffer.hasRemaining());
+
+    List<TrafficJunction> expected = new ArrayList<>(first);
+    expected.addAll(second);
+    assertEquals(expected.size(), visitor.junctions.size());
+    for (int i = 0; i < expected.size(); i++) {
+      TrafficJunction want = expected.get(i);
+      TrafficJunction got = visitor.junctions.get(i);
+      assertEquals(want.getJunctionId(), got.getJunctionId());
+      assertEquals(want.getLatitude(), got.getLatitude(), 1e-6);
+      assertEquals(want.getLongitude(), got.getLongitude(), 1e-6);
+      assertEquals(want.getVehicleDensity(), got.getVehicleDensity());
+      assertEquals(want.getGreenLightDuration(), got.getGreenLightDuration());
+      assertEquals(want.getTimestamp(), got.getTimestamp());
+      assertEquals(want.isEmergencyVehiclePresent(), got.isEmergencyVehiclePresent());
+    }
+    assertEquals("junction_mg_road", visitor.removed.get(0));
+  }
+
+  @Test
+  public void overflow_leavesSessionConsistent() {
+    TrafficWireCodec.Encoder encoder = new TrafficWireCodec.Encoder();
+    ByteBuffer small = ByteBuffer.allocate(24);
+    encoder.beginBatch(small);
+    encoder.write(junction("A", 1, 1, 10, 1000, false));
+    try {
+      encoder.write(junction("a-much-longer-junction-id", 2, 2, 20, 2000, false));
+      fail("expected overflow");
+    } catch (BufferOverflowException expected) {
+      // The record that did not fit is not part of the batch
+    }
+    assertEquals(1, encoder.endBatch());
+
+    small.flip();
+    CollectingVisitor visitor = new CollectingVisitor();
+    TrafficWireCodec.Decoder decoder = new TrafficWireCodec.Decoder();
+    decoder.decode(small, visitor);
+
+    // The rejected id is defined on its next successful write
+    ByteBuffer next = ByteBuffer.allocate(128);
+    encoder.beginBatch(next);
+    encoder.write(junction("a-much-longer-junction-id", 2, 2, 20, 2000, false));
+    encoder.endBatch();
+    next.flip();
+    decoder.decode(next, visitor);
+    assertEquals("a-much-longer-junction-id", visitor.junctions.get(1).getJunctionId());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncatedBatch_isRejected() {
+    TrafficWireCodec.Encoder encoder = new TrafficWireCodec.Encoder();
+    ByteBuffer buffer = ByteBuffer.allocate(256);
+    encoder.beginBatch(buffer);
+    encoder.write(junction("A", 1, 1, 10, 1000, false));
+    encoder.endBatch();
+    buffer.flip();
+    buffer.limit(buffer.limit() - 2);
+    new TrafficWireCodec.Decoder().decode(buffer, new CollectingVisitor());
+  }
+
+  @Test
+  public void corruptIdLength_isRejected() {
+    for (long length : new long[] {-1L, 1L << 31, 64}) {
+      ByteBuffer buffer = ByteBuffer.allocate(32);
+      buffer.put(TrafficWireCodec.MAGIC).put(TrafficWireCodec.VERSION).putInt(1);
+      buffer.put((byte) TrafficWireCodec.FLAG_DEFINE);
+      TrafficWireCodec.putVarint(buffer, 0);
+      TrafficWireCodec.putVarint(buffer, length);
+      buffer.put(new byte[8]);
+      buffer.flip();
+      try {
+        new TrafficWireCodec.Decoder().decode(buffer, new CollectingVisitor());
+        fail("Accepted id length " + length);
+      } catch (IllegalArgumentException expected) {
+        assertTrue(expected.getMessage().startsWith("Bad junction id length"));
+      }
+    }
+  }
+
+  @Test
+  public void steadyBatches_roundTripInAFifthOfTheJson() {
+    int junctions = 500;
+    int batches = 5;
+    Random random = new Random(7);
+    JunctionStateStore source = new JunctionStateStore();
+    for (int i = 0; i < junctions; i++) {
+      source.update(source.intern("junction_" + i), 12.9 + random.nextDouble() * 0.2,
+          77.5 + random.nextDouble() * 0.2, random.nextInt(100), 30, 1_700_000_000_000L, false);
+    }
+
+    TrafficWireCodec.Encoder encoder = new TrafficWireCodec.Encoder();
+    TrafficWireCodec.Decoder decoder = new TrafficWireCodec.Decoder();
+    JunctionStateStore target = new JunctionStateStore();
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    long steadyBytes = 0;
+    long jsonBytes = 0;
+    for (int batch = 0; batch < batches; batch++) {
+      for (int i = 0; i < junctions; i++) {
+        source.update(i, source.getLatitude(i), source.getLongitude(i), random.nextInt(100), 30,
+            1_700_000_000_000L + batch * 1000L + i, random.nextInt(500) == 0);
+      }
+      buffer.clear();
+      encoder.beginBatch(buffer);
+      for (int i = 0; i < junctions; i++) {
+        encoder.write(source, i);
+      }
+      encoder.endBatch();
+      buffer.flip();
+      if (batch > 0) {
+        steadyBytes += buffer.remaining();
+        for (int i = 0; i < junctions; i++) {
+          jsonBytes += toJson(source, i).length();
+        }
+      }
+
+      decoder.decodeInto(buffer, target);
+    }
+
+    for (int i = 0; i < junctions; i++) {
+      assertEquals(source.getVehicleDensity(i), target.getVehicleDensity(i));
+      assertEquals(source.getTimestamp(i), target.getTimestamp(i));
+      assertEquals(source.getLatitude(i), target.getLatitude(i), 1e-6);
+    }
+    assertTrue(steadyBytes * 5 < jsonBytes);
+  }
+
+
+  private static String toJson(JunctionStateStore store, int i) {
+    return "\"" + store.getJunctionId(i) + "\":{\"junctionId\":\"" + store.getJunctionId(i)
+        + "\",\"latitude\":" + store.getLatitude(i) + ",\"longitude\":" + store.getLongitude(i)
+        + ",\"vehicleDensity\":" + store.getVehicleDensity(i) + ",\"greenLightDuration\":"
+        + store.getGreenLightDuration(i) + ",\"timestamp\":" + store.getTimestamp(i)
+        + ",\"emergencyVehiclePresent\":" + store.isEmergencyVehiclePresent(i) + "}";
+  }
+
+  // Encode and decode rates for steady batches, and their size against the JSON they replace
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void throughputAndSizeVersusJson() {
+    int junctions = 5000;
+    int batches = 40;
+    Random random = new Random(7);
+    JunctionStateStore source = new JunctionStateStore();
+    for (int i = 0; i < junctions; i++) {
+      source.update(source.intern("junction_" + i), 12.9 + random.nextDouble() * 0.2,
+          77.5 + random.nextDouble() * 0.2, random.nextInt(100), 30, 1_700_000_000_000L, false);
+    }
+
+    TrafficWireCodec.Encoder encoder = new TrafficWireCodec.Encoder();
+    TrafficWireCodec.Decoder decoder = new TrafficWireCodec.Decoder();
+    JunctionStateStore target = new JunctionStateStore();
+    ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    long encodeNanos = 0;
+    long decodeNanos = 0;
+    long steadyBytes = 0;
+    long jsonBytes = 0;
+    for (int batch = 0; batch < batches; batch++) {
+      for (int i = 0; i < junctions; i++) {
+        source.update(i, source.getLatitude(i), source.getLongitude(i), random.nextInt(100), 30,
+            1_700_000_000_000L + batch * 1000L + i, random.nextInt(500) == 0);
+      }
+      buffer.clear();
+      long start = System.nanoTime();
+      encoder.beginBatch(buffer);
+      for (int i = 0; i < junctions; i++) {
+        encoder.write(source, i);
+      }
+      encoder.endBatch();
+      encodeNanos += System.nanoTime() - start;
+      buffer.flip();
+      if (batch > 0) {
+        steadyBytes += buffer.remaining();
+        for (int i = 0; i < junctions; i++) {
+          jsonBytes += TrafficWireCodecTest.toJson(source, i).length();
+        }
+      }
+
+      start = System.nanoTime();
+      decoder.decodeInto(buffer, target);
+      decodeNanos += System.nanoTime() - start;
+    }
+
+    long records = (long) junctions * batches;
+    System.out.printf("Wire codec: encode %.1f M rec/s, decode %.1f M rec/s, %.1f bytes/rec vs "
+            + "%.1f JSON%n", records / (encodeNanos / 1e3), records / (decodeNanos / 1e3),
+        steadyBytes / (double) (records - junctions), jsonBytes / (double) (records - junctions));
+  }
+}
@@ -0,0 +1,170 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TravelTimeMatrixTest {
+  private static int[] randomNodes(RoadGraph graph, int count, Random random) {
+    int[] nodes = new int[count];
+    for (int i = 0; i < count; i++) {
+      nodes[i] = random.nextInt(graph.getNodeCount());
+    }
+    return nodes;
+  }
+
+  private static TrafficEdgeWeights congested(RoadGraph graph, int junctions, Random random) {
+    TrafficEdgeWeights weights = new TrafficEdgeWeights(graph);
+    JunctionStateStore store = new JunctionStateStore();
+    store.addObserver(weights);
+    for (int i = 0; i < junctions; i++) {
+      int node = random.nextInt(graph.getNodeCount());
+      store.update(new TrafficJunction("J" + i, graph.getLatitude(node), graph.getLongitude(node),
+          random.nextInt(101), 30, false));
+    }
+    return weights;
+  }
+
+  @Test
+  public void matrix_matchesPairwiseRoutes() {
+    Random random = new Random(31);
+    RoadGraph graph = TestRoadGraphs.city(40, 32);
+    EdgeWeights weights = congested(graph, 300, random).snapshot();
+    TravelTimeMatrix matrix = new TravelTimeMatrix(graph);
+    RoutePlanner planner = new RoutePlanner(graph, weights);
+    // Rows searched forward, then columns searched backward
+    int[][] shapes = {{3, 5}, {5, 3}};
+    for (int[] shape : shapes) {
+      int[] origins = randomNodes(graph, shape[0], random);
+      int[] destinations = randomNodes(graph, shape[1], random);
+      destinations[1] = destinations[0];
+      double[] seconds = matrix.compute(origins, destinations, weights);
+      assertEquals(origins.length * destinations.length, matrix.getLastRouteCount());
+      for (int i = 0; i < origins.length; i++) {
+        for (int j = 0; j < destinations.length; j++) {
+          Route route = planner.route(origins[i], destinations[j]);
+          assertEquals(route.getTravelSeconds(), seconds[i * destinations.length + j], 1e-6);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void unreachable_isInfinite() {
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.900, 77.500);
+    int b = builder.addNode(12.900, 77.510);
+    int island = builder.addNode(12.950, 77.550);
+    builder.addEdge(a, b, 10);
+    RoadGraph graph = builder.build();
+    TravelTimeMatrix matrix = new TravelTimeMatrix(graph);
+    double[] seconds = matrix.compute(new int[] {a, b}, new int[] {b, island},
+        graph::getTravelSeconds);
+    assertEquals(graph.getTravelSeconds(0), seconds[0], 1e-9);
+    assertEquals(TravelTimeMatrix.UNREACHABLE, seconds[1], 0);
+    assertEquals(0, seconds[2], 0);
+    assertEquals(TravelTimeMatrix.UNREACHABLE, seconds[3], 0);
+    // One-way road: b cannot get back to a
+    assertEquals(-1, matrix.nearestOrigin(new int[] {b, island}, a, graph::getTravelSeconds));
+    assertEquals(0, matrix.nearestOrigin(new int[] {a, island}, b, graph::getTravelSeconds));
+  }
+
+  @Test
+  public void snapshot_ignoresLaterUpdates() {
+    RoadGraph graph = TestRoadGraphs.city(10, 33);
+    TrafficEdgeWeights live = new TrafficEdgeWeights(graph);
+    JunctionStateStore store = new JunctionStateStore();
+    store.addObserver(live);
+    EdgeWeights frozen = live.snapshot();
+    int edge = graph.firstEdge(0);
+    int target = graph.getTarget(edge);
+    store.update(new TrafficJunction("J", graph.getLatitude(target), graph.getLongitude(target),
+        100, 30, false));
+    assertEquals(3 * graph.getTravelSeconds(edge), live.travelSeconds(edge), 1e-6);
+    assertEquals(graph.getTravelSeconds(edge), frozen.travelSeconds(edge), 1e-9);
+  }
+
+  @Test
+  public void nearestOrigin_agreesWithTheMatrix() {
+    Random random = new Random(34);
+    RoadGraph graph = TestRoadGraphs.city(60, 35);
+    EdgeWeights weights = congested(graph, 500, random).snapshot();
+    TravelTimeMatrix matrix = new TravelTimeMatrix(graph);
+    for (int incident = 0; incident < 20; incident++) {
+      int[] ambulances = randomNodes(graph, 12, random);
+      int destination = random.nextInt(graph.getNodeCount());
+      double[] seconds = matrix.compute(ambulances, new int[] {destination}, weights);
+      int nearest = matrix.nearestOrigin(ambulances, destination, weights);
+      for (double candidate : seconds) {
+        assertTrue(seconds[nearest] <= candidate + 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void parallelPool_matchesASingleThread() {
+    Random random = new Random(36);
+    RoadGraph graph = TestRoadGraphs.city(60, 37);
+    EdgeWeights weights = congested(graph, 600, random).snapshot();
+    int[] ambulances = randomNodes(graph, 16, random);
+    int[] incidents = randomNodes(graph, 40, random);
+    ForkJoinPool single = new ForkJoinPool(1);
+    ForkJoinPool parallel = new ForkJoinPool(4);
+    double[] serial = new TravelTimeMatrix(graph, single).compute(ambulances, incidents, weights);
+    double[] fanned = new TravelTimeMatrix(graph, parallel).compute(ambulances, incidents,
+        weights);
+    single.shutdown();
+    parallel.shutdown();
+    assertArrayEquals(serial, fanned, 0);
+  }
+
+  // Matrix routes per second on one and all cores against route-by-route A*
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void routesPerSecond() {
+    Random random = new Random(36);
+    RoadGraph graph = TestRoadGraphs.city(300, 37);
+    EdgeWeights weights = TravelTimeMatrixTest.congested(graph, 20_000, random).snapshot();
+    // Every ambulance to every open incident across the city
+    int[] ambulances = TravelTimeMatrixTest.randomNodes(graph, 64, random);
+    int[] incidents = TravelTimeMatrixTest.randomNodes(graph, 200, random);
+    int threads = Runtime.getRuntime().availableProcessors();
+    ForkJoinPool single = new ForkJoinPool(1);
+    ForkJoinPool parallel = new ForkJoinPool(threads);
+    TravelTimeMatrix serialMatrix = new TravelTimeMatrix(graph, single);
+    TravelTimeMatrix parallelMatrix = new TravelTimeMatrix(graph, parallel);
+    // Warm up the per-thread search arrays and the reverse adjacency
+    serialMatrix.compute(ambulances, incidents, weights);
+    parallelMatrix.compute(ambulances, incidents, weights);
+
+    serialMatrix.compute(ambulances, incidents, weights);
+    double serialRate = serialMatrix.getLastRoutesPerSecond();
+    parallelMatrix.compute(ambulances, incidents, weights);
+    double parallelRate = parallelMatrix.getLastRoutesPerSecond();
+
+    RoutePlanner planner = new RoutePlanner(graph, weights);
+    int pairs = 200;
+    long start = System.nanoTime();
+    for (int p = 0; p < pairs; p++) {
+      planner.route(ambulances[p % ambulances.length], incidents[p % incidents.length]);
+    }
+    double pairwiseRate = pairs * 1e9 / (System.nanoTime() - start);
+
+    start = System.nanoTime();
+    int dispatches = 200;
+    for (int d = 0; d < dispatches; d++) {
+      parallelMatrix.nearestOrigin(ambulances, incidents[d], weights);
+    }
+    double dispatchMicros = (System.nanoTime() - start) / 1e3 / dispatches;
+    System.out.printf("Travel time matrix %dx%d on %d nodes: %.0f routes/s on 1 thread, "
+            + "%.0f routes/s on %d threads; pairwise A* %.0f routes/s; nearest ambulance "
+            + "%.0f us%n", ambulances.length, incidents.length, graph.getNodeCount(), serialRate,
+        parallelRate, threads, pairwiseRate, dispatchMicros);
+    single.shutdown();
+    parallel.shutdown();
+  }
+}
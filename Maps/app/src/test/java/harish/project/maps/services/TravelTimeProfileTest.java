@@ -0,0 +1,219 @@
+package harish.project.maps.services;
+
+import harish.project.maps.models.TrafficJunction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TravelTimeProfileTest {
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  // Monday 2026-10-12 00:00 UTC
+  private static final long MONDAY = 1_791_763_200_000L;
+  private static final long HOUR = 3_600_000;
+  private static final long WEEK = 7 * 24 * HOUR;
+
+  // a -> b -> c along a straight road at 10 m/s, with a junction on b
+  private static RoadGraph line() {
+    RoadGraph.Builder builder = new RoadGraph.Builder();
+    int a = builder.addNode(12.900, 77.500);
+    int b = builder.addNode(12.900, 77.510);
+    int c = builder.addNode(12.900, 77.520);
+    builder.addRoad(a, b, 10).addRoad(b, c, 10);
+    return builder.build();
+  }
+
+  @Test
+  public void bins_repeatWeekly() {
+    TravelTimeProfile profile = new TravelTimeProfile(line(), UTC);
+    profile.add("J", 12.900, 77.510, MONDAY + 8 * HOUR, 80);
+    profile.add("J", 12.900, 77.510, MONDAY + 8 * HOUR + WEEK + 60_000, 60);
+    assertEquals(2, profile.rebuild());
+
+    // Any Monday between 08:00 and 08:15 has the mean of both samples
+    assertEquals(70, profile.getDensity("J", MONDAY + 8 * HOUR + 10 * 60_000 + 3 * WEEK), 1e-4);
+    assertEquals(-1, profile.getDensity("J", MONDAY + 8 * HOUR + 15 * 60_000), 0);
+    assertEquals(-1, profile.getDensity("J", MONDAY + 8 * HOUR + 24 * HOUR), 0);
+    assertEquals(-1, profile.getDensity("unknown", MONDAY), 0);
+    assertEquals(profile.weekBin(MONDAY), profile.weekBin(MONDAY - WEEK));
+    assertEquals(TravelTimeProfile.BINS_PER_DAY * 4, profile.weekBin(MONDAY));
+  }
+
+  @Test
+  public void bins_followLocalTime() {
+    TimeZone india = TimeZone.getTimeZone("Asia/Kolkata");
+    TravelTimeProfile profile = new TravelTimeProfile(line(), india);
+    // 08:00 in Bangalore is 02:30 UTC
+    profile.add("J", 12.900, 77.510, MONDAY + 2 * HOUR + 30 * 60_000, 90);
+    profile.rebuild();
+    assertEquals(90, profile.getDensity("J", MONDAY + 2 * HOUR + 40 * 60_000), 1e-4);
+    assertEquals(profile.weekBin(MONDAY + 2 * HOUR + 30 * 60_000),
+        new TravelTimeProfile(line(), UTC).weekBin(MONDAY + 8 * HOUR));
+  }
+
+  @Test
+  public void samples_waitForRebuild() {
+    TravelTimeProfile profile = new TravelTimeProfile(line(), UTC);
+    JunctionStateStore store = new JunctionStateStore();
+    store.addObserver(profile);
+    TrafficJunction junction = new TrafficJunction("J", 12.900, 77.510, 100, 30, false);
+    junction.setTimestamp(MONDAY + 8 * HOUR);
+    store.update(junction);
+    // A re-delivered reading is not counted twice
+    store.update(junction);
+    assertEquals(1, profile.getPendingCount());
+    assertEquals(1f, profile.getNodeFactor(1, MONDAY + 8 * HOUR), 0);
+
+    assertEquals(1, profile.rebuild());
+    assertEquals(0, profile.getPendingCount());
+    assertEquals(3f, profile.getNodeFactor(1, MONDAY + 8 * HOUR), 1e-6);
+    assertEquals(1f, profile.getNodeFactor(0, MONDAY + 8 * HOUR), 0);
+    assertEquals(1f, profile.getNodeFactor(1, MONDAY + 9 * HOUR), 0);
+    assertEquals(0, profile.rebuild());
+    assertEquals(1, profile.version());
+  }
+
+  @Test
+  public void hourRollups_skipWhatLiveUpdatesCover() {
+    TravelTimeProfile profile = new TravelTimeProfile(line(), UTC);
+    TrafficRollup first = new TrafficRollup("a");
+    TrafficRollup second = new TrafficRollup("b");
+    first.add("J", 12.900, 77.510, MONDAY + 8 * HOUR, 40);
+    second.add("J", 12.900, 77.510, MONDAY + 8 * HOUR + 30 * 60_000, 40);
+    first.add("J", 12.900, 77.510, MONDAY + 8 * HOUR + WEEK, 80);
+    first.add("J", 12.900, 77.510, MONDAY + 8 * HOUR + 2 * WEEK, 100);
+    // Without a location a junction seen only in history cannot be placed
+    first.add("nowhere", MONDAY + 8 * HOUR, 100);
+    Map<String, Object> updates = new HashMap<>();
+    first.drainDirty(updates);
+    second.drainDirty(updates);
+    Map<String, Object> hours =
+        TrafficRollupTest.toTree(updates, TrafficRollup.Tier.HOUR.getPath());
+
+    int added = 0;
+    for (Map.Entry<String, Object> bucket : hours.entrySet()) {
+      added += profile.addHourBucket(Long.parseLong(bucket.getKey()), bucket.getValue(),
+          MONDAY + 2 * WEEK);
+    }
+    assertEquals(2, added);
+    profile.rebuild();
+    // Both writers' partials merge into one hourly mean, which fills the hour's four bins
+    float expected = (40 + 80) / 2f;
+    assertEquals(expected, profile.getDensity("J", MONDAY + 8 * HOUR), 1e-4);
+    assertEquals(expected, profile.getDensity("J", MONDAY + 8 * HOUR + 45 * 60_000), 1e-4);
+    assertEquals(-1, profile.getDensity("J", MONDAY + 9 * HOUR), 0);
+    assertEquals(-1, profile.getDensity("nowhere", MONDAY + 8 * HOUR), 0);
+    assertEquals(1 + 2 * expected / 100, profile.getNodeFactor(1, MONDAY + 8 * HOUR), 1e-6);
+  }
+
+  @Test
+  public void nodeProfiles_allocateOnlyTheDaysWithSamples() {
+    RoadGraph graph = TestRoadGraphs.city(100, 3);
+    TravelTimeProfile profile = new TravelTimeProfile(graph, UTC);
+    // Two junctions per node on 500 nodes, all on Monday morning
+    for (int j = 0; j < 1000; j++) {
+      int node = (j % 500) * 20;
+      profile.add("J" + j, graph.getLatitude(node), graph.getLongitude(node),
+          MONDAY + 8 * HOUR + (j % 500 % 8) * TravelTimeProfile.BIN_MILLIS, j < 500 ? 20 : 60);
+    }
+    assertEquals(1000, profile.rebuild());
+    assertEquals(500 * TravelTimeProfile.BINS_PER_DAY, profile.getAllocatedBinCount());
+    // Junctions sharing a node share its profile
+    assertEquals(40, profile.getDensity("J0", MONDAY + 8 * HOUR), 1e-4);
+    assertEquals(40, profile.getDensity("J500", MONDAY + 8 * HOUR), 1e-4);
+
+    profile.add("J0", 0, 0, MONDAY + 8 * HOUR + 24 * HOUR, 50);
+    profile.rebuild();
+    assertEquals(501 * TravelTimeProfile.BINS_PER_DAY, profile.getAllocatedBinCount());
+  }
+
+  @Test
+  public void eta_pricesEachSegmentWhenTheRouteReachesIt() {
+    RoadGraph graph = line();
+    TravelTimeProfile profile = new TravelTimeProfile(graph, UTC);
+    // Jammed at b from 08:00, at c from 08:15
+    profile.add("b", 12.900, 77.510, MONDAY + 8 * HOUR, 100);
+    profile.add("c", 12.900, 77.520, MONDAY + 8 * HOUR + 15 * 60_000, 100);
+    profile.rebuild();
+    Route route = new RoutePlanner(graph, (EdgeWeights) graph::getTravelSeconds).route(0, 2);
+    double leg = graph.getTravelSeconds(0);
+
+    // At night both legs flow freely
+    assertEquals(2 * leg, profile.estimateSeconds(route, MONDAY + 2 * HOUR), 1e-6);
+    // Leaving at 08:00 the first leg is jammed and ends before 08:15
+    double[] arrivals = new double[3];
+    assertEquals(3 * leg + leg, profile.arrivalSeconds(route, MONDAY + 8 * HOUR, arrivals), 1e-6);
+    assertEquals(3 * leg, arrivals[1], 1e-6);
+    // Leaving at 08:14 the second leg starts after 08:15 and is jammed too
+    assertEquals(6 * leg, profile.estimateSeconds(route, MONDAY + 8 * HOUR + 14 * 60_000), 1e-6);
+  }
+
+  // Folding a week of city-wide readings into profiles, then lookups and time-dependent ETAs
+  @Test
+  @Ignore("Benchmark; run by hand")
+  public void rebuildAndLookup() {
+    RoadGraph graph = TestRoadGraphs.city(300, 21);
+    TravelTimeProfile profile = new TravelTimeProfile(graph, TimeZone.getTimeZone("UTC"));
+    Random random = new Random(22);
+    int junctions = 10_000;
+    int[] nodes = new int[junctions];
+    for (int j = 0; j < junctions; j++) {
+      nodes[j] = random.nextInt(graph.getNodeCount());
+    }
+    // A week of one reading per junction every 15 minutes, busier at rush hour
+    long samples = 0;
+    long start = System.nanoTime();
+    for (long t = MONDAY - WEEK; t < MONDAY; t += TravelTimeProfile.BIN_MILLIS) {
+      long hour = (t / HOUR) % 24;
+      int base = hour >= 8 && hour < 11 || hour >= 17 && hour < 20 ? 70 : 20;
+      for (int j = 0; j < junctions; j++) {
+        profile.add("J" + j, graph.getLatitude(nodes[j]), graph.getLongitude(nodes[j]), t,
+            base + random.nextInt(20));
+        samples++;
+      }
+    }
+    long addNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    profile.rebuild();
+    long fullNanos = System.nanoTime() - start;
+
+    // A new quarter hour of readings touches one bin per junction
+    for (int j = 0; j < junctions; j++) {
+      profile.add("J" + j, 0, 0, MONDAY, 50);
+    }
+    start = System.nanoTime();
+    profile.rebuild();
+    long incrementalNanos = System.nanoTime() - start;
+
+    int lookups = 5_000_000;
+    float checksum = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      checksum += profile.getNodeFactor(nodes[i % junctions], MONDAY + i * 60_000L);
+    }
+    long lookupNanos = System.nanoTime() - start;
+
+    RoutePlanner planner = new RoutePlanner(graph, (EdgeWeights) graph::getTravelSeconds);
+    Route route = planner.route(20 * 300 + 20, 280 * 300 + 280);
+    int etas = 2_000;
+    double[] arrivals = new double[route.getNodeCount()];
+    double rush = profile.arrivalSeconds(route, MONDAY + 8 * HOUR, arrivals);
+    double night = profile.estimateSeconds(route, MONDAY + 2 * HOUR);
+    start = System.nanoTime();
+    for (int i = 0; i < etas; i++) {
+      checksum += (float) profile.arrivalSeconds(route, MONDAY + i * 60_000L, arrivals);
+    }
+    long etaNanos = System.nanoTime() - start;
+
+    System.out.printf("Travel time profile: %d junctions, %d samples queued in %.0f ms, "
+            + "folded in %.0f ms; incremental rebuild %.2f ms; lookup %.1f ns; ETA for a "
+            + "%d-node route %.1f us (%.0f min at 02:00, %.0f min at 08:00) [%.0f]%n",
+        junctions, samples, addNanos / 1e6, fullNanos / 1e6, incrementalNanos / 1e6,
+        (double) lookupNanos / lookups, route.getNodeCount(), etaNanos / 1e3 / etas,
+        night / 60, rush / 60, checksum);
+  }
+}